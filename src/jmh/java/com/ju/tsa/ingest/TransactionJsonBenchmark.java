@@ -0,0 +1,84 @@
+package com.ju.tsa.ingest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.ju.tsa.model.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What it costs to turn request bodies into transactions: a single one through Jackson data binding, the same one
+ * through the TransactionDecoder POST /transactions uses, and a batch of them through the streaming reader of POST
+ * /transactions/batch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransactionJsonBenchmark {
+
+    private static final int BATCH_SIZE = 1_000;
+
+    private ObjectReader reader;
+    private TransactionDecoder decoder;
+    private byte[] single;
+    private byte[] ndjson;
+    private final List<Transaction> chunk = new ArrayList<>(BATCH_SIZE);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        reader = objectMapper.readerFor(Transaction.class);
+        decoder = new TransactionDecoder(objectMapper);
+        single = "{\"amount\": 12.3, \"timestamp\": 1478192204000}".getBytes(StandardCharsets.UTF_8);
+
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            lines.append("{\"amount\": ").append(i).append(".25, \"timestamp\": ").append(1478192204000L + i)
+                    .append("}\n");
+        }
+        ndjson = lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Transaction dataBinding() throws IOException {
+        return reader.readValue(single);
+    }
+
+    @Benchmark
+    public long decoder() throws IOException {
+        decoder.decode(new ByteArrayInputStream(single));
+        return decoder.getUnscaledAmount() + decoder.getTimestamp();
+    }
+
+    @Benchmark
+    public int ndjsonBatch() throws IOException {
+        int read = 0;
+        try (TransactionStreamReader stream = TransactionStreamReader.ndjson(new ByteArrayInputStream(ndjson))) {
+            while (!stream.isExhausted()) {
+                chunk.clear();
+                stream.read(chunk, BATCH_SIZE);
+                read += chunk.size();
+            }
+        }
+        return read;
+    }
+}
@@ -0,0 +1,116 @@
+package com.ju.tsa.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The immutable TransactionAggregator next to the primitive FixedPointAggregator which replaced it on the hot path:
+ * appending a single transaction, and merging a window's worth of buckets.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AggregatorBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    /**
+     * Number of buckets merged per flatten, 60 being the default window
+     */
+    @Param({"60", "3600"})
+    public int buckets;
+
+    private Transaction[] transactions;
+    private int next;
+
+    private TransactionAggregator aggregator;
+    private FixedPointAggregator primitive;
+    private FixedPointAggregator withPercentiles;
+
+    private List<TransactionAggregator> filledBuckets;
+    private List<FixedPointAggregator> filledPrimitiveBuckets;
+    private FixedPointAggregator merged;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        transactions = new Transaction[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            transactions[i] = new Transaction(BigDecimal.valueOf(random.nextInt(1_000_000), 2), 0);
+        }
+
+        aggregator = new TransactionAggregator();
+        primitive = new FixedPointAggregator();
+        withPercentiles = new FixedPointAggregator(FixedPointAggregator.DEFAULT_SCALE, 0.01);
+
+        filledBuckets = new ArrayList<>(buckets);
+        filledPrimitiveBuckets = new ArrayList<>(buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            TransactionAggregator filled = new TransactionAggregator();
+            FixedPointAggregator filledPrimitive = new FixedPointAggregator();
+            for (int i = 0; i < 10; i++) {
+                Transaction transaction = transactions[random.nextInt(SAMPLES)];
+                filled = filled.append(transaction);
+                filledPrimitive.append(transaction);
+            }
+            filledBuckets.add(filled);
+            filledPrimitiveBuckets.add(filledPrimitive);
+        }
+        merged = new FixedPointAggregator();
+    }
+
+    @Benchmark
+    public TransactionAggregator append() {
+        aggregator = aggregator.append(nextTransaction());
+        return aggregator;
+    }
+
+    @Benchmark
+    public FixedPointAggregator appendPrimitive() {
+        primitive.append(nextTransaction());
+        return primitive;
+    }
+
+    @Benchmark
+    public FixedPointAggregator appendWithPercentiles() {
+        withPercentiles.append(nextTransaction());
+        return withPercentiles;
+    }
+
+    @Benchmark
+    public TransactionAggregator flatten() {
+        return TransactionAggregator.flatten(filledBuckets);
+    }
+
+    @Benchmark
+    public TransactionAggregator mergePrimitive() {
+        merged.reset();
+        for (FixedPointAggregator bucket : filledPrimitiveBuckets) {
+            merged.merge(bucket);
+        }
+        return merged.toTransactionAggregator();
+    }
+
+    private Transaction nextTransaction() {
+        return transactions[next++ & (SAMPLES - 1)];
+    }
+}
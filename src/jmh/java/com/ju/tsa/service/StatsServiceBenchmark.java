@@ -0,0 +1,131 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.model.TransactionAggregator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The write path of StatsService from one thread, from a few and from every core, and the read path while writers are
+ * busy. The fill pattern decides where in the window the transactions land:
+ * <ul>
+ * <li>CURRENT: all of them in the most recent bucket, the worst case for contention</li>
+ * <li>SPREAD: anywhere in the last minute, like clients with skewed clocks</li>
+ * <li>STALE: a quarter of them older than the window, so the refusal path gets its share</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatsServiceBenchmark {
+
+    private static final int SAMPLES = 4096;
+
+    @Param({"CURRENT", "SPREAD", "STALE"})
+    public FillPattern fill;
+
+    private StatsService stats;
+    private long[] ageMillis;
+    private BigDecimal[] amounts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stats = new StatsService();
+
+        Random random = new Random(42);
+        ageMillis = new long[SAMPLES];
+        amounts = new BigDecimal[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            ageMillis[i] = fill.ageMillis(random);
+            amounts[i] = BigDecimal.valueOf(random.nextInt(1_000_000), 2);
+        }
+    }
+
+    /**
+     * Every thread walks the samples on its own
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void add(Cursor cursor) {
+        addNext(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addFromFourThreads(Cursor cursor) {
+        addNext(cursor);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void addFromAllCores(Cursor cursor) {
+        addNext(cursor);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(3)
+    public void writer(Cursor cursor) {
+        addNext(cursor);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public TransactionAggregator reader() {
+        return stats.aggregate();
+    }
+
+    private void addNext(Cursor cursor) {
+        int i = cursor.next++ & (SAMPLES - 1);
+        stats.add(new Transaction(amounts[i], System.currentTimeMillis() - ageMillis[i]));
+    }
+
+    public enum FillPattern {
+        CURRENT {
+            @Override
+            long ageMillis(Random random) {
+                return 0;
+            }
+        },
+        SPREAD {
+            @Override
+            long ageMillis(Random random) {
+                return random.nextInt(59_000);
+            }
+        },
+        STALE {
+            @Override
+            long ageMillis(Random random) {
+                return random.nextInt(4) == 0 ? 60_000 + random.nextInt(60_000) : random.nextInt(59_000);
+            }
+        };
+
+        abstract long ageMillis(Random random);
+    }
+}
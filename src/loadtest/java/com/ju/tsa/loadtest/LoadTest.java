@@ -0,0 +1,373 @@
+package com.ju.tsa.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.model.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Throws transactions at a running tsa and keeps an eye on it:
+ * <pre>
+ *     mvn -Ploadtest test-compile exec:exec -Dloadtest.args="--rate=5000 --concurrency=16 --duration=600"
+ * </pre>
+ * The workers send synthetic or recorded transactions at the given rate. Every check-every seconds they stop for a moment and the
+ * statistics the server serves are compared with what the Oracle works out from every transaction the server
+ * accepted. Every report-every seconds the throughput, the latencies and the heap and collections of the server (the
+ * jvm section of /metrics) are printed, so a soak test of a few hours shows the pauses and whether the heap left after
+ * collections keeps on growing.
+ * <p>
+ * Exits with 1 if any check failed.
+ */
+public class LoadTest {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final Options options;
+    private final Traffic traffic;
+    private final Oracle oracle = new Oracle();
+
+    /**
+     * Workers hold it shared while sending, the checker takes it exclusively, so it sees the server at rest
+     */
+    private final ReentrantReadWriteLock pause = new ReentrantReadWriteLock(true);
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicReference<LatencyHistogram> intervalLatency = new AtomicReference<>(new LatencyHistogram());
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private long checksPassed;
+    private long checksAtTheEdge;
+    private long checksFailed;
+    private volatile boolean stopped;
+
+    LoadTest(Options options, Traffic traffic) {
+        this.options = options;
+        this.traffic = traffic;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        Traffic traffic = options.replay.isEmpty()
+                ? Traffic.synthetic(options.skewMillis, options.outOfWindow, options.windowMillis)
+                : Traffic.recorded(Paths.get(options.replay));
+        boolean clean = new LoadTest(options, traffic).run();
+        System.exit(clean ? 0 : 1);
+    }
+
+    /**
+     * Runs the test for its duration
+     *
+     * @return true if every check passed
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    boolean run() throws InterruptedException {
+        System.out.printf("%s: %s for %ds, %d workers, %s%n", options.url,
+                options.rate > 0 ? options.rate + " transactions/s" : "as fast as it goes", options.durationSeconds,
+                options.concurrency, options.replay.isEmpty() ? "synthetic traffic" : "replaying " + options.replay);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < options.concurrency; i++) {
+            Thread worker = new Thread(this::work, "loadtest-worker-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long start = System.nanoTime();
+        long end = start + options.durationSeconds * 1_000_000_000L;
+        long nextReport = start + options.reportSeconds * 1_000_000_000L;
+        long nextCheck = options.checkSeconds > 0 ? start + options.checkSeconds * 1_000_000_000L : Long.MAX_VALUE;
+        Map<String, Object> firstJvm = jvm();
+        Map<String, Object> lastJvm = firstJvm;
+        long lastSent = 0;
+
+        while (System.nanoTime() < end) {
+            LockSupport.parkNanos(Math.min(Math.min(nextReport, nextCheck), end) - System.nanoTime());
+            long now = System.nanoTime();
+            if (now >= nextCheck) {
+                check();
+                nextCheck += options.checkSeconds * 1_000_000_000L;
+            }
+            if (now >= nextReport) {
+                lastJvm = jvm();
+                long total = sent.sum();
+                report((now - start) / 1_000_000_000L, (total - lastSent) / (double) options.reportSeconds,
+                        intervalLatency.getAndSet(new LatencyHistogram()).summary(), lastJvm);
+                lastSent = total;
+                nextReport += options.reportSeconds * 1_000_000_000L;
+            }
+        }
+        stopped = true;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (options.checkSeconds > 0) {
+            check();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println();
+        System.out.printf("sent %d in %.1fs, %.0f/s: %d in the window, %d out of it, %d shed, %d failed%n",
+                sent.sum(), seconds, sent.sum() / seconds, accepted.sum(), rejected.sum(), shed.sum(), failed.sum());
+        System.out.println("latency " + latency.summary());
+        System.out.printf("checks: %d passed, %d at the edge of the window, %d failed%n", checksPassed,
+                checksAtTheEdge, checksFailed);
+        if (!firstJvm.isEmpty() && !lastJvm.isEmpty()) {
+            System.out.printf("server heap after gc %s -> %s MB, %s collections taking %s ms%n",
+                    megabytes(firstJvm.get("heapAfterGcBytes")), megabytes(lastJvm.get("heapAfterGcBytes")),
+                    difference(lastJvm, firstJvm, "gcCount"), difference(lastJvm, firstJvm, "gcMillis"));
+        }
+        return checksFailed == 0;
+    }
+
+    /**
+     * What every worker does: send, count the answer, wait for the next turn
+     */
+    private void work() {
+        long intervalNanos = options.rate > 0 ? 1_000_000_000L * options.concurrency / options.rate : 0;
+        long next = System.nanoTime();
+        URL transactions = url("/transactions");
+
+        while (!stopped) {
+            if (intervalNanos > 0) {
+                LockSupport.parkNanos(next - System.nanoTime());
+                // behind schedule after a pause, so the missed turns are skipped rather than sent in a burst
+                next = Math.max(next + intervalNanos, System.nanoTime());
+            }
+
+            pause.readLock().lock();
+            try {
+                long nowMillis = System.currentTimeMillis();
+                Sample sample = traffic.next(nowMillis);
+                long start = System.nanoTime();
+                int status = post(transactions, sample.toJson());
+                long nanos = System.nanoTime() - start;
+                latency.record(nanos);
+                intervalLatency.get().record(nanos);
+                sent.increment();
+                judge(sample, status, nowMillis);
+            } catch (IOException e) {
+                failed.increment();
+            } finally {
+                pause.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Counts the answer. A single transaction is taken with a 201 or a 202 whether it ends up in the window or not, so
+     * the oracle goes by the same rule as the server: in the past, and not older than the window.
+     */
+    private void judge(Sample sample, int status, long sentMillis) {
+        if (status == 429) {
+            // turned down by the admission control, which is doing its job
+            shed.increment();
+            return;
+        }
+        if (status != 201 && status != 202) {
+            failed.increment();
+            return;
+        }
+        long timestamp = sample.getTimestamp();
+        if (timestamp < sentMillis && timestamp >= sentMillis - options.windowMillis) {
+            accepted.increment();
+            oracle.accepted(sample);
+        } else {
+            rejected.increment();
+        }
+    }
+
+    /**
+     * Stops the workers, gives the server a moment to publish a snapshot with all of their transactions, and compares
+     * its statistics with the ones of the oracle. The edge of the window moves while the request is on its way, so the
+     * oracle works them out for both ends of that, and anything in between passes as being at the edge.
+     */
+    private void check() {
+        pause.writeLock().lock();
+        try {
+            LockSupport.parkNanos(options.settleMillis * 1_000_000L);
+            long before = System.currentTimeMillis();
+            HttpURLConnection connection = (HttpURLConnection) url("/statistics").openConnection();
+            JsonNode served;
+            long age;
+            try (InputStream in = connection.getInputStream()) {
+                served = JSON.readTree(in);
+                String ageHeader = connection.getHeaderField("X-Snapshot-Age");
+                age = ageHeader == null ? 0 : Long.parseLong(ageHeader);
+            }
+            long after = System.currentTimeMillis();
+
+            Oracle.Expected most = oracle.expect(windowStart(before - age));
+            Oracle.Expected least = oracle.expect(windowStart(after - age));
+            long count = served.get("count").asLong();
+            boolean exact = most.matches(count, served.get("sum").decimalValue(),
+                    served.get("minimum").decimalValue(), served.get("maximum").decimalValue());
+            if (exact || least.count == most.count) {
+                if (exact) {
+                    checksPassed++;
+                } else {
+                    checksFailed++;
+                    System.out.println("CHECK FAILED: served " + served + ", expected " + most);
+                }
+            } else if (count >= least.count && count <= most.count) {
+                checksAtTheEdge++;
+            } else {
+                checksFailed++;
+                System.out.println("CHECK FAILED: served count " + count + ", expected between " + least.count
+                        + " and " + most.count);
+            }
+            oracle.forgetBefore(after - options.windowMillis - 2 * options.edgeMillis);
+        } catch (IOException e) {
+            checksFailed++;
+            System.out.println("CHECK FAILED: " + e);
+        } finally {
+            pause.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Where the server's window starts at a moment: the first bucket that starts after the moment minus the window
+     */
+    private long windowStart(long nowMillis) {
+        return (Math.floorDiv(nowMillis - options.windowMillis, options.edgeMillis) + 1) * options.edgeMillis;
+    }
+
+    private void report(long second, double rate, Map<String, Object> latencies, Map<String, Object> jvm) {
+        System.out.printf("%5ds %8.0f/s  p50 %6sus  p99 %6sus  max %7sus", second, rate,
+                latencies.get("p50Micros"), latencies.get("p99Micros"), latencies.get("maxMicros"));
+        if (!jvm.isEmpty()) {
+            System.out.printf("  heap after gc %s MB, %s collections, %s ms", megabytes(jvm.get("heapAfterGcBytes")),
+                    jvm.get("gcCount"), jvm.get("gcMillis"));
+        }
+        System.out.println();
+    }
+
+    /**
+     * The jvm section of the server's /metrics
+     *
+     * @return the section, or nothing if it can't be had
+     */
+    private Map<String, Object> jvm() {
+        Map<String, Object> jvm = new LinkedHashMap<>();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url("/metrics").openConnection();
+            try (InputStream in = connection.getInputStream()) {
+                JsonNode section = JSON.readTree(in).get("jvm");
+                if (section != null) {
+                    section.fields().forEachRemaining(field -> jvm.put(field.getKey(), field.getValue().asLong()));
+                }
+            }
+        } catch (IOException e) {
+            // no metrics then
+        }
+        return jvm;
+    }
+
+    private int post(URL url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        // reading the answer to the end lets the connection be used again
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try (InputStream answer = in) {
+                drain(answer);
+            }
+        }
+        return status;
+    }
+
+    private URL url(String path) {
+        try {
+            return new URL(options.url + path);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("not a url: " + options.url + path, e);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[256];
+        ByteArrayOutputStream ignored = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            ignored.write(buffer, 0, read);
+        }
+    }
+
+    private static String megabytes(Object bytes) {
+        return String.format("%.1f", ((Number) bytes).longValue() / (1024.0 * 1024.0));
+    }
+
+    private static long difference(Map<String, Object> last, Map<String, Object> first, String key) {
+        return ((Number) last.get(key)).longValue() - ((Number) first.get(key)).longValue();
+    }
+
+    /**
+     * What the test is told on the command line, as --name=value
+     */
+    static class Options {
+        String url = "http://localhost:8080";
+        long rate = 1_000;
+        int concurrency = 8;
+        long durationSeconds = 60;
+        long skewMillis = 50_000;
+        double outOfWindow = 0.05;
+        String replay = "";
+        long windowMillis = 60_000;
+        long edgeMillis = 1_000;
+        long checkSeconds = 10;
+        long settleMillis = 200;
+        long reportSeconds = 5;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("expected --name=value, got " + arg);
+                }
+                String name = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+                switch (name) {
+                    case "url": options.url = value; break;
+                    case "rate": options.rate = Long.parseLong(value); break;
+                    case "concurrency": options.concurrency = Integer.parseInt(value); break;
+                    case "duration": options.durationSeconds = Long.parseLong(value); break;
+                    case "skew-millis": options.skewMillis = Long.parseLong(value); break;
+                    case "out-of-window": options.outOfWindow = Double.parseDouble(value); break;
+                    case "replay": options.replay = value; break;
+                    case "window-millis": options.windowMillis = Long.parseLong(value); break;
+                    case "edge-millis": options.edgeMillis = Long.parseLong(value); break;
+                    case "check-every": options.checkSeconds = Long.parseLong(value); break;
+                    case "settle-millis": options.settleMillis = Long.parseLong(value); break;
+                    case "report-every": options.reportSeconds = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("unknown option --" + name);
+                }
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.ju.tsa.loadtest;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Knows what the statistics should be: it keeps every transaction the server accepted and works the aggregates out the
+ * slow and obvious way, the very thing the buckets are there to avoid.
+ */
+class Oracle {
+
+    private final Queue<Sample> accepted = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Takes note of a transaction the server accepted
+     *
+     * @param sample the transaction
+     */
+    void accepted(Sample sample) {
+        accepted.add(sample);
+    }
+
+    /**
+     * Forgets the transactions which can't be in any window any more
+     *
+     * @param oldestMillis the oldest timestamp still worth keeping
+     */
+    void forgetBefore(long oldestMillis) {
+        accepted.removeIf(sample -> sample.getTimestamp() < oldestMillis);
+    }
+
+    /**
+     * Works out the statistics of everything accepted from a moment on. Not meant to run while transactions are still
+     * being accepted.
+     *
+     * @param fromMillis the start of the window, inclusive
+     * @return the count, sum, minimum and maximum
+     */
+    Expected expect(long fromMillis) {
+        Expected expected = new Expected();
+        for (Iterator<Sample> it = accepted.iterator(); it.hasNext(); ) {
+            Sample sample = it.next();
+            if (sample.getTimestamp() >= fromMillis) {
+                expected.add(sample.getAmount());
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * What the statistics should say
+     */
+    static class Expected {
+        long count;
+        BigDecimal sum = BigDecimal.ZERO;
+        BigDecimal min;
+        BigDecimal max;
+
+        private void add(BigDecimal amount) {
+            count++;
+            sum = sum.add(amount);
+            min = min == null || amount.compareTo(min) < 0 ? amount : min;
+            max = max == null || amount.compareTo(max) > 0 ? amount : max;
+        }
+
+        /**
+         * Tells if the statistics served say the same
+         *
+         * @return true if count, sum, minimum and maximum all match
+         */
+        boolean matches(long servedCount, BigDecimal servedSum, BigDecimal servedMin, BigDecimal servedMax) {
+            if (servedCount != count || servedSum.compareTo(sum) != 0) {
+                return false;
+            }
+            return count == 0 || servedMin.compareTo(min) == 0 && servedMax.compareTo(max) == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " sum=" + sum.toPlainString() + " min=" + min + " max=" + max;
+        }
+    }
+}
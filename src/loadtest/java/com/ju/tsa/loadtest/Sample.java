@@ -0,0 +1,36 @@
+package com.ju.tsa.loadtest;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A transaction on its way to the server
+ */
+final class Sample {
+
+    private final BigDecimal amount;
+    private final long timestamp;
+
+    Sample(BigDecimal amount, long timestamp) {
+        this.amount = amount;
+        this.timestamp = timestamp;
+    }
+
+    BigDecimal getAmount() {
+        return amount;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The body of POST /transactions
+     *
+     * @return the transaction as JSON
+     */
+    byte[] toJson() {
+        return ("{\"amount\":" + amount.toPlainString() + ",\"timestamp\":" + timestamp + "}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,89 @@
+package com.ju.tsa.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the transactions of a load test come from. Called by every worker thread at the same time.
+ */
+interface Traffic {
+
+    /**
+     * The next transaction to send
+     *
+     * @param nowMillis the moment it's sent
+     * @return the transaction
+     */
+    Sample next(long nowMillis);
+
+    /**
+     * Made up transactions: amounts between 0.01 and 1000.00, timestamps up to skew-millis in the past, and a share of
+     * them too old or in the future
+     */
+    static Traffic synthetic(long skewMillis, double outOfWindowRatio, long windowMillis) {
+        return nowMillis -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            BigDecimal amount = BigDecimal.valueOf(1 + random.nextLong(100_000), 2);
+            if (random.nextDouble() >= outOfWindowRatio) {
+                return new Sample(amount, nowMillis - 1 - random.nextLong(Math.max(1, skewMillis)));
+            }
+            long offWindow = 1_000 + random.nextLong(windowMillis);
+            return new Sample(amount, random.nextBoolean() ? nowMillis - windowMillis - offWindow
+                    : nowMillis + offWindow);
+        };
+    }
+
+    /**
+     * Recorded transactions, one JSON object with an amount and a timestamp per line, sent in the order of the file
+     * over and over again. The timestamps are moved along, so the newest one of every round is the moment the round
+     * starts and the others keep their distance to it, the late and the too old ones included.
+     *
+     * @param file the recording
+     * @return the traffic
+     * @throws IOException if the file can't be read
+     */
+    static Traffic recorded(Path file) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<BigDecimal> amounts = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        long newest = Long.MIN_VALUE;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JsonNode record = objectMapper.readTree(line);
+                long timestamp = record.get("timestamp").asLong();
+                newest = Math.max(newest, timestamp);
+                amounts.add(record.get("amount").decimalValue());
+                timestamps.add(timestamp);
+            }
+        }
+        if (amounts.isEmpty()) {
+            throw new IOException("no transactions in " + file);
+        }
+
+        long newestRecorded = newest;
+        AtomicLong sent = new AtomicLong();
+        AtomicLong shift = new AtomicLong();
+        return nowMillis -> {
+            int index = (int) (sent.getAndIncrement() % amounts.size());
+            if (index == 0) {
+                shift.set(nowMillis - 1 - newestRecorded);
+            }
+            return new Sample(amounts.get(index), timestamps.get(index) + shift.get());
+        };
+    }
+}
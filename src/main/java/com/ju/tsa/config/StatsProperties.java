@@ -0,0 +1,702 @@
+package com.ju.tsa.config;
+
+import com.ju.tsa.model.FixedPointAggregator;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Knobs for the statistics engine, bound from the `tsa.stats` properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "tsa.stats")
+public class StatsProperties {
+
+    /**
+     * Number of decimal places the aggregates keep in their primitive representation. Amounts with more decimals than
+     * that are still aggregated exactly, just through the slower BigDecimal path.
+     */
+    private int scale = FixedPointAggregator.DEFAULT_SCALE;
+
+    /**
+     * Length of the window the statistics are calculated for. Transactions older than that are refused to the
+     * millisecond.
+     */
+    private long windowMillis = 60_000;
+
+    /**
+     * Width of the finest buckets, which is how precisely the most recent edge of the window is tracked
+     */
+    private long bucketMillis = 1_000;
+
+    /**
+     * Number of buckets per level of the timing wheel. Levels get added, each one this many times coarser than the one
+     * below, until the coarsest covers the window with at most wheel-size * wheel-size buckets. The width of those is
+     * how precisely the oldest edge of the window is tracked.
+     */
+    private int wheelSize = 60;
+
+    /**
+     * More windows to keep the statistics for next to the main one, like `1s,10s,5m,1h`. They all share the same
+     * buckets, so every transaction is still only added once.
+     */
+    private List<String> windows = new ArrayList<>();
+
+    /**
+     * Relative accuracy of the p50, p95 and p99 amounts, 0.01 being 1%. Every bucket keeps a sketch of the amounts for
+     * them, the more accurate the bigger. 0 turns them off.
+     */
+    private double percentileAccuracy = 0.01;
+
+    /**
+     * How many of the largest transactions every bucket keeps for /statistics/top, which can't be asked for more of
+     * them than that. 0 turns them off.
+     */
+    private int topK = 10;
+
+    /**
+     * With more than 0, the engine tells the time off a CoarseClock that reads the system clock every so many millis,
+     * rather than asking the system clock for every transaction
+     */
+    private long clockTickMillis = 0;
+
+    private final Snapshot snapshot = new Snapshot();
+
+    private final Keys keys = new Keys();
+
+    private final Ingest ingest = new Ingest();
+
+    private final Tcp tcp = new Tcp();
+
+    private final Persistence persistence = new Persistence();
+
+    private final Cluster cluster = new Cluster();
+
+    private final Stream stream = new Stream();
+
+    private final Rollup rollup = new Rollup();
+
+    private final Shared shared = new Shared();
+
+    private final Admission admission = new Admission();
+
+    private final Histogram histogram = new Histogram();
+
+    public int getScale() {
+        return scale;
+    }
+
+    public void setScale(int scale) {
+        this.scale = scale;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public void setBucketMillis(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    public int getWheelSize() {
+        return wheelSize;
+    }
+
+    public void setWheelSize(int wheelSize) {
+        this.wheelSize = wheelSize;
+    }
+
+    public List<String> getWindows() {
+        return windows;
+    }
+
+    public void setWindows(List<String> windows) {
+        this.windows = windows;
+    }
+
+    public double getPercentileAccuracy() {
+        return percentileAccuracy;
+    }
+
+    public void setPercentileAccuracy(double percentileAccuracy) {
+        this.percentileAccuracy = percentileAccuracy;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public void setTopK(int topK) {
+        this.topK = topK;
+    }
+
+    public long getClockTickMillis() {
+        return clockTickMillis;
+    }
+
+    public void setClockTickMillis(long clockTickMillis) {
+        this.clockTickMillis = clockTickMillis;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public Keys getKeys() {
+        return keys;
+    }
+
+    public Ingest getIngest() {
+        return ingest;
+    }
+
+    public Tcp getTcp() {
+        return tcp;
+    }
+
+    public Persistence getPersistence() {
+        return persistence;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public Stream getStream() {
+        return stream;
+    }
+
+    public Rollup getRollup() {
+        return rollup;
+    }
+
+    public Shared getShared() {
+        return shared;
+    }
+
+    public Admission getAdmission() {
+        return admission;
+    }
+
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * The `tsa.stats.snapshot` properties. When enabled, the statistics are recalculated in the background every
+     * `refresh-millis` and readers get the last published result, unless it's older than `max-staleness-millis`.
+     */
+    public static class Snapshot {
+        private boolean enabled = false;
+        private long refreshMillis = 20;
+        private long maxStalenessMillis = 100;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getRefreshMillis() {
+            return refreshMillis;
+        }
+
+        public void setRefreshMillis(long refreshMillis) {
+            this.refreshMillis = refreshMillis;
+        }
+
+        public long getMaxStalenessMillis() {
+            return maxStalenessMillis;
+        }
+
+        public void setMaxStalenessMillis(long maxStalenessMillis) {
+            this.maxStalenessMillis = maxStalenessMillis;
+        }
+    }
+
+    /**
+     * The `tsa.stats.keys` properties, for the statistics of transactions that come with a key. Every key gets buckets
+     * of `bucket-millis` over the main window, and all the keys together are kept within `max-bytes`. Once that's used
+     * up, the least recently used keys make room for new ones.
+     */
+    public static class Keys {
+        private long bucketMillis = 5_000;
+        private long maxBytes = 64L * 1024 * 1024;
+
+        public long getBucketMillis() {
+            return bucketMillis;
+        }
+
+        public void setBucketMillis(long bucketMillis) {
+            this.bucketMillis = bucketMillis;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * The `tsa.stats.ingest` properties. With `async` enabled, POST /transactions only puts the transaction into a
+     * ring buffer of `capacity` entries and answers with a 202, and a single writer thread adds them to the statistics
+     * in batches of up to `batch-size`. `wait-strategy` is what the writer does while the buffer is empty.
+     */
+    public static class Ingest {
+        private boolean async = false;
+        private int capacity = 65_536;
+        private int batchSize = 1_024;
+        private WaitStrategy waitStrategy = WaitStrategy.SLEEPING;
+
+        public boolean isAsync() {
+            return async;
+        }
+
+        public void setAsync(boolean async) {
+            this.async = async;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public WaitStrategy getWaitStrategy() {
+            return waitStrategy;
+        }
+
+        public void setWaitStrategy(WaitStrategy waitStrategy) {
+            this.waitStrategy = waitStrategy;
+        }
+    }
+
+    /**
+     * The `tsa.stats.tcp` properties. With `enabled` on, a listener on `port` takes length prefixed binary frames of
+     * transactions next to the HTTP endpoints. Every connection gets a read buffer of `buffer-bytes`, which is also
+     * the largest frame it takes, and an ack with its counts every `ack-millis`.
+     */
+    public static class Tcp {
+        private boolean enabled = false;
+        private int port = 7070;
+        private int bufferBytes = 64 * 1024;
+        private long ackMillis = 1_000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public int getBufferBytes() {
+            return bufferBytes;
+        }
+
+        public void setBufferBytes(int bufferBytes) {
+            this.bufferBytes = bufferBytes;
+        }
+
+        public long getAckMillis() {
+            return ackMillis;
+        }
+
+        public void setAckMillis(long ackMillis) {
+            this.ackMillis = ackMillis;
+        }
+    }
+
+    /**
+     * The `tsa.stats.persistence` properties. With `enabled` on, the buckets are copied into the memory mapped `file`
+     * every `flush-millis`, and whatever in there is still within the window is put back on startup.
+     */
+    public static class Persistence {
+        private boolean enabled = false;
+        private String file = "tsa-buckets.dat";
+        private long flushMillis = 100;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public long getFlushMillis() {
+            return flushMillis;
+        }
+
+        public void setFlushMillis(long flushMillis) {
+            this.flushMillis = flushMillis;
+        }
+    }
+
+    /**
+     * The `tsa.stats.cluster` properties. Every node in `peers` (base URLs like `http://10.0.0.2:8080`) gets asked for
+     * its buckets every `pull-millis`, and gets `timeout-millis` to answer.
+     */
+    public static class Cluster {
+        private List<String> peers = new ArrayList<>();
+        private long pullMillis = 1_000;
+        private int timeoutMillis = 500;
+
+        public List<String> getPeers() {
+            return peers;
+        }
+
+        public void setPeers(List<String> peers) {
+            this.peers = peers;
+        }
+
+        public long getPullMillis() {
+            return pullMillis;
+        }
+
+        public void setPullMillis(long pullMillis) {
+            this.pullMillis = pullMillis;
+        }
+
+        public int getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        public void setTimeoutMillis(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    /**
+     * The `tsa.stats.stream` properties, for GET /statistics/stream. Every `tick-millis` the statistics of the main
+     * window are sent to every subscriber, if they changed, otherwise a heartbeat every `heartbeat-millis` keeps the
+     * connection open. `sender-threads` do the sending, at most `max-subscribers` can subscribe, and a subscriber that
+     * is still busy with an event for more than `max-missed-ticks` is dropped.
+     */
+    public static class Stream {
+        private long tickMillis = 1_000;
+        private long heartbeatMillis = 15_000;
+        private int senderThreads = 2;
+        private int maxSubscribers = 10_000;
+        private int maxMissedTicks = 3;
+
+        public long getTickMillis() {
+            return tickMillis;
+        }
+
+        public void setTickMillis(long tickMillis) {
+            this.tickMillis = tickMillis;
+        }
+
+        public long getHeartbeatMillis() {
+            return heartbeatMillis;
+        }
+
+        public void setHeartbeatMillis(long heartbeatMillis) {
+            this.heartbeatMillis = heartbeatMillis;
+        }
+
+        public int getSenderThreads() {
+            return senderThreads;
+        }
+
+        public void setSenderThreads(int senderThreads) {
+            this.senderThreads = senderThreads;
+        }
+
+        public int getMaxSubscribers() {
+            return maxSubscribers;
+        }
+
+        public void setMaxSubscribers(int maxSubscribers) {
+            this.maxSubscribers = maxSubscribers;
+        }
+
+        public int getMaxMissedTicks() {
+            return maxMissedTicks;
+        }
+
+        public void setMaxMissedTicks(int maxMissedTicks) {
+            this.maxMissedTicks = maxMissedTicks;
+        }
+    }
+
+    /**
+     * The `tsa.stats.rollup` properties. With `enabled` on, every bucket that leaves the finest level of the wheel is
+     * folded into the history: `minutes` per-minute and `hours` per-hour aggregates, kept in memory, or in the memory
+     * mapped `file` if there's one.
+     */
+    public static class Rollup {
+        private boolean enabled = false;
+        private String file = "";
+        private int minutes = 24 * 60;
+        private int hours = 90 * 24;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public int getMinutes() {
+            return minutes;
+        }
+
+        public void setMinutes(int minutes) {
+            this.minutes = minutes;
+        }
+
+        public int getHours() {
+            return hours;
+        }
+
+        public void setHours(int hours) {
+            this.hours = hours;
+        }
+    }
+
+    /**
+     * The `tsa.stats.shared` properties. With `enabled` on, the statistics of the main window (and with `buckets` on,
+     * the finest buckets as well) are written into the memory mapped `file` every `refresh-millis`, for processes on
+     * the same host to read with a SharedStatsReader instead of asking /statistics.
+     */
+    public static class Shared {
+        private boolean enabled = false;
+        private String file = "tsa-stats.shm";
+        private long refreshMillis = 100;
+        private boolean buckets = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public long getRefreshMillis() {
+            return refreshMillis;
+        }
+
+        public void setRefreshMillis(long refreshMillis) {
+            this.refreshMillis = refreshMillis;
+        }
+
+        public boolean isBuckets() {
+            return buckets;
+        }
+
+        public void setBuckets(boolean buckets) {
+            this.buckets = buckets;
+        }
+    }
+
+    /**
+     * The `tsa.stats.admission` properties. With `enabled` on, POST /transactions and /transactions/batch are turned
+     * down with a 429 beyond `rate-per-second` transactions (after a `burst`), beyond `key-rate-per-second` per key,
+     * while `max-in-flight` of them are already being worked on, while the ingestion takes longer than
+     * `shed-latency-micros` on average, or while the queue of the async ingestion is fuller than `shed-queue-fill`.
+     * Rates and latency of 0 are no limit, a burst of 0 is a second's worth.
+     */
+    public static class Admission {
+        private boolean enabled = false;
+        private double ratePerSecond = 0;
+        private long burst = 0;
+        private double keyRatePerSecond = 0;
+        private long keyBurst = 0;
+        private int maxKeys = 100_000;
+        private int maxInFlight = 184;
+        private long shedLatencyMicros = 0;
+        private double shedQueueFill = 0.8;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getRatePerSecond() {
+            return ratePerSecond;
+        }
+
+        public void setRatePerSecond(double ratePerSecond) {
+            this.ratePerSecond = ratePerSecond;
+        }
+
+        public long getBurst() {
+            return burst;
+        }
+
+        public void setBurst(long burst) {
+            this.burst = burst;
+        }
+
+        public double getKeyRatePerSecond() {
+            return keyRatePerSecond;
+        }
+
+        public void setKeyRatePerSecond(double keyRatePerSecond) {
+            this.keyRatePerSecond = keyRatePerSecond;
+        }
+
+        public long getKeyBurst() {
+            return keyBurst;
+        }
+
+        public void setKeyBurst(long keyBurst) {
+            this.keyBurst = keyBurst;
+        }
+
+        public int getMaxKeys() {
+            return maxKeys;
+        }
+
+        public void setMaxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        public void setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+
+        public long getShedLatencyMicros() {
+            return shedLatencyMicros;
+        }
+
+        public void setShedLatencyMicros(long shedLatencyMicros) {
+            this.shedLatencyMicros = shedLatencyMicros;
+        }
+
+        public double getShedQueueFill() {
+            return shedQueueFill;
+        }
+
+        public void setShedQueueFill(double shedQueueFill) {
+            this.shedQueueFill = shedQueueFill;
+        }
+    }
+
+    /**
+     * The `tsa.stats.histogram` properties: `bins` counters of the amounts per bucket for /statistics/histogram, the
+     * first one for everything below `first-bound`, every other one `factor` times as wide as the one before it, and
+     * the last one for everything above. The factor has to be at least 2. 0 bins turn it off.
+     */
+    public static class Histogram {
+        private int bins = 8;
+        private BigDecimal firstBound = BigDecimal.TEN;
+        private double factor = 10;
+
+        public int getBins() {
+            return bins;
+        }
+
+        public void setBins(int bins) {
+            this.bins = bins;
+        }
+
+        public BigDecimal getFirstBound() {
+            return firstBound;
+        }
+
+        public void setFirstBound(BigDecimal firstBound) {
+            this.firstBound = firstBound;
+        }
+
+        public double getFactor() {
+            return factor;
+        }
+
+        public void setFactor(double factor) {
+            this.factor = factor;
+        }
+    }
+
+    /**
+     * What the writer of the async ingestion does while there's nothing to write, from the lowest latency (and a core
+     * burnt all the time) to the lowest CPU usage
+     */
+    public enum WaitStrategy {
+        /**
+         * Keeps on checking
+         */
+        BUSY_SPIN,
+        /**
+         * Yields the core to other threads between checks
+         */
+        YIELDING,
+        /**
+         * Sleeps for a fraction of a millisecond between checks
+         */
+        SLEEPING,
+        /**
+         * Parks until a request thread wakes it up, which costs the request threads a check of a flag
+         */
+        BLOCKING
+    }
+}
@@ -0,0 +1,68 @@
+package com.ju.tsa.controller;
+
+import com.ju.tsa.model.BucketState;
+import com.ju.tsa.model.TransactionAggregator;
+import com.ju.tsa.service.ClusterAggregator;
+import com.ju.tsa.service.StatsService;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands the buckets of this node to the others on `buckets`, and serves the statistics of the whole cluster on
+ * `cluster/statistics`
+ */
+@RestController
+public class ClusterController {
+
+    private final StatsService statsService;
+    private final ClusterAggregator clusterAggregator;
+
+    public ClusterController(StatsService statsService, ClusterAggregator clusterAggregator) {
+        this.statsService = statsService;
+        this.clusterAggregator = clusterAggregator;
+    }
+
+    /**
+     * The buckets the main window of this node is made of right now
+     *
+     * @return the buckets with any transactions in them, oldest first
+     */
+    @GetMapping(path = "/buckets", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<BucketState> getBuckets() {
+        return statsService.exportBuckets();
+    }
+
+    /**
+     * The statistics of the main window, of this node and all of its peers together
+     *
+     * @return the statistics as JSON
+     */
+    @GetMapping(path = "/cluster/statistics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public TransactionAggregator getClusterStats() {
+        return clusterAggregator.aggregate();
+    }
+
+    /**
+     * The buckets of the whole cluster, the ones of the same time span merged, so aggregators can be stacked
+     *
+     * @return the merged buckets, oldest first
+     */
+    @GetMapping(path = "/cluster/buckets", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<BucketState> getClusterBuckets() {
+        return clusterAggregator.buckets();
+    }
+
+    /**
+     * How pulling from every peer goes
+     *
+     * @return the state of every peer
+     */
+    @GetMapping(path = "/cluster/peers", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> getPeers() {
+        return clusterAggregator.peerStatus();
+    }
+}
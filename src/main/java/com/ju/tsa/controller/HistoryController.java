@@ -0,0 +1,48 @@
+package com.ju.tsa.controller;
+
+import com.ju.tsa.model.BucketState;
+import com.ju.tsa.model.WindowLength;
+import com.ju.tsa.service.RollupArchive;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * Serves the history of the statistics on `statistics/range`
+ */
+@RestController
+public class HistoryController {
+
+    private final RollupArchive archive;
+
+    public HistoryController(RollupArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * The statistics of a span of the past, step by step
+     *
+     * @param from start of the span, epoch millis
+     * @param to   end of the span, epoch millis, exclusive
+     * @param step the length of a step, like `5m` or `1h`, a whole number of minutes
+     * @return the steps with any transactions in them, oldest first, 400 if the span or the step don't work, or 404 if
+     * no history is kept
+     */
+    @GetMapping(path = "/statistics/range", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<BucketState>> getRange(@RequestParam("from") long from, @RequestParam("to") long to,
+                                                      @RequestParam(name = "step", defaultValue = "1m") String step) {
+        if (!archive.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        try {
+            return ResponseEntity.ok(archive.range(from, to, WindowLength.parse(step).getMillis()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.ju.tsa.controller;
+
+import com.ju.tsa.ingest.TcpIngestListener;
+import com.ju.tsa.service.AdmissionControl;
+import com.ju.tsa.service.AsyncIngester;
+import com.ju.tsa.service.StatsService;
+import com.ju.tsa.service.StatsSnapshotPublisher;
+import com.ju.tsa.service.StatsStreamer;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the counters and latencies of the engine on the `metrics` endpoint
+ */
+@RestController
+public class MetricsController {
+
+    private final StatsService statsService;
+    private final StatsSnapshotPublisher snapshotPublisher;
+    private final AsyncIngester asyncIngester;
+    private final TcpIngestListener tcpListener;
+    private final StatsStreamer streamer;
+    private final AdmissionControl admission;
+
+    public MetricsController(StatsService statsService, StatsSnapshotPublisher snapshotPublisher,
+                             AsyncIngester asyncIngester, TcpIngestListener tcpListener, StatsStreamer streamer,
+                             AdmissionControl admission) {
+        this.statsService = statsService;
+        this.snapshotPublisher = snapshotPublisher;
+        this.asyncIngester = asyncIngester;
+        this.tcpListener = tcpListener;
+        this.streamer = streamer;
+        this.admission = admission;
+    }
+
+    /**
+     * Everything the engine counts, along with the age of the published snapshot and the state of the async and the TCP
+     * ingestion, of the admission control, of the statistics stream and of the heap
+     *
+     * @return the metrics as JSON
+     */
+    @GetMapping(path = "/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = statsService.getMetrics().toMap();
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("ageMillis", snapshotPublisher.snapshotAgeMillis());
+        metrics.put("snapshot", snapshot);
+
+        Map<String, Object> ingest = new LinkedHashMap<>();
+        ingest.put("async", asyncIngester.isEnabled());
+        ingest.put("queueDepth", asyncIngester.depth());
+        ingest.put("queueCapacity", asyncIngester.capacity());
+        ingest.put("refused", asyncIngester.refused());
+        ingest.put("failedTransactions", asyncIngester.failedTransactions());
+        metrics.put("ingest", ingest);
+        metrics.put("admission", admission.toMap());
+
+        Map<String, Object> tcp = new LinkedHashMap<>();
+        tcp.put("enabled", tcpListener.isEnabled());
+        tcp.put("connections", tcpListener.connections());
+        tcp.put("frames", tcpListener.frames());
+        tcp.put("protocolErrors", tcpListener.protocolErrors());
+        tcp.put("failures", tcpListener.failures());
+        metrics.put("tcp", tcp);
+
+        Map<String, Object> stream = new LinkedHashMap<>();
+        stream.put("subscribers", streamer.subscribers());
+        stream.put("events", streamer.events());
+        stream.put("suppressedTicks", streamer.suppressedTicks());
+        stream.put("dropped", streamer.dropped());
+        metrics.put("stream", stream);
+
+        metrics.put("jvm", jvm());
+        return metrics;
+    }
+
+    /**
+     * The heap and the garbage collector. What's left of the heap after the last collections is the figure to watch
+     * for leaks, it only grows if something holds on to what it should let go of.
+     */
+    private static Map<String, Object> jvm() {
+        long afterGc = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage collected = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && collected != null) {
+                afterGc += collected.getUsed();
+            }
+        }
+        long collections = 0;
+        long collectionMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionMillis += Math.max(0, collector.getCollectionTime());
+        }
+
+        Map<String, Object> jvm = new LinkedHashMap<>();
+        jvm.put("heapUsedBytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        jvm.put("heapAfterGcBytes", afterGc);
+        jvm.put("gcCount", collections);
+        jvm.put("gcMillis", collectionMillis);
+        return jvm;
+    }
+}
@@ -0,0 +1,43 @@
+package com.ju.tsa.controller;
+
+import com.ju.tsa.service.StatsService;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Times every request from the moment the filter chain gets it until the response is written, which covers Jackson
+ * and the rest of Spring MVC on top of what the controllers do. Requests are told apart by the path pattern of their
+ * handler, so `/statistics/{key:.+}` is one endpoint no matter how many keys there are.
+ */
+@Component
+public class RequestMetricsFilter extends OncePerRequestFilter {
+
+    private static final String UNMATCHED = "unmatched";
+
+    private final StatsService statsService;
+
+    public RequestMetricsFilter(StatsService statsService) {
+        this.statsService = statsService;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            statsService.getMetrics()
+                    .endpoint(request.getMethod(), pattern == null ? UNMATCHED : pattern.toString())
+                    .record(start, response.getStatus());
+        }
+    }
+}
@@ -1,25 +1,209 @@
 package com.ju.tsa.controller;
 
+import com.ju.tsa.model.HistogramBin;
+import com.ju.tsa.model.KeyedAggregate;
+import com.ju.tsa.model.StatsSnapshot;
+import com.ju.tsa.model.TopTransaction;
 import com.ju.tsa.model.TransactionAggregator;
+import com.ju.tsa.model.WindowLength;
 import com.ju.tsa.service.StatsService;
+import com.ju.tsa.service.StatsSnapshotPublisher;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Serves the responses on the `statistics` endpoint
  */
 @RestController
 public class StatsController {
+
+    static final String SNAPSHOT_AGE_HEADER = "X-Snapshot-Age";
+
+    /**
+     * How many keys /statistics/top-keys returns unless asked otherwise, and how many it returns at most
+     */
+    private static final int DEFAULT_TOP_KEYS = 10;
+    private static final int MAX_TOP_KEYS = 1_000;
+
+    /**
+     * How many transactions /statistics/top returns unless asked otherwise
+     */
+    private static final int DEFAULT_TOP_TRANSACTIONS = 10;
+
+    private final StatsSnapshotPublisher snapshotPublisher;
     private final StatsService statsService;
 
-    public StatsController(StatsService statsService) {
+    public StatsController(StatsSnapshotPublisher snapshotPublisher, StatsService statsService) {
+        this.snapshotPublisher = snapshotPublisher;
         this.statsService = statsService;
     }
 
 
-    @GetMapping(path = "/statistics")
-    public TransactionAggregator getStats() {
-        return statsService.aggregate();
+    /**
+     * Writes out the already serialized statistics of the current snapshot, along with how old (in millis) that
+     * snapshot is.
+     *
+     * @param window the length of the window, like `5m`. The main window if there's none.
+     * @return the statistics as JSON, 400 if the window can't be read, or 404 if no statistics are kept for it
+     */
+    @GetMapping(path = "/statistics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> getStats(@RequestParam(name = "window", required = false) String window) {
+        if (window == null) {
+            return respond(snapshotPublisher.current());
+        }
+
+        WindowLength length;
+        try {
+            length = WindowLength.parse(window);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        Map<WindowLength, StatsSnapshot> snapshots = snapshotPublisher.currentAll();
+        if (!snapshots.containsKey(length)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return respond(snapshots.get(length));
+    }
+
+    /**
+     * The statistics of the last so many seconds (or any other length up to the longest window), like `last=15s`.
+     * Unlike the windows these aren't snapshotted, they're calculated on the spot.
+     *
+     * @param last how far back to go
+     * @return the statistics as JSON, or 400 if the length can't be read or goes back further than the longest window
+     */
+    @GetMapping(path = "/statistics", params = "last", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<TransactionAggregator> getLastStats(@RequestParam("last") String last) {
+        try {
+            return ResponseEntity.ok(statsService.aggregateLast(WindowLength.parse(last).getMillis()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * Writes out the statistics of every window in one object, keyed by the length of the window. The snapshots are
+     * already serialized, so they're just glued together.
+     *
+     * @return the statistics of all the windows as JSON
+     */
+    @GetMapping(path = "/statistics/all", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> getAllStats() {
+        Map<WindowLength, StatsSnapshot> snapshots = snapshotPublisher.currentAll();
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        json.write('{');
+        for (Map.Entry<WindowLength, StatsSnapshot> entry : snapshots.entrySet()) {
+            if (json.size() > 1) {
+                json.write(',');
+            }
+            byte[] key = ('"' + entry.getKey().toString() + "\":").getBytes(StandardCharsets.UTF_8);
+            json.write(key, 0, key.length);
+            byte[] value = entry.getValue().getJson();
+            json.write(value, 0, value.length);
+        }
+        json.write('}');
+
+        // all of them were taken at the same moment, so any of them tells the age
+        return respond(snapshots.values().iterator().next(), json.toByteArray());
+    }
+
+    /**
+     * The keys with the largest sums in the main window. Unlike the rest this one walks over all the keys on every
+     * request.
+     *
+     * @param n how many keys to return
+     * @return the keys with their statistics, largest sum first, or 400 if n is out of range
+     */
+    @GetMapping(path = "/statistics/top-keys", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<KeyedAggregate>> getTopKeys(
+            @RequestParam(name = "n", defaultValue = "" + DEFAULT_TOP_KEYS) int n) {
+        if (n < 1 || n > MAX_TOP_KEYS) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(statsService.topKeysBySum(n));
+    }
+
+    /**
+     * How many transactions of a window fell into each of the bins of the amounts (tsa.stats.histogram). Calculated
+     * on the spot, like the last so many seconds.
+     *
+     * @param window the length of the window, like `5m`. The main window if there's none.
+     * @return the bins with their bounds and counts, lowest first, 400 if the window can't be read, or 404 if no
+     * statistics are kept for it or the amounts aren't counted
+     */
+    @GetMapping(path = "/statistics/histogram", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<HistogramBin>> getHistogram(
+            @RequestParam(name = "window", required = false) String window) {
+        WindowLength length;
+        try {
+            length = window == null ? statsService.getMainWindow() : WindowLength.parse(window);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (!statsService.getWindows().contains(length)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        List<HistogramBin> histogram = statsService.histogram(length);
+        if (histogram == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(histogram);
+    }
+
+    /**
+     * The largest transactions of the main window, merged from the ones every bucket keeps
+     *
+     * @param k how many transactions to return
+     * @return the amounts and timestamps of the transactions, largest first, or 400 if k is out of range or more than
+     * the buckets keep (tsa.stats.top-k)
+     */
+    @GetMapping(path = "/statistics/top", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<TopTransaction>> getTopTransactions(
+            @RequestParam(name = "k", defaultValue = "" + DEFAULT_TOP_TRANSACTIONS) int k) {
+        try {
+            return ResponseEntity.ok(statsService.topTransactions(k));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * The statistics of the main window for a single key. Keys named like the other endpoints (`all`,
+     * `histogram`, `top`, `top-keys`, `stream`, `range`) can't be asked for this way.
+     *
+     * @param key the key
+     * @return the statistics of the key, or 404 if nothing is kept for it
+     */
+    @GetMapping(path = "/statistics/{key:.+}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<TransactionAggregator> getKeyStats(@PathVariable("key") String key) {
+        TransactionAggregator aggregate = statsService.aggregateByKey(key);
+        if (aggregate == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(aggregate);
+    }
+
+    private ResponseEntity<byte[]> respond(StatsSnapshot snapshot) {
+        return respond(snapshot, snapshot.getJson());
+    }
+
+    private ResponseEntity<byte[]> respond(StatsSnapshot snapshot, byte[] json) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(SNAPSHOT_AGE_HEADER, Long.toString(snapshotPublisher.ageOf(snapshot)))
+                .body(json);
     }
 
 }
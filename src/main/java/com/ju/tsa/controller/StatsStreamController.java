@@ -0,0 +1,41 @@
+package com.ju.tsa.controller;
+
+import com.ju.tsa.service.StatsStreamer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+/**
+ * Streams the statistics as Server-Sent Events on `statistics/stream`
+ */
+@RestController
+public class StatsStreamController {
+
+    /**
+     * The stream never times out on its own, it ends when the subscriber goes away or gets dropped
+     */
+    private static final long NO_TIMEOUT = 0;
+
+    private final StatsStreamer streamer;
+
+    public StatsStreamController(StatsStreamer streamer) {
+        this.streamer = streamer;
+    }
+
+    /**
+     * Subscribes to the statistics of the main window, which arrive as `data:` events whenever they change
+     *
+     * @return the event stream, or 503 if there are too many subscribers already
+     */
+    @GetMapping(path = "/statistics/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<ResponseBodyEmitter> stream() {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(NO_TIMEOUT);
+        if (!streamer.subscribe(emitter)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok().contentType(MediaType.TEXT_EVENT_STREAM).body(emitter);
+    }
+}
@@ -1,28 +1,217 @@
 package com.ju.tsa.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.ingest.TransactionDecoder;
+import com.ju.tsa.ingest.TransactionStreamReader;
+import com.ju.tsa.model.BatchResult;
+import com.ju.tsa.config.StatsProperties;
 import com.ju.tsa.model.Transaction;
+import com.ju.tsa.service.AdmissionControl;
+import com.ju.tsa.service.AsyncIngester;
+import com.ju.tsa.service.StatsMetrics;
 import com.ju.tsa.service.StatsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Receives the Transction objects as JSON on the `transactions` path
  */
 @RestController
 public class TransactionsController {
+
+    static final String NDJSON = "application/x-ndjson";
+
+    /**
+     * How many transactions are handed to the StatsService at once while streaming through a batch
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * The responses to a single transaction have no body, so they can just as well be made once
+     */
+    private static final ResponseEntity<Void> CREATED = ResponseEntity.status(HttpStatus.CREATED).build();
+    private static final ResponseEntity<Void> ACCEPTED = ResponseEntity.status(HttpStatus.ACCEPTED).build();
+    private static final ResponseEntity<Void> QUEUE_FULL = ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+
     private final StatsService statsService;
+    private final AsyncIngester asyncIngester;
+    private final AdmissionControl admission;
+    private final ThreadLocal<TransactionDecoder> decoders;
 
     public TransactionsController(StatsService statsService) {
+        this(statsService, new AsyncIngester(statsService, new StatsProperties()));
+    }
+
+    public TransactionsController(StatsService statsService, AsyncIngester asyncIngester) {
+        this(statsService, asyncIngester, Jackson2ObjectMapperBuilder.json().build());
+    }
+
+    public TransactionsController(StatsService statsService, AsyncIngester asyncIngester, ObjectMapper objectMapper) {
+        this(statsService, asyncIngester, objectMapper, new AdmissionControl(new StatsProperties(), asyncIngester));
+    }
+
+    @Autowired
+    public TransactionsController(StatsService statsService, AsyncIngester asyncIngester, ObjectMapper objectMapper,
+                                  AdmissionControl admission) {
         this.statsService = statsService;
+        this.asyncIngester = asyncIngester;
+        this.admission = admission;
+        this.decoders = ThreadLocal.withInitial(() -> new TransactionDecoder(objectMapper));
+    }
+
+    /**
+     * Takes a single transaction. In the async mode it's only queued for the writer thread, which the 202 says.
+     * <p>
+     * The body is decoded by hand rather than by the message converters, and a transaction without a key goes into the
+     * stats as primitives, so there's next to nothing allocated for it. Whatever the decoder can't make sense of is
+     * turned down with the same 400 the converters would give, and so is a transaction without an amount, before it
+     * gets anywhere near the stats or the queue.
+     *
+     * @param body the request body
+     * @return 201 once the transaction was added, 202 once it was queued, 503 if the queue is full, or 429 if the
+     * AdmissionControl turned it down
+     * @throws IOException if the body can't be read
+     */
+    @PostMapping(path = "/transactions", consumes = {MediaType.APPLICATION_JSON_VALUE, "application/*+json"})
+    public ResponseEntity<Void> postTransaction(InputStream body) throws IOException {
+        long wait = admission.admit();
+        if (wait != AdmissionControl.ADMITTED) {
+            return tooManyRequests(wait);
+        }
+        long start = System.nanoTime();
+        try {
+            TransactionDecoder decoder = decoders.get();
+            try {
+                decoder.decode(body);
+            } catch (JsonProcessingException e) {
+                throw new HttpMessageNotReadableException("JSON parse error: " + e.getMessage(), e);
+            }
+            if (!decoder.isPrimitive() && decoder.toTransaction().getAmount() == null) {
+                throw new HttpMessageNotReadableException("JSON parse error: the transaction has no amount");
+            }
+            // the decoder only has the key if it got through the fast path, the rest is in the Transaction
+            String key = decoder.isPrimitive() ? decoder.getKey() : decoder.toTransaction().getKey();
+            if (key != null && (wait = admission.admitKey(key)) != AdmissionControl.ADMITTED) {
+                return tooManyRequests(wait);
+            }
+
+            if (!asyncIngester.isEnabled()) {
+                if (decoder.isPrimitive() && decoder.getKey() == null) {
+                    statsService.add(decoder.getUnscaledAmount(), decoder.getAmountScale(), decoder.getTimestamp());
+                } else {
+                    statsService.add(decoder.toTransaction());
+                }
+                return CREATED;
+            }
+            return asyncIngester.offer(decoder.toTransaction()) ? ACCEPTED : QUEUE_FULL;
+        } finally {
+            admission.done(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Takes a JSON array of transactions
+     *
+     * @param body the request body
+     * @return the number of accepted and rejected transactions
+     * @throws IOException if the body can't be read
+     */
+    @PostMapping(path = "/transactions/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BatchResult> postBatch(InputStream body) throws IOException {
+        return ingest(TransactionStreamReader.jsonArray(body));
+    }
+
+    /**
+     * Takes newline delimited JSON, one transaction per line
+     *
+     * @param body the request body
+     * @return the number of accepted and rejected transactions
+     * @throws IOException if the body can't be read
+     */
+    @PostMapping(path = "/transactions/batch", consumes = NDJSON)
+    public ResponseEntity<BatchResult> postNdjsonBatch(InputStream body) throws IOException {
+        return ingest(TransactionStreamReader.ndjson(body));
+    }
+
+    /**
+     * Streams through the body chunk by chunk. If the JSON turns out to be broken halfway through, whatever was read
+     * before that still goes into the stats, and the response says how much that was. Keyed transactions over the rate
+     * of their key are rejected one by one, like the ones outside the window.
+     */
+    private ResponseEntity<BatchResult> ingest(TransactionStreamReader reader) throws IOException {
+        long wait = admission.admit();
+        if (wait != AdmissionControl.ADMITTED) {
+            reader.close();
+            return tooManyRequests(wait);
+        }
+        long start = System.nanoTime();
+        try {
+            return ingestAdmitted(reader);
+        } finally {
+            admission.done(System.nanoTime() - start);
+        }
     }
 
+    private ResponseEntity<BatchResult> ingestAdmitted(TransactionStreamReader reader) throws IOException {
+        List<Transaction> chunk = new ArrayList<>(CHUNK_SIZE);
+        long accepted = 0;
+        long rejected = 0;
+        long invalid = 0;
+        boolean malformed = false;
+
+        try (TransactionStreamReader transactions = reader) {
+            while (!malformed && !transactions.isExhausted()) {
+                try {
+                    invalid += transactions.read(chunk, CHUNK_SIZE);
+                } catch (JsonProcessingException e) {
+                    malformed = true;
+                }
+
+                int read = chunk.size();
+                dropOverKeyRate(chunk);
+                int added = statsService.addAll(chunk);
+                accepted += added;
+                rejected += read - added;
+                chunk.clear();
+            }
+        }
+
+        statsService.getMetrics().rejected(StatsMetrics.Rejection.INVALID, invalid);
+        admission.charge(accepted + rejected + invalid);
+        BatchResult result = new BatchResult(accepted, rejected + invalid);
+        return malformed ? ResponseEntity.badRequest().body(result) : ResponseEntity.ok(result);
+    }
+
+    private void dropOverKeyRate(List<Transaction> chunk) {
+        int kept = 0;
+        for (Transaction transaction : chunk) {
+            if (transaction.getKey() == null || admission.admitKeyInBatch(transaction.getKey())) {
+                chunk.set(kept++, transaction);
+            }
+        }
+        chunk.subList(kept, chunk.size()).clear();
+    }
 
-    @ResponseStatus(HttpStatus.CREATED)
-    @PostMapping(path = "/transactions")
-    public void postTransaction(@RequestBody Transaction transaction) {
-        statsService.add(transaction);
+    /**
+     * The 429 of a request the AdmissionControl turned down, with a Retry-After in whole seconds
+     */
+    private static <T> ResponseEntity<T> tooManyRequests(long waitNanos) {
+        long seconds = Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000);
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(seconds))
+                .build();
     }
 }
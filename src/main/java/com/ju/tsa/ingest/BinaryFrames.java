@@ -0,0 +1,57 @@
+package com.ju.tsa.ingest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The wire format of the binary TCP ingestion, big endian all the way, shared by the TcpIngestListener and the
+ * TcpLoadGenerator.
+ * <p>
+ * A frame is the number of bytes that follow (an int), the scale of all the amounts in the frame (a byte), and then
+ * the records, each of them the epoch millis (a long) and the amount without its decimal point (a long). So 12.34 at
+ * a scale of 2 is sent as 1234. The producer sends frames for as long as it likes, the listener sends back an ack now
+ * and then: the frames, accepted and rejected transactions of the connection so far, three longs.
+ */
+public final class BinaryFrames {
+
+    public static final int LENGTH_BYTES = Integer.BYTES;
+    public static final int HEADER_BYTES = Byte.BYTES;
+    public static final int RECORD_BYTES = 2 * Long.BYTES;
+    public static final int ACK_BYTES = 3 * Long.BYTES;
+
+    private BinaryFrames() {
+    }
+
+    /**
+     * Gets the size of a frame
+     *
+     * @param records number of records in the frame
+     * @return the bytes the frame takes on the wire, length included
+     */
+    public static int frameBytes(int records) {
+        return LENGTH_BYTES + HEADER_BYTES + records * RECORD_BYTES;
+    }
+
+    /**
+     * Puts the length and the header of a frame, the records are to follow
+     *
+     * @param into        the buffer to write to
+     * @param records     number of records that will follow
+     * @param amountScale the number of decimals of all the amounts of the frame
+     */
+    public static void putHeader(ByteBuffer into, int records, int amountScale) {
+        into.putInt(HEADER_BYTES + records * RECORD_BYTES);
+        into.put((byte) amountScale);
+    }
+
+    /**
+     * Puts a record of a frame
+     *
+     * @param into           the buffer to write to
+     * @param epochMillis    the timestamp of the transaction
+     * @param unscaledAmount the amount without its decimal point
+     */
+    public static void putRecord(ByteBuffer into, long epochMillis, long unscaledAmount) {
+        into.putLong(epochMillis);
+        into.putLong(unscaledAmount);
+    }
+}
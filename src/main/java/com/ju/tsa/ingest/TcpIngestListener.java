@@ -0,0 +1,360 @@
+package com.ju.tsa.ingest;
+
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.service.StatsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Takes transactions as binary frames (see BinaryFrames) over plain TCP, for producers that send so many of them that
+ * HTTP and JSON would cost more than the statistics themselves.
+ * <p>
+ * A single thread does it all with a Selector: accepting connections, reading them into a direct buffer of their
+ * own, and handing every complete frame to StatsService.addAll as arrays of primitives, a chunk at a time. Apart from
+ * the buffers of a new connection nothing gets allocated per frame or per record. Every ack-millis a connection gets an
+ * ack with its counts if anything changed, and a last one once the producer closes its side.
+ * <p>
+ * A frame that doesn't add up (a length that's not a whole number of records, or bigger than the buffer) ends the
+ * connection, since there's no telling where the next frame would start. So does anything else going wrong while
+ * taking care of a connection: only that connection is closed, and the listener goes on with the others.
+ */
+@Component
+public class TcpIngestListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TcpIngestListener.class);
+
+    /**
+     * How many records are handed to the StatsService at once
+     */
+    private static final int CHUNK_SIZE = 1_024;
+
+    private final StatsService statsService;
+    private final StatsProperties.Tcp settings;
+
+    /**
+     * Only ever used by the listener thread
+     */
+    private final long[] amounts = new long[CHUNK_SIZE];
+    private final long[] timestamps = new long[CHUNK_SIZE];
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder protocolErrors = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread listener;
+    private volatile boolean closed;
+
+    @Autowired
+    public TcpIngestListener(StatsService statsService, StatsProperties properties) {
+        this.statsService = statsService;
+        this.settings = properties.getTcp();
+    }
+
+    /**
+     * Opens the port and starts listening, if the TCP ingestion is enabled
+     *
+     * @throws IOException if the port can't be opened
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(settings.getPort()));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        listener = new Thread(this::listen, "tcp-ingest");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Closes the port along with every connection
+     *
+     * @throws InterruptedException if interrupted while waiting for the listener thread
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        closed = true;
+        if (listener != null) {
+            selector.wakeup();
+            listener.join();
+        }
+    }
+
+    /**
+     * Tells if the TCP ingestion is on
+     *
+     * @return true if there's a port listening
+     */
+    public boolean isEnabled() {
+        return listener != null;
+    }
+
+    /**
+     * Gets the port, which is only interesting if the configured one was 0
+     *
+     * @return the port listened on, or -1 if there's none
+     */
+    public int getLocalPort() {
+        return server == null ? -1 : server.socket().getLocalPort();
+    }
+
+    /**
+     * Gets the number of open connections
+     *
+     * @return the connections
+     */
+    public long connections() {
+        return connections.sum();
+    }
+
+    /**
+     * Gets the number of frames taken
+     *
+     * @return the frames of all connections so far
+     */
+    public long frames() {
+        return frames.sum();
+    }
+
+    /**
+     * Gets the number of protocol errors
+     *
+     * @return how many connections were dropped for a broken frame
+     */
+    public long protocolErrors() {
+        return protocolErrors.sum();
+    }
+
+    /**
+     * Gets the number of failures
+     *
+     * @return how many connections were dropped for something other than a broken frame or a broken socket
+     */
+    public long failures() {
+        return failures.sum();
+    }
+
+    private void listen() {
+        long lastAcks = System.currentTimeMillis();
+        try {
+            while (!closed) {
+                selector.select(settings.getAckMillis());
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            ack(key);
+                        }
+                    } catch (RuntimeException e) {
+                        fail(key, e);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastAcks >= settings.getAckMillis()) {
+                    lastAcks = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid() && key.attachment() != null) {
+                            try {
+                                ack(key);
+                            } catch (RuntimeException e) {
+                                fail(key, e);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the selector or the server socket broke, there's nothing left to listen on
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel, settings.getBufferBytes()));
+        connections.increment();
+    }
+
+    private void read(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        int read;
+        try {
+            read = connection.channel.read(connection.in);
+        } catch (IOException e) {
+            drop(key);
+            return;
+        }
+
+        if (!takeFrames(connection)) {
+            protocolErrors.increment();
+            drop(key);
+        } else if (read < 0) {
+            // the producer is done, it gets its last ack and the connection is closed once that's written
+            connection.closing = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+            ack(key);
+        }
+    }
+
+    /**
+     * Hands all complete frames in the buffer to the StatsService and keeps whatever is left of an incomplete one
+     *
+     * @return false if the frame that's next doesn't add up
+     */
+    private boolean takeFrames(Connection connection) {
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= BinaryFrames.LENGTH_BYTES) {
+            int length = in.getInt(in.position());
+            if (length < BinaryFrames.HEADER_BYTES
+                    || (length - BinaryFrames.HEADER_BYTES) % BinaryFrames.RECORD_BYTES != 0
+                    || length > in.capacity() - BinaryFrames.LENGTH_BYTES) {
+                return false;
+            }
+            if (in.remaining() < BinaryFrames.LENGTH_BYTES + length) {
+                break;
+            }
+
+            in.position(in.position() + BinaryFrames.LENGTH_BYTES);
+            int amountScale = in.get();
+            int records = (length - BinaryFrames.HEADER_BYTES) / BinaryFrames.RECORD_BYTES;
+            while (records > 0) {
+                int chunk = Math.min(records, CHUNK_SIZE);
+                for (int i = 0; i < chunk; i++) {
+                    timestamps[i] = in.getLong();
+                    amounts[i] = in.getLong();
+                }
+                int added = statsService.addAll(amounts, timestamps, chunk, amountScale);
+                connection.accepted += added;
+                connection.rejected += chunk - added;
+                records -= chunk;
+            }
+            connection.frames++;
+            frames.increment();
+        }
+        in.compact();
+        return true;
+    }
+
+    /**
+     * Sends the counts of the connection if they changed since the last ack, after whatever is left of the last one,
+     * and closes the connection once the last ack of a closing one is written
+     */
+    private void ack(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer ack = connection.ack;
+        if (!ack.hasRemaining() && (connection.frames != connection.ackedFrames
+                || connection.closing && !connection.lastAck)) {
+            ack.clear();
+            ack.putLong(connection.frames).putLong(connection.accepted).putLong(connection.rejected);
+            ack.flip();
+            connection.ackedFrames = connection.frames;
+            connection.lastAck = connection.closing;
+        }
+
+        try {
+            connection.channel.write(ack);
+        } catch (IOException e) {
+            drop(key);
+            return;
+        }
+        if (connection.lastAck && !ack.hasRemaining()) {
+            drop(key);
+        }
+    }
+
+    /**
+     * Drops the connection something went wrong with, unless it was the server socket, which just goes on accepting
+     */
+    private void fail(SelectionKey key, RuntimeException e) {
+        failures.increment();
+        if (key.attachment() != null) {
+            LOG.warn("dropping a connection that failed", e);
+            drop(key);
+        } else {
+            LOG.warn("failed to accept a connection", e);
+        }
+    }
+
+    private void drop(SelectionKey key) {
+        closeQuietly(key);
+        if (key.attachment() != null) {
+            connections.decrement();
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * The state of a producer connection, only ever touched by the listener thread
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer in;
+        private final ByteBuffer ack = ByteBuffer.allocateDirect(BinaryFrames.ACK_BYTES);
+        private long frames;
+        private long accepted;
+        private long rejected;
+        private long ackedFrames;
+        private boolean closing;
+        private boolean lastAck;
+
+        Connection(SocketChannel channel, int bufferBytes) {
+            this.channel = channel;
+            this.in = ByteBuffer.allocateDirect(bufferBytes);
+            this.ack.limit(0);
+        }
+    }
+}
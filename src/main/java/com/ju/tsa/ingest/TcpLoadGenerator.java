@@ -0,0 +1,120 @@
+package com.ju.tsa.ingest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A producer for trying out the TcpIngestListener, which only needs the JDK:
+ * <pre>
+ *     java -cp target/classes com.ju.tsa.ingest.TcpLoadGenerator [host] [port] [records] [records-per-frame] [connections]
+ * </pre>
+ * Every connection sends its share of the records, timestamped somewhere within the last 50 seconds and with amounts
+ * of up to 1000.00, as fast as it can. Then it closes its side, waits for the last ack and prints it along with the
+ * rate it managed.
+ */
+public class TcpLoadGenerator {
+
+    private final InetSocketAddress address;
+    private final long records;
+    private final int recordsPerFrame;
+
+    public TcpLoadGenerator(InetSocketAddress address, long records, int recordsPerFrame) {
+        this.address = address;
+        this.records = records;
+        this.recordsPerFrame = recordsPerFrame;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        long records = args.length > 2 ? Long.parseLong(args[2]) : 10_000_000;
+        int recordsPerFrame = args.length > 3 ? Integer.parseInt(args[3]) : 1_000;
+        int connections = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        TcpLoadGenerator generator = new TcpLoadGenerator(new InetSocketAddress(host, port),
+                records / connections, recordsPerFrame);
+        List<Thread> threads = new ArrayList<>();
+        long[][] acks = new long[connections][];
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            int connection = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    acks[connection] = generator.run();
+                } catch (IOException e) {
+                    System.err.println("connection " + connection + " failed: " + e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long accepted = 0;
+        long rejected = 0;
+        for (int i = 0; i < connections; i++) {
+            if (acks[i] != null) {
+                System.out.printf("connection %d: %d frames, %d accepted, %d rejected%n", i, acks[i][0], acks[i][1],
+                        acks[i][2]);
+                accepted += acks[i][1];
+                rejected += acks[i][2];
+            }
+        }
+        System.out.printf("%d accepted and %d rejected in %.2fs, %.0f records/s%n", accepted, rejected, seconds,
+                (accepted + rejected) / seconds);
+    }
+
+    /**
+     * Sends all the records over one connection
+     *
+     * @return the last ack: frames, accepted and rejected transactions
+     * @throws IOException if the connection fails
+     */
+    public long[] run() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ByteBuffer out = ByteBuffer.allocateDirect(BinaryFrames.frameBytes(recordsPerFrame));
+        ByteBuffer in = ByteBuffer.allocateDirect(BinaryFrames.ACK_BYTES * 64);
+        long[] ack = new long[3];
+
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            channel.socket().setTcpNoDelay(true);
+            long sent = 0;
+            while (sent < records) {
+                int frame = (int) Math.min(recordsPerFrame, records - sent);
+                long now = System.currentTimeMillis();
+                out.clear();
+                BinaryFrames.putHeader(out, frame, 2);
+                for (int i = 0; i < frame; i++) {
+                    BinaryFrames.putRecord(out, now - random.nextInt(50_000), random.nextLong(100_000));
+                }
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                sent += frame;
+            }
+
+            channel.shutdownOutput();
+            while (channel.read(in) >= 0) {
+                if (in.position() >= BinaryFrames.ACK_BYTES) {
+                    in.flip();
+                    while (in.remaining() >= BinaryFrames.ACK_BYTES) {
+                        ack[0] = in.getLong();
+                        ack[1] = in.getLong();
+                        ack[2] = in.getLong();
+                    }
+                    in.compact();
+                }
+            }
+        }
+        return ack;
+    }
+}
@@ -0,0 +1,354 @@
+package com.ju.tsa.ingest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.model.Transaction;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the body of a single transaction straight from its bytes into primitives, so the common case doesn't go
+ * through Jackson's data binding and allocates nothing but the buffer, which is kept for the next body. One decoder
+ * is meant to be used by one thread at a time.
+ * <p>
+ * Only the plain shape of a transaction is taken on the fast path: an object with the amount, the timestamp and maybe
+ * the key, in any order, with numbers without exponents of no more than 18 digits and a key without escapes. Anything
+ * else, broken JSON included, goes to the ObjectMapper as it is, so whatever it accepts or complains about stays
+ * exactly what it used to be.
+ */
+public class TransactionDecoder {
+
+    private static final int INITIAL_BUFFER = 512;
+
+    /**
+     * A body bigger than this is still read, but its buffer isn't kept for the next one
+     */
+    private static final int MAX_KEPT_BUFFER = 16 * 1024;
+
+    /**
+     * A long holds any 18 digit number, so there's no overflow to check for up to that
+     */
+    private static final int MAX_DIGITS = 18;
+
+    private static final int AMOUNT = 1;
+    private static final int TIMESTAMP = 2;
+    private static final int KEY = 4;
+
+    private static final byte[] AMOUNT_NAME = "amount".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP_NAME = "timestamp".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEY_NAME = "key".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private final ObjectMapper objectMapper;
+    private byte[] buffer = new byte[INITIAL_BUFFER];
+    private int length;
+    private int position;
+
+    private long unscaledAmount;
+    private int amountScale;
+    private long timestamp;
+    private String key;
+    private Transaction bound;
+
+    /**
+     * @param objectMapper what takes over for anything the fast path doesn't handle
+     */
+    public TransactionDecoder(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Reads the whole body and decodes it, after which the getters tell what was in it
+     *
+     * @param body the request body
+     * @throws IOException if the body can't be read, or the ObjectMapper can't make a transaction out of it
+     */
+    public void decode(InputStream body) throws IOException {
+        try {
+            read(body);
+            bound = null;
+            key = null;
+            if (!parse()) {
+                bound = objectMapper.readValue(buffer, 0, length, Transaction.class);
+            }
+        } finally {
+            if (buffer.length > MAX_KEPT_BUFFER) {
+                buffer = new byte[INITIAL_BUFFER];
+            }
+        }
+    }
+
+    /**
+     * Tells if the last body made it through the fast path
+     *
+     * @return true if the amount and the timestamp are to be had as primitives, false if only as a Transaction
+     */
+    public boolean isPrimitive() {
+        return bound == null;
+    }
+
+    /**
+     * Gets the amount without its decimal point, only there if {@link #isPrimitive()}
+     *
+     * @return 1234 for an amount of 12.34
+     */
+    public long getUnscaledAmount() {
+        return unscaledAmount;
+    }
+
+    /**
+     * Gets the number of decimals of the amount, only there if {@link #isPrimitive()}
+     *
+     * @return 2 for an amount of 12.34
+     */
+    public int getAmountScale() {
+        return amountScale;
+    }
+
+    /**
+     * Gets the timestamp, only there if {@link #isPrimitive()}
+     *
+     * @return the timestamp in epoch millis
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the key, only there if {@link #isPrimitive()}
+     *
+     * @return the key of the transaction, or null if it has none
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Makes a Transaction of whatever the last body was, for when the primitives won't do
+     *
+     * @return the transaction
+     */
+    public Transaction toTransaction() {
+        return bound != null ? bound
+                : new Transaction(BigDecimal.valueOf(unscaledAmount, amountScale), timestamp, key);
+    }
+
+    private void read(InputStream body) throws IOException {
+        length = 0;
+        int read;
+        while (true) {
+            if (length == buffer.length) {
+                byte[] bigger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, bigger, 0, length);
+                buffer = bigger;
+            }
+            read = body.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                return;
+            }
+            length += read;
+        }
+    }
+
+    /**
+     * Goes through the body, filling the primitives along the way
+     *
+     * @return false as soon as there's anything that isn't the plain shape of a transaction
+     */
+    private boolean parse() {
+        position = 0;
+        skipWhitespace();
+        if (!consume('{')) {
+            return false;
+        }
+
+        int seen = 0;
+        do {
+            skipWhitespace();
+            int field = fieldName();
+            if (field == 0 || (seen & field) != 0) {
+                return false;
+            }
+            skipWhitespace();
+            if (!consume(':')) {
+                return false;
+            }
+            skipWhitespace();
+            if (!value(field)) {
+                return false;
+            }
+            seen |= field;
+            skipWhitespace();
+        } while (consume(','));
+
+        if (!consume('}')) {
+            return false;
+        }
+        skipWhitespace();
+        return position == length && (seen & (AMOUNT | TIMESTAMP)) == (AMOUNT | TIMESTAMP);
+    }
+
+    private int fieldName() {
+        if (matches('"', AMOUNT_NAME)) {
+            return AMOUNT;
+        }
+        if (matches('"', TIMESTAMP_NAME)) {
+            return TIMESTAMP;
+        }
+        if (matches('"', KEY_NAME)) {
+            return KEY;
+        }
+        return 0;
+    }
+
+    private boolean value(int field) {
+        switch (field) {
+            case AMOUNT:
+                return amount();
+            case TIMESTAMP:
+                return timestamp();
+            default:
+                return key();
+        }
+    }
+
+    private boolean amount() {
+        int start = position;
+        boolean negative = consume('-');
+        int digitsStart = position;
+        if (!integerPart()) {
+            return false;
+        }
+        int scale = 0;
+        if (consume('.')) {
+            int fractionStart = position;
+            skipDigits();
+            scale = position - fractionStart;
+            if (scale == 0) {
+                return false;
+            }
+        }
+        if (position - digitsStart - (scale > 0 ? 1 : 0) > MAX_DIGITS || isExponent()) {
+            return false;
+        }
+
+        long unscaled = 0;
+        for (int i = negative ? start + 1 : start; i < position; i++) {
+            if (buffer[i] != '.') {
+                unscaled = unscaled * 10 + (buffer[i] - '0');
+            }
+        }
+        unscaledAmount = negative ? -unscaled : unscaled;
+        amountScale = scale;
+        return true;
+    }
+
+    private boolean timestamp() {
+        boolean negative = consume('-');
+        int digitsStart = position;
+        if (!integerPart() || position - digitsStart > MAX_DIGITS || peek() == '.' || isExponent()) {
+            return false;
+        }
+
+        long value = 0;
+        for (int i = digitsStart; i < position; i++) {
+            value = value * 10 + (buffer[i] - '0');
+        }
+        timestamp = negative ? -value : value;
+        return true;
+    }
+
+    private boolean key() {
+        if (matches(NULL)) {
+            key = null;
+            return true;
+        }
+        if (!consume('"')) {
+            return false;
+        }
+        int start = position;
+        while (position < length && buffer[position] != '"') {
+            byte b = buffer[position];
+            // escapes, control characters and anything beyond ASCII are left to Jackson
+            if (b == '\\' || b < 0x20 || b > 0x7e) {
+                return false;
+            }
+            position++;
+        }
+        if (position == length) {
+            return false;
+        }
+        key = new String(buffer, start, position - start, StandardCharsets.US_ASCII);
+        position++;
+        return true;
+    }
+
+    /**
+     * JSON has no leading zeros, so it's either a single 0 or a digit other than 0 followed by any digits
+     */
+    private boolean integerPart() {
+        int start = position;
+        skipDigits();
+        return position > start && (buffer[start] != '0' || position == start + 1);
+    }
+
+    private boolean isExponent() {
+        byte b = peek();
+        return b == 'e' || b == 'E';
+    }
+
+    private void skipDigits() {
+        while (position < length && buffer[position] >= '0' && buffer[position] <= '9') {
+            position++;
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < length) {
+            byte b = buffer[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private byte peek() {
+        return position < length ? buffer[position] : 0;
+    }
+
+    private boolean consume(char expected) {
+        if (position < length && buffer[position] == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean matches(byte[] literal) {
+        if (length - position < literal.length) {
+            return false;
+        }
+        for (int i = 0; i < literal.length; i++) {
+            if (buffer[position + i] != literal[i]) {
+                return false;
+            }
+        }
+        position += literal.length;
+        return true;
+    }
+
+    /**
+     * Matches a name in quotes, and moves past it only if it's all there
+     */
+    private boolean matches(char quote, byte[] name) {
+        int start = position;
+        if (consume(quote) && matches(name) && consume(quote)) {
+            return true;
+        }
+        position = start;
+        return false;
+    }
+}
@@ -0,0 +1,151 @@
+package com.ju.tsa.ingest;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.ju.tsa.model.Transaction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * Reads transactions off a request body one at a time with Jackson's streaming parser, so a batch of any size never
+ * has to be bound into a tree or a list of its own. The body is either a JSON array of transactions, or newline
+ * delimited JSON (one transaction object per line).
+ * <p>
+ * A record that's valid JSON but not a valid transaction (missing or mistyped amount or timestamp, a key that isn't a
+ * string, not an object at all) is skipped and counted as rejected. Broken JSON can't be recovered from, so that ends
+ * up as a JsonParseException.
+ */
+public class TransactionStreamReader implements Closeable {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final JsonParser parser;
+    private final boolean array;
+    private boolean started;
+    private boolean exhausted;
+
+    private TransactionStreamReader(InputStream body, boolean array) throws IOException {
+        this.parser = JSON.createParser(body);
+        this.array = array;
+    }
+
+    /**
+     * Reader for a JSON array of transactions
+     *
+     * @param body the request body
+     * @return the reader
+     * @throws IOException if the body can't be read
+     */
+    public static TransactionStreamReader jsonArray(InputStream body) throws IOException {
+        return new TransactionStreamReader(body, true);
+    }
+
+    /**
+     * Reader for newline delimited JSON transactions
+     *
+     * @param body the request body
+     * @return the reader
+     * @throws IOException if the body can't be read
+     */
+    public static TransactionStreamReader ndjson(InputStream body) throws IOException {
+        return new TransactionStreamReader(body, false);
+    }
+
+    /**
+     * Reads the next chunk of transactions.
+     *
+     * @param chunk receives the transactions that were read
+     * @param max   the most transactions to put into the chunk
+     * @return how many records were skipped because they weren't valid transactions
+     * @throws IOException if the body can't be read or isn't valid JSON
+     */
+    public int read(List<Transaction> chunk, int max) throws IOException {
+        if (array && !started && parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "expected a JSON array of transactions");
+        }
+        started = true;
+
+        int rejected = 0;
+
+        while (chunk.size() < max && !exhausted) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                if (array) {
+                    throw new JsonParseException(parser, "unexpected end of the transaction array");
+                }
+                exhausted = true;
+            } else if (array && token == JsonToken.END_ARRAY) {
+                exhausted = true;
+            } else if (token == JsonToken.START_OBJECT) {
+                Transaction transaction = readTransaction();
+                if (transaction == null) {
+                    rejected++;
+                } else {
+                    chunk.add(transaction);
+                }
+            } else {
+                parser.skipChildren();
+                rejected++;
+            }
+        }
+
+        return rejected;
+    }
+
+    /**
+     * Tells if the whole body has been read
+     *
+     * @return true once there's nothing more to read
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    private Transaction readTransaction() throws IOException {
+        BigDecimal amount = null;
+        boolean hasTimestamp = false;
+        long timestamp = 0;
+        String key = null;
+        boolean valid = true;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+
+            if ("amount".equals(field)) {
+                if (value == JsonToken.VALUE_NUMBER_INT || value == JsonToken.VALUE_NUMBER_FLOAT) {
+                    amount = parser.getDecimalValue();
+                } else {
+                    valid = false;
+                }
+            } else if ("timestamp".equals(field)) {
+                if (value == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+                    timestamp = parser.getLongValue();
+                    hasTimestamp = true;
+                } else {
+                    valid = false;
+                }
+            } else if ("key".equals(field)) {
+                if (value == JsonToken.VALUE_STRING) {
+                    key = parser.getText();
+                } else if (value != JsonToken.VALUE_NULL) {
+                    valid = false;
+                }
+            }
+            parser.skipChildren();
+        }
+
+        return valid && amount != null && hasTimestamp ? new Transaction(amount, timestamp, key) : null;
+    }
+}
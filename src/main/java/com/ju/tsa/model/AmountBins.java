@@ -0,0 +1,140 @@
+package com.ju.tsa.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The bins of an AmountHistogram: the first one for everything below the first bound, every other one factor times as
+ * wide as the one before it, and the last one for everything from the last bound on. The bounds are minor units of a
+ * scale, the same as in the FixedPointAggregator.
+ * <p>
+ * Finding the bin of an amount takes no search. The bit length of the amount tells which power of two it's in, and a
+ * table made up front says which bin the lowest amount of that power of two belongs to. With the bounds at least twice
+ * as far apart as the one before them there's at most one more bound within the power of two, so a single comparison
+ * (done as a subtraction, without a branch) settles it.
+ */
+public class AmountBins {
+
+    private final int scale;
+
+    /**
+     * The lower bound of every bin but the first, followed by Long.MAX_VALUE so the comparison always has something to
+     * compare with
+     */
+    private final long[] bounds;
+
+    /**
+     * The bin of 2^(bitLength - 1), or of 0 for a bit length of 0
+     */
+    private final int[] byBitLength = new int[Long.SIZE];
+
+    /**
+     * @param bins       the number of bins, at least 2
+     * @param firstBound the upper bound of the first bin
+     * @param factor     how much wider every bin is than the one before it, at least 2
+     * @param scale      the scale of the minor units of the amounts
+     */
+    public AmountBins(int bins, BigDecimal firstBound, double factor, int scale) {
+        if (bins < 2) {
+            throw new IllegalArgumentException("need at least 2 bins, got " + bins);
+        }
+        if (!(factor >= 2)) {
+            throw new IllegalArgumentException("factor must be at least 2, got " + factor);
+        }
+        this.scale = scale;
+        this.bounds = new long[bins];
+        BigDecimal bound = firstBound;
+        for (int i = 0; i < bins - 1; i++) {
+            BigDecimal units = bound.movePointRight(scale).setScale(0, RoundingMode.CEILING);
+            if (units.signum() <= 0 || units.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) >= 0) {
+                throw new IllegalArgumentException("bound " + bound + " doesn't fit the scale " + scale);
+            }
+            bounds[i] = units.longValueExact();
+            if (i > 0 && bounds[i] / 2 < bounds[i - 1]) {
+                throw new IllegalArgumentException("bound " + bound + " isn't twice the one before it at the scale "
+                        + scale);
+            }
+            bound = bound.multiply(BigDecimal.valueOf(factor));
+        }
+        bounds[bins - 1] = Long.MAX_VALUE;
+
+        for (int bitLength = 1; bitLength < byBitLength.length; bitLength++) {
+            long lowest = 1L << (bitLength - 1);
+            int bin = 0;
+            while (bin < bins - 1 && bounds[bin] <= lowest) {
+                bin++;
+            }
+            byBitLength[bitLength] = bin;
+        }
+    }
+
+    /**
+     * Finds the bin of an amount
+     *
+     * @param units the amount in minor units, anything below 1 ends up in the first bin
+     * @return the bin
+     */
+    public int binOf(long units) {
+        // kept below the Long.MAX_VALUE after the last bound, which nothing may reach
+        long positive = Math.min(Math.max(units, 0), Long.MAX_VALUE - 1);
+        int bin = byBitLength[Long.SIZE - Long.numberOfLeadingZeros(positive)];
+        return bin + (int) ((bounds[bin] - 1 - positive) >>> (Long.SIZE - 1));
+    }
+
+    /**
+     * Gets the number of bins
+     *
+     * @return the number of bins
+     */
+    public int size() {
+        return bounds.length;
+    }
+
+    /**
+     * Gets the scale
+     *
+     * @return the scale of the minor units of the bounds
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Bins are equal if they have the same bounds at the same scale, so counts of one can be read as counts of the other
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof AmountBins)) {
+            return false;
+        }
+        AmountBins bins = (AmountBins) other;
+        return scale == bins.scale && Arrays.equals(bounds, bins.bounds);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * scale + Arrays.hashCode(bounds);
+    }
+
+    /**
+     * Puts the bounds next to the counts
+     *
+     * @param counts the count of every bin
+     * @return the bins, lowest first
+     */
+    public List<HistogramBin> toBins(long[] counts) {
+        List<HistogramBin> result = new ArrayList<>(bounds.length);
+        for (int bin = 0; bin < bounds.length; bin++) {
+            BigDecimal from = bin == 0 ? null : BigDecimal.valueOf(bounds[bin - 1], scale);
+            BigDecimal to = bin == bounds.length - 1 ? null : BigDecimal.valueOf(bounds[bin], scale);
+            result.add(new HistogramBin(from, to, counts[bin]));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,106 @@
+package com.ju.tsa.model;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts amounts in the bins of an AmountBins. Like the QuantileSketch it rides along in the FixedPointAggregator, so
+ * every stripe of every bucket and every node of the segment trees has one, and the histogram of a window is the merge
+ * of theirs. Merging is adding up the counters bin by bin.
+ * <p>
+ * The counters are atomic, so counting an amount is a table lookup and an increment, without a lock.
+ */
+public class AmountHistogram {
+
+    private final AmountBins bins;
+    private final AtomicLongArray counts;
+
+    public AmountHistogram(AmountBins bins) {
+        this.bins = bins;
+        this.counts = new AtomicLongArray(bins.size());
+    }
+
+    /**
+     * Counts an amount
+     *
+     * @param units the amount in minor units of the scale of the bins
+     */
+    public void add(long units) {
+        counts.incrementAndGet(bins.binOf(units));
+    }
+
+    /**
+     * Adds the counts of another histogram to this one
+     *
+     * @param other the histogram to be merged in, with the same bins
+     */
+    public void merge(AmountHistogram other) {
+        if (other.bins != bins) {
+            throw new IllegalArgumentException("can't merge a histogram with other bins");
+        }
+        for (int bin = 0; bin < counts.length(); bin++) {
+            long count = other.counts.get(bin);
+            if (count != 0) {
+                counts.addAndGet(bin, count);
+            }
+        }
+    }
+
+    /**
+     * Empties every bin. Must not race with writers.
+     */
+    public void reset() {
+        for (int bin = 0; bin < counts.length(); bin++) {
+            counts.set(bin, 0);
+        }
+    }
+
+    /**
+     * Copies the counts
+     *
+     * @return the count of every bin, lowest bin first
+     */
+    public long[] counts() {
+        long[] result = new long[counts.length()];
+        for (int bin = 0; bin < result.length; bin++) {
+            result[bin] = counts.get(bin);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the counts as one long per bin, for {@link #importFrom(ByteBuffer, int)} to pick up later
+     *
+     * @param into   the buffer to write to
+     * @param offset where in the buffer to start
+     */
+    public void exportTo(ByteBuffer into, int offset) {
+        for (int bin = 0; bin < counts.length(); bin++) {
+            into.putLong(offset + bin * Long.BYTES, counts.get(bin));
+        }
+    }
+
+    /**
+     * Adds counts written by {@link #exportTo(ByteBuffer, int)} of a histogram with the same bins to this one
+     *
+     * @param from   the buffer to read from
+     * @param offset where in the buffer the counts start
+     */
+    public void importFrom(ByteBuffer from, int offset) {
+        for (int bin = 0; bin < counts.length(); bin++) {
+            long count = from.getLong(offset + bin * Long.BYTES);
+            if (count != 0) {
+                counts.addAndGet(bin, count);
+            }
+        }
+    }
+
+    /**
+     * Gets the bins
+     *
+     * @return the bins the amounts are counted in
+     */
+    public AmountBins getBins() {
+        return bins;
+    }
+}
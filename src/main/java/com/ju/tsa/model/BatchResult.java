@@ -0,0 +1,33 @@
+package com.ju.tsa.model;
+
+/**
+ * What happened to a batch of transactions: how many made it into the stats and how many didn't, either because they
+ * were malformed or because they didn't fit the window.
+ */
+public class BatchResult {
+    private final long accepted;
+    private final long rejected;
+
+    public BatchResult(long accepted, long rejected) {
+        this.accepted = accepted;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Gets the number of accepted transactions
+     *
+     * @return accepted count
+     */
+    public long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * Gets the number of rejected transactions
+     *
+     * @return rejected count
+     */
+    public long getRejected() {
+        return rejected;
+    }
+}
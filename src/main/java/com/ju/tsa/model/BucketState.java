@@ -0,0 +1,116 @@
+package com.ju.tsa.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * A single bucket the way it goes from one node to another: the time span it covers, and sum, count, min and max of
+ * the transactions in it. That's all TransactionAggregator.flatten needs, so buckets from several nodes can be merged
+ * exactly the way one node merges its own.
+ */
+public class BucketState {
+
+    private static final int ROUNDING_SCALE = 2;
+
+    private final long start;
+    private final long width;
+    private final BigDecimal sum;
+    private final long count;
+    private final BigDecimal min;
+    private final BigDecimal max;
+
+    @JsonCreator
+    public BucketState(@JsonProperty("start") long start, @JsonProperty("width") long width,
+                       @JsonProperty("sum") BigDecimal sum, @JsonProperty("count") long count,
+                       @JsonProperty("min") BigDecimal min, @JsonProperty("max") BigDecimal max) {
+        this.start = start;
+        this.width = width;
+        this.sum = sum;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Takes the state of a bucket off its aggregates
+     *
+     * @param start      epoch millis of the start of the bucket
+     * @param width      the time span the bucket covers, in millis
+     * @param aggregates what's in the bucket
+     * @return the bucket
+     */
+    public static BucketState of(long start, long width, TransactionAggregator aggregates) {
+        return new BucketState(start, width, aggregates.getSum(), aggregates.getCount(), aggregates.getMinimum(),
+                aggregates.getMaximum());
+    }
+
+    /**
+     * Turns the bucket back into an aggregator, for TransactionAggregator.flatten
+     *
+     * @return the aggregator with the data of the bucket
+     */
+    public TransactionAggregator toTransactionAggregator() {
+        if (count == 0) {
+            return new TransactionAggregator();
+        }
+        BigDecimal average = sum.divide(BigDecimal.valueOf(count), ROUNDING_SCALE, RoundingMode.HALF_EVEN);
+        return new TransactionAggregator(sum, max, min, average, count);
+    }
+
+    /**
+     * Gets the start
+     *
+     * @return epoch millis of the start of the bucket, a whole epoch second for one second buckets
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Gets the width
+     *
+     * @return the time span the bucket covers, in millis
+     */
+    public long getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the sum
+     *
+     * @return sum
+     */
+    public BigDecimal getSum() {
+        return sum;
+    }
+
+    /**
+     * Gets the count
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the min
+     *
+     * @return min
+     */
+    public BigDecimal getMin() {
+        return min;
+    }
+
+    /**
+     * Gets the max
+     *
+     * @return max
+     */
+    public BigDecimal getMax() {
+        return max;
+    }
+}
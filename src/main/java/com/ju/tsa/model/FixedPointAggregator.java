@@ -0,0 +1,497 @@
+package com.ju.tsa.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * The mutable, primitive cousin of TransactionAggregator. Where TransactionAggregator builds a new object and four
+ * BigDecimals for every transaction, this one keeps sum, min and max as longs counted in minor units (the amount
+ * multiplied by 10^scale) and updates them in place, so appending a transaction allocates nothing.
+ * <p>
+ * Amounts which don't fit into that representation (more decimal places than the scale, or simply huge), as well as a
+ * sum overflowing a long, go into BigDecimal accumulators on the side. That's the slow path, but it's exact, so
+ * {@link #toTransactionAggregator()} gives the very same numbers (scales included) TransactionAggregator would have.
+ * <p>
+ * Appending is safe from several threads at once. Count, sum, min and max are updated with CASes and only the slow
+ * path takes a lock, but with percentiles enabled (the default) every append also takes the monitor of the
+ * {@link QuantileSketch}. Writers mostly stick to their own stripe, so that one is nearly always uncontended. A reader
+ * running alongside the writers can observe a transaction that is only partially applied (counted but not summed
+ * yet), but never loses one that was fully appended.
+ * <p>
+ * Optionally it also carries a {@link QuantileSketch} of the amounts, which gets merged along with everything else and
+ * ends up as the percentiles of the TransactionAggregator. Same goes for an {@link AmountHistogram}, except that one is
+ * read on its own.
+ */
+public class FixedPointAggregator {
+
+    public static final int DEFAULT_SCALE = 2;
+
+    /**
+     * What {@link #unitsOf(long, int, int)} returns for an amount that doesn't fit into the primitive representation
+     */
+    public static final long NO_UNITS = Long.MIN_VALUE;
+
+    /**
+     * The number of longs {@link #exportTo(ByteBuffer, int)} writes
+     */
+    public static final int EXPORTED_LONGS = 5;
+
+    private static final int ROUNDING_SCALE = 2;
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    /**
+     * The low bits of min and max remember how many decimal places the original amount was short of the scale, so
+     * 10.5 and 10.50 are told apart in the output just like BigDecimal would do it.
+     */
+    private static final int SCALE_BITS = 5;
+    private static final long SCALE_MASK = (1L << SCALE_BITS) - 1;
+    private static final long MAX_UNITS = (Long.MAX_VALUE >> SCALE_BITS) - 1;
+    private static final long EMPTY_MAX = Long.MIN_VALUE;
+    private static final long EMPTY_MIN = Long.MAX_VALUE;
+
+    /**
+     * Anything with more digits than this is guaranteed to fit in MAX_UNITS once scaled
+     */
+    private static final int MAX_PRECISION = 17;
+    private static final long[] POWERS_OF_TEN = new long[MAX_PRECISION + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private static final AtomicLongFieldUpdater<FixedPointAggregator> COUNT =
+            AtomicLongFieldUpdater.newUpdater(FixedPointAggregator.class, "count");
+    private static final AtomicLongFieldUpdater<FixedPointAggregator> SUM =
+            AtomicLongFieldUpdater.newUpdater(FixedPointAggregator.class, "sum");
+    private static final AtomicLongFieldUpdater<FixedPointAggregator> MAX =
+            AtomicLongFieldUpdater.newUpdater(FixedPointAggregator.class, "max");
+    private static final AtomicLongFieldUpdater<FixedPointAggregator> MIN =
+            AtomicLongFieldUpdater.newUpdater(FixedPointAggregator.class, "min");
+    private static final AtomicIntegerFieldUpdater<FixedPointAggregator> SUM_SCALE =
+            AtomicIntegerFieldUpdater.newUpdater(FixedPointAggregator.class, "sumScale");
+
+    private final int scale;
+    private final QuantileSketch sketch;
+    private final AmountHistogram histogram;
+
+    private volatile long count;
+    private volatile long sum;
+    private volatile long max = EMPTY_MAX;
+    private volatile long min = EMPTY_MIN;
+    private volatile int sumScale;
+
+    /**
+     * The slow path. Only touched while holding the monitor, and only allocated once something needs it.
+     */
+    private volatile boolean wide;
+    private BigDecimal wideSum;
+    private BigDecimal wideMax;
+    private BigDecimal wideMin;
+
+    public FixedPointAggregator() {
+        this(DEFAULT_SCALE);
+    }
+
+    /**
+     * @param scale the number of decimal places kept in the primitive representation
+     */
+    public FixedPointAggregator(int scale) {
+        this(scale, 0);
+    }
+
+    /**
+     * @param scale              the number of decimal places kept in the primitive representation
+     * @param percentileAccuracy relative accuracy of the percentiles, or 0 to not keep any
+     */
+    public FixedPointAggregator(int scale, double percentileAccuracy) {
+        this(scale, percentileAccuracy, null);
+    }
+
+    /**
+     * @param scale              the number of decimal places kept in the primitive representation
+     * @param percentileAccuracy relative accuracy of the percentiles, or 0 to not keep any
+     * @param histogramBins      the bins to count the amounts in, with the same scale, or null to not count them
+     */
+    public FixedPointAggregator(int scale, double percentileAccuracy, AmountBins histogramBins) {
+        if (scale < 0 || scale > MAX_PRECISION) {
+            throw new IllegalArgumentException("scale must be between 0 and " + MAX_PRECISION + ", got " + scale);
+        }
+        if (histogramBins != null && histogramBins.getScale() != scale) {
+            throw new IllegalArgumentException("can't count scale " + scale + " in bins of scale "
+                    + histogramBins.getScale());
+        }
+        this.scale = scale;
+        this.sketch = percentileAccuracy == 0 ? null : new QuantileSketch(percentileAccuracy);
+        this.histogram = histogramBins == null ? null : new AmountHistogram(histogramBins);
+    }
+
+    /**
+     * Adds the amount of a transaction
+     *
+     * @param transaction the Transaction to be added
+     */
+    public void append(Transaction transaction) {
+        append(transaction.getAmount());
+    }
+
+    /**
+     * Adds an amount, through the primitive path whenever the amount fits into it.
+     *
+     * @param amount the amount to be added
+     */
+    public void append(BigDecimal amount) {
+        int amountScale = amount.scale();
+        int shortfall = scale - amountScale;
+        if (shortfall < 0 || shortfall > SCALE_MASK || amount.precision() + shortfall > MAX_PRECISION) {
+            appendWide(amount);
+            return;
+        }
+
+        appendUnits(amount.unscaledValue().longValue() * POWERS_OF_TEN[shortfall], amountScale);
+    }
+
+    /**
+     * Adds an amount which is already expressed in minor units.
+     *
+     * @param units       the amount multiplied by 10^scale
+     * @param amountScale the scale the amount came in with, which is what the output will be shown with. Must not
+     *                    be larger than the scale of this aggregator.
+     */
+    public void appendUnits(long units, int amountScale) {
+        int shortfall = scale - amountScale;
+        if (shortfall < 0 || shortfall > SCALE_MASK || units > MAX_UNITS || units < -MAX_UNITS) {
+            appendWide(BigDecimal.valueOf(units, scale).setScale(amountScale, RoundingMode.UNNECESSARY));
+            return;
+        }
+
+        // the scale goes up before the units are in, so whoever sees the units sees a scale that can show them
+        raiseSumScale(amountScale);
+        addUnits(units);
+        if (sketch != null) {
+            sketch.add(units);
+        }
+        if (histogram != null) {
+            histogram.add(units);
+        }
+        raiseMax((units << SCALE_BITS) | shortfall);
+        lowerMin((units << SCALE_BITS) | shortfall);
+        COUNT.incrementAndGet(this);
+    }
+
+    /**
+     * Converts an amount given as unscaled value and scale (like BigDecimal keeps it) into the minor units
+     * {@link #appendUnits(long, int)} takes
+     *
+     * @param unscaled    the amount without its decimal point, 1234 for 12.34
+     * @param amountScale the number of decimals of the amount
+     * @param scale       the scale of the aggregator
+     * @return the amount multiplied by 10^scale, or NO_UNITS if that's not exact or doesn't fit
+     */
+    public static long unitsOf(long unscaled, int amountScale, int scale) {
+        int shortfall = scale - amountScale;
+        if (amountScale < 0 || shortfall < 0 || shortfall > SCALE_MASK || shortfall > MAX_PRECISION) {
+            return NO_UNITS;
+        }
+        long factor = POWERS_OF_TEN[shortfall];
+        if (unscaled > MAX_UNITS / factor || unscaled < -MAX_UNITS / factor) {
+            return NO_UNITS;
+        }
+        return unscaled * factor;
+    }
+
+    /**
+     * Folds the state of another aggregator into this one. That's what flatten does for TransactionAggregator. If this
+     * one keeps percentiles or a histogram, the other one has to keep them as well.
+     *
+     * @param other the aggregator to be merged in
+     */
+    public void merge(FixedPointAggregator other) {
+        if (other.scale != scale) {
+            throw new IllegalArgumentException("can't merge scale " + other.scale + " into scale " + scale);
+        }
+        if (sketch != null && other.sketch == null) {
+            throw new IllegalArgumentException("can't merge an aggregator without percentiles into one with them");
+        }
+        if (histogram != null && other.histogram == null) {
+            throw new IllegalArgumentException("can't merge an aggregator without a histogram into one with it");
+        }
+
+        long otherCount = other.count;
+        if (otherCount == 0) {
+            return;
+        }
+
+        // the other way round from appending: the sum first, so the scale read after it is at least the one it needs
+        long otherSum = other.sum;
+        raiseSumScale(other.sumScale);
+        addUnits(otherSum);
+        if (sketch != null) {
+            sketch.merge(other.sketch);
+        }
+        if (histogram != null) {
+            histogram.merge(other.histogram);
+        }
+        raiseMax(other.max);
+        lowerMin(other.min);
+
+        if (other.wide) {
+            BigDecimal otherWideSum;
+            BigDecimal otherMax;
+            BigDecimal otherMin;
+            synchronized (other) {
+                otherWideSum = other.wideSum;
+                otherMax = other.wideMax;
+                otherMin = other.wideMin;
+            }
+            raiseSumScale(other.sumScale);
+            mergeWide(otherWideSum, otherMax, otherMin);
+        }
+
+        COUNT.addAndGet(this, otherCount);
+    }
+
+    /**
+     * Writes the primitive state (count, sum, max, min and the scale of the sum) as EXPORTED_LONGS longs, for
+     * {@link #importFrom(ByteBuffer, int)} to pick up later, maybe in another process. Like any other read it can see
+     * a transaction that's only partially applied if writers are running alongside.
+     *
+     * @param into   the buffer to write to
+     * @param offset where in the buffer to start
+     * @return false without writing anything if some of the state is in the BigDecimal accumulators, which don't fit
+     * into longs
+     */
+    public boolean exportTo(ByteBuffer into, int offset) {
+        if (wide) {
+            return false;
+        }
+        into.putLong(offset, count);
+        into.putLong(offset + Long.BYTES, sum);
+        into.putLong(offset + 2 * Long.BYTES, max);
+        into.putLong(offset + 3 * Long.BYTES, min);
+        into.putLong(offset + 4 * Long.BYTES, sumScale);
+        return true;
+    }
+
+    /**
+     * Merges state written by {@link #exportTo(ByteBuffer, int)} into this aggregator, the same as
+     * {@link #merge(FixedPointAggregator)} would. The exporting aggregator must have had the same scale. Percentiles
+     * and the histogram aren't part of the exported state, so they only cover what's added here.
+     *
+     * @param from   the buffer to read from
+     * @param offset where in the buffer the state starts
+     */
+    public void importFrom(ByteBuffer from, int offset) {
+        long otherCount = from.getLong(offset);
+        if (otherCount == 0) {
+            return;
+        }
+        raiseSumScale((int) from.getLong(offset + 4 * Long.BYTES));
+        addUnits(from.getLong(offset + Long.BYTES));
+        raiseMax(from.getLong(offset + 2 * Long.BYTES));
+        lowerMin(from.getLong(offset + 3 * Long.BYTES));
+        COUNT.addAndGet(this, otherCount);
+    }
+
+    /**
+     * Brings the aggregator back to its initial, empty state so it can be reused. Unlike the rest of the methods this
+     * one must not race with writers.
+     */
+    public synchronized void reset() {
+        count = 0;
+        sum = 0;
+        max = EMPTY_MAX;
+        min = EMPTY_MIN;
+        sumScale = 0;
+        wide = false;
+        wideSum = null;
+        wideMax = null;
+        wideMin = null;
+        if (sketch != null) {
+            sketch.reset();
+        }
+        if (histogram != null) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Composes the immutable aggregator served by the REST endpoint. This is the only place the average gets
+     * calculated.
+     *
+     * @return the TransactionAggregator with the data of this aggregator
+     */
+    public TransactionAggregator toTransactionAggregator() {
+        long currentCount = count;
+        if (currentCount == 0) {
+            return new TransactionAggregator();
+        }
+
+        BigDecimal totalSum = BigDecimal.valueOf(sum, scale);
+        BigDecimal overallMaximum = BigDecimal.valueOf(Long.MIN_VALUE);
+        BigDecimal overallMinimum = BigDecimal.valueOf(Long.MAX_VALUE);
+
+        long currentMax = max;
+        if (currentMax != EMPTY_MAX) {
+            overallMaximum = overallMaximum.max(unpack(currentMax));
+        }
+        long currentMin = min;
+        if (currentMin != EMPTY_MIN) {
+            overallMinimum = overallMinimum.min(unpack(currentMin));
+        }
+
+        if (wide) {
+            synchronized (this) {
+                if (wideSum != null) {
+                    totalSum = totalSum.add(wideSum);
+                }
+                if (wideMax != null) {
+                    overallMaximum = overallMaximum.max(wideMax);
+                }
+                if (wideMin != null) {
+                    overallMinimum = overallMinimum.min(wideMin);
+                }
+            }
+        }
+
+        totalSum = totalSum.setScale(scaleOfSum(totalSum, sumScale), RoundingMode.UNNECESSARY);
+        BigDecimal average = totalSum.divide(BigDecimal.valueOf(currentCount), ROUNDING_SCALE, RoundingMode.HALF_EVEN);
+        return new TransactionAggregator(totalSum, overallMaximum, overallMinimum, average, currentCount,
+                percentiles(overallMaximum, overallMinimum));
+    }
+
+    /**
+     * Gets the count
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the scale
+     *
+     * @return the number of decimal places kept in the primitive representation
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Gets the histogram
+     *
+     * @return the counts of the amounts per bin, or null if they aren't counted
+     */
+    public AmountHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Reads the percentiles off the sketch, rounded to the scale and kept within min and max, which are exact
+     */
+    private Percentiles percentiles(BigDecimal overallMaximum, BigDecimal overallMinimum) {
+        if (sketch == null || sketch.getCount() == 0) {
+            return null;
+        }
+        BigDecimal[] values = new BigDecimal[PERCENTILES.length];
+        for (int i = 0; i < values.length; i++) {
+            BigDecimal value = BigDecimal.valueOf(sketch.quantile(PERCENTILES[i])).movePointLeft(scale)
+                    .setScale(scale, RoundingMode.HALF_EVEN);
+            values[i] = value.max(overallMinimum).min(overallMaximum);
+        }
+        return new Percentiles(values[0], values[1], values[2]);
+    }
+
+    /**
+     * The scale to show the sum with. The scales go up before the amounts are added, but none of this is read under a
+     * lock, so a sum with a decimal more than the scale read next to it still gets all of its decimals rather than an
+     * exception. A moment later the scale catches up anyway.
+     */
+    private static int scaleOfSum(BigDecimal sum, int sumScale) {
+        int wanted = Math.max(0, sumScale);
+        if (sum.scale() <= wanted) {
+            return wanted;
+        }
+        return Math.max(wanted, sum.stripTrailingZeros().scale());
+    }
+
+    private void addUnits(long units) {
+        while (true) {
+            long current = sum;
+            long next = current + units;
+            // overflow only happens if both operands have the same sign and the result's sign differs from them
+            if (((current ^ next) & (units ^ next)) < 0) {
+                mergeWide(BigDecimal.valueOf(units, scale), null, null);
+                return;
+            }
+            if (SUM.compareAndSet(this, current, next)) {
+                return;
+            }
+        }
+    }
+
+    private void raiseMax(long packed) {
+        long current;
+        while ((packed >> SCALE_BITS) > ((current = max) >> SCALE_BITS)) {
+            if (MAX.compareAndSet(this, current, packed)) {
+                return;
+            }
+        }
+    }
+
+    private void lowerMin(long packed) {
+        long current;
+        while ((packed >> SCALE_BITS) < ((current = min) >> SCALE_BITS)) {
+            if (MIN.compareAndSet(this, current, packed)) {
+                return;
+            }
+        }
+    }
+
+    private void raiseSumScale(int amountScale) {
+        int current;
+        while (amountScale > (current = sumScale)) {
+            if (SUM_SCALE.compareAndSet(this, current, amountScale)) {
+                return;
+            }
+        }
+    }
+
+    private void appendWide(BigDecimal amount) {
+        raiseSumScale(amount.scale());
+        mergeWide(amount, amount, amount);
+        if (sketch != null) {
+            sketch.add(amount.doubleValue() * POWERS_OF_TEN[scale]);
+        }
+        if (histogram != null) {
+            // casting saturates, which is all the last bin needs
+            histogram.add((long) (amount.doubleValue() * POWERS_OF_TEN[scale]));
+        }
+        COUNT.incrementAndGet(this);
+    }
+
+    private synchronized void mergeWide(BigDecimal amount, BigDecimal candidateMax, BigDecimal candidateMin) {
+        if (amount != null) {
+            wideSum = wideSum == null ? amount : wideSum.add(amount);
+        }
+        if (candidateMax != null) {
+            wideMax = wideMax == null ? candidateMax : wideMax.max(candidateMax);
+        }
+        if (candidateMin != null) {
+            wideMin = wideMin == null ? candidateMin : wideMin.min(candidateMin);
+        }
+        wide = true;
+    }
+
+    private BigDecimal unpack(long packed) {
+        int shortfall = (int) (packed & SCALE_MASK);
+        return BigDecimal.valueOf(packed >> SCALE_BITS, scale).setScale(scale - shortfall, RoundingMode.UNNECESSARY);
+    }
+}
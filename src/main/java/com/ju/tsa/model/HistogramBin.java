@@ -0,0 +1,41 @@
+package com.ju.tsa.model;
+
+import java.math.BigDecimal;
+
+/**
+ * One bin of the amount histogram of a window
+ */
+public class HistogramBin {
+    private final BigDecimal from;
+    private final BigDecimal to;
+    private final long count;
+
+    public HistogramBin(BigDecimal from, BigDecimal to, long count) {
+        this.from = from;
+        this.to = to;
+        this.count = count;
+    }
+
+    /**
+     * Gets the lower bound
+     *
+     * @return the smallest amount of the bin, or null for the first bin, which takes everything below its upper bound
+     */
+    public BigDecimal getFrom() {
+        return from;
+    }
+
+    /**
+     * Gets the upper bound
+     *
+     * @return the amount the next bin starts with, or null for the last bin, which takes everything from its lower
+     * bound on
+     */
+    public BigDecimal getTo() {
+        return to;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
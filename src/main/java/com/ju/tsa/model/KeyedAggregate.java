@@ -0,0 +1,35 @@
+package com.ju.tsa.model;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+
+/**
+ * The statistics of a single key, serialized as the usual statistics with the key next to them
+ */
+public class KeyedAggregate {
+    private final String key;
+    private final TransactionAggregator statistics;
+
+    public KeyedAggregate(String key, TransactionAggregator statistics) {
+        this.key = key;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Gets the key
+     *
+     * @return the key the statistics belong to
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the statistics
+     *
+     * @return the statistics of the key
+     */
+    @JsonUnwrapped
+    public TransactionAggregator getStatistics() {
+        return statistics;
+    }
+}
@@ -0,0 +1,176 @@
+package com.ju.tsa.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanos, along the lines of HdrHistogram: every power of two is split into SUB_BUCKETS
+ * linear buckets, so any value is recorded with about 6% precision from a nanosecond up to minutes, in a fixed number
+ * of counters.
+ * <p>
+ * Recording is an index calculation and an atomic increment, nothing gets allocated. Like the bucket rings, the
+ * counters are split into stripes and every thread sticks to its own, so threads recording at the same time don't fight
+ * over the same cache lines. Reading adds the stripes up, which is meant for the odd look at the metrics, not for every
+ * request.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * 2^40 nanos is about 18 minutes, anything longer ends up in the last bucket
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * Every stripe is BUCKETS counters followed by the sum and the max of what it recorded
+     */
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    private static final int STRIPE_LENGTH = BUCKETS + 2;
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final AtomicLongArray counters;
+    private final int stripeMask;
+
+    public LatencyHistogram() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        this.stripeMask = stripes - 1;
+        this.counters = new AtomicLongArray(stripes * STRIPE_LENGTH);
+    }
+
+    /**
+     * Records a duration
+     *
+     * @param nanos the duration, negative ones count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        int stripe = currentStripe() * STRIPE_LENGTH;
+        counters.incrementAndGet(stripe + bucketOf(value));
+        counters.addAndGet(stripe + SUM, value);
+
+        long max;
+        while (value > (max = counters.get(stripe + MAX))) {
+            if (counters.compareAndSet(stripe + MAX, max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records the time passed since a System.nanoTime() taken earlier
+     *
+     * @param startNanos the earlier System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Gets the count
+     *
+     * @return number of durations recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                count += counters.get(stripe * STRIPE_LENGTH + bucket);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sums up the stripes into count, mean, percentiles and max, all durations in micros
+     *
+     * @return the summary, in the order it's meant to be shown in
+     */
+    public Map<String, Object> summary() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            int offset = stripe * STRIPE_LENGTH;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long n = counters.get(offset + bucket);
+                buckets[bucket] += n;
+                count += n;
+            }
+            sum += counters.get(offset + SUM);
+            max = Math.max(max, counters.get(offset + MAX));
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("meanMicros", count == 0 ? 0 : micros(sum / count));
+        for (int i = 0; i < QUANTILES.length; i++) {
+            // the top of a bucket can be beyond anything that was actually recorded
+            summary.put(QUANTILE_NAMES[i] + "Micros", micros(Math.min(max, quantile(buckets, count, QUANTILES[i]))));
+        }
+        summary.put("maxMicros", micros(max));
+        return summary;
+    }
+
+    /**
+     * Finds the bucket of a value: values below SUB_BUCKETS get one each, above that every power of two gets
+     * SUB_BUCKETS of them
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        if (exponent == MAX_EXPONENT && value >= 1L << (MAX_EXPONENT + 1)) {
+            subBucket = SUB_BUCKETS - 1;
+        }
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The highest value that still falls into the bucket, so percentiles err on the pessimistic side
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = (bucket % SUB_BUCKETS) + SUB_BUCKETS;
+        return ((subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static long quantile(long[] buckets, long count, double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return highestValueOf(bucket);
+            }
+        }
+        return highestValueOf(buckets.length - 1);
+    }
+
+    private static double micros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+
+    private int currentStripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & stripeMask;
+    }
+}
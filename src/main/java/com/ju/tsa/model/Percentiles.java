@@ -0,0 +1,51 @@
+package com.ju.tsa.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.math.BigDecimal;
+
+/**
+ * The percentiles of the amounts in the window. They come from a sketch, so each of them is only as precise as the
+ * configured relative accuracy.
+ */
+public class Percentiles {
+    private final BigDecimal p50;
+    private final BigDecimal p95;
+    private final BigDecimal p99;
+
+    public Percentiles(BigDecimal p50, BigDecimal p95, BigDecimal p99) {
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+    }
+
+    /**
+     * Gets the median
+     *
+     * @return the amount half of the transactions are below
+     */
+    @JsonProperty("p50")
+    public BigDecimal getP50() {
+        return p50;
+    }
+
+    /**
+     * Gets the 95th percentile
+     *
+     * @return the amount 95% of the transactions are below
+     */
+    @JsonProperty("p95")
+    public BigDecimal getP95() {
+        return p95;
+    }
+
+    /**
+     * Gets the 99th percentile
+     *
+     * @return the amount 99% of the transactions are below
+     */
+    @JsonProperty("p99")
+    public BigDecimal getP99() {
+        return p99;
+    }
+}
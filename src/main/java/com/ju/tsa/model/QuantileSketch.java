@@ -0,0 +1,259 @@
+package com.ju.tsa.model;
+
+import java.util.Arrays;
+
+/**
+ * A quantile sketch in the spirit of DDSketch. Values are counted in logarithmic bins, bin i holding everything in
+ * (gamma^(i-1), gamma^i], so any quantile it returns is within relativeAccuracy of the true one, however skewed the
+ * amounts are. Negative values get their own bins, zeroes a counter of their own.
+ * <p>
+ * Merging two sketches is just adding up their bins, which is what makes it fit into the buckets: every bucket (and
+ * every node of the segment trees) carries one, and the window's sketch is the merge of theirs, same as the sums.
+ * <p>
+ * The bins are a plain long array that only spans the indexes actually used, so amounts between 1 and 10000 with the
+ * default accuracy of 1% take about 460 of them. It never grows beyond MAX_BINS though: past that the lowest bins are
+ * folded into each other, giving up accuracy on the tiniest amounts rather than memory.
+ * <p>
+ * Everything is guarded by the monitor. Writers mostly stick to their own stripe, so it's nearly always uncontended.
+ */
+public class QuantileSketch {
+
+    /**
+     * With 1% accuracy that's a range of about 17 orders of magnitude
+     */
+    static final int MAX_BINS = 2048;
+
+    /**
+     * Far beyond the index of any finite double at any accuracy that makes sense, and far enough from the ends of the
+     * int range that walking the bins from one end to the other never overflows
+     */
+    static final int MAX_INDEX = 1 << 24;
+
+    private static final int INITIAL_BINS = 64;
+    private static final long[] NO_BINS = new long[0];
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double multiplier;
+
+    private final Bins positive = new Bins();
+    private final Bins negative = new Bins();
+    private long zeroCount;
+    private long count;
+
+    /**
+     * @param relativeAccuracy how far off a quantile may be, relative to its value, like 0.01 for 1%
+     */
+    public QuantileSketch(double relativeAccuracy) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("relativeAccuracy must be between 0 and 1, got " + relativeAccuracy);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.multiplier = 1 / Math.log(gamma);
+    }
+
+    /**
+     * Counts a value. Infinities are counted as the largest finite value of their sign, which is where any amount
+     * too large for a double ends up.
+     *
+     * @param value the value to be counted, anything but NaN
+     */
+    public synchronized void add(double value) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("can't count NaN");
+        }
+        if (value > 0) {
+            positive.add(indexOf(value), 1);
+        } else if (value < 0) {
+            negative.add(indexOf(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+    }
+
+    /**
+     * Adds the counts of another sketch to this one
+     *
+     * @param other the sketch to be merged in, with the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("can't merge accuracy " + other.relativeAccuracy + " into accuracy "
+                    + relativeAccuracy);
+        }
+        // sketches are only ever merged into the ones of readers, so the two locks are always taken in this order
+        synchronized (other) {
+            if (other.count == 0) {
+                return;
+            }
+            synchronized (this) {
+                positive.merge(other.positive);
+                negative.merge(other.negative);
+                zeroCount += other.zeroCount;
+                count += other.count;
+            }
+        }
+    }
+
+    /**
+     * Empties the sketch, keeping its bins around for the next use
+     */
+    public synchronized void reset() {
+        positive.reset();
+        negative.reset();
+        zeroCount = 0;
+        count = 0;
+    }
+
+    /**
+     * Estimates a quantile
+     *
+     * @param quantile between 0 and 1, like 0.95 for the 95th percentile
+     * @return the value at the quantile, or NaN if nothing was counted
+     */
+    public synchronized double quantile(double quantile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        double rank = quantile * (count - 1);
+        long seen = 0;
+        for (int index = negative.maxIndex; index >= negative.minIndex; index--) {
+            seen += negative.get(index);
+            if (seen > rank) {
+                return -valueOf(index);
+            }
+        }
+        seen += zeroCount;
+        if (seen > rank) {
+            return 0;
+        }
+        for (int index = positive.minIndex; index <= positive.maxIndex; index++) {
+            seen += positive.get(index);
+            if (seen > rank) {
+                return valueOf(index);
+            }
+        }
+        return positive.isEmpty() ? 0 : valueOf(positive.maxIndex);
+    }
+
+    /**
+     * Gets the count
+     *
+     * @return number of values counted
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the accuracy
+     *
+     * @return the relative accuracy of the quantiles
+     */
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    private int indexOf(double magnitude) {
+        double index = Math.ceil(Math.log(Math.min(magnitude, Double.MAX_VALUE)) * multiplier);
+        return (int) Math.max(-MAX_INDEX, Math.min(MAX_INDEX, index));
+    }
+
+    /**
+     * The value in the middle of a bin, relatively speaking, so it's never further off than the accuracy from anything
+     * in the bin. The top bin would be in the middle of something past the largest double, so that's capped.
+     */
+    private double valueOf(int index) {
+        return Math.min(Double.MAX_VALUE, 2 * Math.pow(gamma, index) / (gamma + 1));
+    }
+
+    /**
+     * The counts of the bins minIndex..maxIndex, stored from offset on
+     */
+    private static final class Bins {
+        private long[] counts = NO_BINS;
+        private int offset;
+        private int minIndex = Integer.MAX_VALUE;
+        private int maxIndex = Integer.MIN_VALUE;
+
+        void add(int index, long n) {
+            if (index < minIndex || index > maxIndex) {
+                index = extend(index);
+            }
+            counts[index - offset] += n;
+        }
+
+        long get(int index) {
+            return counts[index - offset];
+        }
+
+        boolean isEmpty() {
+            return minIndex > maxIndex;
+        }
+
+        void merge(Bins other) {
+            if (other.isEmpty()) {
+                return;
+            }
+            // make room for both ends at once, rather than growing bin by bin
+            if (other.maxIndex > maxIndex) {
+                extend(other.maxIndex);
+            }
+            if (other.minIndex < minIndex) {
+                extend(other.minIndex);
+            }
+            for (int index = other.minIndex; index <= other.maxIndex; index++) {
+                long n = other.get(index);
+                if (n != 0) {
+                    add(index, n);
+                }
+            }
+        }
+
+        void reset() {
+            if (!isEmpty()) {
+                Arrays.fill(counts, minIndex - offset, maxIndex - offset + 1, 0);
+            }
+            minIndex = Integer.MAX_VALUE;
+            maxIndex = Integer.MIN_VALUE;
+        }
+
+        /**
+         * Widens the range to cover the index
+         *
+         * @return the bin the index ends up in, which is only a different one if the lowest bins had to be folded
+         */
+        private int extend(int index) {
+            int newMax = Math.max(maxIndex, index);
+            int newMin = Math.min(minIndex, index);
+            boolean fold = (long) newMax - newMin + 1 > MAX_BINS;
+            if (fold) {
+                newMin = newMax - MAX_BINS + 1;
+            }
+
+            if ((fold && newMin > minIndex) || newMin < offset || newMax >= offset + counts.length) {
+                relocate(newMin, newMax);
+            }
+            minIndex = newMin;
+            maxIndex = newMax;
+            return Math.max(index, newMin);
+        }
+
+        private void relocate(int newMin, int newMax) {
+            int span = newMax - newMin + 1;
+            int length = Math.min(MAX_BINS, Math.max(span, Math.max(INITIAL_BINS, counts.length * 2)));
+            // leave the same headroom on both ends, amounts tend to spread both ways
+            int newOffset = newMin - (length - span) / 2;
+
+            long[] relocated = new long[length];
+            for (int index = minIndex; index <= maxIndex; index++) {
+                relocated[Math.max(index, newMin) - newOffset] += counts[index - offset];
+            }
+            counts = relocated;
+            offset = newOffset;
+        }
+    }
+}
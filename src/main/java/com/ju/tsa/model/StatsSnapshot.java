@@ -0,0 +1,44 @@
+package com.ju.tsa.model;
+
+/**
+ * The statistics as they were at a given moment, together with their JSON representation, so the same result can be
+ * handed out to any number of readers without calculating or serializing it again.
+ */
+public class StatsSnapshot {
+    private final TransactionAggregator aggregate;
+    private final byte[] json;
+    private final long takenAtMillis;
+
+    public StatsSnapshot(TransactionAggregator aggregate, byte[] json, long takenAtMillis) {
+        this.aggregate = aggregate;
+        this.json = json;
+        this.takenAtMillis = takenAtMillis;
+    }
+
+    /**
+     * Gets the aggregate
+     *
+     * @return the aggregate the snapshot was taken of
+     */
+    public TransactionAggregator getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * Gets the serialized aggregate. Shared between everybody holding the snapshot, so it must not be modified.
+     *
+     * @return the aggregate as JSON
+     */
+    public byte[] getJson() {
+        return json;
+    }
+
+    /**
+     * Gets the time of the snapshot
+     *
+     * @return epoch millis of the moment the snapshot was taken
+     */
+    public long getTakenAtMillis() {
+        return takenAtMillis;
+    }
+}
@@ -0,0 +1,188 @@
+package com.ju.tsa.model;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The largest amounts seen, up to a fixed number of them, each with its timestamp. It's a min-heap in two parallel
+ * long arrays, the smallest of the amounts kept at the root, so it never takes more memory than it started out with
+ * however many amounts it's offered.
+ * <p>
+ * Once it's full, the root is the amount to beat. That one is kept in a volatile as well, so an amount that doesn't
+ * beat it, which is nearly every amount once a few thousand went by, is turned away without taking the monitor. Only
+ * the ones that make it in take the monitor and sift down the heap.
+ * <p>
+ * Amounts are minor units of a scale, the same as in the FixedPointAggregator.
+ */
+public class TopAmounts {
+
+    private final long[] units;
+    private final long[] timestamps;
+    private int size;
+
+    /**
+     * The smallest amount kept once it's full, Long.MIN_VALUE until then
+     */
+    private volatile long floor = Long.MIN_VALUE;
+
+    /**
+     * @param capacity how many amounts to keep
+     */
+    public TopAmounts(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, got " + capacity);
+        }
+        this.units = new long[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    /**
+     * Keeps the amount if it's one of the largest
+     *
+     * @param amountUnits the amount in minor units
+     * @param epochMillis its timestamp
+     */
+    public void offer(long amountUnits, long epochMillis) {
+        if (amountUnits <= floor) {
+            return;
+        }
+        synchronized (this) {
+            if (size < units.length) {
+                siftUp(size++, amountUnits, epochMillis);
+                if (size == units.length) {
+                    floor = units[0];
+                }
+            } else if (amountUnits > units[0]) {
+                siftDown(amountUnits, epochMillis);
+                floor = units[0];
+            }
+        }
+    }
+
+    /**
+     * Offers everything another one keeps to this one
+     *
+     * @param other the one to be merged in
+     */
+    public void merge(TopAmounts other) {
+        long[] otherUnits;
+        long[] otherTimestamps;
+        synchronized (other) {
+            otherUnits = Arrays.copyOf(other.units, other.size);
+            otherTimestamps = Arrays.copyOf(other.timestamps, other.size);
+        }
+        for (int i = 0; i < otherUnits.length; i++) {
+            offer(otherUnits[i], otherTimestamps[i]);
+        }
+    }
+
+    /**
+     * Forgets every amount, so it can be reused
+     */
+    public synchronized void reset() {
+        size = 0;
+        floor = Long.MIN_VALUE;
+    }
+
+    /**
+     * Writes the number of amounts kept and then an amount and its timestamp for every place there is, the unused ones
+     * as zeroes, which makes 1 + 2 * capacity longs for {@link #importFrom(ByteBuffer, int)} to pick up later
+     *
+     * @param into   the buffer to write to
+     * @param offset where in the buffer to start
+     */
+    public synchronized void exportTo(ByteBuffer into, int offset) {
+        into.putLong(offset, size);
+        for (int i = 0; i < units.length; i++) {
+            into.putLong(offset + (1 + 2 * i) * Long.BYTES, i < size ? units[i] : 0);
+            into.putLong(offset + (2 + 2 * i) * Long.BYTES, i < size ? timestamps[i] : 0);
+        }
+    }
+
+    /**
+     * Offers the amounts written by {@link #exportTo(ByteBuffer, int)} of one with the same capacity to this one
+     *
+     * @param from   the buffer to read from
+     * @param offset where in the buffer the amounts start
+     */
+    public void importFrom(ByteBuffer from, int offset) {
+        int kept = (int) Math.min(from.getLong(offset), units.length);
+        for (int i = 0; i < kept; i++) {
+            offer(from.getLong(offset + (1 + 2 * i) * Long.BYTES), from.getLong(offset + (2 + 2 * i) * Long.BYTES));
+        }
+    }
+
+    /**
+     * Gets how many it keeps at most
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return units.length;
+    }
+
+    /**
+     * Lists the amounts kept, the largest first. Equal amounts come in no particular order.
+     *
+     * @param scale the scale of the minor units
+     * @return the amounts with their timestamps
+     */
+    public synchronized List<TopTransaction> toList(int scale) {
+        long[] sortedUnits = Arrays.copyOf(units, size);
+        long[] sortedTimestamps = Arrays.copyOf(timestamps, size);
+        List<TopTransaction> result = new ArrayList<>(size);
+        // heap sort of the copy, smallest first
+        for (int end = size - 1; end >= 0; end--) {
+            result.add(new TopTransaction(BigDecimal.valueOf(sortedUnits[0], scale), sortedTimestamps[0]));
+            siftDown(sortedUnits, sortedTimestamps, end, sortedUnits[end], sortedTimestamps[end]);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private void siftUp(int at, long amountUnits, long epochMillis) {
+        while (at > 0) {
+            int parent = (at - 1) >>> 1;
+            if (units[parent] <= amountUnits) {
+                break;
+            }
+            units[at] = units[parent];
+            timestamps[at] = timestamps[parent];
+            at = parent;
+        }
+        units[at] = amountUnits;
+        timestamps[at] = epochMillis;
+    }
+
+    /**
+     * Replaces the root and moves it down to where it belongs
+     */
+    private void siftDown(long amountUnits, long epochMillis) {
+        siftDown(units, timestamps, size, amountUnits, epochMillis);
+    }
+
+    private static void siftDown(long[] units, long[] timestamps, int size, long amountUnits, long epochMillis) {
+        int at = 0;
+        int half = size >>> 1;
+        while (at < half) {
+            int child = 2 * at + 1;
+            if (child + 1 < size && units[child + 1] < units[child]) {
+                child++;
+            }
+            if (amountUnits <= units[child]) {
+                break;
+            }
+            units[at] = units[child];
+            timestamps[at] = timestamps[child];
+            at = child;
+        }
+        if (size > 0) {
+            units[at] = amountUnits;
+            timestamps[at] = epochMillis;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.ju.tsa.model;
+
+import java.math.BigDecimal;
+
+/**
+ * One of the largest transactions of a window, as much of it as the buckets keep
+ */
+public class TopTransaction {
+    private final BigDecimal amount;
+    private final long timestamp;
+
+    public TopTransaction(BigDecimal amount, long timestamp) {
+        this.amount = amount;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Gets the amount
+     *
+     * @return the amount, with the decimals of the scale of the aggregates
+     */
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    /**
+     * Gets the timestamp
+     *
+     * @return epoch millis of the transaction
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
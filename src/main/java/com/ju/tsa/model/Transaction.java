@@ -5,23 +5,32 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.math.BigDecimal;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 
 /**
- * Models the incoming data of the transaction consisting of an amount and a timestamp of a transaction.
+ * Models the incoming data of the transaction consisting of an amount and a timestamp of a transaction, and optionally
+ * a key (a merchant, a currency, an account...) to keep separate statistics for.
  * <p>
- * I'm going for the Instant to keep track of the timing here, as i'm foolishly hoping i'll benefit from it.
+ * I went for the Instant to keep track of the timing here at first, as i was foolishly hoping i'd benefit from it. All
+ * the engine ever wanted were epoch millis though, so that's what it keeps now, and the Instants are only made for
+ * whoever still asks for them.
  */
 public class Transaction {
+    private static final long MILLIS_PER_SECOND = 1_000;
+
     private final BigDecimal amount;
-    private final Instant transactionTimestamp;
-    private final Instant timestampStrippedFromMillis;
+    private final long epochMillis;
+    private final String key;
+
+    public Transaction(BigDecimal amount, long timestamp) {
+        this(amount, timestamp, null);
+    }
 
     @JsonCreator
-    public Transaction(@JsonProperty("amount") BigDecimal amount, @JsonProperty("timestamp") long timestamp) {
+    public Transaction(@JsonProperty("amount") BigDecimal amount, @JsonProperty("timestamp") long timestamp,
+                       @JsonProperty("key") String key) {
         this.amount = amount;
-        this.transactionTimestamp = Instant.ofEpochMilli(timestamp);
-        this.timestampStrippedFromMillis = transactionTimestamp.truncatedTo(ChronoUnit.SECONDS);
+        this.epochMillis = timestamp;
+        this.key = key;
     }
 
     /**
@@ -36,19 +45,47 @@ public class Transaction {
     /**
      * Fetches the timestamp of the transaction
      *
+     * @return epoch millis of the transaction
+     */
+    public long getEpochMillis() {
+        return epochMillis;
+    }
+
+    /**
+     * Fetches the timestamp of the transaction to a precision of a second
+     *
+     * @return epoch second of the transaction, rounded down for the ones before 1970 as well
+     */
+    public long getEpochSecond() {
+        return Math.floorDiv(epochMillis, MILLIS_PER_SECOND);
+    }
+
+    /**
+     * Fetches the timestamp of the transaction as an Instant, which is made on every call. The engine sticks to
+     * {@link #getEpochMillis()}.
+     *
      * @return the timestamps with exact millis of a Transaction.
      */
     public Instant getTransactionTimestamp() {
-        return transactionTimestamp;
+        return Instant.ofEpochMilli(epochMillis);
     }
 
     /**
-     * Returns the timestamp in the good old epoch timestamp size, i just stripped off the milliseconds from it.
-     * This will be useful when i start using the second based timestamps as keys for the aggregates
+     * Returns the timestamp in the good old epoch timestamp size, i just stripped off the milliseconds from it. Made on
+     * every call as well, {@link #getEpochSecond()} is the one that doesn't allocate.
      *
      * @return the timestamp of a transaction to a precision of a second
      */
     public Instant strippedMillis() {
-        return timestampStrippedFromMillis;
+        return Instant.ofEpochSecond(getEpochSecond());
+    }
+
+    /**
+     * Fetches the key of the transaction
+     *
+     * @return the key the transaction is counted under next to the global stats, or null if it has none
+     */
+    public String getKey() {
+        return key;
     }
 }
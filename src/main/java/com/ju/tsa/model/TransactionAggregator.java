@@ -1,5 +1,6 @@
 package com.ju.tsa.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
@@ -18,6 +19,7 @@ public class TransactionAggregator {
     private final BigDecimal min;
     private final BigDecimal average;
     private final long count;
+    private final Percentiles percentiles;
 
     /**
      * The initial state of an aggregator is that there's no sum, no transactions aggregated, and no average is
@@ -42,11 +44,22 @@ public class TransactionAggregator {
      * @param count   new count of transactions aggregated
      */
     TransactionAggregator(BigDecimal sum, BigDecimal max, BigDecimal min, BigDecimal average, long count) {
+        this(sum, max, min, average, count, null);
+    }
+
+    /**
+     * Same as above, along with the percentiles of the amounts
+     *
+     * @param percentiles the percentiles, or null if they aren't kept
+     */
+    TransactionAggregator(BigDecimal sum, BigDecimal max, BigDecimal min, BigDecimal average, long count,
+                          Percentiles percentiles) {
         this.sum = sum;
         this.max = max;
         this.min = min;
         this.average = average;
         this.count = count;
+        this.percentiles = percentiles;
     }
 
 
@@ -145,4 +158,14 @@ public class TransactionAggregator {
     public long getCount() {
         return count;
     }
+
+    /**
+     * Gets the percentiles. They're left out of the JSON when there are none.
+     *
+     * @return the percentiles of the amounts, or null if they aren't kept or there were no transactions
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Percentiles getPercentiles() {
+        return percentiles;
+    }
 }
@@ -0,0 +1,96 @@
+package com.ju.tsa.model;
+
+/**
+ * The length of a statistics window, along with the short name it goes by in properties, query parameters and JSON,
+ * e.g. `500ms`, `10s`, `5m` or `1h`.
+ */
+public final class WindowLength implements Comparable<WindowLength> {
+
+    private static final String[] UNITS = {"h", "m", "s", "ms"};
+    private static final long[] UNIT_MILLIS = {3_600_000, 60_000, 1_000, 1};
+
+    private final long millis;
+    private final String name;
+
+    private WindowLength(long millis, String name) {
+        this.millis = millis;
+        this.name = name;
+    }
+
+    /**
+     * Creates a window length, named after the largest unit it's a whole multiple of
+     *
+     * @param millis the length in millis
+     * @return the window length
+     */
+    public static WindowLength ofMillis(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("a window must be longer than 0ms, got " + millis);
+        }
+        for (int i = 0; i < UNITS.length; i++) {
+            if (millis % UNIT_MILLIS[i] == 0) {
+                return new WindowLength(millis, millis / UNIT_MILLIS[i] + UNITS[i]);
+            }
+        }
+        throw new IllegalStateException("every length is a multiple of a milli");
+    }
+
+    /**
+     * Reads a window length like `5m`. A plain number is taken as millis.
+     *
+     * @param text the length with its unit
+     * @return the window length
+     * @throws IllegalArgumentException if the text isn't a window length
+     */
+    public static WindowLength parse(String text) {
+        String trimmed = text.trim();
+        int digits = 0;
+        while (digits < trimmed.length() && Character.isDigit(trimmed.charAt(digits))) {
+            digits++;
+        }
+        if (digits == 0 || digits > 15) {
+            throw new IllegalArgumentException("not a window length: " + text);
+        }
+
+        long amount = Long.parseLong(trimmed.substring(0, digits));
+        String unit = trimmed.substring(digits);
+        if (unit.isEmpty()) {
+            return ofMillis(amount);
+        }
+        for (int i = 0; i < UNITS.length; i++) {
+            if (UNITS[i].equals(unit)) {
+                return ofMillis(amount * UNIT_MILLIS[i]);
+            }
+        }
+        throw new IllegalArgumentException("unknown unit in window length: " + text);
+    }
+
+    /**
+     * Gets the length
+     *
+     * @return the length in millis
+     */
+    public long getMillis() {
+        return millis;
+    }
+
+    @Override
+    public int compareTo(WindowLength other) {
+        return Long.compare(millis, other.millis);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof WindowLength && ((WindowLength) other).millis == millis;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(millis);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
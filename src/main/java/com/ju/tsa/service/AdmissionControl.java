@@ -0,0 +1,267 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.config.StatsProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which ingest requests get in while the service is under more load than it can take, so the ones that do
+ * get in are still served quickly and /statistics keeps on answering. The rest are turned down right away with a
+ * Retry-After, which is cheaper for everybody than queueing them in Tomcat.
+ * <p>
+ * In the order they're checked:
+ * <ul>
+ * <li>in flight: no more than max-in-flight ingest requests at a time. Tomcat has 200 threads by default, so the 184
+ * leave 16 of them to the readers no matter how many writers there are.</li>
+ * <li>latency: while the average time an admitted request takes is above shed-latency-micros, a share of the requests
+ * is shed, the bigger the further above it is. One in twenty still gets through, so the average keeps up.</li>
+ * <li>queue: in the async mode, while the queue is fuller than shed-queue-fill. Beyond that the queue being full would
+ * turn them down with a 503 anyway, just later.</li>
+ * <li>rate: a TokenBucket over the transactions of all the requests, and one per key for keyed transactions</li>
+ * </ul>
+ * There are no more than max-keys buckets of keys. When a new key comes along once there are that many, the ones that
+ * filled up again make room, since a full bucket is just the same as a fresh one. If none did, the new key is turned
+ * down until some do.
+ * Everything but the per-key rate is decided before the body is read. A batch takes a single token to get in and pays
+ * for the rest of its transactions afterwards, so the requests after a big batch wait until it's paid off. Its keyed
+ * transactions take a token of their key one by one, and the ones over the rate of their key are turned down on their
+ * own, the rest of the batch goes ahead.
+ */
+@Service
+public class AdmissionControl {
+
+    /**
+     * Tells the admitted requests from the ones turned down, which get how many nanos they should wait instead
+     */
+    public static final long ADMITTED = 0;
+
+    /**
+     * How long the shed requests are told to wait, they'd have to be guessing otherwise
+     */
+    private static final long SHED_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final double MIN_ADMITTED_SHARE = 0.05;
+
+    /**
+     * Why a request was turned down
+     */
+    public enum Shed {
+        IN_FLIGHT, LATENCY, QUEUE, RATE, KEY_RATE
+    }
+
+    private final StatsProperties.Admission settings;
+    private final AsyncIngester asyncIngester;
+    private final LongSupplier nanoTime;
+    private final TokenBucket total;
+    private final ConcurrentHashMap<String, TokenBucket> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Looking for the full buckets means going through all of them, so it's done no more than once per
+     * SHED_RETRY_NANOS, which is how long the keys turned down meanwhile are told to wait anyway
+     */
+    private final AtomicLong nextSweepNanos;
+    private final long shedLatencyNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder[] shed = new LongAdder[Shed.values().length];
+
+    /**
+     * Moving average of how long the admitted requests take. Updated without a CAS, so it loses an update now and then
+     * under contention, which doesn't matter for an average.
+     */
+    private volatile long averageNanos;
+
+    @Autowired
+    public AdmissionControl(StatsProperties properties, AsyncIngester asyncIngester) {
+        this(properties, asyncIngester, System::nanoTime);
+    }
+
+    AdmissionControl(StatsProperties properties, AsyncIngester asyncIngester, LongSupplier nanoTime) {
+        this.settings = properties.getAdmission();
+        this.asyncIngester = asyncIngester;
+        this.nanoTime = nanoTime;
+        this.total = settings.getRatePerSecond() > 0
+                ? new TokenBucket(settings.getRatePerSecond(), settings.getBurst(), nanoTime.getAsLong()) : null;
+        this.shedLatencyNanos = TimeUnit.MICROSECONDS.toNanos(settings.getShedLatencyMicros());
+        this.nextSweepNanos = new AtomicLong(nanoTime.getAsLong());
+        for (int i = 0; i < shed.length; i++) {
+            shed[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Tells a request whether it may go ahead. If it may, it has to call {@link #done(long)} once it's finished.
+     *
+     * @return ADMITTED, or how many nanos the client should wait before trying again
+     */
+    public long admit() {
+        if (!settings.isEnabled()) {
+            return ADMITTED;
+        }
+        if (inFlight.incrementAndGet() > settings.getMaxInFlight()) {
+            inFlight.decrementAndGet();
+            return shed(Shed.IN_FLIGHT, SHED_RETRY_NANOS);
+        }
+        long average = averageNanos;
+        if (shedLatencyNanos > 0 && average > shedLatencyNanos) {
+            double admittedShare = Math.max(MIN_ADMITTED_SHARE, (double) shedLatencyNanos / average);
+            if (ThreadLocalRandom.current().nextDouble() >= admittedShare) {
+                return refuse(Shed.LATENCY, SHED_RETRY_NANOS);
+            }
+        }
+        if (asyncIngester.isEnabled() && asyncIngester.depth() > settings.getShedQueueFill() * asyncIngester.capacity()) {
+            return refuse(Shed.QUEUE, SHED_RETRY_NANOS);
+        }
+        if (total != null) {
+            long wait = total.take(1, nanoTime.getAsLong());
+            if (wait != ADMITTED) {
+                return refuse(Shed.RATE, wait);
+            }
+        }
+        admitted.increment();
+        return ADMITTED;
+    }
+
+    /**
+     * The per-key rate of an admitted request with a keyed transaction. Turned down or not, the request still has to
+     * call {@link #done(long)}.
+     *
+     * @param key the key of the transaction
+     * @return ADMITTED, or how many nanos the client should wait before trying again
+     */
+    public long admitKey(String key) {
+        if (!settings.isEnabled() || settings.getKeyRatePerSecond() <= 0) {
+            return ADMITTED;
+        }
+        long now = nanoTime.getAsLong();
+        TokenBucket bucket = keyBucket(key, now);
+        long wait = bucket == null ? SHED_RETRY_NANOS : bucket.take(1, now);
+        if (wait == ADMITTED) {
+            return ADMITTED;
+        }
+        if (total != null) {
+            total.giveBack(1);
+        }
+        admitted.decrement();
+        return shed(Shed.KEY_RATE, wait);
+    }
+
+    /**
+     * The per-key rate of a keyed transaction in an admitted batch. Unlike {@link #admitKey(String)} it only turns down
+     * the transaction, the batch it's in goes on.
+     *
+     * @param key the key of the transaction
+     * @return true if the transaction may go ahead
+     */
+    public boolean admitKeyInBatch(String key) {
+        if (!settings.isEnabled() || settings.getKeyRatePerSecond() <= 0) {
+            return true;
+        }
+        long now = nanoTime.getAsLong();
+        TokenBucket bucket = keyBucket(key, now);
+        if (bucket != null && bucket.take(1, now) == ADMITTED) {
+            return true;
+        }
+        shed(Shed.KEY_RATE, 0);
+        return false;
+    }
+
+    /**
+     * Charges an admitted batch for the transactions beyond the one it got in with
+     *
+     * @param transactions how many transactions the batch had
+     */
+    public void charge(long transactions) {
+        if (settings.isEnabled() && total != null) {
+            total.charge(transactions - 1, nanoTime.getAsLong());
+        }
+    }
+
+    /**
+     * Lets go of an admitted request
+     *
+     * @param tookNanos how long the request took
+     */
+    public void done(long tookNanos) {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        inFlight.decrementAndGet();
+        long average = averageNanos;
+        averageNanos = average + (tookNanos - average) / 8;
+    }
+
+    /**
+     * Everything it counts, for the metrics
+     *
+     * @return the counters by name
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", settings.isEnabled());
+        result.put("admitted", admitted.sum());
+        Map<String, Object> shedByReason = new LinkedHashMap<>();
+        for (Shed reason : Shed.values()) {
+            shedByReason.put(reason.name().toLowerCase(), shed[reason.ordinal()].sum());
+        }
+        result.put("shed", shedByReason);
+        result.put("inFlight", inFlight.get());
+        result.put("averageMicros", TimeUnit.NANOSECONDS.toMicros(averageNanos));
+        result.put("keys", keys.size());
+        return result;
+    }
+
+    /**
+     * The bucket of a key, a new one if it has none yet
+     *
+     * @return the bucket, or null if the key is new and there's no room for it
+     */
+    private TokenBucket keyBucket(String key, long now) {
+        TokenBucket bucket = keys.get(key);
+        if (bucket == null) {
+            if (keys.size() >= settings.getMaxKeys() && !sweep(now)) {
+                return null;
+            }
+            bucket = keys.computeIfAbsent(key,
+                    k -> new TokenBucket(settings.getKeyRatePerSecond(), settings.getKeyBurst(), now));
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops the buckets that are full again, unless that was tried not long ago
+     *
+     * @return true if there's room for another key now
+     */
+    private boolean sweep(long now) {
+        long next = nextSweepNanos.get();
+        if (now - next >= 0 && nextSweepNanos.compareAndSet(next, now + SHED_RETRY_NANOS)) {
+            keys.values().removeIf(bucket -> bucket.isFull(now));
+        }
+        return keys.size() < settings.getMaxKeys();
+    }
+
+    /**
+     * Turns down a request that was already counted as in flight
+     */
+    private long refuse(Shed reason, long waitNanos) {
+        inFlight.decrementAndGet();
+        return shed(reason, waitNanos);
+    }
+
+    private long shed(Shed reason, long waitNanos) {
+        shed[reason.ordinal()].increment();
+        return waitNanos;
+    }
+}
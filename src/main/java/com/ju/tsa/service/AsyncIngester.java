@@ -0,0 +1,217 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The async ingestion mode. Request threads only drop their transaction into a TransactionRingBuffer and go on with
+ * their lives, while a single writer thread takes them out in batches and hands them to StatsService.addAll. With a
+ * single writer every bucket stripe is only ever touched by that one thread, so the CASes on the aggregates never
+ * fail and nobody waits for anybody.
+ * <p>
+ * The flip side is that the time span of a transaction is checked when the writer gets to it rather than when it
+ * arrived, which makes a difference only for transactions right at the edge of the window, and only by as long as the
+ * queue is.
+ * <p>
+ * On shutdown the buffer is closed to new transactions and the writer keeps on going until everything that was
+ * accepted made it into the statistics.
+ * <p>
+ * A transaction that can't be added (one without an amount) is taken out of its batch before the batch goes to
+ * StatsService, then logged and counted, so it costs nobody but itself. Should a batch still fail for whatever other
+ * reason, it's logged and its transactions counted as failed too, and the writer goes on with the next one rather
+ * than dying with everything queued after it. It's not retried one by one, since it may have been added in part.
+ */
+@Service
+public class AsyncIngester {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncIngester.class);
+
+    private static final long SLEEP_NANOS = 100_000;
+
+    private final StatsService statsService;
+    private final StatsProperties.Ingest settings;
+    private final TransactionRingBuffer buffer;
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder failedTransactions = new LongAdder();
+
+    /**
+     * Request threads between looking at `closed` and being done with the buffer. The writer only stops once there are
+     * none left, so nobody can sneak a transaction in after the last drain.
+     */
+    private final AtomicInteger offering = new AtomicInteger();
+    private volatile boolean closed;
+    private volatile boolean parked;
+    private Thread writer;
+
+    @Autowired
+    public AsyncIngester(StatsService statsService, StatsProperties properties) {
+        this.statsService = statsService;
+        this.settings = properties.getIngest();
+        this.buffer = settings.isAsync() ? new TransactionRingBuffer(settings.getCapacity()) : null;
+    }
+
+    /**
+     * Starts the writer, if the async mode is enabled
+     */
+    @PostConstruct
+    public void start() {
+        if (buffer == null) {
+            return;
+        }
+        writer = new Thread(this::write, "transaction-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops taking transactions and waits for the writer to add all of the ones it has
+     *
+     * @throws InterruptedException if interrupted while waiting for the writer
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        closed = true;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            writer.join();
+        }
+    }
+
+    /**
+     * Tells if the async mode is on
+     *
+     * @return true if transactions are to be offered here rather than added to the StatsService directly
+     */
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     * Queues a transaction for the writer
+     *
+     * @param transaction the transaction
+     * @return false if the buffer is full or already closed, in which case the transaction is not taken
+     */
+    public boolean offer(Transaction transaction) {
+        offering.incrementAndGet();
+        try {
+            if (closed || !buffer.offer(transaction)) {
+                refused.increment();
+                return false;
+            }
+        } finally {
+            offering.decrementAndGet();
+        }
+
+        if (parked) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the queue depth
+     *
+     * @return number of transactions waiting for the writer
+     */
+    public long depth() {
+        return buffer == null ? 0 : buffer.depth();
+    }
+
+    /**
+     * Gets the capacity
+     *
+     * @return the most transactions that can wait for the writer, 0 if the async mode is off
+     */
+    public int capacity() {
+        return buffer == null ? 0 : buffer.capacity();
+    }
+
+    /**
+     * Gets the number of refused transactions
+     *
+     * @return how many transactions weren't taken because the buffer was full or closed
+     */
+    public long refused() {
+        return refused.sum();
+    }
+
+    /**
+     * Gets the number of failed transactions
+     *
+     * @return how many transactions the writer couldn't add, for whatever reason
+     */
+    public long failedTransactions() {
+        return failedTransactions.sum();
+    }
+
+    private void write() {
+        List<Transaction> batch = new ArrayList<>(settings.getBatchSize());
+        while (true) {
+            if (buffer.drainTo(batch, settings.getBatchSize()) > 0) {
+                try {
+                    dropUnaddable(batch);
+                    statsService.addAll(batch);
+                } catch (RuntimeException e) {
+                    failedTransactions.add(batch.size());
+                    LOG.warn("failed to add a batch of {} transactions", batch.size(), e);
+                } finally {
+                    batch.clear();
+                }
+            } else if (closed && offering.get() == 0 && buffer.isEmpty()) {
+                return;
+            } else {
+                idle();
+            }
+        }
+    }
+
+    private void dropUnaddable(List<Transaction> batch) {
+        int kept = 0;
+        for (Transaction transaction : batch) {
+            if (transaction.getAmount() == null) {
+                failedTransactions.increment();
+                LOG.warn("dropped a transaction without an amount, timestamp {}", transaction.getEpochMillis());
+            } else {
+                batch.set(kept++, transaction);
+            }
+        }
+        batch.subList(kept, batch.size()).clear();
+    }
+
+    private void idle() {
+        switch (settings.getWaitStrategy()) {
+            case BUSY_SPIN:
+                break;
+            case YIELDING:
+                Thread.yield();
+                break;
+            case SLEEPING:
+                LockSupport.parkNanos(SLEEP_NANOS);
+                break;
+            case BLOCKING:
+                // the flag goes up before looking at the buffer, and producers look at the flag after publishing,
+                // so one of the two always sees the other
+                parked = true;
+                if (buffer.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                break;
+            default:
+                throw new IllegalStateException("unknown wait strategy " + settings.getWaitStrategy());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.AmountBins;
+import com.ju.tsa.model.AmountHistogram;
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.TopAmounts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The buckets of a TimingWheel in a memory mapped file with a fixed layout, so writing a bucket is a handful of stores
+ * into the mapping and reading it back after a restart is just as cheap. Once stored into the mapping the data is the
+ * operating system's business, so it survives the process getting killed without any flushing, though not the machine
+ * going down (that's what {@link #force()} is for).
+ * <p>
+ * The file starts with a header:
+ * <pre>
+ *     int   magic, "TSAB"
+ *     int   format version
+ *     int   scale of the aggregates
+ *     int   number of levels
+ *     int   number of histogram bins, 0 for none
+ *     int   hash of the histogram bins
+ *     int   K of the top K, 0 for none
+ *     per level: int slot count, long bucket millis
+ * </pre>
+ * padded to a multiple of 8 bytes, followed by a record per slot of every level, the finest level first: the index of
+ * the bucket in the slot (its epoch stamp), the exported aggregates, the counts of the histogram bins, the largest
+ * transactions (their number and then K amounts and timestamps), and a check value over all of them. A record that was
+ * only partially written when the process died doesn't match its check value and is ignored.
+ * <p>
+ * A file that doesn't match the layout the wheel has now (another version, scale, bucket width, slot count, histogram
+ * bins or K) is wiped and starts over, there's no telling which of its buckets would end up where.
+ */
+class BucketFile implements Closeable {
+
+    static final int MAGIC = 0x54534142;
+    static final int VERSION = 2;
+
+    private static final int STAMP = 0;
+    private static final int AGGREGATES = Long.BYTES;
+    private static final int HISTOGRAM = AGGREGATES + FixedPointAggregator.EXPORTED_LONGS * Long.BYTES;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final int[] levelOffsets;
+    private final boolean restorable;
+
+    /**
+     * Where the largest transactions and the check value are in a record, and how long a record is, which depends on
+     * the number of histogram bins and the K of the wheel
+     */
+    private final int top;
+    private final int check;
+    private final int recordBytes;
+
+    private BucketFile(FileChannel channel, MappedByteBuffer mapping, int[] levelOffsets, boolean restorable,
+                       Layout layout) {
+        this.channel = channel;
+        this.mapping = mapping;
+        this.levelOffsets = levelOffsets;
+        this.restorable = restorable;
+        this.top = layout.top;
+        this.check = layout.check;
+        this.recordBytes = layout.recordBytes;
+    }
+
+    /**
+     * Maps the file for the given wheel, creating it if needed
+     *
+     * @param path  the file
+     * @param wheel the wheel whose buckets go into the file
+     * @param scale the scale of the aggregates
+     * @return the mapped file
+     * @throws IOException if the file can't be opened or mapped
+     */
+    static BucketFile open(Path path, TimingWheel wheel, int scale) throws IOException {
+        int headerBytes = 28 + wheel.levelCount() * 12;
+        headerBytes = (headerBytes + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+
+        // every level has the same bins and the same K
+        AmountBins bins = wheel.level(0).histogramBins();
+        int topK = wheel.level(0).topK();
+        Layout layout = new Layout(bins == null ? 0 : bins.size(), topK);
+
+        int[] levelOffsets = new int[wheel.levelCount()];
+        long size = headerBytes;
+        for (int level = 0; level < wheel.levelCount(); level++) {
+            levelOffsets[level] = (int) size;
+            size += (long) wheel.level(level).size() * layout.recordBytes;
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            boolean sameSize = channel.size() == size;
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            ByteBuffer header = ByteBuffer.allocate(headerBytes);
+            header.putInt(MAGIC).putInt(VERSION).putInt(scale).putInt(wheel.levelCount())
+                    .putInt(bins == null ? 0 : bins.size()).putInt(bins == null ? 0 : bins.hashCode()).putInt(topK);
+            for (int level = 0; level < wheel.levelCount(); level++) {
+                header.putInt(wheel.level(level).size()).putLong(wheel.level(level).bucketMillis());
+            }
+            // the padding is part of the header as well
+            header.rewind();
+
+            boolean restorable = sameSize && header.equals(((ByteBuffer) mapping.duplicate().limit(headerBytes)));
+            if (!restorable) {
+                for (int i = 0; i < size; i += Long.BYTES) {
+                    mapping.putLong(i, 0);
+                }
+                for (int offset = headerBytes; offset < size; offset += layout.recordBytes) {
+                    mapping.putLong(offset + STAMP, StripedBucketRing.EMPTY_SLOT);
+                }
+                mapping.duplicate().put(header);
+            }
+            return new BucketFile(channel, mapping, levelOffsets, restorable, layout);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tells if the file had the layout of the wheel already, otherwise it was wiped and there's nothing to restore
+     *
+     * @return true if the buckets in the file are worth reading
+     */
+    boolean isRestorable() {
+        return restorable;
+    }
+
+    /**
+     * Stores the aggregates of a bucket into its slot, without the largest transactions
+     *
+     * @param level      the level of the wheel
+     * @param slot       the slot of the level
+     * @param index      the index of the bucket, or StripedBucketRing.EMPTY_SLOT to clear the slot
+     * @param aggregates what the bucket holds, with a histogram if the wheel counts the amounts in bins
+     */
+    void write(int level, int slot, long index, FixedPointAggregator aggregates) {
+        write(level, slot, index, aggregates, null);
+    }
+
+    /**
+     * Stores the aggregates and the largest transactions of a bucket into its slot
+     *
+     * @param level      the level of the wheel
+     * @param slot       the slot of the level
+     * @param index      the index of the bucket, or StripedBucketRing.EMPTY_SLOT to clear the slot
+     * @param aggregates what the bucket holds, with a histogram if the wheel counts the amounts in bins
+     * @param largest    the largest transactions of the bucket, null if the wheel keeps none
+     */
+    void write(int level, int slot, long index, FixedPointAggregator aggregates, TopAmounts largest) {
+        int offset = offsetOf(level, slot);
+        if (index == StripedBucketRing.EMPTY_SLOT || !aggregates.exportTo(mapping, offset + AGGREGATES)) {
+            // an empty slot is just as good as one that can't be stored, the bucket isn't coming back either way
+            mapping.putLong(offset + check, 0);
+            mapping.putLong(offset + STAMP, StripedBucketRing.EMPTY_SLOT);
+            return;
+        }
+        AmountHistogram histogram = aggregates.getHistogram();
+        if (histogram != null && top > HISTOGRAM) {
+            histogram.exportTo(mapping, offset + HISTOGRAM);
+        }
+        if (check > top) {
+            if (largest != null) {
+                largest.exportTo(mapping, offset + top);
+            } else {
+                mapping.putLong(offset + top, 0);
+            }
+        }
+        mapping.putLong(offset + STAMP, index);
+        mapping.putLong(offset + check, check(offset));
+    }
+
+    /**
+     * Reads the aggregates of a slot, without the largest transactions
+     *
+     * @param level the level of the wheel
+     * @param slot  the slot of the level
+     * @param into  receives the aggregates of the bucket, if there's one, and its histogram if it has one
+     * @return the index of the bucket, or StripedBucketRing.EMPTY_SLOT if there's none or its record is broken
+     */
+    long read(int level, int slot, FixedPointAggregator into) {
+        return read(level, slot, into, null);
+    }
+
+    /**
+     * Reads the aggregates and the largest transactions of a slot
+     *
+     * @param level   the level of the wheel
+     * @param slot    the slot of the level
+     * @param into    receives the aggregates of the bucket, if there's one, and its histogram if it has one
+     * @param largest receives the largest transactions of the bucket, or null if they're not wanted
+     * @return the index of the bucket, or StripedBucketRing.EMPTY_SLOT if there's none or its record is broken
+     */
+    long read(int level, int slot, FixedPointAggregator into, TopAmounts largest) {
+        int offset = offsetOf(level, slot);
+        long index = mapping.getLong(offset + STAMP);
+        if (index == StripedBucketRing.EMPTY_SLOT || mapping.getLong(offset + check) != check(offset)) {
+            return StripedBucketRing.EMPTY_SLOT;
+        }
+        into.importFrom(mapping, offset + AGGREGATES);
+        AmountHistogram histogram = into.getHistogram();
+        if (histogram != null && top > HISTOGRAM) {
+            histogram.importFrom(mapping, offset + HISTOGRAM);
+        }
+        if (largest != null && check > top) {
+            largest.importFrom(mapping, offset + top);
+        }
+        return index;
+    }
+
+    /**
+     * Makes sure everything written so far is on the disk, not only in the page cache
+     */
+    void force() {
+        mapping.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int offsetOf(int level, int slot) {
+        return levelOffsets[level] + slot * recordBytes;
+    }
+
+    /**
+     * A hash over the stamp and the aggregates of a record, which never comes out as 0, the check of a cleared record
+     */
+    private long check(int offset) {
+        long hash = MAGIC;
+        for (int i = 0; i < check; i += Long.BYTES) {
+            hash = hash * 0x9E3779B97F4A7C15L + mapping.getLong(offset + i);
+            hash ^= hash >>> 29;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * The offsets within a record
+     */
+    private static final class Layout {
+        private final int top;
+        private final int check;
+        private final int recordBytes;
+
+        Layout(int histogramBins, int topK) {
+            this.top = HISTOGRAM + histogramBins * Long.BYTES;
+            this.check = top + (topK == 0 ? 0 : (1 + 2 * topK) * Long.BYTES);
+            this.recordBytes = check + Long.BYTES;
+        }
+    }
+}
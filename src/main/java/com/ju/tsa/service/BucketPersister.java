@@ -0,0 +1,147 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.TopAmounts;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the buckets of the StatsService in a BucketFile, so a restart (or a kill -9) doesn't leave the statistics
+ * empty for a whole window. On startup whatever the file holds that's still within reach of its ring is put back, and
+ * from then on a background thread copies the slots that changed into the file every flush-millis.
+ * <p>
+ * The write path itself doesn't touch the file, it only flags the slot it wrote to (the same way it does for the
+ * RollingWindow), so a crash loses at most the last flush-millis worth of transactions. The histogram and the largest
+ * transactions of every bucket are persisted along with its aggregates. Percentiles aren't, after a restart they only
+ * cover what came in since. A bucket with amounts that didn't fit into the primitive aggregates (see
+ * FixedPointAggregator) isn't persisted either.
+ */
+@Service
+public class BucketPersister {
+
+    private final StatsService statsService;
+    private final StatsProperties.Persistence settings;
+    private final int scale;
+
+    /**
+     * Only ever used by whoever is flushing. The top is null if the buckets keep none.
+     */
+    private final FixedPointAggregator scratch;
+    private final TopAmounts scratchTop;
+
+    private BucketFile file;
+    private Thread flusher;
+    private volatile boolean closed;
+
+    @Autowired
+    public BucketPersister(StatsService statsService, StatsProperties properties) {
+        this.statsService = statsService;
+        this.settings = properties.getPersistence();
+        this.scale = properties.getScale();
+        StripedBucketRing finest = statsService.wheel().level(0);
+        this.scratch = new FixedPointAggregator(scale, 0, finest.histogramBins());
+        this.scratchTop = finest.topK() > 0 ? new TopAmounts(finest.topK()) : null;
+    }
+
+    /**
+     * Maps the file, restores what's in it and starts the flushing, if the persistence is enabled
+     *
+     * @throws IOException if the file can't be mapped
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        TimingWheel wheel = statsService.wheel();
+        for (int level = 0; level < wheel.levelCount(); level++) {
+            wheel.level(level).trackUnpersisted();
+        }
+        file = BucketFile.open(Paths.get(settings.getFile()), wheel, scale);
+        if (file.isRestorable()) {
+            restore(wheel);
+        }
+
+        flusher = new Thread(this::flushContinuously, "bucket-persister");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Stops the flushing, after one last flush
+     *
+     * @throws InterruptedException if interrupted while waiting for the flushing thread
+     * @throws IOException          if the file can't be closed
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            flusher.join();
+            flush();
+            file.force();
+            file.close();
+        }
+    }
+
+    /**
+     * Copies every slot that changed since the last flush into the file
+     */
+    void flush() {
+        TimingWheel wheel = statsService.wheel();
+        for (int level = 0; level < wheel.levelCount(); level++) {
+            StripedBucketRing ring = wheel.level(level);
+            int currentLevel = level;
+            ring.drainUnpersisted(slot -> {
+                scratch.reset();
+                long index = ring.snapshot(slot, scratch);
+                if (scratchTop != null) {
+                    scratchTop.reset();
+                    ring.top(slot, index, scratchTop);
+                }
+                file.write(currentLevel, slot, index, scratch, scratchTop);
+            });
+        }
+    }
+
+    /**
+     * Puts back every bucket of the file which its ring still has room for. Anything older than that, or newer than
+     * now, is left out.
+     */
+    private void restore(TimingWheel wheel) {
+        long now = statsService.timeKeeper().millis();
+        for (int level = 0; level < wheel.levelCount(); level++) {
+            StripedBucketRing ring = wheel.level(level);
+            long current = ring.indexOf(now);
+            FixedPointAggregator restored = new FixedPointAggregator(scale, ring.percentileAccuracy(),
+                    ring.histogramBins());
+            TopAmounts restoredTop = ring.topK() > 0 ? new TopAmounts(ring.topK()) : null;
+            for (int slot = 0; slot < ring.size(); slot++) {
+                restored.reset();
+                if (restoredTop != null) {
+                    restoredTop.reset();
+                }
+                long index = file.read(level, slot, restored, restoredTop);
+                if (index != StripedBucketRing.EMPTY_SLOT && index <= current && index > current - ring.size()) {
+                    ring.restore(index, restored, restoredTop);
+                }
+            }
+        }
+    }
+
+    private void flushContinuously() {
+        long flushNanos = settings.getFlushMillis() * 1_000_000;
+        while (!closed) {
+            LockSupport.parkNanos(this, flushNanos);
+            flush();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.BucketState;
+import com.ju.tsa.model.TransactionAggregator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The statistics of a whole cluster of nodes behind a load balancer, each of which only sees its share of the
+ * transactions. Every pull-millis the peers are asked for the buckets of their main window (GET /buckets), and the
+ * cluster statistics are the buckets of this node and the last ones of every peer, merged bucket by bucket and then
+ * flattened, with TransactionAggregator.flatten doing both.
+ * <p>
+ * A peer that doesn't answer, or answers with buckets that don't add up, keeps the buckets it gave the last time,
+ * which leave the window as time goes by just like everybody else's do. Whatever goes wrong with one peer is counted
+ * against that peer only, so it never gets to stop the pulling. Percentiles don't survive the trip, so the cluster statistics come without them.
+ */
+@Service
+public class ClusterAggregator {
+
+    private static final Comparator<BucketState> BY_SPAN =
+            Comparator.comparingLong(BucketState::getStart).thenComparingLong(BucketState::getWidth);
+
+    private final StatsService statsService;
+    private final StatsProperties.Cluster settings;
+    private final long windowMillis;
+    private final RestTemplate restTemplate;
+
+    /**
+     * The peers in the order they're configured in. The map itself never changes after construction.
+     */
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private ScheduledExecutorService puller;
+
+    @Autowired
+    public ClusterAggregator(StatsService statsService, StatsProperties properties) {
+        this.statsService = statsService;
+        this.settings = properties.getCluster();
+        this.windowMillis = properties.getWindowMillis();
+
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(settings.getTimeoutMillis());
+        requestFactory.setReadTimeout(settings.getTimeoutMillis());
+        this.restTemplate = new RestTemplate(requestFactory);
+
+        for (String peer : settings.getPeers()) {
+            peers.put(peer, new Peer());
+        }
+    }
+
+    /**
+     * Starts pulling, if there are any peers
+     */
+    @PostConstruct
+    public void start() {
+        if (peers.isEmpty()) {
+            return;
+        }
+
+        puller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-puller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        puller.scheduleAtFixedRate(this::pullAll, 0, settings.getPullMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (puller != null) {
+            puller.shutdownNow();
+        }
+    }
+
+    /**
+     * Asks every peer for its buckets, one after the other. Anything thrown on the way is caught here, since an
+     * exception that got out would cancel the schedule for good.
+     */
+    void pullAll() {
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            try {
+                BucketState[] buckets = restTemplate.getForObject(entry.getKey() + "/buckets", BucketState[].class);
+                List<BucketState> pulled = buckets == null ? Collections.emptyList() : Arrays.asList(buckets);
+                pulled.forEach(ClusterAggregator::check);
+                peer.buckets = pulled;
+                peer.pulledAt = statsService.timeKeeper().millis();
+                peer.error = null;
+            } catch (RuntimeException e) {
+                peer.failures++;
+                peer.error = e.toString();
+            }
+        }
+    }
+
+    /**
+     * Makes sure a bucket of a peer can be merged, rather than finding out it can't on every read of the statistics
+     *
+     * @throws IllegalArgumentException if it can't
+     */
+    private static void check(BucketState bucket) {
+        if (bucket == null) {
+            throw new IllegalArgumentException("a bucket is null");
+        }
+        if (bucket.getWidth() <= 0 || bucket.getCount() < 0) {
+            throw new IllegalArgumentException("the bucket at " + bucket.getStart() + " has a width of "
+                    + bucket.getWidth() + " and a count of " + bucket.getCount());
+        }
+        if (bucket.getCount() > 0 && (bucket.getSum() == null || bucket.getMin() == null || bucket.getMax() == null
+                || bucket.getMin().compareTo(bucket.getMax()) > 0)) {
+            throw new IllegalArgumentException("the bucket at " + bucket.getStart()
+                    + " lacks a sum, a min or a max, or its min is above its max");
+        }
+    }
+
+    /**
+     * The buckets of the whole cluster within the main window, the ones of the same time span merged into one
+     *
+     * @return the merged buckets, oldest first
+     */
+    public List<BucketState> buckets() {
+        long now = statsService.timeKeeper().millis();
+        List<BucketState> all = new ArrayList<>(statsService.exportBuckets());
+        for (Peer peer : peers.values()) {
+            all.addAll(peer.buckets);
+        }
+        all.removeIf(bucket -> bucket.getStart() <= now - windowMillis || bucket.getStart() > now);
+        all.sort(BY_SPAN);
+
+        List<BucketState> merged = new ArrayList<>();
+        List<TransactionAggregator> sameSpan = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            BucketState bucket = all.get(i);
+            sameSpan.add(bucket.toTransactionAggregator());
+            if (i == all.size() - 1 || BY_SPAN.compare(bucket, all.get(i + 1)) != 0) {
+                merged.add(BucketState.of(bucket.getStart(), bucket.getWidth(),
+                        TransactionAggregator.flatten(sameSpan)));
+                sameSpan.clear();
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The statistics of the main window of the whole cluster
+     *
+     * @return the aggregate of the buckets of all the nodes
+     */
+    public TransactionAggregator aggregate() {
+        List<TransactionAggregator> buckets = new ArrayList<>();
+        for (BucketState bucket : buckets()) {
+            buckets.add(bucket.toTransactionAggregator());
+        }
+        return TransactionAggregator.flatten(buckets);
+    }
+
+    /**
+     * How the pulling goes, peer by peer
+     *
+     * @return for every peer the number of buckets it gave the last time, how long ago that was, how many pulls
+     * failed and why the last one did
+     */
+    public Map<String, Object> peerStatus() {
+        long now = statsService.timeKeeper().millis();
+        Map<String, Object> status = new LinkedHashMap<>();
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("buckets", peer.buckets.size());
+            state.put("ageMillis", peer.pulledAt == 0 ? null : now - peer.pulledAt);
+            state.put("failures", peer.failures);
+            state.put("error", peer.error);
+            status.put(entry.getKey(), state);
+        }
+        return status;
+    }
+
+    /**
+     * What's known of a peer. Only written by the puller thread.
+     */
+    private static class Peer {
+        private volatile List<BucketState> buckets = Collections.emptyList();
+        private volatile long pulledAt;
+        private volatile long failures;
+        private volatile String error;
+    }
+}
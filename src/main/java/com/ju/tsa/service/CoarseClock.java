@@ -0,0 +1,104 @@
+package com.ju.tsa.service;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A clock that only tells the time it was a tick ago. A daemon thread reads the source clock every tick and leaves the
+ * millis in a volatile, so asking for the time on the ingest path is a plain read of a field that's nearly always in
+ * the cache already, instead of a call into the OS for every transaction.
+ * <p>
+ * It never goes back, even if the source clock does (NTP stepping it back, say), so the window never moves backwards
+ * either. The flip side is that it's behind by up to a tick, more if the ticker doesn't get a core in time, which is
+ * what {@link #preciseMillis()} is there for.
+ * <p>
+ * It's a Clock like any other, so whatever takes one can be handed a fixed or a mutable one in the tests instead.
+ */
+public class CoarseClock extends Clock implements AutoCloseable {
+
+    private final Ticker ticker;
+    private final ZoneId zone;
+
+    /**
+     * Starts ticking right away
+     *
+     * @param source     the clock to read every tick
+     * @param tickMillis how often to read it
+     */
+    public CoarseClock(Clock source, long tickMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be at least 1, got " + tickMillis);
+        }
+        this.ticker = new Ticker(source, TimeUnit.MILLISECONDS.toNanos(tickMillis));
+        this.zone = source.getZone();
+        ticker.start();
+    }
+
+    private CoarseClock(Ticker ticker, ZoneId zone) {
+        this.ticker = ticker;
+        this.zone = zone;
+    }
+
+    @Override
+    public long millis() {
+        return ticker.millis;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(ticker.millis);
+    }
+
+    /**
+     * Reads the source clock rather than the cached time, for the rare cases a tick ago isn't good enough
+     *
+     * @return the millis of the source clock, never less than {@link #millis()}
+     */
+    public long preciseMillis() {
+        return Math.max(ticker.millis, ticker.source.millis());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new CoarseClock(ticker, zone);
+    }
+
+    /**
+     * Stops the ticking, for this clock and every one made of it by {@link #withZone(ZoneId)}
+     */
+    @Override
+    public void close() {
+        ticker.interrupt();
+    }
+
+    private static final class Ticker extends Thread {
+        private final Clock source;
+        private final long tickNanos;
+        private volatile long millis;
+
+        Ticker(Clock source, long tickNanos) {
+            super("coarse-clock");
+            setDaemon(true);
+            this.source = source;
+            this.tickNanos = tickNanos;
+            this.millis = source.millis();
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                LockSupport.parkNanos(tickNanos);
+                // only the ticker writes, so there's no need for a CAS to keep it from going back
+                millis = Math.max(millis, source.millis());
+            }
+        }
+    }
+}
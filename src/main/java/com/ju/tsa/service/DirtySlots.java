@@ -0,0 +1,73 @@
+package com.ju.tsa.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A two level bitmap of slots that have been written to since the last time somebody looked. Writers flag the slot
+ * after they're done with it, readers clear the flags before they look at the slots, so a write is either picked up
+ * right away or stays flagged for the next reader.
+ * <p>
+ * The summary level has a bit per word of the slot level, which means a reader only visits the words that actually
+ * have something in them, no matter how many slots there are.
+ */
+class DirtySlots {
+
+    /**
+     * Gets told about every flagged slot while draining
+     */
+    interface Visitor {
+        void visit(int slot);
+    }
+
+    private final AtomicLongArray slots;
+    private final AtomicLongArray summary;
+
+    DirtySlots(int slotCount) {
+        this.slots = new AtomicLongArray((slotCount + 63) >>> 6);
+        this.summary = new AtomicLongArray((slots.length() + 63) >>> 6);
+    }
+
+    /**
+     * Flags a slot. Cheap when the slot is flagged already, which is the common case for the current second.
+     *
+     * @param slot the slot that got written to
+     */
+    void mark(int slot) {
+        int word = slot >>> 6;
+        setBit(slots, word, 1L << slot);
+        setBit(summary, word >>> 6, 1L << word);
+    }
+
+    /**
+     * Clears all the flags, and hands each slot that was flagged to the visitor.
+     *
+     * @param visitor gets every flagged slot
+     */
+    void drain(Visitor visitor) {
+        for (int s = 0; s < summary.length(); s++) {
+            if (summary.get(s) == 0) {
+                continue;
+            }
+            long words = summary.getAndSet(s, 0);
+            while (words != 0) {
+                int word = (s << 6) + Long.numberOfTrailingZeros(words);
+                words &= words - 1;
+
+                long bits = slots.getAndSet(word, 0);
+                while (bits != 0) {
+                    visitor.visit((word << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    private static void setBit(AtomicLongArray words, int word, long bit) {
+        long current;
+        while (((current = words.get(word)) & bit) == 0) {
+            if (words.compareAndSet(word, current, current | bit)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.Transaction;
+
+import java.util.Arrays;
+
+/**
+ * The buckets of a single key. There can be hundreds of thousands of these, so unlike the global StripedBucketRing there
+ * are no stripes and no CAS rollover: a key rarely gets hit by more than one thread at a time, and an uncontended
+ * monitor is the cheapest way to keep a rollover and an append together. The aggregators of the slots are only
+ * created once a slot is used, and reset rather than replaced when the slot rolls over to a newer bucket.
+ */
+final class KeyRing {
+
+    private final long bucketMillis;
+    private final int scale;
+    private final long[] indexes;
+    private final FixedPointAggregator[] slots;
+
+    private long newestIndex = Long.MIN_VALUE;
+    private boolean evicted;
+
+    /**
+     * The reference bit of the CLOCK eviction. Set by writers, cleared by the evictor as its hand passes by.
+     */
+    volatile boolean referenced;
+
+    KeyRing(int slotCount, long bucketMillis, int scale) {
+        this.bucketMillis = bucketMillis;
+        this.scale = scale;
+        this.indexes = new long[slotCount];
+        Arrays.fill(indexes, StripedBucketRing.EMPTY_SLOT);
+        this.slots = new FixedPointAggregator[slotCount];
+    }
+
+    /**
+     * Adds the transaction, unless it's older than what the ring holds
+     *
+     * @param transaction the inbound Transaction
+     * @param oldestIndex index of the oldest bucket still in the window
+     * @return false if the ring has been evicted in the meantime and the caller has to look the key up again
+     */
+    synchronized boolean add(Transaction transaction, long oldestIndex) {
+        if (evicted) {
+            return false;
+        }
+
+        long index = Math.floorDiv(transaction.getEpochMillis(), bucketMillis);
+        int slot = (int) Math.floorMod(index, (long) indexes.length);
+        if (index < oldestIndex || index < indexes[slot]) {
+            return true;
+        }
+
+        FixedPointAggregator aggregator = slots[slot];
+        if (aggregator == null) {
+            aggregator = new FixedPointAggregator(scale);
+            slots[slot] = aggregator;
+        } else if (indexes[slot] != index) {
+            aggregator.reset();
+        }
+        indexes[slot] = index;
+        aggregator.append(transaction);
+
+        newestIndex = Math.max(newestIndex, index);
+        return true;
+    }
+
+    /**
+     * Merges every bucket still in the window into the given aggregator
+     *
+     * @param into        the aggregator receiving the data of the key
+     * @param oldestIndex index of the oldest bucket still in the window
+     */
+    synchronized void mergeInto(FixedPointAggregator into, long oldestIndex) {
+        for (int slot = 0; slot < indexes.length; slot++) {
+            if (indexes[slot] >= oldestIndex && slots[slot] != null) {
+                into.merge(slots[slot]);
+            }
+        }
+    }
+
+    /**
+     * Tells if everything the key ever had left the window
+     *
+     * @param oldestIndex index of the oldest bucket still in the window
+     * @return true if the key has nothing left to report
+     */
+    synchronized boolean isIdle(long oldestIndex) {
+        return newestIndex < oldestIndex;
+    }
+
+    /**
+     * Marks the ring as evicted, so writers still holding it go look for the key again
+     */
+    synchronized void evict() {
+        evicted = true;
+    }
+}
@@ -0,0 +1,246 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.KeyedAggregate;
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.model.TransactionAggregator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Statistics per key, next to the global ones. Every key gets its own small KeyRing, created the first time the key
+ * shows up.
+ * <p>
+ * The keys are capped by a memory budget, which counts what every key costs, the key itself included, so a few keys
+ * of several kilobytes use up as much of it as a lot of short ones. Once a new key would go over it, keys are evicted with the CLOCK
+ * algorithm (a cheap approximation of LRU): a hand sweeps over the keys, and a key is evicted if nothing was added to it
+ * since the hand last passed by, or if all of its data already left the window. Either way the key just starts from
+ * scratch if it comes back. New keys only get their reference bit with their second transaction, so a burst of one-off
+ * keys evicts itself rather than the keys that keep coming back.
+ */
+class KeyedStats {
+
+    /**
+     * What a key costs on top of its slots and its characters: the map entry, the String, the ring and its arrays
+     */
+    static final long KEY_OVERHEAD_BYTES = 200;
+
+    /**
+     * A char of the key, assuming the worst, which is a String that isn't Latin-1
+     */
+    static final long KEY_CHAR_BYTES = 2;
+
+    /**
+     * A slot is a FixedPointAggregator plus its index and a reference to it
+     */
+    static final long SLOT_BYTES = 96;
+
+    private static final Comparator<KeyedAggregate> BY_SUM =
+            Comparator.comparing(keyed -> keyed.getStatistics().getSum());
+
+    private final ConcurrentHashMap<String, KeyRing> rings = new ConcurrentHashMap<>();
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final int slotCount;
+    private final int scale;
+    private final long maxBytes;
+    private final long bytesPerKey;
+
+    /**
+     * What the keys kept cost together. Only changed while holding the evictionLock.
+     */
+    private volatile long usedBytes;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, KeyRing>> hand = Collections.emptyIterator();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param windowMillis length of the window
+     * @param bucketMillis width of the buckets of every key
+     * @param maxBytes     the memory budget for all the keys together
+     * @param scale        decimal places kept by the primitive aggregators
+     */
+    KeyedStats(long windowMillis, long bucketMillis, long maxBytes, int scale) {
+        if (bucketMillis <= 0 || windowMillis < bucketMillis) {
+            throw new IllegalArgumentException("need 0 < bucketMillis <= windowMillis, got bucketMillis="
+                    + bucketMillis + ", windowMillis=" + windowMillis);
+        }
+        this.windowMillis = windowMillis;
+        this.bucketMillis = bucketMillis;
+        this.slotCount = (int) -Math.floorDiv(-windowMillis, bucketMillis) + 1;
+        this.scale = scale;
+        this.maxBytes = maxBytes;
+        this.bytesPerKey = bytesPerKey(slotCount);
+    }
+
+    /**
+     * Adds the transaction to the ring of its key
+     *
+     * @param transaction the inbound Transaction, with a key
+     * @param nowMillis   the current time in epoch millis
+     */
+    void add(Transaction transaction, long nowMillis) {
+        long oldestIndex = oldestIndex(nowMillis);
+        while (true) {
+            KeyRing ring = rings.get(transaction.getKey());
+            if (ring == null) {
+                ring = admit(transaction.getKey(), nowMillis);
+                if (ring == null) {
+                    // a key that wouldn't fit even if it was the only one
+                    return;
+                }
+            } else if (!ring.referenced) {
+                ring.referenced = true;
+            }
+            if (ring.add(transaction, oldestIndex)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the aggregate of a single key
+     *
+     * @param key       the key
+     * @param nowMillis the current time in epoch millis
+     * @return the aggregate of the key, or null if the key isn't known (anymore)
+     */
+    TransactionAggregator aggregate(String key, long nowMillis) {
+        KeyRing ring = rings.get(key);
+        if (ring == null) {
+            return null;
+        }
+        FixedPointAggregator aggregator = new FixedPointAggregator(scale);
+        ring.mergeInto(aggregator, oldestIndex(nowMillis));
+        return aggregator.toTransactionAggregator();
+    }
+
+    /**
+     * Finds the keys with the largest sums. That's a walk over all the keys, so it's meant for dashboards rather than
+     * for every request.
+     *
+     * @param limit     how many keys to return at most
+     * @param nowMillis the current time in epoch millis
+     * @return the keys with the largest sums, largest first
+     */
+    List<KeyedAggregate> topBySum(int limit, long nowMillis) {
+        long oldestIndex = oldestIndex(nowMillis);
+        PriorityQueue<KeyedAggregate> top = new PriorityQueue<>(limit + 1, BY_SUM);
+        FixedPointAggregator scratch = new FixedPointAggregator(scale);
+
+        for (Map.Entry<String, KeyRing> entry : rings.entrySet()) {
+            scratch.reset();
+            entry.getValue().mergeInto(scratch, oldestIndex);
+            if (scratch.getCount() == 0) {
+                continue;
+            }
+            top.offer(new KeyedAggregate(entry.getKey(), scratch.toTransactionAggregator()));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+
+        List<KeyedAggregate> result = new ArrayList<>(top);
+        result.sort(BY_SUM.reversed());
+        return result;
+    }
+
+    /**
+     * Gets the number of keys
+     *
+     * @return number of keys currently kept
+     */
+    int size() {
+        return rings.size();
+    }
+
+    /**
+     * Gets what the keys cost
+     *
+     * @return the estimated bytes of all the keys kept, never more than the budget
+     */
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Gets the number of evictions
+     *
+     * @return how many keys were evicted so far
+     */
+    long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Estimates what a key costs
+     *
+     * @param slotCount number of slots of a key
+     * @return bytes per key once all of its slots are in use
+     */
+    static long bytesPerKey(int slotCount) {
+        return KEY_OVERHEAD_BYTES + slotCount * SLOT_BYTES;
+    }
+
+    private long bytesOf(String key) {
+        return bytesPerKey + key.length() * KEY_CHAR_BYTES;
+    }
+
+    /**
+     * Creates the ring of a new key, moving the CLOCK hand until there's room for it. New keys are created one at a
+     * time, which is what keeps the budget a hard limit. Adding to keys that are already known never gets here.
+     *
+     * @return the ring of the key, or null if the key alone costs more than the budget
+     */
+    private KeyRing admit(String key, long nowMillis) {
+        long cost = bytesOf(key);
+        if (cost > maxBytes) {
+            return null;
+        }
+        evictionLock.lock();
+        try {
+            KeyRing ring = rings.get(key);
+            if (ring == null) {
+                makeRoom(cost, oldestIndex(nowMillis));
+                ring = new KeyRing(slotCount, bucketMillis, scale);
+                rings.put(key, ring);
+                usedBytes += cost;
+            }
+            return ring;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void makeRoom(long cost, long oldestIndex) {
+        while (usedBytes + cost > maxBytes) {
+            if (!hand.hasNext()) {
+                hand = rings.entrySet().iterator();
+            }
+
+            Map.Entry<String, KeyRing> entry = hand.next();
+            KeyRing ring = entry.getValue();
+            if (ring.referenced && !ring.isIdle(oldestIndex)) {
+                ring.referenced = false;
+            } else if (rings.remove(entry.getKey(), ring)) {
+                usedBytes -= bytesOf(entry.getKey());
+                ring.evict();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private long oldestIndex(long nowMillis) {
+        return Math.floorDiv(nowMillis - windowMillis, bucketMillis) + 1;
+    }
+}
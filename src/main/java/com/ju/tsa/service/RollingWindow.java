@@ -0,0 +1,485 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.AmountHistogram;
+import com.ju.tsa.model.BucketState;
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.LatencyHistogram;
+import com.ju.tsa.model.TopAmounts;
+import com.ju.tsa.model.TransactionAggregator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The read side of the timing wheel. Instead of walking and merging every slot on each request, it keeps a copy of each
+ * slot as a leaf of a small segment tree per level, where every node is the merge of its two children.
+ * <p>
+ * A window is stitched together back to front: the finest level gives the most recent buckets it still has, the next
+ * level takes over where that one stops, and the top level of the window covers the rest, up to the start of the
+ * window. Each level therefore keeps a range of bucket indexes (the union of what the windows need from it), and those
+ * ranges only ever move forward with the clock. A leaf is only copied again when a writer flagged its slot or when its
+ * bucket enters the range of the level, and dropped when its bucket leaves the range. Either way just the path from
+ * that leaf up to the root is recalculated. Min and max come along for free since every node is rebuilt from its
+ * children rather than subtracted from.
+ * <p>
+ * Every window then is a range query per level it uses, which merges a logarithmic number of nodes no matter how many
+ * slots there are. When nothing changed since the last read of a window, its previous result is handed out again.
+ * <p>
+ * All of the state here belongs to readers, who take turns on a lock. Writers never see it. How long readers had to wait
+ * for each other is recorded, since that's the one place in the engine where threads block.
+ */
+class RollingWindow {
+
+    private static final long NO_INDEX = StripedBucketRing.EMPTY_SLOT;
+
+    private final int wheelSize;
+    private final Level[] levels;
+    private final FixedPointAggregator scratch;
+
+    private final long[] windowsMillis;
+    private final int[] topLevels;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+
+    /**
+     * Where the finer levels hand over to the coarser ones, and where each window starts on its top level. Recalculated
+     * on every read.
+     */
+    private final long[] innerLowers;
+    private final long[] uppers;
+    private final long[] windowLowers;
+
+    /**
+     * Bumped whenever a leaf changes, so a window knows whether its cached result is still good
+     */
+    private long version;
+    private final long[] cachedVersions;
+    private final long[] cachedLowers;
+    private final TransactionAggregator[] cached;
+
+    /**
+     * @param wheel        the buckets to read from
+     * @param windowMillis length of the window
+     * @param scale        decimal places kept by the primitive aggregators
+     */
+    RollingWindow(TimingWheel wheel, long windowMillis, int scale) {
+        this(wheel, new long[]{windowMillis}, scale);
+    }
+
+    /**
+     * @param wheel         the buckets to read from
+     * @param windowsMillis lengths of the windows, each of them served by the same wheel
+     * @param scale         decimal places kept by the primitive aggregators
+     */
+    RollingWindow(TimingWheel wheel, long[] windowsMillis, int scale) {
+        this.wheelSize = wheel.wheelSize();
+        this.levels = new Level[wheel.levelCount()];
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = new Level(wheel.level(level), scale);
+        }
+        // the tree keeps percentiles and histograms whenever the buckets do
+        this.scratch = new FixedPointAggregator(scale, wheel.level(0).percentileAccuracy(),
+                wheel.level(0).histogramBins());
+
+        this.windowsMillis = windowsMillis.clone();
+        this.topLevels = new int[windowsMillis.length];
+        for (int window = 0; window < windowsMillis.length; window++) {
+            topLevels[window] = wheel.topLevelFor(windowsMillis[window]);
+        }
+
+        this.innerLowers = new long[levels.length];
+        this.uppers = new long[levels.length];
+        this.windowLowers = new long[windowsMillis.length];
+
+        this.cachedVersions = new long[windowsMillis.length];
+        Arrays.fill(cachedVersions, -1);
+        this.cachedLowers = new long[windowsMillis.length];
+        this.cached = new TransactionAggregator[windowsMillis.length];
+    }
+
+    /**
+     * Brings the trees up to date and returns the aggregate of the first (or only) window
+     *
+     * @param nowMillis the current time in epoch millis
+     * @return the aggregate of the window
+     */
+    TransactionAggregator aggregate(long nowMillis) {
+        return aggregate(0, nowMillis);
+    }
+
+    /**
+     * Brings the trees up to date with the clock and with the writes that happened since the last read, and returns
+     * the aggregate of a window.
+     *
+     * @param window    position of the window in the lengths given to the constructor
+     * @param nowMillis the current time in epoch millis
+     * @return the aggregate of all the buckets of the top level of the window which start after
+     * nowMillis - windowMillis, with the most recent ones taken from the finer levels
+     */
+    TransactionAggregator aggregate(int window, long nowMillis) {
+        lock();
+        try {
+            advance(nowMillis);
+            return windowAggregate(window);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #aggregate(int, long)} for all the windows at once, as of the very same moment
+     *
+     * @param nowMillis the current time in epoch millis
+     * @return the aggregates, in the order of the lengths given to the constructor
+     */
+    TransactionAggregator[] aggregateAll(long nowMillis) {
+        lock();
+        try {
+            advance(nowMillis);
+            TransactionAggregator[] result = new TransactionAggregator[windowsMillis.length];
+            for (int window = 0; window < result.length; window++) {
+                result[window] = windowAggregate(window);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The aggregate of the last so many millis, for any length up to the longest window. It's stitched together like
+     * any window: the finest level that still reaches back far enough takes the oldest part, the finer ones the rest,
+     * which is one range query per level and as precise as the width of that level.
+     *
+     * @param lastMillis how far back to go, no further than the longest window
+     * @param nowMillis  the current time in epoch millis
+     * @return the aggregate of all the buckets which start after nowMillis - lastMillis
+     */
+    TransactionAggregator aggregateLast(long lastMillis, long nowMillis) {
+        lock();
+        try {
+            advance(nowMillis);
+            long start = nowMillis - lastMillis;
+            scratch.reset();
+            for (int level = 0; level < levels.length; level++) {
+                Level current = levels[level];
+                long from = Math.floorDiv(start, current.width) + 1;
+                if (level == levels.length - 1 || from >= innerLowers[level]) {
+                    current.query(Math.max(from, current.lower), uppers[level], scratch);
+                    break;
+                }
+                current.query(innerLowers[level], uppers[level], scratch);
+            }
+            return scratch.toTransactionAggregator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The histogram of the amounts of a window, made of the same buckets as {@link #aggregate(int, long)}
+     *
+     * @param window    position of the window in the lengths given to the constructor
+     * @param nowMillis the current time in epoch millis
+     * @return the count of every bin, or null if the buckets don't count the amounts
+     */
+    long[] histogram(int window, long nowMillis) {
+        lock();
+        try {
+            advance(nowMillis);
+            mergeWindow(window);
+            AmountHistogram histogram = scratch.getHistogram();
+            return histogram == null ? null : histogram.counts();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The buckets a window is made of right now, the very ones {@link #aggregate(int, long)} would merge: the coarser
+     * ones for the older part of the window, the finer ones for the rest. They don't overlap, so merging them gives
+     * the aggregate of the window.
+     *
+     * @param window    position of the window in the lengths given to the constructor
+     * @param nowMillis the current time in epoch millis
+     * @return the buckets with any transactions in them, oldest first
+     */
+    List<BucketState> buckets(int window, long nowMillis) {
+        lock();
+        try {
+            advance(nowMillis);
+            List<BucketState> buckets = new ArrayList<>();
+            int top = topLevels[window];
+            levels[top].collect(windowLowers[window], uppers[top], buckets);
+            for (int level = top - 1; level >= 0; level--) {
+                levels[level].collect(innerLowers[level], uppers[level], buckets);
+            }
+            return buckets;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Merges the largest transactions of the buckets a window is made of right now, the same buckets as
+     * {@link #buckets(int, long)}. They come straight from the rings, the trees don't keep any.
+     *
+     * @param window    position of the window in the lengths given to the constructor
+     * @param nowMillis the current time in epoch millis
+     * @param into      receives the largest transactions of the window, as many as it has room for
+     */
+    void top(int window, long nowMillis, TopAmounts into) {
+        lock();
+        try {
+            advance(nowMillis);
+            int top = topLevels[window];
+            levels[top].top(windowLowers[window], uppers[top], into);
+            for (int level = top - 1; level >= 0; level--) {
+                levels[level].top(innerLowers[level], uppers[level], into);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the lock waits
+     *
+     * @return how long readers waited for each other, only counting the times the lock was taken already
+     */
+    LatencyHistogram lockWaits() {
+        return lockWaits;
+    }
+
+    private void lock() {
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            lockWaits.recordSince(start);
+        }
+    }
+
+    private void advance(long nowMillis) {
+        // the upper end of the range of the current level, in millis. It's always aligned to the width of the level.
+        long upper = (Math.floorDiv(nowMillis, levels[0].width) + 1) * levels[0].width;
+
+        for (int level = 0; level < levels.length; level++) {
+            Level current = levels[level];
+            uppers[level] = upper / current.width;
+            long lower = Long.MAX_VALUE;
+
+            if (level < levels.length - 1) {
+                long oldestKept = Math.floorDiv(nowMillis, current.width) - wheelSize + 1;
+                upper = ceilAlign(oldestKept * current.width, levels[level + 1].width);
+                innerLowers[level] = upper / current.width;
+                lower = innerLowers[level];
+            }
+
+            for (int window = 0; window < windowsMillis.length; window++) {
+                if (topLevels[window] == level) {
+                    windowLowers[window] = Math.floorDiv(nowMillis - windowsMillis[window], current.width) + 1;
+                    lower = Math.min(lower, windowLowers[window]);
+                }
+            }
+
+            current.moveTo(lower, uppers[level]);
+        }
+    }
+
+    private TransactionAggregator windowAggregate(int window) {
+        if (cachedVersions[window] == version && cachedLowers[window] == windowLowers[window]) {
+            return cached[window];
+        }
+
+        mergeWindow(window);
+
+        cached[window] = scratch.toTransactionAggregator();
+        cachedVersions[window] = version;
+        cachedLowers[window] = windowLowers[window];
+        return cached[window];
+    }
+
+    /**
+     * Merges everything the window is made of into the scratch aggregator, one range query per level
+     */
+    private void mergeWindow(int window) {
+        int top = topLevels[window];
+        scratch.reset();
+        for (int level = 0; level < top; level++) {
+            levels[level].query(innerLowers[level], uppers[level], scratch);
+        }
+        levels[top].query(windowLowers[window], uppers[top], scratch);
+    }
+
+    private static long ceilAlign(long millis, long width) {
+        return -Math.floorDiv(-millis, width) * width;
+    }
+
+    /**
+     * The segment tree of a single level, holding the buckets with an index in [lower, upper)
+     */
+    private final class Level {
+        private final StripedBucketRing ring;
+        private final long width;
+        private final int firstLeaf;
+        private final FixedPointAggregator[] tree;
+        private final long[] leafIndexes;
+        private final DirtySlots.Visitor refresher = this::refresh;
+
+        private boolean positioned;
+        private long lower;
+        private long upper;
+
+        Level(StripedBucketRing ring, int scale) {
+            this.ring = ring;
+            this.width = ring.bucketMillis();
+
+            int leaves = 1;
+            while (leaves < ring.size()) {
+                leaves <<= 1;
+            }
+            this.firstLeaf = leaves;
+            this.tree = new FixedPointAggregator[leaves * 2];
+            for (int i = 1; i < tree.length; i++) {
+                tree[i] = new FixedPointAggregator(scale, ring.percentileAccuracy(), ring.histogramBins());
+            }
+            this.leafIndexes = new long[ring.size()];
+            Arrays.fill(leafIndexes, NO_INDEX);
+        }
+
+        /**
+         * Moves the range of the level and picks up whatever was written since the last read
+         */
+        void moveTo(long newLower, long newUpper) {
+            if (!positioned || newLower - lower >= leafIndexes.length || newUpper - upper >= leafIndexes.length) {
+                lower = newLower;
+                upper = newUpper;
+                positioned = true;
+                rebuild();
+            } else if (newLower != lower || newUpper != upper) {
+                long oldLower = lower;
+                long oldUpper = upper;
+                lower = newLower;
+                upper = newUpper;
+
+                for (long index = oldLower; index < Math.min(newLower, oldUpper); index++) {
+                    int slot = ring.slotFor(index);
+                    if (leafIndexes[slot] == index) {
+                        clear(slot);
+                    }
+                }
+                for (long index = Math.max(oldUpper, newLower); index < newUpper; index++) {
+                    refresh(ring.slotFor(index));
+                }
+            }
+
+            ring.drainChanges(refresher);
+        }
+
+        /**
+         * Merges the buckets with an index in [from, to) into the given aggregator. The range must be within the
+         * range of the level, which is never longer than the ring, so it maps to at most two runs of slots.
+         */
+        void query(long from, long to, FixedPointAggregator into) {
+            if (from >= to) {
+                return;
+            }
+            int first = ring.slotFor(from);
+            long end = first + (to - from);
+            if (end <= leafIndexes.length) {
+                queryLeaves(first, (int) end, into);
+            } else {
+                queryLeaves(first, leafIndexes.length, into);
+                queryLeaves(0, (int) (end - leafIndexes.length), into);
+            }
+        }
+
+        /**
+         * Adds the buckets with an index in [from, to) that have anything in them to the list, oldest first
+         */
+        void collect(long from, long to, List<BucketState> into) {
+            for (long index = from; index < to; index++) {
+                int slot = ring.slotFor(index);
+                FixedPointAggregator leaf = tree[firstLeaf + slot];
+                if (leafIndexes[slot] == index && leaf.getCount() > 0) {
+                    into.add(BucketState.of(index * width, width, leaf.toTransactionAggregator()));
+                }
+            }
+        }
+
+        /**
+         * Merges the largest transactions of the buckets with an index in [from, to) into the given ones
+         */
+        void top(long from, long to, TopAmounts into) {
+            for (long index = from; index < to; index++) {
+                ring.top(ring.slotFor(index), index, into);
+            }
+        }
+
+        private void queryLeaves(int fromSlot, int toSlot, FixedPointAggregator into) {
+            for (int left = firstLeaf + fromSlot, right = firstLeaf + toSlot; left < right; left >>= 1, right >>= 1) {
+                if ((left & 1) == 1) {
+                    into.merge(tree[left++]);
+                }
+                if ((right & 1) == 1) {
+                    into.merge(tree[--right]);
+                }
+            }
+        }
+
+        /**
+         * Copies every slot and recalculates the whole tree bottom up, which is cheaper than walking up from every leaf
+         * after the clock jumped by more than the whole ring
+         */
+        private void rebuild() {
+            for (int slot = 0; slot < leafIndexes.length; slot++) {
+                load(slot);
+            }
+            for (int node = firstLeaf - 1; node > 0; node--) {
+                recalculate(node);
+            }
+            version++;
+        }
+
+        private void refresh(int slot) {
+            load(slot);
+            recalculateParents(firstLeaf + slot);
+        }
+
+        private void load(int slot) {
+            FixedPointAggregator leaf = tree[firstLeaf + slot];
+            leaf.reset();
+            long index = ring.snapshot(slot, leaf);
+
+            if (index < lower || index >= upper) {
+                leaf.reset();
+                index = NO_INDEX;
+            }
+
+            leafIndexes[slot] = index;
+        }
+
+        private void clear(int slot) {
+            tree[firstLeaf + slot].reset();
+            leafIndexes[slot] = NO_INDEX;
+            recalculateParents(firstLeaf + slot);
+        }
+
+        private void recalculateParents(int node) {
+            for (int parent = node >> 1; parent > 0; parent >>= 1) {
+                recalculate(parent);
+            }
+            version++;
+        }
+
+        private void recalculate(int node) {
+            FixedPointAggregator aggregator = tree[node];
+            aggregator.reset();
+            aggregator.merge(tree[node << 1]);
+            aggregator.merge(tree[(node << 1) + 1]);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.BucketState;
+import com.ju.tsa.model.FixedPointAggregator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The history of the statistics beyond the window. Every bucket that's rolled out of the finest level of the wheel is
+ * folded into a per-minute and a per-hour RollupRing, so the statistics of any span of the past come from a handful of
+ * precomputed records instead of the transactions. Both rings live in one buffer, which is a memory mapped file if
+ * there's a file configured, so the history survives restarts.
+ * <p>
+ * A bucket is only folded in once it's rolled out, so the last bucket-millis * wheel-size of the history are taken
+ * from the live buckets. Transactions which arrive after their bucket left the finest level, or with amounts that
+ * don't fit into longs, don't make it into the history.
+ */
+@Service
+public class RollupArchive {
+
+    static final int MAGIC = 0x54534152;
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+
+    static final long MINUTE_MILLIS = 60_000;
+    static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+    /**
+     * The most steps a range can be split into
+     */
+    static final int MAX_STEPS = 10_000;
+
+    private final StatsService statsService;
+    private final StatsProperties.Rollup settings;
+    private final int scale;
+    private final LongAdder folded = new LongAdder();
+    private final LongAdder unarchived = new LongAdder();
+
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private ByteBuffer buffer;
+    private RollupRing minutes;
+    private RollupRing hours;
+
+    @Autowired
+    public RollupArchive(StatsService statsService, StatsProperties properties) {
+        this.statsService = statsService;
+        this.settings = properties.getRollup();
+        this.scale = properties.getScale();
+    }
+
+    /**
+     * Sets up the rings and starts taking the buckets that are rolled out, if the archive is enabled
+     *
+     * @throws IOException if the file can't be mapped
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (!settings.isEnabled()) {
+            return;
+        }
+
+        int size = HEADER_BYTES + RollupRing.bytesFor(settings.getMinutes()) + RollupRing.bytesFor(settings.getHours());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(scale).putInt(settings.getMinutes()).putInt(settings.getHours());
+        header.rewind();
+
+        boolean restorable = false;
+        if (settings.getFile().isEmpty()) {
+            buffer = ByteBuffer.allocate(size);
+        } else {
+            channel = FileChannel.open(Paths.get(settings.getFile()), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            restorable = channel.size() == size;
+            mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer = mapping;
+            restorable &= header.equals((ByteBuffer) buffer.duplicate().limit(HEADER_BYTES));
+        }
+
+        minutes = new RollupRing(buffer, HEADER_BYTES, settings.getMinutes(), MINUTE_MILLIS, scale);
+        hours = new RollupRing(buffer, HEADER_BYTES + RollupRing.bytesFor(settings.getMinutes()), settings.getHours(),
+                HOUR_MILLIS, scale);
+        if (!restorable) {
+            // another layout, or no file at all, there's no telling what's in there
+            minutes.clear();
+            hours.clear();
+            buffer.duplicate().put(header);
+        }
+
+        statsService.wheel().level(0).onExpiry(this::archive);
+    }
+
+    /**
+     * Stops taking buckets and writes the file out, if there's one
+     *
+     * @throws IOException if the file can't be closed
+     */
+    @PreDestroy
+    public void stop() throws IOException {
+        if (buffer != null) {
+            statsService.wheel().level(0).onExpiry(null);
+        }
+        if (channel != null) {
+            mapping.force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Tells if there's any history kept
+     *
+     * @return true if the archive is enabled
+     */
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * The statistics of a span of time, step by step. The span is stretched to whole steps, and every step is merged
+     * from the coarsest ring whose period fits into it, plus the live buckets of the finest level that fall into it.
+     *
+     * @param fromMillis start of the span, epoch millis
+     * @param toMillis   end of the span, epoch millis, exclusive
+     * @param stepMillis the time span of every step, a whole number of minutes
+     * @return the steps with any transactions in them, oldest first
+     * @throws IllegalArgumentException if the span is empty, the step isn't a number of minutes, or there would be
+     *                                  more than MAX_STEPS steps
+     */
+    public List<BucketState> range(long fromMillis, long toMillis, long stepMillis) {
+        if (stepMillis <= 0 || stepMillis % MINUTE_MILLIS != 0) {
+            throw new IllegalArgumentException("the step must be a whole number of minutes, got " + stepMillis);
+        }
+        if (fromMillis >= toMillis) {
+            throw new IllegalArgumentException("the range must end after it starts, got " + fromMillis + " to "
+                    + toMillis);
+        }
+        long start = Math.floorDiv(fromMillis, stepMillis) * stepMillis;
+        long end = -Math.floorDiv(-toMillis, stepMillis) * stepMillis;
+        long steps = (end - start) / stepMillis;
+        if (steps > MAX_STEPS) {
+            throw new IllegalArgumentException("at most " + MAX_STEPS + " steps, got " + steps);
+        }
+
+        FixedPointAggregator[] aggregates = new FixedPointAggregator[(int) steps];
+        RollupRing ring = stepMillis % HOUR_MILLIS == 0 ? hours : minutes;
+        synchronized (this) {
+            for (int step = 0; step < steps; step++) {
+                aggregates[step] = new FixedPointAggregator(scale);
+                long stepStart = start + step * stepMillis;
+                ring.mergeInto(stepStart, stepStart + stepMillis, aggregates[step]);
+            }
+        }
+
+        StripedBucketRing live = statsService.wheel().level(0);
+        FixedPointAggregator bucket = new FixedPointAggregator(scale);
+        for (int slot = 0; slot < live.size(); slot++) {
+            bucket.reset();
+            long index = live.snapshot(slot, bucket);
+            long bucketStart = index * live.bucketMillis();
+            if (index != StripedBucketRing.EMPTY_SLOT && bucketStart >= start && bucketStart < end) {
+                aggregates[(int) ((bucketStart - start) / stepMillis)].merge(bucket);
+            }
+        }
+
+        List<BucketState> result = new ArrayList<>();
+        for (int step = 0; step < steps; step++) {
+            if (aggregates[step].getCount() > 0) {
+                result.add(BucketState.of(start + step * stepMillis, stepMillis,
+                        aggregates[step].toTransactionAggregator()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tells how many buckets went into the history
+     *
+     * @return the number of buckets folded into the rings
+     */
+    public long folded() {
+        return folded.sum();
+    }
+
+    /**
+     * Tells how many buckets didn't go into the history
+     *
+     * @return the number of buckets that were too old for the rings, or had amounts that don't fit into longs
+     */
+    public long unarchived() {
+        return unarchived.sum();
+    }
+
+    /**
+     * Folds a bucket that was rolled out of the finest level into both rings
+     */
+    private synchronized void archive(long index, FixedPointAggregator aggregates) {
+        if (aggregates.getCount() == 0) {
+            return;
+        }
+        long bucketStart = index * statsService.wheel().level(0).bucketMillis();
+        boolean intoMinutes = minutes.fold(bucketStart, aggregates);
+        boolean intoHours = hours.fold(bucketStart, aggregates);
+        if (intoMinutes || intoHours) {
+            folded.increment();
+        } else {
+            unarchived.increment();
+        }
+    }
+}
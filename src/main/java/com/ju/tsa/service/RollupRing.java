@@ -0,0 +1,119 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.FixedPointAggregator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of downsampled aggregates, one record per period (a minute, an hour), in a part of a ByteBuffer that may well
+ * be memory mapped. A record is the index of its period followed by the longs of FixedPointAggregator.exportTo, so
+ * folding a bucket into it and merging records for a query is just exportTo and importFrom, packed minimum and maximum
+ * included. Not thread safe, the RollupArchive takes care of that.
+ */
+class RollupRing {
+
+    static final int RECORD_LONGS = FixedPointAggregator.EXPORTED_LONGS + 1;
+    static final int RECORD_BYTES = RECORD_LONGS * Long.BYTES;
+    private static final int AGGREGATES = Long.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int slots;
+    private final long periodMillis;
+    private final FixedPointAggregator scratch;
+
+    /**
+     * @param buffer       where the records go
+     * @param offset       where in the buffer the first record starts
+     * @param slots        the number of periods kept
+     * @param periodMillis the time span of a record
+     * @param scale        the scale of the aggregates
+     */
+    RollupRing(ByteBuffer buffer, int offset, int slots, long periodMillis, int scale) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.slots = slots;
+        this.periodMillis = periodMillis;
+        this.scratch = new FixedPointAggregator(scale);
+    }
+
+    /**
+     * The room the records of a ring take
+     *
+     * @param slots the number of periods kept
+     * @return the size in bytes
+     */
+    static int bytesFor(int slots) {
+        return slots * RECORD_BYTES;
+    }
+
+    /**
+     * Empties every slot
+     */
+    void clear() {
+        for (int slot = 0; slot < slots; slot++) {
+            buffer.putLong(offset + slot * RECORD_BYTES, StripedBucketRing.EMPTY_SLOT);
+        }
+    }
+
+    /**
+     * Adds the aggregates of a bucket to the record of the period it falls into
+     *
+     * @param epochMillis the start of the bucket
+     * @param aggregates  what the bucket holds
+     * @return false if the bucket didn't make it in, because its slot already holds a newer period or because its
+     * amounts don't fit into longs
+     */
+    boolean fold(long epochMillis, FixedPointAggregator aggregates) {
+        long period = Math.floorDiv(epochMillis, periodMillis);
+        int at = offsetOf(period);
+        long stamp = buffer.getLong(at);
+        if (stamp != StripedBucketRing.EMPTY_SLOT && stamp > period) {
+            return false;
+        }
+
+        scratch.reset();
+        if (stamp == period) {
+            scratch.importFrom(buffer, at + AGGREGATES);
+        }
+        scratch.merge(aggregates);
+        if (!scratch.exportTo(buffer, at + AGGREGATES)) {
+            return false;
+        }
+        buffer.putLong(at, period);
+        return true;
+    }
+
+    /**
+     * Merges the records of a span of periods
+     *
+     * @param fromMillis start of the span, inclusive
+     * @param toMillis   end of the span, exclusive
+     * @param into       receives the records of the periods starting within the span
+     */
+    void mergeInto(long fromMillis, long toMillis, FixedPointAggregator into) {
+        long first = -Math.floorDiv(-fromMillis, periodMillis);
+        long last = -Math.floorDiv(-toMillis, periodMillis);
+        // a span longer than the ring would only visit the same slots again
+        first = Math.max(first, last - slots);
+        for (long period = first; period < last; period++) {
+            int at = offsetOf(period);
+            if (buffer.getLong(at) == period) {
+                into.importFrom(buffer, at + AGGREGATES);
+            }
+        }
+    }
+
+    /**
+     * Gets the period
+     *
+     * @return the time span of a record, in millis
+     */
+    long periodMillis() {
+        return periodMillis;
+    }
+
+    private int offsetOf(long period) {
+        return offset + (int) Math.floorMod(period, (long) slots) * RECORD_BYTES;
+    }
+}
@@ -0,0 +1,207 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.Percentiles;
+import com.ju.tsa.model.TransactionAggregator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the statistics of the main window, and optionally the finest buckets, into a memory mapped file every
+ * refresh-millis, so sidecars on the same host can have them with a SharedStatsReader (which also has the layout)
+ * instead of polling /statistics through Tomcat and Jackson.
+ * <p>
+ * Amounts go into the file as longs at the scale of the engine. If one of them doesn't fit, the file says so with the
+ * WIDE flag and the readers have to ask /statistics, same as the BucketPersister gives up on wide buckets.
+ */
+@Service
+public class SharedStatsExporter {
+
+    /**
+     * The longs of the published statistics from the published millis to the check value, not counting the latter
+     */
+    private static final int AGGREGATE_LONGS = 9;
+
+    /**
+     * Stands for an amount that doesn't fit into a long at the scale. It's NO_UNITS + 1 so it can't be mistaken for
+     * missing percentiles.
+     */
+    private static final long WIDE_UNITS = SharedStatsReader.NO_UNITS + 1;
+
+    private static volatile int fence;
+
+    private final StatsService statsService;
+    private final StatsProperties.Shared settings;
+    private final int scale;
+    private final long windowMillis;
+
+    /**
+     * Only ever used by whoever is publishing
+     */
+    private final FixedPointAggregator scratch;
+
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private ScheduledExecutorService publisher;
+    private long sequence;
+
+    /**
+     * What goes into the file in the order of the file, worked out before the sequence turns odd, so readers are kept
+     * waiting for the stores only
+     */
+    private long[] staged;
+
+    @Autowired
+    public SharedStatsExporter(StatsService statsService, StatsProperties properties) {
+        this.statsService = statsService;
+        this.settings = properties.getShared();
+        this.scale = properties.getScale();
+        this.windowMillis = properties.getWindowMillis();
+        this.scratch = new FixedPointAggregator(scale);
+    }
+
+    /**
+     * Makes the file and starts publishing, if the export is enabled
+     *
+     * @throws IOException if the file can't be made or mapped
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        StripedBucketRing finest = statsService.wheel().level(0);
+        int buckets = settings.isBuckets() ? finest.size() : 0;
+        long size = SharedStatsReader.bytesFor(buckets);
+
+        // a new file rather than the old one resized, readers still mapping the old one would crash on the missing pages
+        Path path = Paths.get(settings.getFile());
+        Files.deleteIfExists(path);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapping.order(ByteOrder.nativeOrder());
+        mapping.putInt(SharedStatsReader.SCALE, scale);
+        mapping.putInt(SharedStatsReader.BUCKETS, buckets);
+        mapping.putLong(SharedStatsReader.BUCKET_MILLIS, finest.bucketMillis());
+        mapping.putLong(SharedStatsReader.WINDOW_MILLIS, windowMillis);
+        staged = new long[AGGREGATE_LONGS + buckets * SharedStatsReader.BUCKET_LONGS];
+        mapping.putInt(4, SharedStatsReader.VERSION);
+        // last, so a reader opening the file too early doesn't take it for a finished one
+        mapping.putInt(0, SharedStatsReader.MAGIC);
+        publish();
+
+        publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shared-stats-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publisher.scheduleAtFixedRate(this::publish, settings.getRefreshMillis(), settings.getRefreshMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        if (publisher != null) {
+            publisher.shutdownNow();
+            publisher.awaitTermination(1, TimeUnit.SECONDS);
+            channel.close();
+        }
+    }
+
+    /**
+     * Tells how often the statistics were published
+     *
+     * @return the number of publications since the start
+     */
+    public synchronized long published() {
+        return sequence / 2;
+    }
+
+    /**
+     * Writes the current statistics into the file. Synchronized, the seqlock only works with one writer at a time.
+     */
+    synchronized void publish() {
+        TransactionAggregator aggregate = statsService.aggregate();
+        Percentiles percentiles = aggregate.getPercentiles();
+        long count = aggregate.getCount();
+        staged[0] = statsService.timeKeeper().millis();
+        staged[1] = 0;
+        staged[2] = count;
+        staged[3] = units(aggregate.getSum());
+        staged[4] = count == 0 ? 0 : units(aggregate.getMinimum());
+        staged[5] = count == 0 ? 0 : units(aggregate.getMaximum());
+        staged[6] = percentiles == null ? SharedStatsReader.NO_UNITS : percentileUnits(percentiles.getP50());
+        staged[7] = percentiles == null ? SharedStatsReader.NO_UNITS : percentileUnits(percentiles.getP95());
+        staged[8] = percentiles == null ? SharedStatsReader.NO_UNITS : percentileUnits(percentiles.getP99());
+
+        StripedBucketRing finest = statsService.wheel().level(0);
+        int at = AGGREGATE_LONGS;
+        for (int slot = 0; at < staged.length; slot++) {
+            scratch.reset();
+            long index = finest.snapshot(slot, scratch);
+            TransactionAggregator bucket = scratch.toTransactionAggregator();
+            boolean empty = index == StripedBucketRing.EMPTY_SLOT || bucket.getCount() == 0;
+            staged[at++] = empty ? SharedStatsReader.NO_UNITS : index * finest.bucketMillis();
+            staged[at++] = bucket.getCount();
+            staged[at++] = units(bucket.getSum());
+            staged[at++] = empty ? 0 : units(bucket.getMinimum());
+            staged[at++] = empty ? 0 : units(bucket.getMaximum());
+        }
+        for (int i = 2; i < staged.length; i++) {
+            if (staged[i] == WIDE_UNITS) {
+                staged[1] = SharedStatsReader.WIDE;
+            }
+        }
+
+        mapping.putLong(SharedStatsReader.SEQUENCE, ++sequence);
+        fence = (int) sequence;
+
+        long check = SharedStatsReader.MAGIC;
+        int offset = SharedStatsReader.PUBLISHED;
+        for (int i = 0; i < staged.length; i++) {
+            if (offset == SharedStatsReader.CHECK) {
+                offset += Long.BYTES;
+            }
+            mapping.putLong(offset, staged[i]);
+            check = SharedStatsReader.mix(check, staged[i]);
+            offset += Long.BYTES;
+        }
+        mapping.putLong(SharedStatsReader.CHECK, check);
+
+        fence = (int) sequence;
+        mapping.putLong(SharedStatsReader.SEQUENCE, ++sequence);
+    }
+
+    /**
+     * The percentiles come rounded to two decimals, whatever the scale
+     */
+    private long percentileUnits(BigDecimal amount) {
+        return units(amount.setScale(scale, RoundingMode.HALF_EVEN));
+    }
+
+    private long units(BigDecimal amount) {
+        try {
+            return amount.movePointRight(scale).longValueExact();
+        } catch (ArithmeticException e) {
+            return WIDE_UNITS;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.ju.tsa.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the statistics the SharedStatsExporter writes into its file, for processes on the same host that would
+ * otherwise poll /statistics. It only needs the JDK, so it can be copied into whatever wants to read the file. Once the
+ * file is mapped, a read is nothing but loads from the page cache: no syscalls, no HTTP, no JSON, and with
+ * {@link #read(Stats)} no allocations either.
+ * <p>
+ * The file is in the byte order of the machine, so anything that can map a file can read it, here's the layout:
+ * <pre>
+ *     0    int   magic, "TSAS"
+ *     4    int   format version
+ *     8    int   scale: amounts are longs of units of 10^-scale
+ *     12   int   number of bucket records, 0 if the buckets aren't exported
+ *     16   long  bucket millis
+ *     24   long  window millis
+ *     32   long  sequence, odd while the writer is at it
+ *     40   long  epoch millis of the moment the statistics were taken
+ *     48   long  flags, WIDE if some amount didn't fit into a long and the rest is not to be trusted
+ *     56   long  count
+ *     64   long  sum
+ *     72   long  minimum, 0 without transactions
+ *     80   long  maximum, 0 without transactions
+ *     88   long  p50, NO_UNITS if there are no percentiles
+ *     96   long  p95
+ *     104  long  p99
+ *     112  long  check value over everything from 40 on, the buckets included
+ *     120  per bucket: long start millis (NO_UNITS if empty), count, sum, minimum, maximum
+ * </pre>
+ * The sequence makes it a seqlock: the writer makes it odd, writes, and makes it even again, and a reader copies
+ * everything out between two reads of the same even sequence. Java doesn't promise a thing about the order another
+ * process sees plain stores into a mapping in, the volatile accesses around the copying only keep the JIT (and, on
+ * the usual JVMs, the CPU) from moving them, so the check value is there to catch whatever might slip through anyway.
+ * <p>
+ * The writer makes the file anew on every start. A reader still holding the old one doesn't see it change under its
+ * feet, it just stops getting newer statistics, which is what the published millis are there to notice.
+ */
+public final class SharedStatsReader {
+
+    public static final int MAGIC = 0x54534153;
+    public static final int VERSION = 1;
+
+    public static final long WIDE = 1;
+    public static final long NO_UNITS = Long.MIN_VALUE;
+
+    static final int SCALE = 8;
+    static final int BUCKETS = 12;
+    static final int BUCKET_MILLIS = 16;
+    static final int WINDOW_MILLIS = 24;
+    static final int SEQUENCE = 32;
+    static final int PUBLISHED = 40;
+    static final int CHECK = 112;
+    static final int HEADER_BYTES = 120;
+    static final int BUCKET_LONGS = 5;
+
+    /**
+     * How often a read is tried before giving up on the writer
+     */
+    private static final int MAX_ATTEMPTS = 1_000;
+
+    private static volatile int fence;
+
+    private final ByteBuffer mapping;
+    private final int scale;
+    private final int bucketCount;
+    private final long bucketMillis;
+    private final long windowMillis;
+
+    private SharedStatsReader(ByteBuffer mapping) {
+        this.mapping = mapping;
+        this.scale = mapping.getInt(SCALE);
+        this.bucketCount = mapping.getInt(BUCKETS);
+        this.bucketMillis = mapping.getLong(BUCKET_MILLIS);
+        this.windowMillis = mapping.getLong(WINDOW_MILLIS);
+    }
+
+    /**
+     * Maps the file of a SharedStatsExporter
+     *
+     * @param file the file
+     * @return the reader
+     * @throws IOException if the file can't be mapped or isn't one of a SharedStatsExporter
+     */
+    public static SharedStatsReader open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException(file + " is too short for shared statistics");
+            }
+            ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.nativeOrder());
+            if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+                throw new IOException(file + " doesn't hold shared statistics of version " + VERSION);
+            }
+            if (channel.size() < bytesFor(mapping.getInt(BUCKETS))) {
+                throw new IOException(file + " is too short for its buckets");
+            }
+            // the mapping stays valid after the channel is closed
+            return new SharedStatsReader(mapping);
+        }
+    }
+
+    /**
+     * Makes a Stats with room for the buckets of the file, to read into over and over
+     *
+     * @return the empty Stats
+     */
+    public Stats newStats() {
+        return new Stats(scale, bucketCount);
+    }
+
+    /**
+     * Copies the statistics the writer published last
+     *
+     * @param into receives the statistics, made by {@link #newStats()}
+     * @return false if there was no consistent copy to be had, because nothing was published yet or the writer kept
+     * on writing while reading
+     */
+    public boolean read(Stats into) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long before = mapping.getLong(SEQUENCE);
+            if (before == 0) {
+                return false;
+            }
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            int ignored = fence;
+
+            long check = copy(into);
+
+            fence = ignored;
+            if (before == mapping.getLong(SEQUENCE) && check == mapping.getLong(CHECK)) {
+                into.sequence = before;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Copies the published statistics, whatever state they're in
+     *
+     * @return the check value of what was copied
+     */
+    private long copy(Stats into) {
+        into.publishedAtMillis = mapping.getLong(PUBLISHED);
+        into.flags = mapping.getLong(PUBLISHED + 8);
+        into.count = mapping.getLong(PUBLISHED + 16);
+        into.sum = mapping.getLong(PUBLISHED + 24);
+        into.min = mapping.getLong(PUBLISHED + 32);
+        into.max = mapping.getLong(PUBLISHED + 40);
+        into.p50 = mapping.getLong(PUBLISHED + 48);
+        into.p95 = mapping.getLong(PUBLISHED + 56);
+        into.p99 = mapping.getLong(PUBLISHED + 64);
+
+        long check = MAGIC;
+        for (int offset = PUBLISHED; offset < CHECK; offset += Long.BYTES) {
+            check = mix(check, mapping.getLong(offset));
+        }
+        int offset = HEADER_BYTES;
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            into.bucketStarts[bucket] = mapping.getLong(offset);
+            into.bucketCounts[bucket] = mapping.getLong(offset + 8);
+            into.bucketSums[bucket] = mapping.getLong(offset + 16);
+            into.bucketMins[bucket] = mapping.getLong(offset + 24);
+            into.bucketMaxs[bucket] = mapping.getLong(offset + 32);
+            for (int i = 0; i < BUCKET_LONGS; i++, offset += Long.BYTES) {
+                check = mix(check, mapping.getLong(offset));
+            }
+        }
+        return check;
+    }
+
+    /**
+     * The size of a file with so many buckets
+     */
+    static long bytesFor(int buckets) {
+        return HEADER_BYTES + (long) buckets * BUCKET_LONGS * Long.BYTES;
+    }
+
+    /**
+     * One step of the check value, the same hash the BucketFile checks its records with
+     */
+    static long mix(long check, long value) {
+        check = check * 0x9E3779B97F4A7C15L + value;
+        return check ^ check >>> 29;
+    }
+
+    /**
+     * A copy of the published statistics. Amounts are in units of 10^-scale, the getters returning BigDecimals turn
+     * them into amounts again.
+     */
+    public static final class Stats {
+        private final int scale;
+        private final long[] bucketStarts;
+        private final long[] bucketCounts;
+        private final long[] bucketSums;
+        private final long[] bucketMins;
+        private final long[] bucketMaxs;
+        private long sequence;
+        private long publishedAtMillis;
+        private long flags;
+        private long count;
+        private long sum;
+        private long min;
+        private long max;
+        private long p50;
+        private long p95;
+        private long p99;
+
+        private Stats(int scale, int buckets) {
+            this.scale = scale;
+            this.bucketStarts = new long[buckets];
+            this.bucketCounts = new long[buckets];
+            this.bucketSums = new long[buckets];
+            this.bucketMins = new long[buckets];
+            this.bucketMaxs = new long[buckets];
+        }
+
+        /**
+         * Tells which publication this is, it only ever grows while the writer is running
+         *
+         * @return the sequence
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getPublishedAtMillis() {
+            return publishedAtMillis;
+        }
+
+        /**
+         * Tells if some amount was too big for the file. The numbers are no good then, /statistics has them.
+         *
+         * @return true if the numbers can't be trusted
+         */
+        public boolean isWide() {
+            return (flags & WIDE) != 0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSumUnits() {
+            return sum;
+        }
+
+        public long getMinUnits() {
+            return min;
+        }
+
+        public long getMaxUnits() {
+            return max;
+        }
+
+        public BigDecimal getSum() {
+            return BigDecimal.valueOf(sum, scale);
+        }
+
+        public BigDecimal getMinimum() {
+            return BigDecimal.valueOf(min, scale);
+        }
+
+        public BigDecimal getMaximum() {
+            return BigDecimal.valueOf(max, scale);
+        }
+
+        /**
+         * Gets the average, rounded the same way /statistics does it
+         *
+         * @return the average, 0 without transactions
+         */
+        public BigDecimal getAverage() {
+            if (count == 0) {
+                return BigDecimal.ZERO;
+            }
+            return getSum().divide(BigDecimal.valueOf(count), 2, RoundingMode.HALF_EVEN);
+        }
+
+        /**
+         * Gets a percentile of the amounts
+         *
+         * @param percentile 50, 95 or 99
+         * @return the percentile, or null if there are none
+         */
+        public BigDecimal getPercentile(int percentile) {
+            long units;
+            switch (percentile) {
+                case 50: units = p50; break;
+                case 95: units = p95; break;
+                case 99: units = p99; break;
+                default: throw new IllegalArgumentException("there's no p" + percentile);
+            }
+            return units == NO_UNITS ? null : BigDecimal.valueOf(units, scale);
+        }
+
+        public int getBucketCount() {
+            return bucketStarts.length;
+        }
+
+        /**
+         * Gets where a bucket starts. The buckets are in the order of the slots of the ring, not in the order of time.
+         *
+         * @param bucket the record of the bucket
+         * @return the epoch millis the bucket starts at, or NO_UNITS if the record is empty
+         */
+        public long getBucketStart(int bucket) {
+            return bucketStarts[bucket];
+        }
+
+        public long getBucketCount(int bucket) {
+            return bucketCounts[bucket];
+        }
+
+        public long getBucketSumUnits(int bucket) {
+            return bucketSums[bucket];
+        }
+
+        public long getBucketMinUnits(int bucket) {
+            return bucketMins[bucket];
+        }
+
+        public long getBucketMaxUnits(int bucket) {
+            return bucketMaxs[bucket];
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of the engine, meant to be left on under full load: recording is an increment of a LongAdder
+ * or a LatencyHistogram, neither of which allocates once they're warmed up.
+ * <p>
+ * Most of it is recorded by the StatsService itself. The latencies of the endpoints come from a servlet filter, so
+ * next to the time spent in the StatsService they tell how long Jackson and the rest of Spring took. Rollovers and lock
+ * waits are counted where they happen, in the bucket rings and the rolling window, and just read from there.
+ */
+public class StatsMetrics {
+
+    /**
+     * Why a transaction didn't make it into the statistics
+     */
+    public enum Rejection {
+        /**
+         * Older than the longest window
+         */
+        TOO_OLD,
+        /**
+         * Not older than now
+         */
+        IN_THE_FUTURE,
+        /**
+         * Not a valid transaction in the first place, like a record of a batch without an amount
+         */
+        INVALID
+    }
+
+    private final TimingWheel buckets;
+    private final RollingWindow window;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[Rejection.values().length];
+
+    private final LatencyHistogram addLatency = new LatencyHistogram();
+    private final LatencyHistogram addAllLatency = new LatencyHistogram();
+    private final LatencyHistogram aggregateLatency = new LatencyHistogram();
+
+    /**
+     * Endpoint metrics by HTTP method, then by the path pattern of the handler. Looking them up this way doesn't need
+     * to build a key for every request.
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Endpoint>> endpoints = new ConcurrentHashMap<>();
+
+    StatsMetrics(TimingWheel buckets, RollingWindow window) {
+        this.buckets = buckets;
+        this.window = window;
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts transactions that went into the statistics
+     *
+     * @param count number of transactions
+     */
+    public void accepted(long count) {
+        accepted.add(count);
+    }
+
+    /**
+     * Counts transactions that were refused
+     *
+     * @param reason why they were refused
+     * @param count  number of transactions
+     */
+    public void rejected(Rejection reason, long count) {
+        rejected[reason.ordinal()].add(count);
+    }
+
+    /**
+     * Gets the metrics of an endpoint, creating them the first time the endpoint is seen
+     *
+     * @param method  the HTTP method
+     * @param pattern the path pattern of the handler, like `/statistics/{key:.+}`
+     * @return the metrics of the endpoint
+     */
+    public Endpoint endpoint(String method, String pattern) {
+        ConcurrentHashMap<String, Endpoint> byPattern = endpoints.get(method);
+        if (byPattern == null) {
+            byPattern = endpoints.computeIfAbsent(method, ignored -> new ConcurrentHashMap<>());
+        }
+        Endpoint endpoint = byPattern.get(pattern);
+        if (endpoint == null) {
+            endpoint = byPattern.computeIfAbsent(pattern, ignored -> new Endpoint());
+        }
+        return endpoint;
+    }
+
+    /**
+     * Gets the number of accepted transactions
+     *
+     * @return how many transactions went into the statistics so far
+     */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * Gets the number of rejected transactions
+     *
+     * @param reason why they were refused
+     * @return how many transactions were refused for that reason so far
+     */
+    public long getRejected(Rejection reason) {
+        return rejected[reason.ordinal()].sum();
+    }
+
+    LatencyHistogram addLatency() {
+        return addLatency;
+    }
+
+    LatencyHistogram addAllLatency() {
+        return addAllLatency;
+    }
+
+    LatencyHistogram aggregateLatency() {
+        return aggregateLatency;
+    }
+
+    /**
+     * Reads everything into nested maps, which serialize into the JSON of the metrics endpoint
+     *
+     * @return the current state of the metrics
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> transactions = new LinkedHashMap<>();
+        transactions.put("accepted", accepted.sum());
+        Map<String, Object> rejections = new LinkedHashMap<>();
+        for (Rejection reason : Rejection.values()) {
+            rejections.put(reason.name().toLowerCase(), rejected[reason.ordinal()].sum());
+        }
+        transactions.put("rejected", rejections);
+
+        Map<String, Object> levels = new LinkedHashMap<>();
+        long rollovers = 0;
+        long races = 0;
+        for (int level = 0; level < buckets.levelCount(); level++) {
+            rollovers += buckets.level(level).rollovers();
+            races += buckets.level(level).rolloverRaces();
+        }
+        levels.put("rollovers", rollovers);
+        levels.put("rolloverRaces", races);
+
+        Map<String, Object> engine = new LinkedHashMap<>();
+        engine.put("add", addLatency.summary());
+        engine.put("addAll", addAllLatency.summary());
+        engine.put("aggregate", aggregateLatency.summary());
+        engine.put("readerLockWait", window.lockWaits().summary());
+
+        Map<String, Object> http = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, Endpoint>> byMethod : endpoints.entrySet()) {
+            for (Map.Entry<String, Endpoint> endpoint : byMethod.getValue().entrySet()) {
+                http.put(byMethod.getKey() + " " + endpoint.getKey(), endpoint.getValue().toMap());
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("transactions", transactions);
+        result.put("buckets", levels);
+        result.put("latency", engine);
+        result.put("endpoints", http);
+        return result;
+    }
+
+    /**
+     * The latency of an endpoint along with the number of responses that were errors
+     */
+    public static class Endpoint {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * Records a request
+         *
+         * @param startNanos System.nanoTime() of when the request came in
+         * @param status     HTTP status of the response
+         */
+        public void record(long startNanos, int status) {
+            latency.recordSince(startNanos);
+            if (status >= 400) {
+                errors.increment();
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> result = latency.summary();
+            result.put("errors", errors.sum());
+            return result;
+        }
+    }
+}
@@ -1,194 +1,476 @@
 package com.ju.tsa.service;
 
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.AmountBins;
+import com.ju.tsa.model.BucketState;
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.HistogramBin;
+import com.ju.tsa.model.KeyedAggregate;
+import com.ju.tsa.model.TopAmounts;
+import com.ju.tsa.model.TopTransaction;
 import com.ju.tsa.model.Transaction;
 import com.ju.tsa.model.TransactionAggregator;
+import com.ju.tsa.model.WindowLength;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+
+import java.math.BigDecimal;
 import java.time.Clock;
-import java.time.Instant;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 
 @Scope("singleton")
 @Service
 public class StatsService {
 
-    private static final int STATS_DURATION_MEASUREMENT_SECONDS = 60;
-    private static final int STATS_DURATION_MEASUREMENT_MILLIS = STATS_DURATION_MEASUREMENT_SECONDS * 1000;
+    /**
+     * Twice the cores, so two threads landing on the same stripe is the exception rather than the rule.
+     */
+    private static final int STRIPES = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static final Comparator<Transaction> BY_TIMESTAMP =
+            Comparator.comparingLong(Transaction::getEpochMillis);
 
     /**
-     * Array of aggregators. Each TransactionAggregator at a given position will handle
-     * all the transactions for a seconds worth of transactions
+     * Fine buckets for the recent past, coarser ones for the rest of the window. Each bucket knows which time span it
+     * belongs to, so there's no separate array of timestamps to keep in sync with the aggregators anymore.
      **/
-    private TransactionAggregator[] openTransactionAggregators = new TransactionAggregator[STATS_DURATION_MEASUREMENT_SECONDS];
+    private final TimingWheel buckets;
 
     /**
-     * Array of second based instants which are used to keep track of the indexing for openTransactionAggregators.
-     * This will be used to find the index matching the second portion of a transaction, to find the correct Aggregator
-     * for that second
-     **/
-    private Instant[] windowTimestamps = new Instant[STATS_DURATION_MEASUREMENT_SECONDS];
+     * Keeps the aggregates of the windows up to date as buckets change, so reading them doesn't mean merging all of
+     * the buckets
+     */
+    private final RollingWindow window;
+
+    /**
+     * Statistics per key, for the transactions which come with one
+     */
+    private final KeyedStats keyed;
+
+    private final StatsMetrics metrics;
 
     private final Clock timeKeeper;
 
+    /**
+     * The timeKeeper again if it's a CoarseClock, which needs a second opinion on transactions from the future
+     */
+    private final CoarseClock coarseClock;
+
+    /**
+     * Every window the stats are kept for, shortest first. They all share the same buckets.
+     */
+    private final List<WindowLength> windows;
+    private final WindowLength mainWindow;
+    private final int mainIndex;
+    private final long longestWindowMillis;
+    private final int scale;
+    private final int topK;
+    private final AmountBins histogramBins;
+
     public StatsService() {
-        this.timeKeeper = Clock.systemUTC();
+        this(Clock.systemUTC());
     }
 
     public StatsService(Clock timeKeeper) {
+        this(timeKeeper, new StatsProperties());
+    }
+
+    @Autowired
+    public StatsService(StatsProperties properties) {
+        this(properties.getClockTickMillis() > 0
+                ? new CoarseClock(Clock.systemUTC(), properties.getClockTickMillis()) : Clock.systemUTC(), properties);
+    }
+
+    public StatsService(Clock timeKeeper, StatsProperties properties) {
         this.timeKeeper = timeKeeper;
+        this.coarseClock = timeKeeper instanceof CoarseClock ? (CoarseClock) timeKeeper : null;
+        this.scale = properties.getScale();
+        this.topK = properties.getTopK();
+        StatsProperties.Histogram histogram = properties.getHistogram();
+        this.histogramBins = histogram.getBins() == 0 ? null
+                : new AmountBins(histogram.getBins(), histogram.getFirstBound(), histogram.getFactor(), scale);
+        this.mainWindow = WindowLength.ofMillis(properties.getWindowMillis());
+
+        TreeSet<WindowLength> lengths = new TreeSet<>();
+        lengths.add(mainWindow);
+        for (String length : properties.getWindows()) {
+            lengths.add(WindowLength.parse(length));
+        }
+        this.windows = Collections.unmodifiableList(new ArrayList<>(lengths));
+        this.mainIndex = windows.indexOf(mainWindow);
+        this.longestWindowMillis = lengths.last().getMillis();
+
+        long[] windowsMillis = new long[windows.size()];
+        for (int i = 0; i < windowsMillis.length; i++) {
+            windowsMillis[i] = windows.get(i).getMillis();
+        }
+        this.buckets = new TimingWheel(windowsMillis, properties.getBucketMillis(), properties.getWheelSize(), STRIPES,
+                properties.getScale(), properties.getPercentileAccuracy(), properties.getTopK(), histogramBins);
+        this.window = new RollingWindow(buckets, windowsMillis, properties.getScale());
+        // a key's buckets are never wider than the window itself
+        long keyBucketMillis = Math.min(properties.getKeys().getBucketMillis(), mainWindow.getMillis());
+        this.keyed = new KeyedStats(mainWindow.getMillis(), keyBucketMillis, properties.getKeys().getMaxBytes(),
+                properties.getScale());
+        this.metrics = new StatsMetrics(buckets, window);
     }
 
     /**
-     * Add a transaction to the stats. I guess this should be synchronised as it's the entry point to the stats logic.
+     * Stops the ticking of the clock, if it's a CoarseClock
+     */
+    @PreDestroy
+    public void stop() {
+        if (coarseClock != null) {
+            coarseClock.close();
+        }
+    }
+
+    /**
+     * Add a transaction to the stats. No need for synchronisation here anymore, the bucket rings take care of
+     * concurrent writers without blocking any of them.
      *
      * @param transaction Trx to be accumulated within the window
      */
-    public synchronized void add(Transaction transaction) {
-        if (fitsCurrentTimeSpan(transaction)) {
-            boolean windowCleaningNeeded = shouldTransactionCloseWindow(transaction);
-            //Close the window and, create a new aggregator in it's place
-            if (windowCleaningNeeded) {
-                resetAggregator(transaction);
+    public void add(Transaction transaction) {
+        long start = System.nanoTime();
+        long now = timeKeeper.millis();
+        StatsMetrics.Rejection rejection = checkTimeSpan(transaction.getEpochMillis(), now);
+        if (rejection != null) {
+            metrics.rejected(rejection, 1);
+        } else if (buckets.add(transaction)) {
+            metrics.accepted(1);
+            if (transaction.getKey() != null) {
+                keyed.add(transaction, now);
+            }
+        } else {
+            // the bucket already moved on while the transaction was on its way
+            metrics.rejected(StatsMetrics.Rejection.TOO_OLD, 1);
+        }
+        metrics.addLatency().recordSince(start);
+    }
+
+    /**
+     * Same as {@link #add(Transaction)} for a transaction without a key that comes as primitives, so nothing gets
+     * allocated on the way. The amount is given the way BigDecimal keeps it, as an unscaled value and a scale. Amounts
+     * that don't fit into the primitive aggregates as they are (more decimals than the configured scale, or huge)
+     * still go through a Transaction.
+     *
+     * @param unscaledAmount the amount without its decimal point, 1234 for 12.34
+     * @param amountScale    the number of decimals of the amount, 2 for 12.34
+     * @param epochMillis    the timestamp of the transaction
+     */
+    public void add(long unscaledAmount, int amountScale, long epochMillis) {
+        long start = System.nanoTime();
+        StatsMetrics.Rejection rejection = checkTimeSpan(epochMillis, timeKeeper.millis());
+        if (rejection != null) {
+            metrics.rejected(rejection, 1);
+        } else if (addUnits(unscaledAmount, amountScale, epochMillis)) {
+            metrics.accepted(1);
+        } else {
+            metrics.rejected(StatsMetrics.Rejection.TOO_OLD, 1);
+        }
+        metrics.addLatency().recordSince(start);
+    }
+
+    /**
+     * Same as {@link #addAll(List)} for a batch of transactions without keys that comes as primitives, like the
+     * binary TCP frames do. They're added in the order they come in, which is as good as sorted for producers sending
+     * what just happened.
+     *
+     * @param unscaledAmounts the amounts without their decimal point
+     * @param epochMillis     the timestamps
+     * @param count           how many of the array entries are part of the batch
+     * @param amountScale     the number of decimals of all the amounts
+     * @return how many of the transactions made it into the stats
+     */
+    public int addAll(long[] unscaledAmounts, long[] epochMillis, int count, int amountScale) {
+        long start = System.nanoTime();
+        long now = timeKeeper.millis();
+        int added = 0;
+        int tooOld = 0;
+        int inTheFuture = 0;
+        for (int i = 0; i < count; i++) {
+            StatsMetrics.Rejection rejection = checkTimeSpan(epochMillis[i], now);
+            if (rejection == StatsMetrics.Rejection.IN_THE_FUTURE) {
+                inTheFuture++;
+            } else if (rejection == null && addUnits(unscaledAmounts[i], amountScale, epochMillis[i])) {
+                added++;
+            } else {
+                tooOld++;
+            }
+        }
+
+        metrics.accepted(added);
+        metrics.rejected(StatsMetrics.Rejection.TOO_OLD, tooOld);
+        metrics.rejected(StatsMetrics.Rejection.IN_THE_FUTURE, inTheFuture);
+        metrics.addAllLatency().recordSince(start);
+        return added;
+    }
+
+    /**
+     * Add a whole batch of transactions in one go. The ones outside of the window are dropped, the rest gets sorted by
+     * timestamp so every bucket is looked up once per batch rather than once per transaction.
+     *
+     * @param transactions the batch, which gets filtered and reordered in the process, until only the transactions
+     *                     that made it into the stats are left
+     * @return how many of the transactions made it into the stats
+     */
+    public int addAll(List<Transaction> transactions) {
+        long start = System.nanoTime();
+        long now = timeKeeper.millis();
+        int kept = 0;
+        int tooOld = 0;
+        for (Transaction transaction : transactions) {
+            StatsMetrics.Rejection rejection = checkTimeSpan(transaction.getEpochMillis(), now);
+            if (rejection == null) {
+                transactions.set(kept++, transaction);
+            } else if (rejection == StatsMetrics.Rejection.TOO_OLD) {
+                tooOld++;
             }
+        }
+        int inTheFuture = transactions.size() - kept - tooOld;
+        transactions.subList(kept, transactions.size()).clear();
 
-            updateWindowTimestamp(transaction);
-            setAggregatorForTransaction(transaction, getWindowForTransaction(transaction).append(transaction));
+        transactions.sort(BY_TIMESTAMP);
+        int added = buckets.addAll(transactions);
+        // only the ones that landed are left, the keys don't get what the global statistics turned down
+        for (Transaction transaction : transactions) {
+            if (transaction.getKey() != null) {
+                keyed.add(transaction, now);
+            }
         }
 
+        metrics.accepted(added);
+        metrics.rejected(StatsMetrics.Rejection.TOO_OLD, tooOld + kept - added);
+        metrics.rejected(StatsMetrics.Rejection.IN_THE_FUTURE, inTheFuture);
+        metrics.addAllLatency().recordSince(start);
+        return added;
     }
 
     /**
-     * Return the accumulated aggregator. This means that a list of open windows and corresponding sub-aggregators
-     * needs to be fetched
+     * Return the accumulated aggregator. The rolling window only needs to catch up with the buckets that changed or
+     * expired since the last call, so this doesn't depend on the number of buckets.
      *
      * @return a single TransactionAggregator which will represent the accumulated data from subsequent aggregators that
      * hold aggregated data
      */
     public TransactionAggregator aggregate() {
-        return TransactionAggregator.flatten(getOpenTransactionAggregators());
+        long start = System.nanoTime();
+        TransactionAggregator aggregate = window.aggregate(mainIndex, timeKeeper.millis());
+        metrics.aggregateLatency().recordSince(start);
+        return aggregate;
     }
 
     /**
-     * Returns the list of Aggregators that belong to open windows.
+     * The buckets the main window is made of right now, for merging with the buckets of other nodes
      *
-     * @return TransactionAggregator belonging to windows that have been started and whose timestamps are no more than
-     * 60 seconds old
+     * @return the buckets with any transactions in them, oldest first
      */
-    private List<TransactionAggregator> getOpenTransactionAggregators() {
-        /*
-         *We're talking millis here. I want to cache time now, so all elements in a list have the sam information
-         *on when the window started, just in case the calculation is slower due to something else slowing down the CPU
-         *It might happen, that this is triggered at millis *999, and if i recalculate the windowStart inside, then the
-         *seconds portion of the Instant(which is the index of the array) might be bumped up. That would make me very sad.
-         */
-        Instant windowStart = Instant.from(timeKeeper.instant()).minusMillis(STATS_DURATION_MEASUREMENT_MILLIS);
+    public List<BucketState> exportBuckets() {
+        return window.buckets(mainIndex, timeKeeper.millis());
+    }
 
-        // Since i'm iterating, let's make it a Linked list
-        LinkedList<TransactionAggregator> openWindowsWithAggregators = new LinkedList<>();
+    /**
+     * Same as {@link #aggregate()}, just for any of the windows the stats are kept for
+     *
+     * @param length the length of the window
+     * @return the aggregate of the window
+     * @throws IllegalArgumentException if there's no such window
+     */
+    public TransactionAggregator aggregate(WindowLength length) {
+        int index = windows.indexOf(length);
+        if (index < 0) {
+            throw new IllegalArgumentException("no statistics are kept for a window of " + length);
+        }
+        long start = System.nanoTime();
+        TransactionAggregator aggregate = window.aggregate(index, timeKeeper.millis());
+        metrics.aggregateLatency().recordSince(start);
+        return aggregate;
+    }
 
-        for (int i = 0; i < openTransactionAggregators.length; i++) {
-            TransactionAggregator transactionAggregator = openTransactionAggregators[i];
+    /**
+     * The aggregate of the last so many millis, which don't need to be one of the windows. It's a few range queries
+     * on the same trees the windows use, so it costs about as much as a window nobody asked for in a while.
+     *
+     * @param lastMillis how far back to go
+     * @return the aggregate of the span
+     * @throws IllegalArgumentException if the span isn't positive or longer than the longest window
+     */
+    public TransactionAggregator aggregateLast(long lastMillis) {
+        if (lastMillis <= 0 || lastMillis > longestWindowMillis) {
+            throw new IllegalArgumentException("can only go back up to " + longestWindowMillis + "ms, got "
+                    + lastMillis + "ms");
+        }
+        long start = System.nanoTime();
+        TransactionAggregator aggregate = window.aggregateLast(lastMillis, timeKeeper.millis());
+        metrics.aggregateLatency().recordSince(start);
+        return aggregate;
+    }
 
-            if (transactionAggregator != null && windowTimestamps[i].isAfter(windowStart)) {
-                openWindowsWithAggregators.push(transactionAggregator);
-            }
+    /**
+     * Returns the aggregates of all the windows, all of them as of the same moment
+     *
+     * @return the aggregate of every window, shortest window first
+     */
+    public Map<WindowLength, TransactionAggregator> aggregateAll() {
+        long start = System.nanoTime();
+        TransactionAggregator[] aggregates = window.aggregateAll(timeKeeper.millis());
+        metrics.aggregateLatency().recordSince(start);
+        Map<WindowLength, TransactionAggregator> result = new LinkedHashMap<>();
+        for (int i = 0; i < aggregates.length; i++) {
+            result.put(windows.get(i), aggregates[i]);
         }
+        return result;
+    }
 
-        return openWindowsWithAggregators;
+    /**
+     * The histogram of the amounts of a window. Every bucket counts its amounts in the same bins, so the histogram of
+     * the window is merged along the segment trees just like the sums.
+     *
+     * @param length the length of the window
+     * @return the bins with their counts, lowest first, or null if the amounts aren't counted
+     * @throws IllegalArgumentException if there's no such window
+     */
+    public List<HistogramBin> histogram(WindowLength length) {
+        int index = windows.indexOf(length);
+        if (index < 0) {
+            throw new IllegalArgumentException("no statistics are kept for a window of " + length);
+        }
+        if (histogramBins == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long[] counts = window.histogram(index, timeKeeper.millis());
+        metrics.aggregateLatency().recordSince(start);
+        return histogramBins.toBins(counts);
     }
 
     /**
-     * Now... If the transaction timestamp is before the time the timeKepper says it is, but still in range
-     * we're interested in (60 secs) or, the transaction is definitely not in a galaxy far far away where the
-     * time space continuum is completely broken, we're interested in it's data.
+     * Finds the largest transactions of the main window. Every bucket keeps its own top K, so the k largest of the
+     * window are among the ones the buckets kept, as long as k isn't more than K.
      *
-     * @param transaction the Transaction we're testing
-     * @return true if the Transaction.timestamp is in our time span of interest, false otherwise
+     * @param k how many transactions to return at most
+     * @return the largest transactions of the window, largest first
+     * @throws IllegalArgumentException if k is less than 1 or more than the buckets keep
      */
-    private boolean fitsCurrentTimeSpan(Transaction transaction) {
-        Instant currentTimekeeperInstant = timeKeeper.instant();
-        Instant trxInstant = transaction.getTransactionTimestamp();
-        boolean isTransactionInFuture = trxInstant.isBefore(currentTimekeeperInstant);
-        boolean isTransactionTooFarBehind = currentTimekeeperInstant.minusMillis(STATS_DURATION_MEASUREMENT_MILLIS).isAfter(trxInstant);
-        return isTransactionInFuture || isTransactionTooFarBehind;
+    public List<TopTransaction> topTransactions(int k) {
+        if (k < 1 || k > topK) {
+            throw new IllegalArgumentException(topK == 0 ? "the largest transactions aren't kept"
+                    : "k must be between 1 and " + topK + ", got " + k);
+        }
+        TopAmounts top = new TopAmounts(k);
+        window.top(mainIndex, timeKeeper.millis(), top);
+        return top.toList(scale);
     }
 
+    /**
+     * Returns the aggregate of the main window for a single key
+     *
+     * @param key the key
+     * @return the aggregate of the key, or null if there's nothing kept for it, either because it never showed up or
+     * because it was evicted to make room for other keys
+     */
+    public TransactionAggregator aggregateByKey(String key) {
+        return keyed.aggregate(key, timeKeeper.millis());
+    }
 
     /**
-     * If the given transaction is the one opening the window (null case) or the transaction coming is way to old for our
-     * liking, this method will tell us that. Basically it's purpose is to notify it's caller that it's time to reset the
-     * aggregator for the index in question
+     * Finds the keys with the largest sums in the main window
      *
-     * @param transaction the inbound Transaction
-     * @return true if current window for the transaction second portion is empty, or the window for the transaction
-     * doesn't match the window the transaction should be in
+     * @param limit how many keys to return at most
+     * @return the keys with the largest sums, largest first
      */
-    private boolean shouldTransactionCloseWindow(Transaction transaction) {
-        return getWindowForTransaction(transaction) == null
-                || getSecondsKeyForTransaction(transaction) != transaction.strippedMillis().getEpochSecond();
+    public List<KeyedAggregate> topKeysBySum(int limit) {
+        return keyed.topBySum(limit, timeKeeper.millis());
     }
 
     /**
-     * Returns the aggregator at a second index. For example, if the transaction occurred at 11:32:45, this will return
-     * the Aggregator at position 45 of the aggregators list.
+     * Gets the metrics
      *
-     * @param transaction the inbound Transaction
-     * @return the TransactionAggregator responsible for a given second of a transaction
+     * @return the counters and latencies of the engine
      */
-    private TransactionAggregator getWindowForTransaction(Transaction transaction) {
-        return openTransactionAggregators[getWindowIndexForTransaction(transaction)];
+    public StatsMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Returns the timestamp in seconds responsible for the inbound Transaction
+     * Gets the windows
      *
-     * @param transaction the Transaction for which the second based timestamp needs to be evaluated
-     * @return the timestamp up to seconds at an index for this transaction
+     * @return every window the stats are kept for, shortest first
      */
-    private long getSecondsKeyForTransaction(Transaction transaction) {
-        return windowTimestamps[getWindowIndexForTransaction(transaction)].getEpochSecond();
+    public List<WindowLength> getWindows() {
+        return windows;
     }
 
     /**
-     * This will give me the index in the array, based on seconds. E.g. if a trx occurred at 12:34:21, then the index
-     * will be 21
+     * Gets the main window, the one configured with `tsa.stats.window-millis`
      *
-     * @param transaction the inbound Transaction
-     * @return a number between 0 and 59 representing the window index which will handle the aggregation
+     * @return the window served when nobody asks for a particular one
      */
-    private int getWindowIndexForTransaction(Transaction transaction) {
-        return (int) (transaction.strippedMillis().getEpochSecond()) % STATS_DURATION_MEASUREMENT_SECONDS;
+    public WindowLength getMainWindow() {
+        return mainWindow;
     }
 
     /**
-     * Set the seconds timestamp at a given index from an inbound Transaction
+     * Gets the buckets, for the ones persisting them
      *
-     * @param transaction the Transaction which is opening a new window
+     * @return the timing wheel all transactions go into
      */
-    private void updateWindowTimestamp(Transaction transaction) {
-        windowTimestamps[getWindowIndexForTransaction(transaction)] = transaction.strippedMillis();
+    TimingWheel wheel() {
+        return buckets;
     }
 
     /**
-     * Set's an aggregator for a window to which the inbound Transaction belongs to
+     * Gets the clock
      *
-     * @param transaction           inbound Transaction
-     * @param transactionAggregator the TransactionAggregator to be responsible at evaluated index for a given Transaction
+     * @return what tells the time for everything in here
      */
-    private void setAggregatorForTransaction(Transaction transaction, TransactionAggregator transactionAggregator) {
-        openTransactionAggregators[getWindowIndexForTransaction(transaction)] = transactionAggregator;
+    Clock timeKeeper() {
+        return timeKeeper;
     }
 
     /**
-     * Sets a new TransactionAggregator for a Transaction
+     * Puts an amount given as primitives into the buckets, through a Transaction only if it doesn't fit into the
+     * primitive aggregates as it is
+     */
+    private boolean addUnits(long unscaledAmount, int amountScale, long epochMillis) {
+        long units = FixedPointAggregator.unitsOf(unscaledAmount, amountScale, scale);
+        if (units == FixedPointAggregator.NO_UNITS) {
+            return buckets.add(new Transaction(BigDecimal.valueOf(unscaledAmount, amountScale), epochMillis));
+        }
+        return buckets.add(units, amountScale, epochMillis);
+    }
+
+    /**
+     * Now... If the transaction timestamp is before the time the timeKepper says it is, but still in range
+     * we're interested in (the longest window, 60 secs unless configured otherwise), we're interested in it's data.
+     * Transactions from a galaxy far far away where the time space continuum is completely broken are ignored.
+     *
+     * It's all plain epoch millis, so checking doesn't allocate any Instants. With a CoarseClock the time can be a tick
+     * behind, so a transaction from that tick is only taken for one from the future once the source clock agrees.
      *
-     * @param transaction the inbound Transaction
+     * @param trxMillis             the timestamp of the Transaction we're testing
+     * @param currentTimekeeperMillis what the timeKeeper says it is
+     * @return null if the Transaction.timestamp is in our time span of interest, otherwise the reason it isn't
      */
-    private void resetAggregator(Transaction transaction) {
-        setAggregatorForTransaction(transaction, new TransactionAggregator());
+    private StatsMetrics.Rejection checkTimeSpan(long trxMillis, long currentTimekeeperMillis) {
+        if (trxMillis >= currentTimekeeperMillis
+                && (coarseClock == null || trxMillis >= coarseClock.preciseMillis())) {
+            return StatsMetrics.Rejection.IN_THE_FUTURE;
+        }
+        if (currentTimekeeperMillis - longestWindowMillis > trxMillis) {
+            return StatsMetrics.Rejection.TOO_OLD;
+        }
+        return null;
     }
 
 }
@@ -0,0 +1,178 @@
+package com.ju.tsa.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.StatsSnapshot;
+import com.ju.tsa.model.TransactionAggregator;
+import com.ju.tsa.model.WindowLength;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the statistics of every window as an immutable snapshot, JSON included, through a volatile reference. With
+ * the snapshot mode enabled a background thread re-publishes every `refresh-millis`, and readers only pay for reading a
+ * reference. Whenever the published snapshot is older than `max-staleness-millis`, the reader takes a fresh one itself.
+ * With the snapshot mode disabled every reader takes a fresh one, so a read always sees every write that came before
+ * it.
+ */
+@Service
+public class StatsSnapshotPublisher {
+
+    private final StatsService statsService;
+    private final ObjectMapper objectMapper;
+    private final StatsProperties.Snapshot settings;
+    private final Clock timeKeeper;
+
+    /**
+     * The snapshots of all the windows, taken at the same moment, shortest window first
+     */
+    private volatile Map<WindowLength, StatsSnapshot> published;
+    private ScheduledExecutorService refresher;
+
+    @Autowired
+    public StatsSnapshotPublisher(StatsService statsService, ObjectMapper objectMapper, StatsProperties properties) {
+        this(statsService, objectMapper, properties, Clock.systemUTC());
+    }
+
+    public StatsSnapshotPublisher(StatsService statsService, ObjectMapper objectMapper, StatsProperties properties,
+                                  Clock timeKeeper) {
+        this.statsService = statsService;
+        this.objectMapper = objectMapper;
+        this.settings = properties.getSnapshot();
+        this.timeKeeper = timeKeeper;
+    }
+
+    /**
+     * Starts the background refresh, if the snapshot mode is enabled
+     */
+    @PostConstruct
+    public void start() {
+        if (!settings.isEnabled()) {
+            return;
+        }
+
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-snapshot-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleAtFixedRate(this::publish, 0, settings.getRefreshMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the published snapshot of the main window if it's fresh enough, otherwise takes and publishes a new one.
+     *
+     * @return a snapshot no older than `max-staleness-millis`
+     */
+    public StatsSnapshot current() {
+        return currentAll().get(statsService.getMainWindow());
+    }
+
+    /**
+     * Same as {@link #current()}, just for any of the windows
+     *
+     * @param window the length of the window
+     * @return a snapshot of the window no older than `max-staleness-millis`
+     * @throws IllegalArgumentException if no statistics are kept for that window
+     */
+    public StatsSnapshot current(WindowLength window) {
+        StatsSnapshot snapshot = currentAll().get(window);
+        if (snapshot == null) {
+            throw new IllegalArgumentException("no statistics are kept for a window of " + window);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the published snapshots of every window if they're fresh enough, otherwise takes and publishes new ones.
+     * With the snapshot mode disabled they're never fresh enough.
+     *
+     * @return the snapshots, shortest window first, all of them taken at the same moment
+     */
+    public Map<WindowLength, StatsSnapshot> currentAll() {
+        Map<WindowLength, StatsSnapshot> snapshots = published;
+        if (settings.isEnabled() && snapshots != null
+                && ageOf(snapshots.values().iterator().next()) <= settings.getMaxStalenessMillis()) {
+            return snapshots;
+        }
+        return publishAll();
+    }
+
+    /**
+     * Tells how old the published snapshot is
+     *
+     * @return age of the last published snapshot in millis, or -1 if nothing was published yet
+     */
+    public long snapshotAgeMillis() {
+        Map<WindowLength, StatsSnapshot> snapshots = published;
+        return snapshots == null ? -1 : ageOf(snapshots.values().iterator().next());
+    }
+
+    /**
+     * Tells how old a snapshot is
+     *
+     * @param snapshot the snapshot
+     * @return age of the snapshot in millis
+     */
+    public long ageOf(StatsSnapshot snapshot) {
+        return Math.max(0, timeKeeper.millis() - snapshot.getTakenAtMillis());
+    }
+
+    /**
+     * Takes a snapshot of the statistics and publishes it
+     *
+     * @return the new snapshot of the main window
+     */
+    StatsSnapshot publish() {
+        return publishAll().get(statsService.getMainWindow());
+    }
+
+    private Map<WindowLength, StatsSnapshot> publishAll() {
+        long now = timeKeeper.millis();
+        Map<WindowLength, StatsSnapshot> previous = published;
+        Map<WindowLength, StatsSnapshot> snapshots = new LinkedHashMap<>();
+
+        for (Map.Entry<WindowLength, TransactionAggregator> entry : statsService.aggregateAll().entrySet()) {
+            TransactionAggregator aggregate = entry.getValue();
+            StatsSnapshot snapshot = previous == null ? null : previous.get(entry.getKey());
+            // the rolling window hands out the very same aggregate while nothing changes, no need to serialize it again
+            if (snapshot == null || snapshot.getAggregate() != aggregate) {
+                snapshot = new StatsSnapshot(aggregate, serialize(aggregate), now);
+            } else {
+                snapshot = new StatsSnapshot(aggregate, snapshot.getJson(), now);
+            }
+            snapshots.put(entry.getKey(), snapshot);
+        }
+
+        Map<WindowLength, StatsSnapshot> result = Collections.unmodifiableMap(snapshots);
+        published = result;
+        return result;
+    }
+
+    private byte[] serialize(TransactionAggregator aggregate) {
+        try {
+            return objectMapper.writeValueAsBytes(aggregate);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
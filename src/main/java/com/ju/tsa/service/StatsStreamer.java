@@ -0,0 +1,292 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.StatsSnapshot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes the statistics of the main window to any number of Server-Sent Events subscribers, so dashboards don't have
+ * to poll. Every tick-millis the current snapshot is taken from the StatsSnapshotPublisher and, if its JSON is any
+ * different from the last one, turned into a single event frame, bytes and all, which then goes out to everybody as
+ * it is. While nothing changes nothing is sent, apart from a heartbeat comment every heartbeat-millis, which keeps
+ * proxies from closing the connection and finds the subscribers that are gone.
+ * <p>
+ * The sending is done by a few sender threads, with at most one frame on its way per subscriber. A subscriber that is
+ * still busy with one when a newer one is due simply misses that one, and once it missed more than max-missed-ticks in
+ * a row it is dropped, so a slow consumer never costs more than a sender thread for a few ticks.
+ * <p>
+ * The subscribers are plain ResponseBodyEmitters of text/event-stream rather than SseEmitters, since the frames are
+ * already events. An SseEmitter would wrap them into another `data:` line, and build that anew for every subscriber.
+ */
+@Service
+public class StatsStreamer {
+
+    private static final Frame HEARTBEAT = new Frame(null, ":\n\n".getBytes(StandardCharsets.UTF_8));
+
+    private final StatsSnapshotPublisher snapshotPublisher;
+    private final StatsProperties.Stream settings;
+    private final ExecutorService senders;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder suppressedTicks = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * The frame with the latest statistics, only replaced when they changed
+     */
+    private volatile Frame latest;
+
+    private ScheduledExecutorService ticker;
+
+    @Autowired
+    public StatsStreamer(StatsSnapshotPublisher snapshotPublisher, StatsProperties properties) {
+        this.snapshotPublisher = snapshotPublisher;
+        this.settings = properties.getStream();
+        this.senders = Executors.newFixedThreadPool(settings.getSenderThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "stats-stream-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts ticking
+     */
+    @PostConstruct
+    public void start() {
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-streamer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, settings.getTickMillis(), settings.getTickMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops ticking and ends every stream
+     */
+    @PreDestroy
+    public void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+        for (Subscriber subscriber : subscribers) {
+            unsubscribe(subscriber);
+            subscriber.close();
+        }
+        senders.shutdownNow();
+    }
+
+    /**
+     * Adds a subscriber, which gets the current statistics right away and every change after that
+     *
+     * @param emitter the stream of the subscriber, with a content type of text/event-stream
+     * @return false if there are max-subscribers already, in which case the emitter is left alone
+     */
+    public boolean subscribe(ResponseBodyEmitter emitter) {
+        if (subscriberCount.incrementAndGet() > settings.getMaxSubscribers()) {
+            subscriberCount.decrementAndGet();
+            return false;
+        }
+        Subscriber subscriber = new Subscriber(emitter);
+        subscribers.add(subscriber);
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+
+        StatsSnapshot snapshot = snapshotPublisher.current();
+        subscriber.offer(refresh(snapshot), snapshot.getTakenAtMillis());
+        return true;
+    }
+
+    /**
+     * Sends the latest statistics to every subscriber that doesn't have them yet, or a heartbeat if it's time for one,
+     * and drops the subscribers that keep on being busy
+     */
+    void tick() {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        StatsSnapshot snapshot = snapshotPublisher.current();
+        long now = snapshot.getTakenAtMillis();
+        Frame frame = refresh(snapshot);
+
+        boolean sent = false;
+        for (Subscriber subscriber : subscribers) {
+            Frame due = subscriber.delivered != frame ? frame
+                    : now - subscriber.sentAtMillis >= settings.getHeartbeatMillis() ? HEARTBEAT : null;
+            if (due == null) {
+                continue;
+            }
+            sent = true;
+            if (subscriber.offer(due, now)) {
+                subscriber.missedTicks = 0;
+            } else if (++subscriber.missedTicks > settings.getMaxMissedTicks()) {
+                unsubscribe(subscriber);
+                dropped.increment();
+                subscriber.close();
+            }
+        }
+
+        if (!sent) {
+            suppressedTicks.increment();
+        }
+    }
+
+    /**
+     * Tells how many are subscribed
+     *
+     * @return the number of subscribers
+     */
+    public int subscribers() {
+        return subscriberCount.get();
+    }
+
+    /**
+     * Tells how many different statistics were streamed
+     *
+     * @return the number of frames made, each of which went to every subscriber
+     */
+    public long events() {
+        return events.sum();
+    }
+
+    /**
+     * Tells how many ticks didn't send anything, because nothing changed
+     *
+     * @return the number of ticks without anything to send
+     */
+    public long suppressedTicks() {
+        return suppressedTicks.sum();
+    }
+
+    /**
+     * Tells how many subscribers were dropped for being too slow
+     *
+     * @return the number of dropped subscribers
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Makes a new frame out of the snapshot if its JSON differs from the latest one
+     *
+     * @return the frame with the statistics of the snapshot
+     */
+    private synchronized Frame refresh(StatsSnapshot snapshot) {
+        Frame frame = latest;
+        if (frame == null || !Arrays.equals(frame.json, snapshot.getJson())) {
+            frame = Frame.of(snapshot.getJson());
+            latest = frame;
+            events.increment();
+        }
+        return frame;
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            subscriberCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * A subscriber with the frame it was sent last
+     */
+    private final class Subscriber {
+        private final ResponseBodyEmitter emitter;
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private volatile Frame delivered;
+        private volatile boolean closed;
+        private volatile long sentAtMillis;
+        private int missedTicks;
+
+        private Subscriber(ResponseBodyEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        /**
+         * Hands the frame to a sender thread, unless the last one is still on its way
+         *
+         * @return false if the subscriber is still busy
+         */
+        private boolean offer(Frame frame, long nowMillis) {
+            if (!busy.compareAndSet(false, true)) {
+                return false;
+            }
+            sentAtMillis = nowMillis;
+            if (frame != HEARTBEAT) {
+                delivered = frame;
+            }
+            senders.execute(() -> {
+                try {
+                    emitter.send(frame.bytes, MediaType.TEXT_EVENT_STREAM);
+                } catch (IOException | IllegalStateException e) {
+                    // the subscriber is gone, or its stream is over already, either way nothing more gets sent
+                    closed = true;
+                    unsubscribe(this);
+                    emitter.completeWithError(e);
+                    return;
+                }
+                busy.set(false);
+                if (closed && busy.compareAndSet(false, true)) {
+                    emitter.complete();
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Ends the stream. A send that's still going holds the lock of the emitter, so then it's the sender thread
+         * that ends it, once it's done, rather than the caller waiting for it.
+         */
+        private void close() {
+            closed = true;
+            if (busy.compareAndSet(false, true)) {
+                emitter.complete();
+            }
+        }
+    }
+
+    /**
+     * An event already turned into the bytes of the stream, which can be sent any number of times
+     */
+    private static final class Frame {
+        private final byte[] json;
+        private final byte[] bytes;
+
+        private Frame(byte[] json, byte[] bytes) {
+            this.json = json;
+            this.bytes = bytes;
+        }
+
+        private static Frame of(byte[] json) {
+            byte[] bytes = new byte[5 + json.length + 2];
+            System.arraycopy("data:".getBytes(StandardCharsets.UTF_8), 0, bytes, 0, 5);
+            System.arraycopy(json, 0, bytes, 5, json.length);
+            bytes[bytes.length - 2] = '\n';
+            bytes[bytes.length - 1] = '\n';
+            return new Frame(json, bytes);
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.AmountBins;
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.TopAmounts;
+import com.ju.tsa.model.Transaction;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The lock-free replacement for the two arrays StatsService used to keep. There's one slot per bucket, and every slot
+ * holds a Bucket tagged with the index of the time span it covers (the epoch millis divided by the bucket width, so
+ * with one second buckets that's simply the epoch second). The bucket is split into stripes so threads hammering the
+ * same bucket don't fight over the same counters.
+ * <p>
+ * Rolling a slot over to a newer bucket is a single compareAndSet on the slot, so a reader either sees the whole old
+ * bucket or the whole new one. Each stripe is a FixedPointAggregator which is updated in place, so the only
+ * allocations on the write path are the new bucket and its stripes, once per bucket width.
+ */
+class StripedBucketRing {
+
+    /**
+     * What {@link #snapshot(int, FixedPointAggregator)} returns for a slot nobody wrote to yet
+     */
+    static final long EMPTY_SLOT = Long.MIN_VALUE;
+
+    /**
+     * Gets the buckets that are rolled out of the ring
+     */
+    interface ExpiryListener {
+        /**
+         * Called by the thread that rolled the slot over, so this better be quick
+         *
+         * @param index      the index of the bucket that's gone
+         * @param aggregates what the bucket held, without percentiles
+         */
+        void expired(long index, FixedPointAggregator aggregates);
+    }
+
+    private final AtomicReferenceArray<Bucket> slots;
+    private final DirtySlots dirtySlots;
+
+    /**
+     * The slots that changed since they were last persisted, only tracked once somebody persists them
+     */
+    private volatile DirtySlots unpersisted;
+
+    /**
+     * Told about every bucket that's rolled out, if anybody wants to know
+     */
+    private volatile ExpiryListener expiryListener;
+    private final long bucketMillis;
+    private final int stripeMask;
+    private final int scale;
+    private final double percentileAccuracy;
+    private final int topK;
+    private final AmountBins histogramBins;
+
+    /**
+     * How often a slot was rolled over to a newer bucket, and how often a thread lost the race to do that
+     */
+    private final LongAdder rollovers = new LongAdder();
+    private final LongAdder rolloverRaces = new LongAdder();
+
+    /**
+     * @param slotCount    number of slots in the ring
+     * @param bucketMillis the time span a single bucket covers
+     * @param stripeCount  number of stripes per bucket, rounded up to a power of two
+     * @param scale        decimal places kept by the primitive aggregators
+     */
+    StripedBucketRing(int slotCount, long bucketMillis, int stripeCount, int scale) {
+        this(slotCount, bucketMillis, stripeCount, scale, 0);
+    }
+
+    /**
+     * @param slotCount          number of slots in the ring
+     * @param bucketMillis       the time span a single bucket covers
+     * @param stripeCount        number of stripes per bucket, rounded up to a power of two
+     * @param scale              decimal places kept by the primitive aggregators
+     * @param percentileAccuracy relative accuracy of the percentile sketches of the buckets, or 0 for none
+     */
+    StripedBucketRing(int slotCount, long bucketMillis, int stripeCount, int scale, double percentileAccuracy) {
+        this(slotCount, bucketMillis, stripeCount, scale, percentileAccuracy, 0);
+    }
+
+    /**
+     * @param slotCount          number of slots in the ring
+     * @param bucketMillis       the time span a single bucket covers
+     * @param stripeCount        number of stripes per bucket, rounded up to a power of two
+     * @param scale              decimal places kept by the primitive aggregators
+     * @param percentileAccuracy relative accuracy of the percentile sketches of the buckets, or 0 for none
+     * @param topK               how many of the largest transactions every bucket keeps, or 0 for none
+     */
+    StripedBucketRing(int slotCount, long bucketMillis, int stripeCount, int scale, double percentileAccuracy,
+                      int topK) {
+        this(slotCount, bucketMillis, stripeCount, scale, percentileAccuracy, topK, null);
+    }
+
+    /**
+     * @param slotCount          number of slots in the ring
+     * @param bucketMillis       the time span a single bucket covers
+     * @param stripeCount        number of stripes per bucket, rounded up to a power of two
+     * @param scale              decimal places kept by the primitive aggregators
+     * @param percentileAccuracy relative accuracy of the percentile sketches of the buckets, or 0 for none
+     * @param topK               how many of the largest transactions every bucket keeps, or 0 for none
+     * @param histogramBins      the bins the buckets count the amounts in, or null for none
+     */
+    StripedBucketRing(int slotCount, long bucketMillis, int stripeCount, int scale, double percentileAccuracy,
+                      int topK, AmountBins histogramBins) {
+        this.slots = new AtomicReferenceArray<>(slotCount);
+        this.dirtySlots = new DirtySlots(slotCount);
+        this.bucketMillis = bucketMillis;
+        this.stripeMask = powerOfTwoAtLeast(stripeCount) - 1;
+        this.scale = scale;
+        this.percentileAccuracy = percentileAccuracy;
+        this.topK = topK;
+        this.histogramBins = histogramBins;
+    }
+
+    /**
+     * Adds the transaction to its bucket. If the slot still holds an older bucket, it's rolled over first. If the slot
+     * already moved on to a newer bucket, the transaction is too old for this ring and gets dropped.
+     *
+     * @param transaction the inbound Transaction
+     * @return true if the transaction landed in a bucket
+     */
+    boolean add(Transaction transaction) {
+        long index = indexOf(transaction);
+        Bucket bucket = bucketFor(index);
+        if (bucket == null) {
+            return false;
+        }
+
+        bucket.append(currentStripe(), transaction);
+        markChanged(slotFor(index));
+        return true;
+    }
+
+    /**
+     * Same as {@link #add(Transaction)} for a transaction given as primitives
+     *
+     * @param units       the amount in minor units of the scale of the aggregates
+     * @param amountScale the scale the amount came in with
+     * @param epochMillis the timestamp of the transaction
+     * @return true if the transaction landed in a bucket
+     */
+    boolean add(long units, int amountScale, long epochMillis) {
+        long index = indexOf(epochMillis);
+        Bucket bucket = bucketFor(index);
+        if (bucket == null) {
+            return false;
+        }
+
+        bucket.stripe(currentStripe()).appendUnits(units, amountScale);
+        if (bucket.top != null) {
+            bucket.top.offer(units, epochMillis);
+        }
+        markChanged(slotFor(index));
+        return true;
+    }
+
+    /**
+     * Adds a batch of transactions, looking up (and rolling over) each bucket only once for all the transactions of
+     * the same bucket.
+     *
+     * @param transactions the transactions to be added, sorted by their timestamp
+     * @param dropRejected whether to take the transactions that didn't land out of the list, keeping the order of
+     *                     the rest
+     * @return the number of transactions that landed in a bucket
+     */
+    int addAll(List<Transaction> transactions, boolean dropRejected) {
+        int stripe = currentStripe();
+        int added = 0;
+        int runStart = 0;
+
+        while (runStart < transactions.size()) {
+            long index = indexOf(transactions.get(runStart));
+            int runEnd = runStart + 1;
+            while (runEnd < transactions.size() && indexOf(transactions.get(runEnd)) == index) {
+                runEnd++;
+            }
+
+            Bucket bucket = bucketFor(index);
+            if (bucket != null) {
+                for (int i = runStart; i < runEnd; i++) {
+                    Transaction transaction = transactions.get(i);
+                    bucket.append(stripe, transaction);
+                    if (dropRejected) {
+                        transactions.set(added, transaction);
+                    }
+                    added++;
+                }
+                markChanged(slotFor(index));
+            }
+            runStart = runEnd;
+        }
+
+        if (dropRejected) {
+            transactions.subList(added, transactions.size()).clear();
+        }
+        return added;
+    }
+
+    /**
+     * Merges restored state into the bucket it belongs to, the same way adding transactions would
+     *
+     * @param index    the bucket index
+     * @param restored the restored aggregates of the bucket
+     * @param largest  the restored largest transactions of the bucket, or null if there are none
+     * @return false if the slot already moved on to a newer bucket
+     */
+    boolean restore(long index, FixedPointAggregator restored, TopAmounts largest) {
+        Bucket bucket = bucketFor(index);
+        if (bucket == null) {
+            return false;
+        }
+
+        bucket.stripe(currentStripe()).merge(restored);
+        if (largest != null && bucket.top != null) {
+            bucket.top.merge(largest);
+        }
+        markChanged(slotFor(index));
+        return true;
+    }
+
+    /**
+     * Starts keeping track of the slots that change, for {@link #drainUnpersisted(DirtySlots.Visitor)}
+     */
+    void trackUnpersisted() {
+        if (unpersisted == null) {
+            unpersisted = new DirtySlots(slots.length());
+        }
+    }
+
+    /**
+     * Hands every slot written to since the last call to the visitor, independently of
+     * {@link #drainChanges(DirtySlots.Visitor)}. Only works once {@link #trackUnpersisted()} was called.
+     *
+     * @param visitor gets the slots that changed
+     */
+    void drainUnpersisted(DirtySlots.Visitor visitor) {
+        unpersisted.drain(visitor);
+    }
+
+    /**
+     * Lets the listener know about every bucket that's rolled out of the ring from now on. Writers that still hold the
+     * old bucket while it's rolled out can get their transaction into it after the listener has seen it.
+     *
+     * @param listener gets the buckets that are rolled out
+     */
+    void onExpiry(ExpiryListener listener) {
+        this.expiryListener = listener;
+    }
+
+    private void markChanged(int slot) {
+        dirtySlots.mark(slot);
+        DirtySlots persisting = unpersisted;
+        if (persisting != null) {
+            persisting.mark(slot);
+        }
+    }
+
+    /**
+     * Finds a bucket, rolling the slot over if it still belongs to an older bucket.
+     *
+     * @param index the bucket index
+     * @return the bucket, or null if the slot already moved on to a newer bucket
+     */
+    private Bucket bucketFor(long index) {
+        int slot = slotFor(index);
+
+        Bucket bucket = slots.get(slot);
+        while (bucket == null || bucket.index < index) {
+            Bucket rolled = new Bucket(index, stripeMask + 1, scale, percentileAccuracy, topK,
+                    histogramBins);
+            if (slots.compareAndSet(slot, bucket, rolled)) {
+                rollovers.increment();
+                ExpiryListener listener = expiryListener;
+                if (listener != null && bucket != null) {
+                    FixedPointAggregator expired = new FixedPointAggregator(scale);
+                    bucket.mergeInto(expired);
+                    listener.expired(bucket.index, expired);
+                }
+                bucket = rolled;
+            } else {
+                rolloverRaces.increment();
+                bucket = slots.get(slot);
+            }
+        }
+
+        return bucket.index == index ? bucket : null;
+    }
+
+    /**
+     * Merges whatever the slot currently holds into the given aggregator.
+     *
+     * @param slot the slot to look at
+     * @param into the aggregator receiving the data of the slot
+     * @return the index of the bucket in the slot, or EMPTY_SLOT if there's none
+     */
+    long snapshot(int slot, FixedPointAggregator into) {
+        Bucket bucket = slots.get(slot);
+        if (bucket == null) {
+            return EMPTY_SLOT;
+        }
+        bucket.mergeInto(into);
+        return bucket.index;
+    }
+
+    /**
+     * Merges the largest transactions of a bucket into the given ones, if the slot still holds that bucket
+     *
+     * @param slot  the slot to look at
+     * @param index the bucket index the slot is expected to hold
+     * @param into  receives the largest transactions of the bucket
+     */
+    void top(int slot, long index, TopAmounts into) {
+        Bucket bucket = slots.get(slot);
+        if (bucket != null && bucket.index == index && bucket.top != null) {
+            into.merge(bucket.top);
+        }
+    }
+
+    /**
+     * Hands every slot written to since the last call to the visitor
+     *
+     * @param visitor gets the slots that changed
+     */
+    void drainChanges(DirtySlots.Visitor visitor) {
+        dirtySlots.drain(visitor);
+    }
+
+    /**
+     * Gets the number of slots
+     *
+     * @return number of slots in the ring
+     */
+    int size() {
+        return slots.length();
+    }
+
+    /**
+     * Gets the bucket width
+     *
+     * @return the time span a single bucket covers, in millis
+     */
+    long bucketMillis() {
+        return bucketMillis;
+    }
+
+    /**
+     * Gets the number of rollovers
+     *
+     * @return how many times a slot moved on to a newer bucket
+     */
+    long rollovers() {
+        return rollovers.sum();
+    }
+
+    /**
+     * Gets the number of lost rollover races
+     *
+     * @return how many times a thread found the slot already rolled over by another one when it tried to do it
+     */
+    long rolloverRaces() {
+        return rolloverRaces.sum();
+    }
+
+    /**
+     * Gets the accuracy of the percentiles
+     *
+     * @return relative accuracy of the percentile sketches of the buckets, or 0 if they keep none
+     */
+    double percentileAccuracy() {
+        return percentileAccuracy;
+    }
+
+    /**
+     * Gets the bins of the histograms
+     *
+     * @return the bins the buckets count the amounts in, or null if they don't count them
+     */
+    AmountBins histogramBins() {
+        return histogramBins;
+    }
+
+    /**
+     * Gets how many of the largest transactions the buckets keep
+     *
+     * @return the K of the top K of every bucket, or 0 if they keep none
+     */
+    int topK() {
+        return topK;
+    }
+
+    /**
+     * Maps a bucket index to the slot which is responsible for it
+     *
+     * @param index the bucket index
+     * @return the slot
+     */
+    int slotFor(long index) {
+        return (int) Math.floorMod(index, (long) slots.length());
+    }
+
+    /**
+     * Finds the bucket an instant belongs to. With one second buckets, 12:34:21.130 ends up in the bucket of 12:34:21.
+     *
+     * @param epochMillis the instant
+     * @return the index of the bucket covering it
+     */
+    long indexOf(long epochMillis) {
+        return Math.floorDiv(epochMillis, bucketMillis);
+    }
+
+    private long indexOf(Transaction transaction) {
+        return indexOf(transaction.getEpochMillis());
+    }
+
+    /**
+     * Merges the stripes of every bucket which starts after the given instant.
+     *
+     * @param windowStartMillis epoch millis of the start of the window
+     * @return a fresh aggregator holding everything that belongs to the window
+     */
+    FixedPointAggregator aggregate(long windowStartMillis) {
+        FixedPointAggregator merged = new FixedPointAggregator(scale, percentileAccuracy, histogramBins);
+
+        for (int i = 0; i < slots.length(); i++) {
+            Bucket bucket = slots.get(i);
+            if (bucket != null && bucket.index * bucketMillis > windowStartMillis) {
+                bucket.mergeInto(merged);
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Threads stick to the same stripe, so a Tomcat worker keeps hitting its own counters instead of the ones
+     * everybody else is trying to update.
+     */
+    private int currentStripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & stripeMask;
+    }
+
+    private static int powerOfTwoAtLeast(int value) {
+        int result = 1;
+        while (result < value) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    /**
+     * A single bucket's worth of aggregates, split into stripes, and the largest transactions of all the stripes.
+     */
+    private static final class Bucket {
+        private static final BigDecimal MAX_UNITS = BigDecimal.valueOf(Long.MAX_VALUE);
+        private static final BigDecimal MIN_UNITS = BigDecimal.valueOf(Long.MIN_VALUE + 1);
+
+        private final long index;
+        private final int scale;
+        private final double percentileAccuracy;
+        private final AmountBins histogramBins;
+        private final AtomicReferenceArray<FixedPointAggregator> stripes;
+
+        /**
+         * Shared by the stripes, it's only locked by the few transactions that make it in
+         */
+        private final TopAmounts top;
+
+        Bucket(long index, int stripeCount, int scale, double percentileAccuracy, int topK,
+               AmountBins histogramBins) {
+            this.index = index;
+            this.scale = scale;
+            this.percentileAccuracy = percentileAccuracy;
+            this.histogramBins = histogramBins;
+            this.stripes = new AtomicReferenceArray<>(stripeCount);
+            this.top = topK > 0 ? new TopAmounts(topK) : null;
+        }
+
+        void append(int stripe, Transaction transaction) {
+            stripe(stripe).append(transaction);
+            if (top != null) {
+                top.offer(unitsOf(transaction.getAmount()), transaction.getEpochMillis());
+            }
+        }
+
+        /**
+         * The amount in units of the scale. The ones with more decimals than that are rounded down, and the ones
+         * that don't fit into a long at all are kept as the largest long, or the smallest one TopAmounts takes, which
+         * still ranks them right.
+         */
+        private long unitsOf(BigDecimal amount) {
+            if (amount.precision() <= 18) {
+                long units = FixedPointAggregator.unitsOf(amount.unscaledValue().longValue(), amount.scale(), scale);
+                if (units != FixedPointAggregator.NO_UNITS) {
+                    return units;
+                }
+            }
+            BigDecimal units = amount.movePointRight(scale).setScale(0, RoundingMode.FLOOR);
+            if (units.compareTo(MAX_UNITS) > 0) {
+                return Long.MAX_VALUE;
+            }
+            return units.compareTo(MIN_UNITS) < 0 ? Long.MIN_VALUE + 1 : units.longValueExact();
+        }
+
+        FixedPointAggregator stripe(int stripe) {
+            FixedPointAggregator aggregator = stripes.get(stripe);
+            if (aggregator == null) {
+                // stripes are only created by the threads using them, which keeps them apart in memory as well
+                stripes.compareAndSet(stripe, null, new FixedPointAggregator(scale, percentileAccuracy,
+                        histogramBins));
+                aggregator = stripes.get(stripe);
+            }
+            return aggregator;
+        }
+
+        void mergeInto(FixedPointAggregator merged) {
+            for (int i = 0; i < stripes.length(); i++) {
+                FixedPointAggregator stripe = stripes.get(i);
+                if (stripe != null) {
+                    merged.merge(stripe);
+                }
+            }
+        }
+    }
+}
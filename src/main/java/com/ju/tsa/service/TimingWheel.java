@@ -0,0 +1,227 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.AmountBins;
+import com.ju.tsa.model.Transaction;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hierarchy of bucket rings, each one wheelSize times coarser than the one below it. The finest level holds the most
+ * recent past in buckets of bucketMillis, the next one holds what came before that in buckets of
+ * bucketMillis * wheelSize, and so on, until the coarsest level is wide enough to cover the longest window with at most
+ * wheelSize * wheelSize buckets.
+ * <p>
+ * Shorter windows stop at the first level which covers them the same way (their top level), and that level gets as
+ * many slots as the window needs. So several windows share all the rings, and every window only costs the slots of
+ * its own top level.
+ * <p>
+ * Every transaction is written to every level, so each level always has the complete picture of the time spans it
+ * covers. It's up to the reader (see {@link RollingWindow}) to stitch the levels together without counting anything
+ * twice. With the defaults (one minute in one second buckets) that's a single level, which is exactly what the bucket
+ * ring used to be on its own.
+ * <p>
+ * Memory and read cost depend on the wheel size and the number of levels rather than on the length of the window, so a
+ * window of a few hours with millisecond buckets costs about as much as the default one. The price is the precision of
+ * the tail: buckets leave the window as a whole, so the oldest edge moves in steps of the coarsest bucket width.
+ */
+class TimingWheel {
+
+    private final StripedBucketRing[] levels;
+    private final long bucketMillis;
+    private final int wheelSize;
+
+    /**
+     * @param windowMillis length of the window
+     * @param bucketMillis width of the finest buckets
+     * @param wheelSize    number of buckets per level, which is also the factor between the widths of two levels
+     * @param stripeCount  number of stripes per bucket
+     * @param scale        decimal places kept by the primitive aggregators
+     */
+    TimingWheel(long windowMillis, long bucketMillis, int wheelSize, int stripeCount, int scale) {
+        this(new long[]{windowMillis}, bucketMillis, wheelSize, stripeCount, scale);
+    }
+
+    /**
+     * @param windowsMillis lengths of all the windows the wheel has to serve
+     * @param bucketMillis  width of the finest buckets
+     * @param wheelSize     number of buckets per level, which is also the factor between the widths of two levels
+     * @param stripeCount   number of stripes per bucket
+     * @param scale         decimal places kept by the primitive aggregators
+     */
+    TimingWheel(long[] windowsMillis, long bucketMillis, int wheelSize, int stripeCount, int scale) {
+        this(windowsMillis, bucketMillis, wheelSize, stripeCount, scale, 0);
+    }
+
+    /**
+     * @param windowsMillis      lengths of all the windows the wheel has to serve
+     * @param bucketMillis       width of the finest buckets
+     * @param wheelSize          number of buckets per level, which is also the factor between the widths of two levels
+     * @param stripeCount        number of stripes per bucket
+     * @param scale              decimal places kept by the primitive aggregators
+     * @param percentileAccuracy relative accuracy of the percentile sketches of the buckets, or 0 for none
+     */
+    TimingWheel(long[] windowsMillis, long bucketMillis, int wheelSize, int stripeCount, int scale,
+                double percentileAccuracy) {
+        this(windowsMillis, bucketMillis, wheelSize, stripeCount, scale, percentileAccuracy, 0);
+    }
+
+    /**
+     * @param windowsMillis      lengths of all the windows the wheel has to serve
+     * @param bucketMillis       width of the finest buckets
+     * @param wheelSize          number of buckets per level, which is also the factor between the widths of two levels
+     * @param stripeCount        number of stripes per bucket
+     * @param scale              decimal places kept by the primitive aggregators
+     * @param percentileAccuracy relative accuracy of the percentile sketches of the buckets, or 0 for none
+     * @param topK               how many of the largest transactions every bucket keeps, or 0 for none
+     */
+    TimingWheel(long[] windowsMillis, long bucketMillis, int wheelSize, int stripeCount, int scale,
+                double percentileAccuracy, int topK) {
+        this(windowsMillis, bucketMillis, wheelSize, stripeCount, scale, percentileAccuracy, topK, null);
+    }
+
+    /**
+     * @param windowsMillis      lengths of all the windows the wheel has to serve
+     * @param bucketMillis       width of the finest buckets
+     * @param wheelSize          number of buckets per level, which is also the factor between the widths of two levels
+     * @param stripeCount        number of stripes per bucket
+     * @param scale              decimal places kept by the primitive aggregators
+     * @param percentileAccuracy relative accuracy of the percentile sketches of the buckets, or 0 for none
+     * @param topK               how many of the largest transactions every bucket keeps, or 0 for none
+     * @param histogramBins      the bins the buckets count the amounts in, or null for none
+     */
+    TimingWheel(long[] windowsMillis, long bucketMillis, int wheelSize, int stripeCount, int scale,
+                double percentileAccuracy, int topK, AmountBins histogramBins) {
+        if (topK < 0) {
+            throw new IllegalArgumentException("topK can't be negative, got " + topK);
+        }
+        if (wheelSize < 2) {
+            throw new IllegalArgumentException("wheelSize must be at least 2, got " + wheelSize);
+        }
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("bucketMillis must be positive, got " + bucketMillis);
+        }
+        this.bucketMillis = bucketMillis;
+        this.wheelSize = wheelSize;
+
+        int levelCount = 1;
+        for (long windowMillis : windowsMillis) {
+            if (windowMillis < bucketMillis) {
+                throw new IllegalArgumentException("need bucketMillis <= windowMillis, got bucketMillis="
+                        + bucketMillis + ", windowMillis=" + windowMillis);
+            }
+            levelCount = Math.max(levelCount, topLevelFor(windowMillis) + 1);
+        }
+
+        int[] slotCounts = new int[levelCount];
+        Arrays.fill(slotCounts, 0, levelCount - 1, wheelSize);
+        for (long windowMillis : windowsMillis) {
+            int top = topLevelFor(windowMillis);
+            // one spare slot, so the bucket the window starts in and the bucket of now never share a slot
+            int needed = (int) ceilDiv(windowMillis, widthOf(top)) + 1;
+            slotCounts[top] = Math.max(slotCounts[top], needed);
+        }
+
+        this.levels = new StripedBucketRing[levelCount];
+        for (int level = 0; level < levelCount; level++) {
+            levels[level] = new StripedBucketRing(slotCounts[level], widthOf(level), stripeCount, scale,
+                    percentileAccuracy, topK, histogramBins);
+        }
+    }
+
+    /**
+     * Finds the level which covers the given window, with the finer levels taking care of its most recent part
+     *
+     * @param windowMillis length of the window
+     * @return the first level that covers the window with at most wheelSize * wheelSize buckets
+     */
+    int topLevelFor(long windowMillis) {
+        int level = 0;
+        while (ceilDiv(windowMillis, widthOf(level)) > (long) wheelSize * wheelSize) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Adds the transaction to every level
+     *
+     * @param transaction the inbound Transaction
+     * @return true if the transaction landed in the coarsest level, which is the one covering the longest window
+     */
+    boolean add(Transaction transaction) {
+        for (int level = 0; level < levels.length - 1; level++) {
+            levels[level].add(transaction);
+        }
+        return levels[levels.length - 1].add(transaction);
+    }
+
+    /**
+     * Adds a transaction given as primitives to every level
+     *
+     * @param units       the amount in minor units of the scale of the aggregates
+     * @param amountScale the scale the amount came in with
+     * @param epochMillis the timestamp of the transaction
+     * @return true if the transaction landed in the coarsest level
+     */
+    boolean add(long units, int amountScale, long epochMillis) {
+        for (int level = 0; level < levels.length - 1; level++) {
+            levels[level].add(units, amountScale, epochMillis);
+        }
+        return levels[levels.length - 1].add(units, amountScale, epochMillis);
+    }
+
+    /**
+     * Adds a batch of transactions to every level
+     *
+     * @param transactions the transactions to be added, sorted by their timestamp. Only the ones that landed in the
+     *                     coarsest level are left in it afterwards.
+     * @return the number of transactions that landed in the coarsest level
+     */
+    int addAll(List<Transaction> transactions) {
+        for (int level = 0; level < levels.length - 1; level++) {
+            levels[level].addAll(transactions, false);
+        }
+        return levels[levels.length - 1].addAll(transactions, true);
+    }
+
+    /**
+     * Gets a level
+     *
+     * @param level 0 for the finest level, up to levelCount() - 1 for the coarsest
+     * @return the bucket ring of the level
+     */
+    StripedBucketRing level(int level) {
+        return levels[level];
+    }
+
+    /**
+     * Gets the number of levels
+     *
+     * @return number of levels
+     */
+    int levelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Gets the wheel size
+     *
+     * @return number of buckets per level, unless a window needs more of them at its top level
+     */
+    int wheelSize() {
+        return wheelSize;
+    }
+
+    private long widthOf(int level) {
+        long width = bucketMillis;
+        for (int i = 0; i < level; i++) {
+            width *= wheelSize;
+        }
+        return width;
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return -Math.floorDiv(-dividend, divisor);
+    }
+}
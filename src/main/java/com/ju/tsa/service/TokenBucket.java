@@ -0,0 +1,84 @@
+package com.ju.tsa.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single long, the way GCRA does it: instead of counting tokens and refilling them, it
+ * remembers the moment the bucket will be full again. Taking tokens pushes that moment further out, and whatever
+ * lies more than a burst's worth of tokens ahead of now is over the limit. One CAS per take, no thread to refill it.
+ */
+final class TokenBucket {
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+
+    /**
+     * When the bucket is full again, in System.nanoTime terms
+     */
+    private final AtomicLong fullAt;
+
+    /**
+     * @param perSecond tokens coming in per second
+     * @param burst     how many tokens the bucket holds, 0 for a second's worth
+     * @param nowNanos  now, the bucket starts out full
+     */
+    TokenBucket(double perSecond, long burst, long nowNanos) {
+        this.nanosPerToken = Math.max(1, (long) (1e9 / perSecond));
+        long tokens = burst > 0 ? burst : Math.max(1, (long) Math.ceil(perSecond));
+        this.burstNanos = tokens * nanosPerToken;
+        this.fullAt = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Takes tokens if there are enough of them
+     *
+     * @param tokens   how many
+     * @param nowNanos now
+     * @return 0 if they were taken, otherwise how many nanos to wait until there would be enough
+     */
+    long take(long tokens, long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long taken = Math.max(current, nowNanos) + tokens * nanosPerToken;
+            long over = taken - nowNanos - burstNanos;
+            if (over > 0) {
+                return over;
+            }
+            if (fullAt.compareAndSet(current, taken)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Takes tokens whether there are enough or not, for what was already let in. The debt keeps the next takes waiting
+     * until it's paid off.
+     *
+     * @param tokens   how many
+     * @param nowNanos now
+     */
+    void charge(long tokens, long nowNanos) {
+        if (tokens > 0) {
+            fullAt.accumulateAndGet(tokens * nanosPerToken, (current, nanos) -> Math.max(current, nowNanos) + nanos);
+        }
+    }
+
+    /**
+     * Tells if the bucket filled up again, in which case it's no different from a new one
+     *
+     * @param nowNanos now
+     * @return true if nothing was taken that didn't come back in since
+     */
+    boolean isFull(long nowNanos) {
+        return fullAt.get() <= nowNanos;
+    }
+
+    /**
+     * Puts back tokens taken for something that didn't go ahead after all
+     *
+     * @param tokens how many
+     */
+    void giveBack(long tokens) {
+        fullAt.addAndGet(-tokens * nanosPerToken);
+    }
+}
@@ -0,0 +1,126 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.Transaction;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue for many producers and a single consumer, the way the Disruptor does it: the entries are a
+ * pre-allocated array, producers claim a sequence number with a compareAndSet and publish their entry by writing that
+ * sequence into the slot, and the consumer walks the sequences in order for as long as they're published. Nothing gets
+ * allocated and nobody takes a lock.
+ * <p>
+ * A producer who finds the buffer full simply gets false, it's up to the caller what to do about it.
+ */
+class TransactionRingBuffer {
+
+    private final Transaction[] entries;
+    private final AtomicLongArray published;
+    private final int mask;
+
+    /**
+     * The last sequence claimed by a producer
+     */
+    private final AtomicLong claimed = new AtomicLong(-1);
+
+    /**
+     * The last sequence the consumer is done with. Only ever written by the consumer.
+     */
+    private volatile long consumed = -1;
+
+    /**
+     * @param capacity number of entries, rounded up to a power of two
+     */
+    TransactionRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new Transaction[size];
+        this.published = new AtomicLongArray(size);
+        for (int slot = 0; slot < size; slot++) {
+            published.set(slot, -1);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Puts a transaction into the buffer
+     *
+     * @param transaction the transaction
+     * @return false if the buffer is full
+     */
+    boolean offer(Transaction transaction) {
+        long sequence;
+        long current;
+        do {
+            current = claimed.get();
+            sequence = current + 1;
+            if (sequence - consumed > entries.length) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(current, sequence));
+
+        int slot = (int) sequence & mask;
+        entries[slot] = transaction;
+        // a volatile write rather than a lazy one, so a parked consumer can't miss it (see AsyncIngester)
+        published.set(slot, sequence);
+        return true;
+    }
+
+    /**
+     * Moves the transactions published so far into the list, oldest first. Must only be called by the consumer.
+     *
+     * @param into receives the transactions
+     * @param max  the most transactions to move
+     * @return the number of transactions moved
+     */
+    int drainTo(List<Transaction> into, int max) {
+        long next = consumed + 1;
+        int drained = 0;
+        while (drained < max) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                break;
+            }
+            into.add(entries[slot]);
+            entries[slot] = null;
+            next++;
+            drained++;
+        }
+        if (drained > 0) {
+            consumed = next - 1;
+        }
+        return drained;
+    }
+
+    /**
+     * Tells if there's anything claimed that the consumer didn't take yet, including entries that are claimed but not
+     * published yet
+     *
+     * @return true if there's nothing left for the consumer
+     */
+    boolean isEmpty() {
+        return claimed.get() == consumed;
+    }
+
+    /**
+     * Gets the depth
+     *
+     * @return number of transactions waiting for the consumer
+     */
+    long depth() {
+        return Math.max(0, claimed.get() - consumed);
+    }
+
+    /**
+     * Gets the capacity
+     *
+     * @return the most transactions the buffer holds
+     */
+    int capacity() {
+        return entries.length;
+    }
+}
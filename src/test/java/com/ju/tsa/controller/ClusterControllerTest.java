@@ -0,0 +1,131 @@
+package com.ju.tsa.controller;
+
+import com.ju.tsa.TsaApplication;
+import com.ju.tsa.model.BucketState;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.RestTemplate;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Three whole nodes in this JVM, two of them taking transactions and the third one taking some as well and pulling the
+ * buckets of the other two
+ */
+public class ClusterControllerTest {
+
+    private final RestTemplate http = new RestTemplate();
+    private final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+
+    @After
+    public void stopNodes() {
+        nodes.forEach(ConfigurableApplicationContext::close);
+    }
+
+    @Test
+    public void mergesTheBucketsOfAllTheNodes() throws Exception {
+        String first = start();
+        String second = start();
+        String aggregator = start("--tsa.stats.cluster.peers=" + first + "," + second,
+                "--tsa.stats.cluster.pull-millis=50");
+
+        long now = System.currentTimeMillis();
+        // the first two land in the same second on different nodes, so they end up in one bucket
+        post(first, "12.50", now - 2_000);
+        post(second, "2.5", now - 2_000);
+        post(aggregator, "30", now - 5_000);
+        post(second, "1000", now - 120_000);
+
+        Map<?, ?> statistics = null;
+        for (int attempt = 0; attempt < 100; attempt++) {
+            statistics = http.getForObject(aggregator + "/cluster/statistics", Map.class);
+            if (((Number) statistics.get("count")).intValue() == 3) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+
+        assertEquals(3, ((Number) statistics.get("count")).intValue());
+        assertEquals(0, new BigDecimal("45.00").compareTo(new BigDecimal(statistics.get("sum").toString())));
+        assertEquals(0, new BigDecimal("30").compareTo(new BigDecimal(statistics.get("maximum").toString())));
+        assertEquals(0, new BigDecimal("2.5").compareTo(new BigDecimal(statistics.get("minimum").toString())));
+
+        BucketState[] buckets = http.getForObject(aggregator + "/cluster/buckets", BucketState[].class);
+        assertEquals(2, buckets.length);
+        assertEquals(2, buckets[1].getCount());
+        assertEquals(new BigDecimal("15.00"), buckets[1].getSum());
+
+        Map<?, ?> peers = http.getForObject(aggregator + "/cluster/peers", Map.class);
+        assertEquals(2, peers.size());
+        assertTrue(((Map<?, ?>) peers.get(first)).get("error") == null);
+    }
+
+    @Test
+    public void aPeerWithBrokenBucketsDoesNotStopThePulling() throws Exception {
+        HttpServer broken = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        broken.createContext("/buckets", exchange -> {
+            byte[] body = ("[{\"start\": " + System.currentTimeMillis() + ", \"width\": 1000, \"count\": 1}]")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        broken.start();
+        try {
+            String peer = "http://localhost:" + broken.getAddress().getPort();
+            String aggregator = start("--tsa.stats.cluster.peers=" + peer, "--tsa.stats.cluster.pull-millis=50");
+            post(aggregator, "30", System.currentTimeMillis() - 1_000);
+
+            Map<?, ?> state = null;
+            for (int attempt = 0; attempt < 100; attempt++) {
+                state = (Map<?, ?>) http.getForObject(aggregator + "/cluster/peers", Map.class).get(peer);
+                if (((Number) state.get("failures")).intValue() >= 2) {
+                    break;
+                }
+                Thread.sleep(50);
+            }
+
+            assertTrue("still pulling after the first failure", ((Number) state.get("failures")).intValue() >= 2);
+            assertEquals(0, state.get("buckets"));
+            Map<?, ?> statistics = http.getForObject(aggregator + "/cluster/statistics", Map.class);
+            assertEquals(1, ((Number) statistics.get("count")).intValue());
+        } finally {
+            broken.stop(0);
+        }
+    }
+
+    private String start(String... args) {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("--server.port=0");
+        for (String arg : args) {
+            arguments.add(arg);
+        }
+        ConfigurableApplicationContext node = new SpringApplicationBuilder(TsaApplication.class)
+                .run(arguments.toArray(new String[0]));
+        nodes.add(node);
+        return "http://localhost:" + node.getEnvironment().getProperty("local.server.port");
+    }
+
+    private void post(String node, String amount, long timestamp) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        http.postForEntity(node + "/transactions",
+                new HttpEntity<>("{\"amount\": " + amount + ", \"timestamp\": " + timestamp + "}", headers),
+                Void.class);
+    }
+}
@@ -0,0 +1,56 @@
+package com.ju.tsa.controller;
+
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.service.RollupArchive;
+import com.ju.tsa.service.StatsService;
+import org.junit.Test;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.math.BigDecimal;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+public class HistoryControllerTest {
+
+    private final StatsProperties properties = new StatsProperties();
+
+    @Test
+    public void servesTheStatisticsOfASpanStepByStep() throws Exception {
+        properties.getRollup().setEnabled(true);
+        StatsService stats = new StatsService(properties);
+        RollupArchive archive = new RollupArchive(stats, properties);
+        archive.start();
+        MockMvc controllerMock = standaloneSetup(new HistoryController(archive)).build();
+        long now = System.currentTimeMillis();
+        stats.add(new Transaction(new BigDecimal("2.50"), now - 1_000));
+        stats.add(new Transaction(new BigDecimal("7.50"), now - 1_000));
+
+        controllerMock.perform(get("/statistics/range")
+                .param("from", Long.toString(now - 3_600_000))
+                .param("to", Long.toString(now))
+                .param("step", "1h"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].width").value(3_600_000))
+                .andExpect(jsonPath("$[0].count").value(2))
+                .andExpect(jsonPath("$[0].sum").value(10.0));
+
+        controllerMock.perform(get("/statistics/range")
+                .param("from", Long.toString(now))
+                .param("to", Long.toString(now + 60_000))
+                .param("step", "10s"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void saysSoWhenThereIsNoHistory() throws Exception {
+        RollupArchive archive = new RollupArchive(new StatsService(properties), properties);
+        MockMvc controllerMock = standaloneSetup(new HistoryController(archive)).build();
+
+        controllerMock.perform(get("/statistics/range").param("from", "0").param("to", "60000"))
+                .andExpect(status().isNotFound());
+    }
+}
@@ -0,0 +1,58 @@
+package com.ju.tsa.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.ingest.TcpIngestListener;
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.service.AdmissionControl;
+import com.ju.tsa.service.AsyncIngester;
+import com.ju.tsa.service.StatsService;
+import com.ju.tsa.service.StatsSnapshotPublisher;
+import com.ju.tsa.service.StatsStreamer;
+import org.junit.Test;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.math.BigDecimal;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+public class MetricsControllerTest {
+
+    private final StatsProperties properties = new StatsProperties();
+    private final StatsService stats = new StatsService(properties);
+    private final StatsSnapshotPublisher publisher = new StatsSnapshotPublisher(stats, new ObjectMapper(), properties);
+
+    @Test
+    public void servesTheMetricsOfTheEngineAndTheEndpoints() throws Exception {
+        AsyncIngester ingester = new AsyncIngester(stats, properties);
+        MockMvc controllerMock = standaloneSetup(new StatsController(publisher, stats),
+                new MetricsController(stats, publisher, ingester, new TcpIngestListener(stats, properties),
+                        new StatsStreamer(publisher, properties), new AdmissionControl(properties, ingester)))
+                .addFilters(new RequestMetricsFilter(stats))
+                .build();
+        stats.add(new Transaction(BigDecimal.ONE, System.currentTimeMillis() - 1_000));
+        stats.add(new Transaction(BigDecimal.ONE, System.currentTimeMillis() - 120_000));
+        controllerMock.perform(get("/statistics")).andExpect(status().isOk());
+        controllerMock.perform(get("/statistics").param("window", "nonsense")).andExpect(status().isBadRequest());
+
+        controllerMock.perform(get("/metrics"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.transactions.accepted").value(1))
+                .andExpect(jsonPath("$.transactions.rejected.too_old").value(1))
+                .andExpect(jsonPath("$.buckets.rollovers").value(1))
+                .andExpect(jsonPath("$.latency.add.count").value(2))
+                .andExpect(jsonPath("$.endpoints['GET /statistics'].count").value(2))
+                .andExpect(jsonPath("$.endpoints['GET /statistics'].errors").value(1))
+                .andExpect(jsonPath("$.snapshot.ageMillis").isNumber())
+                .andExpect(jsonPath("$.ingest.async").value(false))
+                .andExpect(jsonPath("$.admission.enabled").value(false))
+                .andExpect(jsonPath("$.admission.shed.rate").value(0))
+                .andExpect(jsonPath("$.tcp.enabled").value(false))
+                .andExpect(jsonPath("$.stream.subscribers").value(0))
+                .andExpect(jsonPath("$.jvm.heapAfterGcBytes").isNumber())
+                .andExpect(jsonPath("$.jvm.gcCount").isNumber());
+    }
+}
@@ -0,0 +1,199 @@
+package com.ju.tsa.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.service.StatsService;
+import com.ju.tsa.service.StatsSnapshotPublisher;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.notNullValue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+public class StatsControllerTest {
+    private StatsProperties properties = new StatsProperties();
+    private StatsService stats;
+    private StatsSnapshotPublisher publisher;
+
+    @Before
+    public void setUp() {
+        properties.setWindows(Arrays.asList("10s", "5m"));
+        stats = new StatsService(properties);
+        publisher = new StatsSnapshotPublisher(stats, new ObjectMapper(), properties);
+    }
+
+    @Test
+    public void seesATransactionPostedRightBefore() throws Exception {
+        StatsProperties defaults = new StatsProperties();
+        StatsService service = new StatsService(defaults);
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(service),
+                new StatsController(new StatsSnapshotPublisher(service, new ObjectMapper(), defaults), service)).build();
+
+        controllerMock.perform(get("/statistics")).andExpect(jsonPath("$.count").value(0));
+        controllerMock.perform(post("/transactions")
+                .content("{\"amount\": 1, \"timestamp\": " + (System.currentTimeMillis() - 1_000) + "}")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated());
+        controllerMock.perform(get("/statistics")).andExpect(jsonPath("$.count").value(1));
+    }
+
+    @Test
+    public void servesTheStatistics() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new StatsController(publisher, stats)).build();
+        stats.add(new Transaction(new BigDecimal("12.30"), System.currentTimeMillis() - 1_000));
+        stats.add(new Transaction(new BigDecimal("7.7"), System.currentTimeMillis() - 2_000));
+
+        controllerMock.perform(get("/statistics"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(StatsController.SNAPSHOT_AGE_HEADER, notNullValue()))
+                .andExpect(jsonPath("$.sum").value(20.0))
+                .andExpect(jsonPath("$.average").value(10.0))
+                .andExpect(jsonPath("$.maximum").value(12.3))
+                .andExpect(jsonPath("$.minimum").value(7.7))
+                .andExpect(jsonPath("$.count").value(2))
+                .andExpect(jsonPath("$.percentiles.p50").exists())
+                .andExpect(jsonPath("$.percentiles.p95").exists())
+                .andExpect(jsonPath("$.percentiles.p99").exists());
+    }
+
+    @Test
+    public void servesTheStatisticsOfAnotherWindow() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new StatsController(publisher, stats)).build();
+        stats.add(new Transaction(BigDecimal.ONE, System.currentTimeMillis() - 2_000));
+        stats.add(new Transaction(BigDecimal.TEN, System.currentTimeMillis() - 120_000));
+
+        controllerMock.perform(get("/statistics").param("window", "5m"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.sum").value(11.0))
+                .andExpect(jsonPath("$.count").value(2));
+
+        controllerMock.perform(get("/statistics").param("window", "7m"))
+                .andExpect(status().isNotFound());
+
+        controllerMock.perform(get("/statistics").param("window", "five minutes"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void servesTheLastSoManySeconds() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new StatsController(publisher, stats)).build();
+        stats.add(new Transaction(BigDecimal.ONE, System.currentTimeMillis() - 2_000));
+        stats.add(new Transaction(BigDecimal.TEN, System.currentTimeMillis() - 20_000));
+
+        controllerMock.perform(get("/statistics").param("last", "5s"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.sum").value(1.0))
+                .andExpect(jsonPath("$.count").value(1));
+
+        controllerMock.perform(get("/statistics").param("last", "30s"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(2));
+
+        controllerMock.perform(get("/statistics").param("last", "6m"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void servesAllTheWindowsAtOnce() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new StatsController(publisher, stats)).build();
+        stats.add(new Transaction(BigDecimal.ONE, System.currentTimeMillis() - 2_000));
+        stats.add(new Transaction(BigDecimal.TEN, System.currentTimeMillis() - 120_000));
+
+        controllerMock.perform(get("/statistics/all"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(StatsController.SNAPSHOT_AGE_HEADER, notNullValue()))
+                .andExpect(jsonPath("$.10s.count").value(1))
+                .andExpect(jsonPath("$.1m.count").value(1))
+                .andExpect(jsonPath("$.5m.count").value(2))
+                .andExpect(jsonPath("$.5m.sum").value(11.0));
+    }
+
+    @Test
+    public void servesTheStatisticsOfAKey() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new StatsController(publisher, stats)).build();
+        stats.add(new Transaction(BigDecimal.ONE, System.currentTimeMillis() - 2_000, "shop.example.com"));
+        stats.add(new Transaction(BigDecimal.TEN, System.currentTimeMillis() - 2_000, "other"));
+        stats.add(new Transaction(BigDecimal.TEN, System.currentTimeMillis() - 3_000, "other"));
+
+        controllerMock.perform(get("/statistics/shop.example.com"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.sum").value(1.0))
+                .andExpect(jsonPath("$.count").value(1));
+
+        controllerMock.perform(get("/statistics/unknown"))
+                .andExpect(status().isNotFound());
+
+        controllerMock.perform(get("/statistics/top-keys").param("n", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].key").value("other"))
+                .andExpect(jsonPath("$[0].sum").value(20.0))
+                .andExpect(jsonPath("$[0].count").value(2))
+                .andExpect(jsonPath("$[1]").doesNotExist());
+
+        controllerMock.perform(get("/statistics/top-keys").param("n", "0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void servesTheLargestTransactions() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new StatsController(publisher, stats)).build();
+        long now = System.currentTimeMillis();
+        stats.add(new Transaction(new BigDecimal("12.30"), now - 1_000));
+        stats.add(new Transaction(new BigDecimal("99.99"), now - 2_000));
+        stats.add(new Transaction(new BigDecimal("5"), now - 3_000));
+
+        controllerMock.perform(get("/statistics/top").param("k", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].amount").value(99.99))
+                .andExpect(jsonPath("$[0].timestamp").value(now - 2_000))
+                .andExpect(jsonPath("$[1].amount").value(12.3))
+                .andExpect(jsonPath("$[2]").doesNotExist());
+
+        controllerMock.perform(get("/statistics/top"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[2].amount").value(5.0));
+
+        controllerMock.perform(get("/statistics/top").param("k", "" + (properties.getTopK() + 1)))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void servesTheHistogramOfTheAmounts() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new StatsController(publisher, stats)).build();
+        long now = System.currentTimeMillis();
+        stats.add(new Transaction(new BigDecimal("9.99"), now - 1_000));
+        stats.add(new Transaction(new BigDecimal("10"), now - 2_000));
+        stats.add(new Transaction(new BigDecimal("12345"), now - 30_000));
+
+        controllerMock.perform(get("/statistics/histogram"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].from").doesNotExist())
+                .andExpect(jsonPath("$[0].to").value(10.0))
+                .andExpect(jsonPath("$[0].count").value(1))
+                .andExpect(jsonPath("$[1].from").value(10.0))
+                .andExpect(jsonPath("$[1].count").value(1))
+                .andExpect(jsonPath("$[4].from").value(10000.0))
+                .andExpect(jsonPath("$[4].count").value(1))
+                .andExpect(jsonPath("$[7].to").doesNotExist());
+
+        controllerMock.perform(get("/statistics/histogram").param("window", "10s"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[4].count").value(0));
+
+        controllerMock.perform(get("/statistics/histogram").param("window", "7m"))
+                .andExpect(status().isNotFound());
+        controllerMock.perform(get("/statistics/histogram").param("window", "soon"))
+                .andExpect(status().isBadRequest());
+    }
+}
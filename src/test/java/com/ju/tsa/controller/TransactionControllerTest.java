@@ -1,11 +1,22 @@
 package com.ju.tsa.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.service.AdmissionControl;
+import com.ju.tsa.service.AsyncIngester;
 import com.ju.tsa.service.StatsService;
 import org.junit.Test;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultMatcher;
 
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
 
@@ -23,6 +34,107 @@ public class TransactionControllerTest {
                 .andExpect(status().isCreated());
     }
 
+    @Test
+    public void queuesTheTrxInTheAsyncMode() throws Exception {
+        StatsProperties properties = new StatsProperties();
+        properties.getIngest().setAsync(true);
+        properties.getIngest().setCapacity(1);
+        // not started, so the second one finds the queue full
+        AsyncIngester ingester = new AsyncIngester(stats, properties);
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats, ingester)).build();
+
+        for (ResultMatcher expected : new ResultMatcher[]{status().isAccepted(), status().isServiceUnavailable()}) {
+            controllerMock.perform(post("/transactions")
+                    .content("{\"amount\" : 99.32, \"timestamp\": 99999999}")
+                    .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(expected);
+        }
+    }
+
+    @Test
+    public void turnsDownATrxWithoutAnAmountBeforeQueueingIt() throws Exception {
+        StatsProperties properties = new StatsProperties();
+        properties.getIngest().setAsync(true);
+        AsyncIngester ingester = new AsyncIngester(stats, properties);
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats, ingester)).build();
+
+        controllerMock.perform(post("/transactions")
+                .content("{\"timestamp\": 99999999}")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+        assertEquals(0, ingester.depth());
+    }
+
+    @Test
+    public void turnsDownWhatIsOverTheRateWithARetryAfter() throws Exception {
+        StatsProperties properties = new StatsProperties();
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setRatePerSecond(1);
+        AsyncIngester ingester = new AsyncIngester(stats, properties);
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats, ingester, new ObjectMapper(),
+                new AdmissionControl(properties, ingester))).build();
+
+        controllerMock.perform(post("/transactions")
+                .content("{\"amount\" : 99.32, \"timestamp\": 99999999}")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated());
+        controllerMock.perform(post("/transactions/batch")
+                .content("[{\"amount\": 1, \"timestamp\": 99999999}]")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"));
+    }
+
+    @Test
+    public void anAmountTooLargeForADoubleStillLeavesTheStatisticsReadable() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats)).build();
+
+        controllerMock.perform(post("/transactions")
+                .content("{\"amount\": 1e400, \"timestamp\": " + (System.currentTimeMillis() - 1_000) + "}")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated());
+
+        assertEquals(0, new BigDecimal("1e400").compareTo(stats.aggregate().getSum()));
+    }
+
+    @Test
+    public void limitsTheRateOfAKeyTheFastPathCannotRead() throws Exception {
+        StatsProperties properties = new StatsProperties();
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setKeyRatePerSecond(1);
+        AsyncIngester ingester = new AsyncIngester(stats, properties);
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats, ingester, new ObjectMapper(),
+                new AdmissionControl(properties, ingester))).build();
+
+        // the escape sends it through Jackson rather than the decoder's own parser
+        String body = "{\"amount\": 1, \"timestamp\": 99999999, \"key\": \"sh\\u00f6p\"}";
+        controllerMock.perform(post("/transactions").content(body).contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated());
+        controllerMock.perform(post("/transactions").content(body).contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isTooManyRequests());
+    }
+
+    @Test
+    public void limitsTheRateOfEveryKeyInABatch() throws Exception {
+        StatsProperties properties = new StatsProperties();
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setKeyRatePerSecond(1);
+        AsyncIngester ingester = new AsyncIngester(stats, properties);
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats, ingester, new ObjectMapper(),
+                new AdmissionControl(properties, ingester))).build();
+
+        long timestamp = System.currentTimeMillis() - 1_000;
+        controllerMock.perform(post("/transactions/batch")
+                .content("[{\"amount\": 1, \"timestamp\": " + timestamp + ", \"key\": \"a\"},"
+                        + "{\"amount\": 2, \"timestamp\": " + timestamp + ", \"key\": \"a\"},"
+                        + "{\"amount\": 3, \"timestamp\": " + timestamp + ", \"key\": \"b\"},"
+                        + "{\"amount\": 4, \"timestamp\": " + timestamp + "}]")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.accepted").value(3))
+                .andExpect(jsonPath("$.rejected").value(1));
+    }
+
     @Test
     public void returnsAnErrorOnFaultyData() throws Exception {
         MockMvc controllerMock = standaloneSetup(new TransactionsController(stats)).build();
@@ -32,4 +144,60 @@ public class TransactionControllerTest {
                 .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void turnsDownWhatIsNotATransaction() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats)).build();
+
+        controllerMock.perform(post("/transactions")
+                .content("{\"amount\" : 99.32, \"timestamp\": ")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+        controllerMock.perform(post("/transactions")
+                .content("{\"amount\" : 99.32, \"timestamp\": 99999999}")
+                .contentType(MediaType.TEXT_PLAIN))
+                .andExpect(status().isUnsupportedMediaType());
+    }
+
+    @Test
+    public void registerABatch() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats)).build();
+        long now = System.currentTimeMillis();
+
+        controllerMock.perform(post("/transactions/batch")
+                .content("[{\"amount\": 1, \"timestamp\": " + (now - 10) + "},"
+                        + " {\"amount\": 2, \"timestamp\": " + (now - 2_000) + "},"
+                        + " {\"amount\": 3, \"timestamp\": 99999999},"
+                        + " {\"amount\": 4}]")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.accepted").value(2))
+                .andExpect(jsonPath("$.rejected").value(2));
+    }
+
+    @Test
+    public void registerANewlineDelimitedBatch() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats)).build();
+        long now = System.currentTimeMillis();
+
+        controllerMock.perform(post("/transactions/batch")
+                .content("{\"amount\": 1, \"timestamp\": " + (now - 10) + "}\n"
+                        + "{\"amount\": 2, \"timestamp\": " + (now - 20) + "}\n")
+                .contentType(MediaType.parseMediaType(TransactionsController.NDJSON)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.accepted").value(2))
+                .andExpect(jsonPath("$.rejected").value(0));
+    }
+
+    @Test
+    public void brokenBatchStillReportsWhatWasTaken() throws Exception {
+        MockMvc controllerMock = standaloneSetup(new TransactionsController(stats)).build();
+        long now = System.currentTimeMillis();
+
+        controllerMock.perform(post("/transactions/batch")
+                .content("[{\"amount\": 1, \"timestamp\": " + (now - 10) + "}, {\"amo")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.accepted").value(1));
+    }
+
 }
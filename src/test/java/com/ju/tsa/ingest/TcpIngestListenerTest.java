@@ -0,0 +1,163 @@
+package com.ju.tsa.ingest;
+
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.TransactionAggregator;
+import com.ju.tsa.service.StatsService;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Clock;
+
+import static org.junit.Assert.assertEquals;
+
+public class TcpIngestListenerTest {
+
+    private static final long NOW = 1_000_000;
+
+    private TcpIngestListener listener;
+
+    @After
+    public void stop() throws InterruptedException {
+        listener.stop();
+    }
+
+    @Test
+    public void takesFramesAndAcksWhatBecameOfThem() throws IOException {
+        StatsService stats = new StatsService(new MutableClock(NOW));
+        listener = start(stats);
+
+        long[] ack;
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(BinaryFrames.frameBytes(3) + BinaryFrames.frameBytes(1));
+            BinaryFrames.putHeader(out, 3, 2);
+            BinaryFrames.putRecord(out, NOW - 1_000, 1234);
+            BinaryFrames.putRecord(out, NOW - 2_000, -34);
+            BinaryFrames.putRecord(out, NOW - 120_000, 5);
+            BinaryFrames.putHeader(out, 1, 0);
+            BinaryFrames.putRecord(out, NOW - 3_000, 7);
+            out.flip();
+            // split in the middle of a record, frames don't have to arrive in one piece
+            writeFully(channel, (ByteBuffer) out.duplicate().limit(20));
+            writeFully(channel, (ByteBuffer) out.position(20));
+
+            ack = lastAck(channel);
+        }
+
+        assertEquals("frames", 2, ack[0]);
+        assertEquals("accepted", 3, ack[1]);
+        assertEquals("rejected", 1, ack[2]);
+        TransactionAggregator result = stats.aggregate();
+        assertEquals(3, result.getCount());
+        assertEquals(new BigDecimal("19.00"), result.getSum());
+        assertEquals(new BigDecimal("-0.34"), result.getMinimum());
+        assertEquals(2, listener.frames());
+    }
+
+    @Test
+    public void dropsAConnectionWithAFrameThatDoesNotAddUp() throws IOException {
+        listener = start(new StatsService(new MutableClock(NOW)));
+
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(BinaryFrames.LENGTH_BYTES + 3);
+            out.putInt(3).put((byte) 2).putShort((short) 1).flip();
+            writeFully(channel, out);
+
+            assertEquals("closed without an ack", -1, channel.read(ByteBuffer.allocate(BinaryFrames.ACK_BYTES)));
+        }
+        assertEquals(1, listener.protocolErrors());
+    }
+
+    @Test
+    public void aFailureOnlyCostsItsOwnConnection() throws IOException {
+        StatsService stats = new StatsService(new MutableClock(NOW)) {
+            @Override
+            public int addAll(long[] unscaledAmounts, long[] epochMillis, int count, int amountScale) {
+                if (amountScale == 9) {
+                    throw new IllegalStateException("the engine broke");
+                }
+                return super.addAll(unscaledAmounts, epochMillis, count, amountScale);
+            }
+        };
+        listener = start(stats);
+
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(BinaryFrames.frameBytes(1));
+            BinaryFrames.putHeader(out, 1, 9);
+            BinaryFrames.putRecord(out, NOW - 1_000, 1);
+            out.flip();
+            writeFully(channel, out);
+
+            assertEquals("closed without an ack", -1, channel.read(ByteBuffer.allocate(BinaryFrames.ACK_BYTES)));
+        }
+
+        long[] ack;
+        try (SocketChannel channel = connect()) {
+            ByteBuffer out = ByteBuffer.allocate(BinaryFrames.frameBytes(1));
+            BinaryFrames.putHeader(out, 1, 2);
+            BinaryFrames.putRecord(out, NOW - 1_000, 1234);
+            out.flip();
+            writeFully(channel, out);
+
+            ack = lastAck(channel);
+        }
+        assertEquals("accepted", 1, ack[1]);
+        assertEquals(1, listener.failures());
+        assertEquals(new BigDecimal("12.34"), stats.aggregate().getSum());
+    }
+
+    @Test
+    public void theLoadGeneratorGetsEverythingAcked() throws IOException {
+        StatsService stats = new StatsService(Clock.systemUTC());
+        listener = start(stats);
+
+        long[] ack = new TcpLoadGenerator(new InetSocketAddress("localhost", listener.getLocalPort()), 5_000, 100)
+                .run();
+
+        assertEquals(50, ack[0]);
+        assertEquals(5_000, ack[1] + ack[2]);
+        assertEquals(ack[1], stats.aggregate().getCount());
+    }
+
+    private static TcpIngestListener start(StatsService stats) throws IOException {
+        StatsProperties properties = new StatsProperties();
+        properties.getTcp().setEnabled(true);
+        properties.getTcp().setPort(0);
+        properties.getTcp().setAckMillis(50);
+        TcpIngestListener listener = new TcpIngestListener(stats, properties);
+        listener.start();
+        return listener;
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(new InetSocketAddress("localhost", listener.getLocalPort()));
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer out) throws IOException {
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    /**
+     * Closes the sending side and reads acks until the listener closes the connection
+     */
+    private static long[] lastAck(SocketChannel channel) throws IOException {
+        channel.shutdownOutput();
+        ByteBuffer in = ByteBuffer.allocate(BinaryFrames.ACK_BYTES * 16);
+        while (channel.read(in) >= 0) {
+            if (!in.hasRemaining()) {
+                in.position(in.position() - in.position() % BinaryFrames.ACK_BYTES - BinaryFrames.ACK_BYTES);
+                in.compact();
+            }
+        }
+        in.flip();
+        in.position(in.limit() - BinaryFrames.ACK_BYTES);
+        return new long[]{in.getLong(), in.getLong(), in.getLong()};
+    }
+}
@@ -0,0 +1,109 @@
+package com.ju.tsa.ingest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.model.Transaction;
+import org.junit.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionDecoderTest {
+
+    /**
+     * Configured the way Spring configures it for the message converters, unknown fields and all
+     */
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final TransactionDecoder decoder = new TransactionDecoder(objectMapper);
+
+    @Test
+    public void decodesThePlainShapeIntoPrimitives() throws IOException {
+        decoder.decode(body(" {\"amount\" : -12.340,\n\t\"timestamp\": 1520000000123} "));
+
+        assertTrue(decoder.isPrimitive());
+        assertEquals(-12340, decoder.getUnscaledAmount());
+        assertEquals(3, decoder.getAmountScale());
+        assertEquals(1520000000123L, decoder.getTimestamp());
+        assertNull(decoder.getKey());
+        assertEquals(new BigDecimal("-12.340"), decoder.toTransaction().getAmount());
+    }
+
+    @Test
+    public void takesTheFieldsInAnyOrder() throws IOException {
+        decoder.decode(body("{\"key\":\"EUR\",\"timestamp\":5,\"amount\":0}"));
+
+        assertTrue(decoder.isPrimitive());
+        assertEquals(0, decoder.getUnscaledAmount());
+        assertEquals(0, decoder.getAmountScale());
+        assertEquals(5, decoder.getTimestamp());
+        assertEquals("EUR", decoder.getKey());
+
+        decoder.decode(body("{\"amount\":1,\"key\":null,\"timestamp\":5}"));
+        assertTrue(decoder.isPrimitive());
+        assertNull("the key of the body before doesn't stick", decoder.getKey());
+    }
+
+    @Test
+    public void leavesEverythingElseToJackson() throws IOException {
+        String[] bodies = {
+                "{\"amount\": 1.5e2, \"timestamp\": 1000}",
+                "{\"amount\": 1234567890123456789.5, \"timestamp\": 1000}",
+                "{\"amount\": 150, \"timestamp\": 1000, \"currency\": \"EUR\"}",
+                "{\"amount\": 150, \"timestamp\": 1000, \"key\": \"caf\\u00e9\"}",
+                "{\"amount\": \"150\", \"timestamp\": 1000}",
+                "{\"amount\": 150, \"timestamp\": 1000.0}",
+        };
+        for (String json : bodies) {
+            decoder.decode(body(json));
+
+            assertFalse(json, decoder.isPrimitive());
+            Transaction bound = objectMapper.readValue(json, Transaction.class);
+            Transaction decoded = decoder.toTransaction();
+            assertEquals(json, bound.getAmount(), decoded.getAmount());
+            assertEquals(json, bound.getTransactionTimestamp(), decoded.getTransactionTimestamp());
+            assertEquals(json, bound.getKey(), decoded.getKey());
+        }
+    }
+
+    @Test
+    public void failsTheWayJacksonDoes() throws IOException {
+        String[] bodies = {"", "{\"amount\": 01, \"timestamp\": 1000}", "{\"amount\": 1, \"timestamp\": ", "[1, 2"};
+        for (String json : bodies) {
+            try {
+                decoder.decode(body(json));
+                throw new AssertionError("decoded " + json);
+            } catch (JsonProcessingException expected) {
+                // that's what we want
+            }
+        }
+    }
+
+    @Test
+    public void readsBodiesBiggerThanTheBuffer() throws IOException {
+        StringBuilder json = new StringBuilder("{\"amount\": 7.25, \"key\": \"");
+        for (int i = 0; i < 20_000; i++) {
+            json.append('k');
+        }
+        json.append("\", \"timestamp\": 1000}");
+
+        decoder.decode(body(json.toString()));
+        assertTrue(decoder.isPrimitive());
+        assertEquals(20_000, decoder.getKey().length());
+
+        decoder.decode(body("{\"amount\": 7.25, \"timestamp\": 1000}"));
+        assertEquals(725, decoder.getUnscaledAmount());
+    }
+
+    private static InputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
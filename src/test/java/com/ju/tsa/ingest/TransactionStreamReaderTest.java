@@ -0,0 +1,86 @@
+package com.ju.tsa.ingest;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.ju.tsa.model.Transaction;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionStreamReaderTest {
+
+    @Test
+    public void readsAnArrayInChunks() throws IOException {
+        TransactionStreamReader reader = TransactionStreamReader.jsonArray(body(
+                "[{\"amount\": 1.5, \"timestamp\": 1000}, {\"timestamp\": 2000, \"amount\": 2}, {\"amount\": 3, \"timestamp\": 3000}]"));
+        List<Transaction> chunk = new ArrayList<>();
+
+        assertEquals(0, reader.read(chunk, 2));
+        assertEquals(2, chunk.size());
+        assertEquals(new BigDecimal("1.5"), chunk.get(0).getAmount());
+        assertEquals(2000, chunk.get(1).getTransactionTimestamp().toEpochMilli());
+
+        chunk.clear();
+        assertEquals(0, reader.read(chunk, 2));
+        assertEquals(1, chunk.size());
+        assertTrue(reader.isExhausted());
+    }
+
+    @Test
+    public void readsNewlineDelimitedJson() throws IOException {
+        TransactionStreamReader reader = TransactionStreamReader.ndjson(body(
+                "{\"amount\": 1, \"timestamp\": 1000}\n{\"amount\": 2, \"timestamp\": 2000}\n\n{\"amount\": 3, \"timestamp\": 3000}\n"));
+        List<Transaction> chunk = new ArrayList<>();
+
+        assertEquals(0, reader.read(chunk, 100));
+        assertEquals(3, chunk.size());
+        assertTrue(reader.isExhausted());
+    }
+
+    @Test
+    public void skipsRecordsThatAreNotTransactions() throws IOException {
+        TransactionStreamReader reader = TransactionStreamReader.jsonArray(body(
+                "[{\"amount\": 1}, {\"amount\": \"one\", \"timestamp\": 1}, 42, {\"amount\": 1, \"timestamp\": 1.5},"
+                        + " {\"amount\": 7, \"timestamp\": 7, \"currency\": {\"code\": \"EUR\"}}]"));
+        List<Transaction> chunk = new ArrayList<>();
+
+        assertEquals(4, reader.read(chunk, 100));
+        assertEquals(1, chunk.size());
+        assertEquals(BigDecimal.valueOf(7), chunk.get(0).getAmount());
+    }
+
+    @Test
+    public void readsTheOptionalKey() throws IOException {
+        TransactionStreamReader reader = TransactionStreamReader.ndjson(body(
+                "{\"amount\": 1, \"timestamp\": 1000, \"key\": \"merchant-1\"}\n"
+                        + "{\"amount\": 2, \"timestamp\": 2000, \"key\": null}\n"
+                        + "{\"amount\": 3, \"timestamp\": 3000, \"key\": 42}\n"));
+        List<Transaction> chunk = new ArrayList<>();
+
+        assertEquals("a key that isn't a string is rejected", 1, reader.read(chunk, 100));
+        assertEquals("merchant-1", chunk.get(0).getKey());
+        assertNull(chunk.get(1).getKey());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void brokenJsonEndsTheBatch() throws IOException {
+        TransactionStreamReader.jsonArray(body("[{\"amount\": 1, \"timestamp\": 1000}, {\"amou")).read(new ArrayList<>(), 100);
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void anArrayIsExpected() throws IOException {
+        TransactionStreamReader.jsonArray(body("{\"amount\": 1, \"timestamp\": 1000}")).read(new ArrayList<>(), 100);
+    }
+
+    private static ByteArrayInputStream body(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
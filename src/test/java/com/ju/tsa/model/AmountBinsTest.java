@@ -0,0 +1,62 @@
+package com.ju.tsa.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+public class AmountBinsTest {
+
+    @Test
+    public void everyAmountLandsInTheBinThatHoldsIt() {
+        AmountBins bins = new AmountBins(12, new BigDecimal("0.05"), 3, 2);
+        long[] bounds = new long[11];
+        List<HistogramBin> described = bins.toBins(new long[12]);
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = described.get(i).getTo().movePointRight(2).longValueExact();
+        }
+
+        for (long units = -10; units < 1L << 24; units += 1 + units / 97) {
+            assertBin(bounds, bins, units);
+        }
+        for (long bound : bounds) {
+            assertBin(bounds, bins, bound - 1);
+            assertBin(bounds, bins, bound);
+        }
+        Assert.assertEquals(11, bins.binOf(Long.MAX_VALUE));
+        Assert.assertEquals(0, bins.binOf(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void describesTheBinsByTheirBounds() {
+        List<HistogramBin> described = new AmountBins(3, BigDecimal.TEN, 10, 2).toBins(new long[]{4, 5, 6});
+
+        Assert.assertNull(described.get(0).getFrom());
+        Assert.assertEquals(new BigDecimal("10.00"), described.get(0).getTo());
+        Assert.assertEquals(new BigDecimal("10.00"), described.get(1).getFrom());
+        Assert.assertEquals(new BigDecimal("100.00"), described.get(1).getTo());
+        Assert.assertEquals(new BigDecimal("100.00"), described.get(2).getFrom());
+        Assert.assertNull(described.get(2).getTo());
+        Assert.assertEquals(6, described.get(2).getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void boundsHaveToAtLeastDouble() {
+        new AmountBins(4, BigDecimal.ONE, 1.5, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void boundsHaveToAtLeastDoubleAtTheScale() {
+        // 0.015 and 0.03 are 2 and 3 cents once rounded up
+        new AmountBins(4, new BigDecimal("0.015"), 2, 2);
+    }
+
+    private static void assertBin(long[] bounds, AmountBins bins, long units) {
+        int expected = 0;
+        while (expected < bounds.length && units >= bounds[expected]) {
+            expected++;
+        }
+        Assert.assertEquals("bin of " + units, expected, bins.binOf(units));
+    }
+}
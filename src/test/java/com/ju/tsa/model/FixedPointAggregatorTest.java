@@ -0,0 +1,169 @@
+package com.ju.tsa.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class FixedPointAggregatorTest {
+
+    @Test
+    public void emptyAggregatorLooksLikeTheEmptyTransactionAggregator() {
+        assertSameOutput(new TransactionAggregator(), new FixedPointAggregator().toTransactionAggregator());
+    }
+
+    @Test
+    public void keepsTheScalesOfTheOriginalAmounts() {
+        List<BigDecimal> amounts = Arrays.asList(new BigDecimal("10.5"), new BigDecimal("10.50"), BigDecimal.valueOf(3),
+                new BigDecimal("1E+3"), new BigDecimal("-2.25"));
+
+        assertSameOutput(fold(amounts), aggregate(amounts, 2));
+    }
+
+    @Test
+    public void amountsWithMoreDecimalsThanTheScaleStayExact() {
+        List<BigDecimal> amounts = Arrays.asList(new BigDecimal("0.001"), new BigDecimal("99.32"),
+                new BigDecimal("-0.3333333"), BigDecimal.ONE);
+
+        assertSameOutput(fold(amounts), aggregate(amounts, 2));
+    }
+
+    @Test
+    public void overflowingTheLongSumSpillsIntoTheWideAccumulator() {
+        BigDecimal huge = new BigDecimal("99999999999999.99");
+        List<BigDecimal> amounts = Arrays.asList(huge, huge, huge, huge, huge, new BigDecimal("1E+30"),
+                new BigDecimal("-1E+30"), huge);
+
+        assertSameOutput(fold(amounts), aggregate(amounts, 2));
+    }
+
+    @Test
+    public void mergeIsTheSameAsFlatten() {
+        Random random = new Random(7);
+        FixedPointAggregator merged = new FixedPointAggregator(3);
+        TransactionAggregator flattened = new TransactionAggregator();
+
+        for (int part = 0; part < 10; part++) {
+            FixedPointAggregator primitive = new FixedPointAggregator(3);
+            TransactionAggregator reference = new TransactionAggregator();
+            for (int i = 0; i < 100; i++) {
+                BigDecimal amount = BigDecimal.valueOf(random.nextInt() / 7, random.nextInt(5));
+                primitive.append(amount);
+                reference = reference.append(new Transaction(amount, 0));
+            }
+            merged.merge(primitive);
+            flattened = TransactionAggregator.flatten(Arrays.asList(flattened, reference));
+        }
+
+        assertSameOutput(flattened, merged.toTransactionAggregator());
+    }
+
+    @Test
+    public void appendingUnitsIsTheSameAsAppendingAmounts() {
+        FixedPointAggregator fromUnits = new FixedPointAggregator(2);
+        fromUnits.appendUnits(1050, 1);
+        fromUnits.appendUnits(-225, 2);
+        fromUnits.appendUnits(300, 0);
+
+        assertSameOutput(fold(Arrays.asList(new BigDecimal("10.5"), new BigDecimal("-2.25"), BigDecimal.valueOf(3))),
+                fromUnits.toTransactionAggregator());
+    }
+
+    @Test
+    public void percentilesAreMergedAlongWithTheRest() {
+        FixedPointAggregator merged = new FixedPointAggregator(2, 0.01);
+        for (int part = 0; part < 10; part++) {
+            FixedPointAggregator primitive = new FixedPointAggregator(2, 0.01);
+            for (int i = 1; i <= 100; i++) {
+                primitive.append(BigDecimal.valueOf(part * 100 + i));
+            }
+            merged.merge(primitive);
+        }
+
+        Percentiles percentiles = merged.toTransactionAggregator().getPercentiles();
+        Assert.assertEquals(500, percentiles.getP50().doubleValue(), 5);
+        Assert.assertEquals(950, percentiles.getP95().doubleValue(), 9.5);
+        Assert.assertEquals(990, percentiles.getP99().doubleValue(), 9.9);
+        Assert.assertEquals(2, percentiles.getP50().scale());
+    }
+
+    @Test
+    public void percentilesStayWithinMinAndMax() {
+        FixedPointAggregator aggregator = new FixedPointAggregator(2, 0.05);
+        aggregator.append(new BigDecimal("10.01"));
+
+        Percentiles percentiles = aggregator.toTransactionAggregator().getPercentiles();
+        Assert.assertEquals(new BigDecimal("10.01"), percentiles.getP50());
+        Assert.assertEquals(new BigDecimal("10.01"), percentiles.getP99());
+    }
+
+    @Test
+    public void noPercentilesUnlessAskedFor() {
+        FixedPointAggregator aggregator = new FixedPointAggregator(2);
+        aggregator.append(BigDecimal.ONE);
+
+        Assert.assertNull(aggregator.toTransactionAggregator().getPercentiles());
+        Assert.assertNull(new FixedPointAggregator(2, 0.01).toTransactionAggregator().getPercentiles());
+    }
+
+    @Test
+    public void histogramsAreMergedAlongWithTheRest() {
+        AmountBins bins = new AmountBins(4, BigDecimal.TEN, 10, 2);
+        FixedPointAggregator first = new FixedPointAggregator(2, 0, bins);
+        FixedPointAggregator second = new FixedPointAggregator(2, 0, bins);
+        first.append(new BigDecimal("9.99"));
+        first.append(BigDecimal.TEN);
+        second.append(new BigDecimal("999.999"));
+        second.append(new BigDecimal("1E+30"));
+
+        FixedPointAggregator merged = new FixedPointAggregator(2, 0, bins);
+        merged.merge(first);
+        merged.merge(second);
+
+        Assert.assertArrayEquals(new long[]{1, 1, 1, 1}, merged.getHistogram().counts());
+        Assert.assertNull(new FixedPointAggregator(2).getHistogram());
+    }
+
+    @Test
+    public void aSumReadAheadOfItsScaleKeepsItsDecimals() {
+        FixedPointAggregator exported = new FixedPointAggregator(2);
+        exported.append(new BigDecimal("10.50"));
+        ByteBuffer buffer = ByteBuffer.allocate(FixedPointAggregator.EXPORTED_LONGS * Long.BYTES);
+        exported.exportTo(buffer, 0);
+        // what a reader racing the writer could have seen: the units in, the scale of the amount not yet
+        buffer.putLong(4 * Long.BYTES, 0);
+
+        FixedPointAggregator torn = new FixedPointAggregator(2);
+        torn.importFrom(buffer, 0);
+
+        Assert.assertEquals(new BigDecimal("10.5"), torn.toTransactionAggregator().getSum());
+    }
+
+    private static TransactionAggregator fold(List<BigDecimal> amounts) {
+        TransactionAggregator aggregator = new TransactionAggregator();
+        for (BigDecimal amount : amounts) {
+            aggregator = aggregator.append(new Transaction(amount, 0));
+        }
+        return aggregator;
+    }
+
+    private static TransactionAggregator aggregate(List<BigDecimal> amounts, int scale) {
+        FixedPointAggregator aggregator = new FixedPointAggregator(scale);
+        for (BigDecimal amount : amounts) {
+            aggregator.append(amount);
+        }
+        return aggregator.toTransactionAggregator();
+    }
+
+    private static void assertSameOutput(TransactionAggregator expected, TransactionAggregator actual) {
+        Assert.assertEquals("sum", expected.getSum(), actual.getSum());
+        Assert.assertEquals("max", expected.getMaximum(), actual.getMaximum());
+        Assert.assertEquals("min", expected.getMinimum(), actual.getMinimum());
+        Assert.assertEquals("average", expected.getAverage(), actual.getAverage());
+        Assert.assertEquals("count", expected.getCount(), actual.getCount());
+    }
+}
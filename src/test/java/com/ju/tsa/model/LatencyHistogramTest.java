@@ -0,0 +1,49 @@
+package com.ju.tsa.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void everyValueLandsInABucketThatHoldsIt() {
+        long previousBucket = -1;
+        for (long value = 0; value < 1L << 20; value += 1 + value / 64) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            Assert.assertTrue("buckets never go backwards", bucket >= previousBucket);
+            Assert.assertTrue(value <= LatencyHistogram.highestValueOf(bucket));
+            // about 6% precision
+            Assert.assertTrue(LatencyHistogram.highestValueOf(bucket) <= value + value / 16 + 1);
+            previousBucket = bucket;
+        }
+    }
+
+    @Test
+    public void hugeValuesEndUpInTheLastBucket() {
+        Assert.assertEquals(LatencyHistogram.bucketOf(1L << 41), LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void summarizesInMicros() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1_000L);
+        }
+
+        Map<String, Object> summary = histogram.summary();
+        Assert.assertEquals(100L, summary.get("count"));
+        Assert.assertEquals(50.5, (double) summary.get("meanMicros"), 0.01);
+        Assert.assertEquals(50, (double) summary.get("p50Micros"), 50 * 0.07);
+        Assert.assertEquals(99, (double) summary.get("p99Micros"), 99 * 0.07);
+        Assert.assertEquals(100, (double) summary.get("maxMicros"), 0);
+    }
+
+    @Test
+    public void emptyHistogramSummarizesToZeroes() {
+        Map<String, Object> summary = new LatencyHistogram().summary();
+        Assert.assertEquals(0L, summary.get("count"));
+        Assert.assertEquals(0.0, summary.get("p999Micros"));
+    }
+}
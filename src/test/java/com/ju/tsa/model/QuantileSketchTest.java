@@ -0,0 +1,117 @@
+package com.ju.tsa.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class QuantileSketchTest {
+
+    private static final double ACCURACY = 0.01;
+
+    @Test
+    public void quantilesAreWithinTheRelativeAccuracy() {
+        Random random = new Random(11);
+        double[] values = new double[100_000];
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        for (int i = 0; i < values.length; i++) {
+            // heavily skewed, like real amounts
+            values[i] = Math.exp(random.nextGaussian() * 2 + 5);
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double quantile : new double[]{0, 0.25, 0.5, 0.95, 0.99, 1}) {
+            double expected = values[(int) (quantile * (values.length - 1))];
+            assertWithinAccuracy(expected, sketch.quantile(quantile));
+        }
+    }
+
+    @Test
+    public void mergeIsTheSameAsAddingEverythingToOneSketch() {
+        Random random = new Random(3);
+        QuantileSketch all = new QuantileSketch(ACCURACY);
+        QuantileSketch merged = new QuantileSketch(ACCURACY);
+        for (int part = 0; part < 10; part++) {
+            QuantileSketch partial = new QuantileSketch(ACCURACY);
+            for (int i = 0; i < 1_000; i++) {
+                // every part covers a different range, so the bins have to move around
+                double value = random.nextDouble() * Math.pow(10, part) - 50;
+                partial.add(value);
+                all.add(value);
+            }
+            merged.merge(partial);
+        }
+
+        Assert.assertEquals(all.getCount(), merged.getCount());
+        for (double quantile : new double[]{0, 0.01, 0.5, 0.9, 0.999, 1}) {
+            Assert.assertEquals(all.quantile(quantile), merged.quantile(quantile), 0);
+        }
+    }
+
+    @Test
+    public void negativesComeBeforeZeroesAndPositives() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        for (double value : new double[]{-100, -1, 0, 0, 5, 100}) {
+            sketch.add(value);
+        }
+
+        assertWithinAccuracy(-100, sketch.quantile(0));
+        assertWithinAccuracy(-1, sketch.quantile(0.2));
+        Assert.assertEquals(0, sketch.quantile(0.5), 0);
+        assertWithinAccuracy(5, sketch.quantile(0.8));
+        assertWithinAccuracy(100, sketch.quantile(1));
+    }
+
+    @Test
+    public void resetEmptiesTheSketch() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        sketch.add(42);
+        sketch.reset();
+
+        Assert.assertEquals(0, sketch.getCount());
+        Assert.assertTrue(Double.isNaN(sketch.quantile(0.5)));
+
+        sketch.add(7);
+        assertWithinAccuracy(7, sketch.quantile(0.5));
+    }
+
+    @Test
+    public void theLowestBinsAreFoldedRatherThanGrowingForever() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        sketch.add(1e-30);
+        sketch.add(1);
+        sketch.add(1e10);
+
+        // the larger values keep their accuracy, the tiny one gets folded into the lowest bin that's still kept
+        assertWithinAccuracy(1e10, sketch.quantile(1));
+        assertWithinAccuracy(1, sketch.quantile(0.5));
+        Assert.assertTrue(sketch.quantile(0) > 1e-30);
+    }
+
+    @Test
+    public void infinitiesCountAsTheLargestFiniteValues() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY);
+        sketch.add(Double.POSITIVE_INFINITY);
+        sketch.add(Double.NEGATIVE_INFINITY);
+        sketch.add(Double.MIN_VALUE);
+        sketch.add(1);
+
+        QuantileSketch merged = new QuantileSketch(ACCURACY);
+        merged.merge(sketch);
+
+        Assert.assertEquals(4, merged.getCount());
+        Assert.assertEquals(-Double.MAX_VALUE, merged.quantile(0), Double.MAX_VALUE * ACCURACY);
+        Assert.assertEquals(Double.MAX_VALUE, merged.quantile(1), Double.MAX_VALUE * ACCURACY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sketchesOfDifferentAccuracyDontMerge() {
+        new QuantileSketch(0.01).merge(new QuantileSketch(0.02));
+    }
+
+    private static void assertWithinAccuracy(double expected, double actual) {
+        Assert.assertEquals(expected, actual, Math.abs(expected) * ACCURACY * 1.0001);
+    }
+}
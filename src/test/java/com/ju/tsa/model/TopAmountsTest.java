@@ -0,0 +1,81 @@
+package com.ju.tsa.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class TopAmountsTest {
+
+    @Test
+    public void keepsTheLargestAmountsLargestFirst() {
+        TopAmounts top = new TopAmounts(10);
+        List<Long> offered = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            long units = random.nextInt(1_000_000);
+            offered.add(units);
+            top.offer(units, units * 3);
+        }
+        offered.sort(Collections.reverseOrder());
+
+        List<TopTransaction> kept = top.toList(2);
+        Assert.assertEquals(10, kept.size());
+        for (int i = 0; i < kept.size(); i++) {
+            Assert.assertEquals(BigDecimal.valueOf(offered.get(i), 2), kept.get(i).getAmount());
+            Assert.assertEquals(offered.get(i) * 3, kept.get(i).getTimestamp());
+        }
+    }
+
+    @Test
+    public void keepsWhatItGetsUntilItIsFull() {
+        TopAmounts top = new TopAmounts(3);
+        top.offer(-5, 1);
+        top.offer(7, 2);
+
+        List<TopTransaction> kept = top.toList(0);
+        Assert.assertEquals(2, kept.size());
+        Assert.assertEquals(BigDecimal.valueOf(7), kept.get(0).getAmount());
+        Assert.assertEquals(BigDecimal.valueOf(-5), kept.get(1).getAmount());
+    }
+
+    @Test
+    public void turnsAwayWhatDoesNotBeatTheSmallestKept() {
+        TopAmounts top = new TopAmounts(2);
+        top.offer(10, 1);
+        top.offer(20, 2);
+        top.offer(10, 3);
+        top.offer(5, 4);
+
+        List<TopTransaction> kept = top.toList(0);
+        Assert.assertEquals(BigDecimal.valueOf(20), kept.get(0).getAmount());
+        Assert.assertEquals(1, kept.get(1).getTimestamp());
+    }
+
+    @Test
+    public void mergesTheLargestOfBoth() {
+        TopAmounts left = new TopAmounts(3);
+        TopAmounts right = new TopAmounts(3);
+        for (long units = 1; units <= 6; units++) {
+            (units % 2 == 0 ? left : right).offer(units, units);
+        }
+
+        TopAmounts merged = new TopAmounts(2);
+        merged.merge(left);
+        merged.merge(right);
+
+        List<TopTransaction> kept = merged.toList(0);
+        Assert.assertEquals(2, kept.size());
+        Assert.assertEquals(BigDecimal.valueOf(6), kept.get(0).getAmount());
+        Assert.assertEquals(BigDecimal.valueOf(5), kept.get(1).getAmount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keepsAtLeastOne() {
+        new TopAmounts(0);
+    }
+}
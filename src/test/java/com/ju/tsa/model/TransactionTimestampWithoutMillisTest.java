@@ -16,4 +16,12 @@ public class TransactionTimestampWithoutMillisTest {
         Transaction transaction = new Transaction(BigDecimal.TEN, timeAsInstant.toEpochMilli());
         Assert.assertEquals(Instant.ofEpochMilli(expectedTime), transaction.strippedMillis());
     }
+
+    @Test
+    public void keepsTheTimestampAsPrimitives() {
+        Transaction transaction = new Transaction(BigDecimal.TEN, 1518186844879L);
+        Assert.assertEquals(1518186844879L, transaction.getEpochMillis());
+        Assert.assertEquals(1518186844L, transaction.getEpochSecond());
+        Assert.assertEquals(-1L, new Transaction(BigDecimal.TEN, -1).getEpochSecond());
+    }
 }
@@ -0,0 +1,40 @@
+package com.ju.tsa.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WindowLengthTest {
+
+    @Test
+    public void readsTheUsualUnits() {
+        assertEquals(500, WindowLength.parse("500ms").getMillis());
+        assertEquals(10_000, WindowLength.parse("10s").getMillis());
+        assertEquals(300_000, WindowLength.parse("5m").getMillis());
+        assertEquals(3_600_000, WindowLength.parse(" 1h ").getMillis());
+        assertEquals(1_500, WindowLength.parse("1500").getMillis());
+    }
+
+    @Test
+    public void isNamedAfterTheLargestUnitThatFits() {
+        assertEquals("1m", WindowLength.ofMillis(60_000).toString());
+        assertEquals("90s", WindowLength.ofMillis(90_000).toString());
+        assertEquals("1500ms", WindowLength.ofMillis(1_500).toString());
+        assertEquals(WindowLength.parse("60s"), WindowLength.parse("1m"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownUnitsAreRefused() {
+        WindowLength.parse("5d");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyWindowsAreRefused() {
+        WindowLength.parse("0s");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void garbageIsRefused() {
+        WindowLength.parse("m5");
+    }
+}
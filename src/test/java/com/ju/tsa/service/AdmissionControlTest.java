@@ -0,0 +1,151 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.config.StatsProperties;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTest {
+
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000L);
+    private final StatsProperties properties = new StatsProperties();
+
+    @Test
+    public void letsABurstThroughAndThenOnlyTheRate() {
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setRatePerSecond(10);
+        properties.getAdmission().setBurst(5);
+        AdmissionControl admission = admission();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(AdmissionControl.ADMITTED, admitAndFinish(admission));
+        }
+        // the next token comes 100ms on
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), admission.admit());
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(AdmissionControl.ADMITTED, admitAndFinish(admission));
+        assertTrue(admission.admit() > 0);
+
+        assertEquals(6L, admission.toMap().get("admitted"));
+        assertEquals(0, admission.toMap().get("inFlight"));
+    }
+
+    @Test
+    public void makesTheRequestsAfterABigBatchPayForIt() {
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setRatePerSecond(1_000);
+        AdmissionControl admission = admission();
+
+        assertEquals(AdmissionControl.ADMITTED, admission.admit());
+        admission.charge(3_000);
+        admission.done(0);
+
+        // two seconds more than the burst of a second, and the token of the next one
+        long wait = admission.admit();
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2_001), wait);
+        nanos.addAndGet(wait);
+        assertEquals(AdmissionControl.ADMITTED, admitAndFinish(admission));
+    }
+
+    @Test
+    public void limitsEveryKeyOnItsOwn() {
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setKeyRatePerSecond(1);
+        AdmissionControl admission = admission();
+
+        assertEquals(AdmissionControl.ADMITTED, admitKeyAndFinish(admission, "a"));
+        assertEquals(AdmissionControl.ADMITTED, admitKeyAndFinish(admission, "b"));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), admitKeyAndFinish(admission, "a"));
+        assertEquals(1L, ((Map<?, ?>) admission.toMap().get("shed")).get("key_rate"));
+        assertEquals(2L, admission.toMap().get("admitted"));
+    }
+
+    @Test
+    public void onlyIdleKeysMakeRoomForNewOnes() {
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setKeyRatePerSecond(1);
+        properties.getAdmission().setMaxKeys(2);
+        AdmissionControl admission = admission();
+
+        assertEquals(AdmissionControl.ADMITTED, admitKeyAndFinish(admission, "a"));
+        assertEquals(AdmissionControl.ADMITTED, admitKeyAndFinish(admission, "b"));
+        assertEquals("no room while both are busy", TimeUnit.SECONDS.toNanos(1), admitKeyAndFinish(admission, "c"));
+        assertTrue("a keeps its bucket", admitKeyAndFinish(admission, "a") > 0);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(AdmissionControl.ADMITTED, admitKeyAndFinish(admission, "c"));
+        assertEquals(1, admission.toMap().get("keys"));
+    }
+
+    @Test
+    public void keepsTheInFlightRequestsBelowTheLimit() {
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setMaxInFlight(2);
+        AdmissionControl admission = admission();
+
+        assertEquals(AdmissionControl.ADMITTED, admission.admit());
+        assertEquals(AdmissionControl.ADMITTED, admission.admit());
+        assertTrue(admission.admit() > 0);
+        admission.done(0);
+        assertEquals(AdmissionControl.ADMITTED, admission.admit());
+    }
+
+    @Test
+    public void shedsMostWhileTheRequestsTakeFarTooLong() {
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setShedLatencyMicros(100);
+        AdmissionControl admission = admission();
+        for (int i = 0; i < 100; i++) {
+            if (admission.admit() == AdmissionControl.ADMITTED) {
+                admission.done(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+
+        int admitted = 0;
+        for (int i = 0; i < 1_000; i++) {
+            if (admission.admit() == AdmissionControl.ADMITTED) {
+                admitted++;
+                admission.done(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+        // 100 times the latency it should be, so only the one in twenty that always gets through
+        assertTrue("admitted " + admitted, admitted > 20 && admitted < 100);
+    }
+
+    @Test
+    public void letsEverythingThroughWhenDisabled() {
+        properties.getAdmission().setRatePerSecond(1);
+        properties.getAdmission().setMaxInFlight(0);
+        AdmissionControl admission = admission();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(AdmissionControl.ADMITTED, admission.admit());
+        }
+    }
+
+    private AdmissionControl admission() {
+        return new AdmissionControl(properties, new AsyncIngester(new StatsService(), properties), nanos::get);
+    }
+
+    private static long admitAndFinish(AdmissionControl admission) {
+        long wait = admission.admit();
+        if (wait == AdmissionControl.ADMITTED) {
+            admission.done(1_000);
+        }
+        return wait;
+    }
+
+    private static long admitKeyAndFinish(AdmissionControl admission, String key) {
+        long wait = admission.admit();
+        if (wait != AdmissionControl.ADMITTED) {
+            return wait;
+        }
+        wait = admission.admitKey(key);
+        admission.done(1_000);
+        return wait;
+    }
+}
@@ -0,0 +1,106 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.Transaction;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncIngesterTest {
+
+    private static final long NOW = 1_000_000;
+
+    @Test
+    public void nothingAcceptedGetsLostWhateverTheWaitStrategy() throws Exception {
+        for (StatsProperties.WaitStrategy strategy : StatsProperties.WaitStrategy.values()) {
+            StatsService stats = new StatsService(new MutableClock(NOW));
+            AsyncIngester ingester = new AsyncIngester(stats, properties(1_024, strategy));
+            ingester.start();
+
+            AtomicLong accepted = new AtomicLong();
+            List<Thread> producers = new ArrayList<>();
+            for (int p = 0; p < 4; p++) {
+                producers.add(new Thread(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        if (ingester.offer(new Transaction(BigDecimal.ONE, NOW - 1 - i % 50_000))) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            producers.forEach(Thread::start);
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            ingester.stop();
+
+            assertTrue(strategy + " took something", accepted.get() > 0);
+            assertEquals(strategy.toString(), accepted.get(), stats.aggregate().getCount());
+            assertEquals(strategy.toString(), 80_000 - accepted.get(), ingester.refused());
+            assertEquals(0, ingester.depth());
+        }
+    }
+
+    @Test
+    public void aFullBufferRefuses() {
+        StatsService stats = new StatsService(new MutableClock(NOW));
+        // never started, so nobody drains it
+        AsyncIngester ingester = new AsyncIngester(stats, properties(4, StatsProperties.WaitStrategy.SLEEPING));
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ingester.offer(new Transaction(BigDecimal.ONE, NOW - 1)));
+        }
+        assertFalse(ingester.offer(new Transaction(BigDecimal.ONE, NOW - 1)));
+        assertEquals(4, ingester.depth());
+        assertEquals(1, ingester.refused());
+    }
+
+    @Test
+    public void aStoppedIngesterRefuses() throws Exception {
+        StatsService stats = new StatsService(new MutableClock(NOW));
+        AsyncIngester ingester = new AsyncIngester(stats, properties(16, StatsProperties.WaitStrategy.BLOCKING));
+        ingester.start();
+        assertTrue(ingester.offer(new Transaction(BigDecimal.TEN, NOW - 1)));
+        ingester.stop();
+
+        assertFalse(ingester.offer(new Transaction(BigDecimal.ONE, NOW - 1)));
+        assertEquals(BigDecimal.TEN, stats.aggregate().getSum());
+    }
+
+    @Test
+    public void aBadTransactionOnlyCostsItself() throws Exception {
+        StatsService stats = new StatsService(new MutableClock(NOW));
+        AsyncIngester ingester = new AsyncIngester(stats, properties(16, StatsProperties.WaitStrategy.BLOCKING));
+
+        // offered before the writer starts, so all three end up in the same batch
+        assertTrue(ingester.offer(new Transaction(BigDecimal.ONE, NOW - 1)));
+        assertTrue(ingester.offer(new Transaction(null, NOW - 1)));
+        assertTrue(ingester.offer(new Transaction(BigDecimal.TEN, NOW - 1)));
+        ingester.start();
+        while (ingester.failedTransactions() == 0) {
+            Thread.sleep(1);
+        }
+        assertTrue(ingester.offer(new Transaction(BigDecimal.TEN, NOW - 1)));
+        ingester.stop();
+
+        assertEquals(1, ingester.failedTransactions());
+        assertEquals(BigDecimal.valueOf(21), stats.aggregate().getSum());
+    }
+
+    private static StatsProperties properties(int capacity, StatsProperties.WaitStrategy strategy) {
+        StatsProperties properties = new StatsProperties();
+        properties.getIngest().setAsync(true);
+        properties.getIngest().setCapacity(capacity);
+        properties.getIngest().setBatchSize(64);
+        properties.getIngest().setWaitStrategy(strategy);
+        return properties;
+    }
+}
@@ -0,0 +1,200 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.HistogramBin;
+import com.ju.tsa.model.TopTransaction;
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.model.TransactionAggregator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BucketPersisterTest {
+
+    private static final long NOW = 1_000_000_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void survivesAKillDashNine() throws Exception {
+        File file = new File(folder.getRoot(), "buckets.dat");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process producer = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Producer.class.getName(), file.getPath())
+                .redirectErrorStream(true)
+                .start();
+        try {
+            BufferedReader output = new BufferedReader(
+                    new InputStreamReader(producer.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("flushed", output.readLine());
+        } finally {
+            // SIGKILL, so no shutdown hooks, no @PreDestroy, no last flush
+            producer.destroyForcibly();
+            assertTrue(producer.waitFor(10, TimeUnit.SECONDS));
+        }
+
+        MutableClock clock = new MutableClock(NOW + 5_000);
+        StatsService stats = new StatsService(clock, properties(file));
+        BucketPersister persister = new BucketPersister(stats, properties(file));
+        persister.start();
+        try {
+            TransactionAggregator restored = stats.aggregate();
+            assertEquals(Producer.TRANSACTIONS, restored.getCount());
+            assertEquals(new BigDecimal("1275"), restored.getSum());
+            assertEquals(new BigDecimal("50"), restored.getMaximum());
+            assertEquals(new BigDecimal("1"), restored.getMinimum());
+        } finally {
+            persister.stop();
+        }
+    }
+
+    @Test
+    public void leavesOutWhatExpiredWhileItWasDown() throws Exception {
+        File file = new File(folder.getRoot(), "buckets.dat");
+        MutableClock clock = new MutableClock(NOW);
+        StatsService stats = new StatsService(clock, properties(file));
+        BucketPersister persister = new BucketPersister(stats, properties(file));
+        persister.start();
+        stats.add(new Transaction(BigDecimal.valueOf(10), NOW - 50_000));
+        stats.add(new Transaction(BigDecimal.valueOf(20), NOW - 1_000));
+        persister.stop();
+
+        // 30 seconds later the first one is gone from the window
+        clock.advance(30_000);
+        StatsService restarted = new StatsService(clock, properties(file));
+        BucketPersister restored = new BucketPersister(restarted, properties(file));
+        restored.start();
+        try {
+            TransactionAggregator result = restarted.aggregate();
+            assertEquals(1, result.getCount());
+            assertEquals(new BigDecimal("20"), result.getMaximum());
+        } finally {
+            restored.stop();
+        }
+    }
+
+    @Test
+    public void keepsTheHistogramAndTheLargestTransactions() throws Exception {
+        File file = new File(folder.getRoot(), "buckets.dat");
+        MutableClock clock = new MutableClock(NOW);
+        StatsService stats = new StatsService(clock, properties(file));
+        BucketPersister persister = new BucketPersister(stats, properties(file));
+        persister.start();
+        stats.add(new Transaction(BigDecimal.valueOf(5), NOW - 2_000));
+        stats.add(new Transaction(BigDecimal.valueOf(500), NOW - 1_000));
+        persister.stop();
+
+        StatsService restarted = new StatsService(clock, properties(file));
+        BucketPersister restored = new BucketPersister(restarted, properties(file));
+        restored.start();
+        try {
+            long counted = 0;
+            for (HistogramBin bin : restarted.histogram(restarted.getMainWindow())) {
+                counted += bin.getCount();
+            }
+            assertEquals(2, counted);
+            List<TopTransaction> top = restarted.topTransactions(2);
+            assertEquals(0, BigDecimal.valueOf(500).compareTo(top.get(0).getAmount()));
+            assertEquals(NOW - 1_000, top.get(0).getTimestamp());
+            assertEquals(0, BigDecimal.valueOf(5).compareTo(top.get(1).getAmount()));
+        } finally {
+            restored.stop();
+        }
+    }
+
+    @Test
+    public void startsOverWithAFileOfAnotherLayout() throws Exception {
+        File file = new File(folder.getRoot(), "buckets.dat");
+        MutableClock clock = new MutableClock(NOW);
+        StatsService stats = new StatsService(clock, properties(file));
+        BucketPersister persister = new BucketPersister(stats, properties(file));
+        persister.start();
+        stats.add(new Transaction(BigDecimal.valueOf(10), NOW - 1_000));
+        persister.stop();
+
+        StatsProperties otherLayout = properties(file);
+        otherLayout.setBucketMillis(500);
+        StatsService restarted = new StatsService(clock, otherLayout);
+        BucketPersister restored = new BucketPersister(restarted, otherLayout);
+        restored.start();
+        try {
+            assertEquals(0, restarted.aggregate().getCount());
+        } finally {
+            restored.stop();
+        }
+    }
+
+    @Test
+    public void ignoresARecordThatWasOnlyHalfWritten() throws Exception {
+        File file = new File(folder.getRoot(), "buckets.dat");
+        TimingWheel wheel = new TimingWheel(60_000, 1_000, 60, 1, 2);
+        FixedPointAggregator aggregates = new FixedPointAggregator(2);
+        aggregates.append(BigDecimal.TEN);
+
+        try (BucketFile buckets = BucketFile.open(file.toPath(), wheel, 2)) {
+            assertFalse("a new file has nothing to restore", buckets.isRestorable());
+            buckets.write(0, 3, 1_003, aggregates);
+            buckets.write(0, 4, 1_004, aggregates);
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            // what a process dying halfway through the next write of slot 4 leaves behind: the count of the record
+            // is new, the rest isn't (a header of 40 bytes, 56 bytes per record, the count after the stamp)
+            raw.seek(40 + 4 * 56 + 8);
+            raw.writeLong(2);
+        }
+        try (BucketFile buckets = BucketFile.open(file.toPath(), wheel, 2)) {
+            assertTrue(buckets.isRestorable());
+            FixedPointAggregator into = new FixedPointAggregator(2);
+            assertEquals(1_003, buckets.read(0, 3, into));
+            assertEquals(1, into.getCount());
+            assertEquals(StripedBucketRing.EMPTY_SLOT, buckets.read(0, 4, new FixedPointAggregator(2)));
+        }
+    }
+
+    private static StatsProperties properties(File file) {
+        StatsProperties properties = new StatsProperties();
+        properties.getPersistence().setEnabled(true);
+        properties.getPersistence().setFile(file.getPath());
+        properties.getPersistence().setFlushMillis(10);
+        return properties;
+    }
+
+    /**
+     * Runs in a process of its own, adds transactions, makes sure they're flushed and then waits to be killed
+     */
+    public static class Producer {
+
+        static final int TRANSACTIONS = 50;
+
+        public static void main(String[] args) throws Exception {
+            StatsProperties properties = properties(new File(args[0]));
+            StatsService stats = new StatsService(new MutableClock(NOW), properties);
+            BucketPersister persister = new BucketPersister(stats, properties);
+            persister.start();
+            for (int i = 1; i <= TRANSACTIONS; i++) {
+                stats.add(new Transaction(BigDecimal.valueOf(i), NOW - i * 500));
+            }
+            persister.flush();
+            System.out.println("flushed");
+            System.out.flush();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.Transaction;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoarseClockTest {
+
+    private static final long NOW = 1_000_000_000;
+
+    @Test
+    public void catchesUpWithTheSourceButNeverGoesBack() throws Exception {
+        MutableClock source = new MutableClock(NOW);
+        try (CoarseClock clock = new CoarseClock(source, 1)) {
+            source.set(NOW + 5_000);
+            awaitMillis(clock, NOW + 5_000);
+
+            source.set(NOW + 1_000);
+            Thread.sleep(20);
+            assertEquals(NOW + 5_000, clock.millis());
+            assertEquals(NOW + 5_000, clock.preciseMillis());
+        }
+    }
+
+    @Test
+    public void takesTransactionsOfTheTickThatIsNotInYet() {
+        MutableClock source = new MutableClock(NOW);
+        // a tick long enough to never come during the test
+        try (CoarseClock clock = new CoarseClock(source, TimeUnit.HOURS.toMillis(1))) {
+            StatsService stats = new StatsService(clock, new StatsProperties());
+            source.advance(5);
+
+            stats.add(new Transaction(BigDecimal.ONE, NOW + 2));
+            stats.add(new Transaction(BigDecimal.ONE, NOW + 5));
+
+            assertEquals(NOW, clock.millis());
+            assertEquals(1, stats.getMetrics().getAccepted());
+            assertEquals(1, stats.getMetrics().getRejected(StatsMetrics.Rejection.IN_THE_FUTURE));
+        }
+    }
+
+    private static void awaitMillis(CoarseClock clock, long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (clock.millis() != millis && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(millis, clock.millis());
+    }
+}
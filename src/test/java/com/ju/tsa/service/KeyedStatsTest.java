@@ -0,0 +1,151 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.KeyedAggregate;
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.model.TransactionAggregator;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyedStatsTest {
+
+    private static final long NOW = 1518186844879L;
+
+    /**
+     * One minute in five second buckets is 13 slots
+     */
+    private static final long BYTES_PER_KEY = KeyedStats.bytesPerKey(13);
+
+    /**
+     * What a key like key-123 costs
+     */
+    private static final long BYTES_PER_SHORT_KEY = BYTES_PER_KEY + 7 * KeyedStats.KEY_CHAR_BYTES;
+
+    @Test
+    public void keepsEveryKeyApart() {
+        KeyedStats keyed = new KeyedStats(60_000, 5_000, 1024 * 1024, 2);
+
+        keyed.add(new Transaction(BigDecimal.ONE, NOW - 1_000, "a"), NOW);
+        keyed.add(new Transaction(BigDecimal.TEN, NOW - 30_000, "a"), NOW);
+        keyed.add(new Transaction(BigDecimal.valueOf(5), NOW - 2_000, "b"), NOW);
+
+        TransactionAggregator a = keyed.aggregate("a", NOW);
+        assertEquals(BigDecimal.valueOf(11), a.getSum());
+        assertEquals(2, a.getCount());
+        assertEquals(BigDecimal.valueOf(5), keyed.aggregate("b", NOW).getSum());
+        assertNull(keyed.aggregate("c", NOW));
+    }
+
+    @Test
+    public void bucketsOfAKeyLeaveTheWindow() {
+        KeyedStats keyed = new KeyedStats(60_000, 5_000, 1024 * 1024, 2);
+        keyed.add(new Transaction(BigDecimal.ONE, NOW - 1_000, "a"), NOW);
+        keyed.add(new Transaction(BigDecimal.TEN, NOW - 50_000, "a"), NOW);
+
+        assertEquals(BigDecimal.ONE, keyed.aggregate("a", NOW + 20_000).getSum());
+        assertEquals(0, keyed.aggregate("a", NOW + 70_000).getCount());
+    }
+
+    @Test
+    public void topKeysAreOrderedBySum() {
+        KeyedStats keyed = new KeyedStats(60_000, 5_000, 1024 * 1024, 2);
+        for (int key = 0; key < 20; key++) {
+            keyed.add(new Transaction(BigDecimal.valueOf(key), NOW - 1_000, "key-" + key), NOW);
+        }
+
+        List<KeyedAggregate> top = keyed.topBySum(3, NOW);
+
+        assertEquals(3, top.size());
+        assertEquals("key-19", top.get(0).getKey());
+        assertEquals("key-18", top.get(1).getKey());
+        assertEquals(BigDecimal.valueOf(17), top.get(2).getStatistics().getSum());
+    }
+
+    @Test
+    public void theBudgetIsAHardLimit() {
+        KeyedStats keyed = new KeyedStats(60_000, 5_000, 100 * BYTES_PER_SHORT_KEY, 2);
+
+        for (int key = 0; key < 1_000; key++) {
+            keyed.add(new Transaction(BigDecimal.ONE, NOW - 1_000, String.format("key-%03d", key)), NOW);
+            assertTrue(keyed.size() <= 100);
+        }
+        assertEquals(900, keyed.evictions());
+        assertEquals(100 * BYTES_PER_SHORT_KEY, keyed.usedBytes());
+        assertNotNull("the newest key is always kept", keyed.aggregate("key-999", NOW));
+    }
+
+    @Test
+    public void longKeysUseUpMoreOfTheBudget() {
+        KeyedStats keyed = new KeyedStats(60_000, 5_000, 100 * BYTES_PER_SHORT_KEY, 2);
+        char[] padding = new char[4_000];
+        Arrays.fill(padding, 'x');
+
+        for (int key = 0; key < 100; key++) {
+            keyed.add(new Transaction(BigDecimal.ONE, NOW - 1_000, key + new String(padding)), NOW);
+            assertTrue(keyed.usedBytes() <= 100 * BYTES_PER_SHORT_KEY);
+        }
+        assertTrue(keyed.size() < 20);
+
+        keyed.add(new Transaction(BigDecimal.ONE, NOW - 1_000, new String(new char[1_000_000])), NOW);
+        assertTrue("a key bigger than the budget isn't kept at all", keyed.usedBytes() <= 100 * BYTES_PER_SHORT_KEY);
+    }
+
+    @Test
+    public void recentlyUsedKeysSurviveTheSweep() {
+        KeyedStats keyed = new KeyedStats(60_000, 5_000, 10 * BYTES_PER_SHORT_KEY, 2);
+
+        for (int key = 0; key < 100; key++) {
+            keyed.add(new Transaction(BigDecimal.ONE, NOW - 1_000, "hot"), NOW);
+            keyed.add(new Transaction(BigDecimal.ONE, NOW - 1_000, "cold-" + key), NOW);
+        }
+
+        assertEquals(BigDecimal.valueOf(100), keyed.aggregate("hot", NOW).getSum());
+    }
+
+    @Test
+    public void idleKeysGoFirst() {
+        KeyedStats keyed = new KeyedStats(60_000, 5_000, 2 * BYTES_PER_SHORT_KEY, 2);
+        keyed.add(new Transaction(BigDecimal.ONE, NOW - 1_000, "idle"), NOW);
+        keyed.add(new Transaction(BigDecimal.ONE, NOW + 119_000, "busy"), NOW + 120_000);
+
+        keyed.add(new Transaction(BigDecimal.ONE, NOW + 119_000, "new"), NOW + 120_000);
+
+        assertNull(keyed.aggregate("idle", NOW + 120_000));
+        assertNotNull(keyed.aggregate("busy", NOW + 120_000));
+    }
+
+    @Test
+    public void concurrentWritersDoNotLoseTransactionsOfKeptKeys() throws Exception {
+        KeyedStats keyed = new KeyedStats(60_000, 5_000, 1024 * 1024, 2);
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            done.add(writers.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    keyed.add(new Transaction(BigDecimal.ONE, NOW - 1 - i % 50_000, "key-" + i % 16), NOW);
+                }
+            }));
+        }
+        for (Future<?> future : done) {
+            future.get();
+        }
+        writers.shutdown();
+
+        long total = 0;
+        for (int key = 0; key < 16; key++) {
+            total += keyed.aggregate("key-" + key, NOW).getCount();
+        }
+        assertEquals(80_000, total);
+    }
+}
@@ -0,0 +1,194 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.FixedPointAggregator;
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.model.TransactionAggregator;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RollingWindowTest {
+
+    private static final long START = 1518186844879L;
+
+    private final TimingWheel wheel = new TimingWheel(60_000, 1_000, 60, 4, 2);
+    private final StripedBucketRing ring = wheel.level(0);
+    private final RollingWindow window = new RollingWindow(wheel, 60_000, 2);
+
+    @Test
+    public void followsTheFullScanWhileTimeMovesOn() {
+        Random random = new Random(11);
+        long now = START;
+
+        for (int step = 0; step < 2_000; step++) {
+            now += random.nextInt(700);
+            for (int i = random.nextInt(5); i > 0; i--) {
+                long timestamp = now - random.nextInt(60_000);
+                ring.add(new Transaction(BigDecimal.valueOf(random.nextInt(100_000) - 50_000, 2), timestamp));
+            }
+
+            assertSameAggregate(ring.aggregate(now - 60_000).toTransactionAggregator(), window.aggregate(now));
+        }
+    }
+
+    @Test
+    public void bucketsLeaveTheWindowWithoutAnyNewWrites() {
+        ring.add(new Transaction(BigDecimal.TEN, START - 30_000));
+        ring.add(new Transaction(BigDecimal.ONE, START - 1_000));
+
+        assertEquals(2, window.aggregate(START).getCount());
+        assertEquals(BigDecimal.ONE, window.aggregate(START + 29_500).getSum());
+        assertEquals(0, window.aggregate(START + 60_000).getCount());
+    }
+
+    @Test
+    public void nothingChangedMeansNothingRecalculated() {
+        ring.add(new Transaction(BigDecimal.TEN, START - 1_000));
+
+        TransactionAggregator first = window.aggregate(START);
+        assertSame(first, window.aggregate(START + 10));
+
+        ring.add(new Transaction(BigDecimal.ONE, START - 1_000));
+        assertEquals(BigDecimal.valueOf(11), window.aggregate(START + 20).getSum());
+    }
+
+    @Test
+    public void jumpingFurtherThanTheWholeRingClearsEverything() {
+        ring.add(new Transaction(BigDecimal.TEN, START - 1_000));
+        window.aggregate(START);
+
+        assertEquals(0, window.aggregate(START + 3_600_000).getCount());
+    }
+
+    @Test
+    public void levelsAddUpToTheWholeWindow() {
+        // 10ms buckets for the most recent 600ms, 600ms buckets for the rest of the quarter of an hour
+        long windowMillis = 15 * 60_000;
+        TimingWheel levels = new TimingWheel(windowMillis, 10, 60, 4, 2);
+        RollingWindow quarter = new RollingWindow(levels, windowMillis, 2);
+        assertEquals(2, levels.levelCount());
+
+        Random random = new Random(7);
+        List<Transaction> added = new ArrayList<>();
+        long now = START;
+
+        for (int step = 0; step < 3_000; step++) {
+            now += random.nextInt(random.nextInt(20) == 0 ? 60_000 : 500);
+            for (int i = random.nextInt(5); i > 0; i--) {
+                long age = random.nextInt(10) < 7 ? random.nextInt(2_000) : random.nextInt((int) windowMillis);
+                Transaction transaction =
+                        new Transaction(BigDecimal.valueOf(random.nextInt(100_000) - 50_000, 2), now - 1 - age);
+                levels.add(transaction);
+                added.add(transaction);
+            }
+
+            long tailStart = (Math.floorDiv(now - windowMillis, 600) + 1) * 600;
+            added.removeIf(transaction -> transaction.getTransactionTimestamp().toEpochMilli() < tailStart);
+            FixedPointAggregator expected = new FixedPointAggregator(2);
+            added.forEach(expected::append);
+
+            assertSameAggregate(expected.toTransactionAggregator(), quarter.aggregate(now));
+        }
+    }
+
+    @Test
+    public void anyLastSoManyMillisComeFromTheFinestLevelThatReachesBackFarEnough() {
+        long windowMillis = 15 * 60_000;
+        TimingWheel levels = new TimingWheel(windowMillis, 10, 60, 4, 2);
+        RollingWindow quarter = new RollingWindow(levels, windowMillis, 2);
+
+        Random random = new Random(3);
+        List<Transaction> added = new ArrayList<>();
+        long now = START;
+
+        for (int step = 0; step < 3_000; step++) {
+            now += random.nextInt(random.nextInt(20) == 0 ? 60_000 : 500);
+            for (int i = random.nextInt(5); i > 0; i--) {
+                long age = random.nextInt(10) < 7 ? random.nextInt(2_000) : random.nextInt((int) windowMillis);
+                Transaction transaction =
+                        new Transaction(BigDecimal.valueOf(random.nextInt(100_000) - 50_000, 2), now - 1 - age);
+                levels.add(transaction);
+                added.add(transaction);
+            }
+
+            long last = 1 + random.nextInt(random.nextBoolean() ? 600 : (int) windowMillis);
+            // the 10ms level keeps the last 60 buckets, from where the 600ms level hands over to it
+            long handOver = -Math.floorDiv(-(Math.floorDiv(now, 10) - 59) * 10, 600) * 600;
+            long fineStart = (Math.floorDiv(now - last, 10) + 1) * 10;
+            long tailStart = fineStart >= handOver ? fineStart : (Math.floorDiv(now - last, 600) + 1) * 600;
+            FixedPointAggregator expected = new FixedPointAggregator(2);
+            added.stream()
+                    .filter(transaction -> transaction.getTransactionTimestamp().toEpochMilli() >= tailStart)
+                    .forEach(expected::append);
+
+            assertSameAggregate(expected.toTransactionAggregator(), quarter.aggregateLast(last, now));
+        }
+    }
+
+    @Test
+    public void millisecondBucketsMoveTheEdgeByTheMillisecond() {
+        TimingWheel fine = new TimingWheel(1_000, 1, 60, 4, 2);
+        RollingWindow second = new RollingWindow(fine, 1_000, 2);
+
+        fine.add(new Transaction(BigDecimal.TEN, START - 999));
+        fine.add(new Transaction(BigDecimal.ONE, START - 1));
+
+        assertEquals(2, second.aggregate(START).getCount());
+        assertEquals(BigDecimal.ONE, second.aggregate(START + 1).getSum());
+        assertEquals(0, second.aggregate(START + 999).getCount());
+    }
+
+    @Test
+    public void windowsOfAllLengthsShareTheWheel() {
+        long[] windowsMillis = {1_000, 10_000, 60_000, 300_000, 3_600_000};
+        TimingWheel shared = new TimingWheel(windowsMillis, 100, 60, 4, 2);
+        RollingWindow windows = new RollingWindow(shared, windowsMillis, 2);
+        assertEquals("everything up to 5m fits into the 100ms level", 2, shared.levelCount());
+        assertEquals(3_001, shared.level(0).size());
+        assertEquals(601, shared.level(1).size());
+
+        Random random = new Random(5);
+        List<Transaction> added = new ArrayList<>();
+        long now = START;
+
+        for (int step = 0; step < 2_000; step++) {
+            now += random.nextInt(random.nextInt(50) == 0 ? 600_000 : 700);
+            for (int i = random.nextInt(5); i > 0; i--) {
+                long age = random.nextInt(10) < 5 ? random.nextInt(1_000) : random.nextInt(3_600_000);
+                Transaction transaction =
+                        new Transaction(BigDecimal.valueOf(random.nextInt(100_000) - 50_000, 2), now - 1 - age);
+                shared.add(transaction);
+                added.add(transaction);
+            }
+
+            TransactionAggregator[] all = windows.aggregateAll(now);
+            for (int window = 0; window < windowsMillis.length; window++) {
+                long width = shared.level(shared.topLevelFor(windowsMillis[window])).bucketMillis();
+                long tailStart = (Math.floorDiv(now - windowsMillis[window], width) + 1) * width;
+                FixedPointAggregator expected = new FixedPointAggregator(2);
+                added.stream()
+                        .filter(transaction -> transaction.getTransactionTimestamp().toEpochMilli() >= tailStart)
+                        .forEach(expected::append);
+
+                assertSameAggregate(expected.toTransactionAggregator(), all[window]);
+                assertSame(all[window], windows.aggregate(window, now));
+            }
+            long oldest = now - 3_600_000;
+            added.removeIf(transaction -> transaction.getTransactionTimestamp().toEpochMilli() < oldest);
+        }
+    }
+
+    private static void assertSameAggregate(TransactionAggregator expected, TransactionAggregator actual) {
+        assertEquals("sum", expected.getSum(), actual.getSum());
+        assertEquals("max", expected.getMaximum(), actual.getMaximum());
+        assertEquals("min", expected.getMinimum(), actual.getMinimum());
+        assertEquals("average", expected.getAverage(), actual.getAverage());
+        assertEquals("count", expected.getCount(), actual.getCount());
+    }
+}
@@ -0,0 +1,115 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.BucketState;
+import com.ju.tsa.model.Transaction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollupArchiveTest {
+
+    /**
+     * A whole minute, and a whole hour
+     */
+    private static final long NOW = 1518184800000L;
+    private static final int SECONDS = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MutableClock clock = new MutableClock(NOW);
+    private final StatsProperties properties = new StatsProperties();
+
+    @Test
+    public void foldsExpiringBucketsIntoMinutesAndHours() throws Exception {
+        properties.getRollup().setEnabled(true);
+        StatsService stats = new StatsService(clock, properties);
+        RollupArchive archive = new RollupArchive(stats, properties);
+        archive.start();
+
+        addOneASecond(stats);
+
+        // only the buckets which were rolled out of the 61 slots of the finest level are in the rings
+        assertEquals(SECONDS - 61, archive.folded());
+        List<BucketState> minutes = archive.range(NOW, NOW + SECONDS * 1_000, RollupArchive.MINUTE_MILLIS);
+        assertEquals(5, minutes.size());
+        for (int minute = 0; minute < 5; minute++) {
+            BucketState state = minutes.get(minute);
+            assertEquals(NOW + minute * RollupArchive.MINUTE_MILLIS, state.getStart());
+            assertEquals(RollupArchive.MINUTE_MILLIS, state.getWidth());
+            assertEquals(60, state.getCount());
+            assertEquals(BigDecimal.valueOf(minute * 60), state.getMin());
+            assertEquals(BigDecimal.valueOf(minute * 60 + 59), state.getMax());
+        }
+
+        List<BucketState> hours = archive.range(NOW + 1, NOW + 2, RollupArchive.HOUR_MILLIS);
+        assertEquals(1, hours.size());
+        assertEquals(NOW, hours.get(0).getStart());
+        assertEquals(SECONDS, hours.get(0).getCount());
+        assertEquals(BigDecimal.valueOf(SECONDS * (SECONDS - 1) / 2), hours.get(0).getSum());
+
+        List<BucketState> twoMinutes = archive.range(NOW + 60_000, NOW + 180_000, 2 * RollupArchive.MINUTE_MILLIS);
+        assertEquals(NOW, twoMinutes.get(0).getStart());
+        assertEquals(120, twoMinutes.get(0).getCount());
+        assertEquals(120, twoMinutes.get(1).getCount());
+    }
+
+    @Test
+    public void keepsTheHistoryInTheFileAcrossRestarts() throws Exception {
+        properties.getRollup().setEnabled(true);
+        properties.getRollup().setFile(new File(folder.getRoot(), "rollups.dat").getPath());
+        StatsService stats = new StatsService(clock, properties);
+        RollupArchive archive = new RollupArchive(stats, properties);
+        archive.start();
+        addOneASecond(stats);
+        archive.stop();
+
+        RollupArchive restarted = new RollupArchive(new StatsService(clock, properties), properties);
+        restarted.start();
+        List<BucketState> hours = restarted.range(NOW, NOW + 1, RollupArchive.HOUR_MILLIS);
+        restarted.stop();
+
+        // the live buckets were never rolled out, that's what the BucketPersister is for
+        assertEquals(SECONDS - 61, hours.get(0).getCount());
+    }
+
+    @Test
+    public void refusesRangesItCantSplitIntoSteps() throws Exception {
+        properties.getRollup().setEnabled(true);
+        RollupArchive archive = new RollupArchive(new StatsService(clock, properties), properties);
+        archive.start();
+
+        assertRefused(archive, NOW, NOW + 60_000, 30_000);
+        assertRefused(archive, NOW, NOW, 60_000);
+        assertRefused(archive, NOW, NOW + (RollupArchive.MAX_STEPS + 1) * 60_000L, 60_000);
+        assertTrue(archive.range(NOW, NOW + RollupArchive.MAX_STEPS * 60_000L, 60_000).isEmpty());
+    }
+
+    /**
+     * Adds the transactions 0, 1, 2 ... one a second, starting at NOW
+     */
+    private void addOneASecond(StatsService stats) {
+        for (int second = 0; second < SECONDS; second++) {
+            clock.set(NOW + second * 1_000 + 500);
+            stats.add(new Transaction(BigDecimal.valueOf(second), NOW + second * 1_000));
+        }
+    }
+
+    private static void assertRefused(RollupArchive archive, long from, long to, long step) {
+        try {
+            archive.range(from, to, step);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("expected the range to be refused");
+    }
+}
@@ -0,0 +1,179 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.Transaction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedStatsExporterTest {
+
+    private static final long NOW = 1_000_000_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void exportsTheMainWindowAndTheFinestBuckets() throws Exception {
+        File file = new File(folder.getRoot(), "stats.shm");
+        StatsService stats = new StatsService(new MutableClock(NOW), properties(file));
+        SharedStatsExporter exporter = new SharedStatsExporter(stats, properties(file));
+        exporter.start();
+        try {
+            stats.add(new Transaction(new BigDecimal("10.5"), NOW - 1_500));
+            stats.add(new Transaction(new BigDecimal("20"), NOW - 1_200));
+            stats.add(new Transaction(new BigDecimal("3.25"), NOW - 30_000));
+            exporter.publish();
+
+            SharedStatsReader reader = SharedStatsReader.open(file.toPath());
+            assertEquals(61, reader.getBucketCount());
+            assertEquals(1_000, reader.getBucketMillis());
+            SharedStatsReader.Stats read = reader.newStats();
+            assertTrue(reader.read(read));
+
+            assertFalse(read.isWide());
+            assertEquals(NOW, read.getPublishedAtMillis());
+            assertEquals(3, read.getCount());
+            assertEquals(0, new BigDecimal("33.75").compareTo(read.getSum()));
+            assertEquals(0, new BigDecimal("3.25").compareTo(read.getMinimum()));
+            assertEquals(0, new BigDecimal("20").compareTo(read.getMaximum()));
+            assertEquals(new BigDecimal("11.25"), read.getAverage());
+            assertEquals(2, exporter.published());
+
+            long inTheSecondBefore = 0;
+            long inTotal = 0;
+            for (int bucket = 0; bucket < read.getBucketCount(); bucket++) {
+                if (read.getBucketStart(bucket) == NOW - 2_000) {
+                    inTheSecondBefore = read.getBucketCount(bucket);
+                    assertEquals(3050, read.getBucketSumUnits(bucket));
+                }
+                inTotal += read.getBucketCount(bucket);
+            }
+            assertEquals(2, inTheSecondBefore);
+            assertEquals(3, inTotal);
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void leavesOutTheBucketsUnlessAskedFor() throws Exception {
+        File file = new File(folder.getRoot(), "stats.shm");
+        StatsProperties properties = properties(file);
+        properties.getShared().setBuckets(false);
+        properties.setPercentileAccuracy(0);
+        SharedStatsExporter exporter = new SharedStatsExporter(new StatsService(new MutableClock(NOW), properties),
+                properties);
+        exporter.start();
+        try {
+            SharedStatsReader reader = SharedStatsReader.open(file.toPath());
+            SharedStatsReader.Stats read = reader.newStats();
+            assertTrue(reader.read(read));
+            assertEquals(0, read.getBucketCount());
+            assertEquals(0, read.getCount());
+            assertNull(read.getPercentile(99));
+        } finally {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void aReaderInAnotherProcessNeverSeesATornCopy() throws Exception {
+        File file = new File(folder.getRoot(), "stats.shm");
+        StatsService stats = new StatsService(new MutableClock(NOW), properties(file));
+        SharedStatsExporter exporter = new SharedStatsExporter(stats, properties(file));
+        exporter.start();
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process reader = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Reader.class.getName(), file.getPath())
+                .redirectErrorStream(true)
+                .start();
+        try {
+            BufferedReader output = new BufferedReader(
+                    new InputStreamReader(reader.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("reading", output.readLine());
+
+            // every transaction is 1.00, so anything but a sum of count * 100 units is a copy of two publications
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            for (int i = 0; reader.isAlive() && System.nanoTime() < deadline; i++) {
+                stats.add(new Transaction(BigDecimal.ONE, NOW - 1 - i % 50 * 1_000));
+                exporter.publish();
+            }
+            String verdict = output.readLine();
+            assertTrue(verdict, verdict.startsWith("consistent"));
+            // it really did read while the publications kept coming, on a single core only as often as they take turns
+            assertTrue(verdict, Long.parseLong(verdict.split(" ")[1]) > 20);
+            assertTrue(reader.waitFor(10, TimeUnit.SECONDS));
+            assertEquals(0, reader.exitValue());
+        } finally {
+            reader.destroyForcibly();
+            exporter.stop();
+        }
+    }
+
+    private static StatsProperties properties(File file) {
+        StatsProperties properties = new StatsProperties();
+        properties.getShared().setEnabled(true);
+        properties.getShared().setFile(file.getPath());
+        properties.getShared().setBuckets(true);
+        // only publish() when the test says so
+        properties.getShared().setRefreshMillis(TimeUnit.HOURS.toMillis(1));
+        return properties;
+    }
+
+    /**
+     * Runs in a process of its own and reads as fast as it can while the test keeps on publishing
+     */
+    public static class Reader {
+
+        private static final long READ_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+        public static void main(String[] args) throws Exception {
+            SharedStatsReader reader = SharedStatsReader.open(new File(args[0]).toPath());
+            SharedStatsReader.Stats read = reader.newStats();
+            System.out.println("reading");
+            System.out.flush();
+
+            long lastSequence = 0;
+            long publications = 0;
+            long end = System.nanoTime() + READ_NANOS;
+            while (System.nanoTime() < end) {
+                if (!reader.read(read)) {
+                    continue;
+                }
+                long bucketed = 0;
+                for (int bucket = 0; bucket < read.getBucketCount(); bucket++) {
+                    bucketed += read.getBucketCount(bucket);
+                }
+                if (read.getSumUnits() != read.getCount() * 100 || bucketed != read.getCount()
+                        || read.getCount() > 0 && (read.getMinUnits() != 100 || read.getMaxUnits() != 100)
+                        || read.getSequence() < lastSequence) {
+                    System.out.println("torn: sequence " + read.getSequence() + ", count " + read.getCount()
+                            + ", sum " + read.getSumUnits() + ", in the buckets " + bucketed);
+                    System.exit(1);
+                }
+                if (read.getSequence() != lastSequence) {
+                    publications++;
+                }
+                lastSequence = read.getSequence();
+            }
+            System.out.println("consistent " + publications + " publications seen");
+            System.out.flush();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.Transaction;
+import com.ju.tsa.model.TransactionAggregator;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatsServiceContentionTest {
+
+    private static final int THREADS = 64;
+    private static final int TRANSACTIONS_PER_THREAD = 5_000;
+    private static final long NOW = 1518186844879L;
+
+    private final Clock fakeTimeKeeper = Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC);
+
+    @Test
+    public void concurrentWritersMatchSequentialOracle() throws Exception {
+        StatsService stats = new StatsService(fakeTimeKeeper);
+        List<List<Transaction>> perThread = generate(THREADS, TRANSACTIONS_PER_THREAD, 120_000);
+
+        hammer(perThread, stats::add);
+
+        assertMatchesOracle(oracle(perThread, NOW - 60_000), stats.aggregate());
+    }
+
+    @Test
+    public void readersNeverSeeAggregatesGoingBackwards() throws Exception {
+        StatsService stats = new StatsService(fakeTimeKeeper);
+        List<List<Transaction>> perThread = generate(THREADS, TRANSACTIONS_PER_THREAD, 59_000);
+        long total = (long) THREADS * TRANSACTIONS_PER_THREAD;
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> verdicts = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            verdicts.add(readers.submit(() -> {
+                long lastCount = 0;
+                while (writing.get()) {
+                    long count = stats.aggregate().getCount();
+                    if (count < lastCount || count > total) {
+                        return false;
+                    }
+                    lastCount = count;
+                }
+                return true;
+            }));
+        }
+
+        hammer(perThread, stats::add);
+        writing.set(false);
+
+        for (Future<Boolean> verdict : verdicts) {
+            assertTrue("nothing expires with a fixed clock, so the count can only grow", verdict.get());
+        }
+        readers.shutdown();
+        assertEquals(total, stats.aggregate().getCount());
+    }
+
+    @Test
+    public void slotRolloverUnderContentionKeepsOnlyTheNewestSecond() throws Exception {
+        StripedBucketRing ring = new StripedBucketRing(60, 1_000, 16, 2);
+        long newSecond = NOW / 1000;
+        long oldSecond = newSecond - 60;
+
+        List<List<Transaction>> perThread = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            List<Transaction> transactions = new ArrayList<>();
+            for (int i = 0; i < 1_000; i++) {
+                long second = i % 2 == 0 ? oldSecond : newSecond;
+                transactions.add(new Transaction(BigDecimal.ONE, second * 1000 + i % 1000));
+            }
+            perThread.add(transactions);
+        }
+
+        hammer(perThread, ring::add);
+
+        TransactionAggregator result = ring.aggregate(oldSecond * 1000).toTransactionAggregator();
+        assertEquals("every transaction of the newer second survives the rollover", THREADS * 500L, result.getCount());
+        assertEquals(BigDecimal.valueOf(THREADS * 500L), result.getSum());
+    }
+
+    private interface Sink {
+        void accept(Transaction transaction);
+    }
+
+    private static void hammer(List<List<Transaction>> perThread, Sink sink) throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(perThread.size());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+
+        for (List<Transaction> transactions : perThread) {
+            done.add(writers.submit(() -> {
+                start.await();
+                for (Transaction transaction : transactions) {
+                    sink.accept(transaction);
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : done) {
+            future.get();
+        }
+        writers.shutdown();
+        assertTrue(writers.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static List<List<Transaction>> generate(int threads, int perThread, long maxAgeMillis) {
+        Random random = new Random(42);
+        List<List<Transaction>> result = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<Transaction> transactions = new ArrayList<>();
+            for (int i = 0; i < perThread; i++) {
+                BigDecimal amount = BigDecimal.valueOf(random.nextInt(2_000_000) - 1_000_000, 2);
+                long age = 1 + (long) (random.nextDouble() * maxAgeMillis);
+                transactions.add(new Transaction(amount, NOW - age));
+            }
+            result.add(transactions);
+        }
+        return result;
+    }
+
+    /**
+     * The slow and obviously correct way: keep every transaction whose second starts inside the window and fold them
+     * one after another.
+     */
+    private static BigDecimal[] oracle(List<List<Transaction>> perThread, long windowStart) {
+        BigDecimal sum = BigDecimal.ZERO;
+        BigDecimal max = null;
+        BigDecimal min = null;
+        long count = 0;
+        for (List<Transaction> transactions : perThread) {
+            for (Transaction transaction : transactions) {
+                if (transaction.strippedMillis().toEpochMilli() <= windowStart) {
+                    continue;
+                }
+                sum = sum.add(transaction.getAmount());
+                max = max == null ? transaction.getAmount() : max.max(transaction.getAmount());
+                min = min == null ? transaction.getAmount() : min.min(transaction.getAmount());
+                count++;
+            }
+        }
+        BigDecimal average = sum.divide(BigDecimal.valueOf(count), 2, RoundingMode.HALF_EVEN);
+        return new BigDecimal[]{sum, max, min, average, BigDecimal.valueOf(count)};
+    }
+
+    private static void assertMatchesOracle(BigDecimal[] expected, TransactionAggregator result) {
+        assertEquals("sum", expected[0], result.getSum());
+        assertEquals("max", expected[1], result.getMaximum());
+        assertEquals("min", expected[2], result.getMinimum());
+        assertEquals("average", expected[3], result.getAverage());
+        assertEquals("count", expected[4].longValue(), result.getCount());
+    }
+}
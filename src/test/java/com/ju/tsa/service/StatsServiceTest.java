@@ -1,14 +1,26 @@
 package com.ju.tsa.service;
 
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.BucketState;
+import com.ju.tsa.model.HistogramBin;
+import com.ju.tsa.model.TopTransaction;
 import com.ju.tsa.model.Transaction;
 import com.ju.tsa.model.TransactionAggregator;
+import com.ju.tsa.model.WindowLength;
 import org.junit.Test;
 
 import java.math.BigDecimal;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class StatsServiceTest {
 
@@ -109,4 +121,231 @@ public class StatsServiceTest {
         assertEquals("average should be correct", new BigDecimal("12.50"), result.getAverage());
     }
 
+    @Test
+    public void addBatchOfTransactionsOutOfOrder() {
+        Clock fakeTimeKeeper = Clock.systemUTC();
+        Instant now = Instant.now();
+        StatsService stats = new StatsService(fakeTimeKeeper);
+
+        List<Transaction> batch = new ArrayList<>(Arrays.asList(
+                new Transaction(BigDecimal.valueOf(10), now.minusSeconds(20).toEpochMilli()),
+                new Transaction(BigDecimal.valueOf(5), now.minusSeconds(530).toEpochMilli()),
+                new Transaction(BigDecimal.valueOf(15), now.minusSeconds(30).toEpochMilli()),
+                new Transaction(BigDecimal.valueOf(20), now.minusSeconds(20).toEpochMilli()),
+                new Transaction(BigDecimal.valueOf(25), now.plusSeconds(30).toEpochMilli())));
+
+        assertEquals("the one in the past and the one in the future are dropped", 3, stats.addAll(batch));
+
+        TransactionAggregator result = stats.aggregate();
+
+        assertEquals("overall sum should be the sum of all amounts", BigDecimal.valueOf(45), result.getSum());
+        assertEquals("show the correct count of trx.", 3, result.getCount());
+        assertEquals("max trx.amount is chosen correctly", BigDecimal.valueOf(20), result.getMaximum());
+        assertEquals("smallest trx is chosen correctly", BigDecimal.valueOf(10), result.getMinimum());
+        assertEquals("average should be correct", new BigDecimal("15.00"), result.getAverage());
+    }
+
+    @Test
+    public void configuredWindowIsHonouredToTheMillisecond() {
+        MutableClock clock = new MutableClock(1518186844879L);
+        StatsProperties properties = new StatsProperties();
+        properties.setWindowMillis(1_500);
+        properties.setBucketMillis(1);
+        StatsService stats = new StatsService(clock, properties);
+
+        stats.add(new Transaction(BigDecimal.valueOf(10), clock.millis() - 1_499));
+        stats.add(new Transaction(BigDecimal.valueOf(20), clock.millis() - 1_501));
+        stats.add(new Transaction(BigDecimal.valueOf(30), clock.millis() - 1));
+
+        assertEquals("the one older than the window is dropped", 2, stats.aggregate().getCount());
+
+        clock.advance(1);
+        assertEquals(BigDecimal.valueOf(30), stats.aggregate().getSum());
+    }
+
+    @Test
+    public void severalWindowsOffTheSameTransactions() {
+        MutableClock clock = new MutableClock(1518186844879L);
+        StatsProperties properties = new StatsProperties();
+        properties.setWindows(Arrays.asList("10s", "5m"));
+        StatsService stats = new StatsService(clock, properties);
+
+        stats.add(new Transaction(BigDecimal.valueOf(1), clock.millis() - 5_000));
+        stats.add(new Transaction(BigDecimal.valueOf(10), clock.millis() - 30_000));
+        stats.add(new Transaction(BigDecimal.valueOf(100), clock.millis() - 200_000));
+
+        assertEquals(BigDecimal.valueOf(1), stats.aggregate(WindowLength.parse("10s")).getSum());
+        assertEquals(BigDecimal.valueOf(11), stats.aggregate().getSum());
+        assertEquals(BigDecimal.valueOf(111), stats.aggregate(WindowLength.parse("5m")).getSum());
+
+        Map<WindowLength, TransactionAggregator> all = stats.aggregateAll();
+        assertEquals(Arrays.asList(WindowLength.parse("10s"), WindowLength.parse("1m"), WindowLength.parse("5m")),
+                new ArrayList<>(all.keySet()));
+        assertEquals(3, all.get(WindowLength.parse("5m")).getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowsThatAreNotKeptAreRefused() {
+        new StatsService().aggregate(WindowLength.parse("5m"));
+    }
+
+    @Test
+    public void countsWhatWasAcceptedAndWhyTheRestWasNot() {
+        MutableClock clock = new MutableClock(1_000_000);
+        StatsService stats = new StatsService(clock);
+        StatsMetrics metrics = stats.getMetrics();
+
+        stats.add(new Transaction(BigDecimal.ONE, 999_000));
+        stats.add(new Transaction(BigDecimal.ONE, 1_000_000));
+        stats.add(new Transaction(BigDecimal.ONE, 900_000));
+        stats.addAll(new ArrayList<>(Arrays.asList(
+                new Transaction(BigDecimal.ONE, 998_000),
+                new Transaction(BigDecimal.ONE, 999_500),
+                new Transaction(BigDecimal.ONE, 1_000_001),
+                new Transaction(BigDecimal.ONE, 1))));
+        stats.aggregate();
+
+        assertEquals(3, metrics.getAccepted());
+        assertEquals(2, metrics.getRejected(StatsMetrics.Rejection.TOO_OLD));
+        assertEquals(2, metrics.getRejected(StatsMetrics.Rejection.IN_THE_FUTURE));
+        assertEquals(3, metrics.addLatency().getCount());
+        assertEquals(1, metrics.addAllLatency().getCount());
+        assertEquals(1, metrics.aggregateLatency().getCount());
+    }
+
+    @Test
+    public void keysOnlyGetTheTransactionsOfABatchThatLanded() {
+        // 61 one second buckets, so the bucket of 999_500 shares its slot with the one of 1_060_500
+        MutableClock clock = new MutableClock(1_060_501);
+        StatsService stats = new StatsService(clock);
+        stats.add(new Transaction(BigDecimal.ONE, 1_060_500));
+
+        clock.set(1_000_000);
+        int added = stats.addAll(new ArrayList<>(Arrays.asList(
+                new Transaction(BigDecimal.ONE, 998_500, "merchant-42"),
+                new Transaction(BigDecimal.TEN, 999_500, "merchant-42"))));
+
+        assertEquals(1, added);
+        assertEquals(BigDecimal.ONE, stats.aggregateByKey("merchant-42").getSum());
+        assertEquals(1, stats.aggregateByKey("merchant-42").getCount());
+    }
+
+    @Test
+    public void primitivesEndUpTheSameAsTransactions() {
+        MutableClock clock = new MutableClock(1_000_000);
+        StatsService primitives = new StatsService(clock);
+        StatsService transactions = new StatsService(clock);
+
+        primitives.add(1234, 2, 999_000);
+        primitives.add(-5, 0, 998_000);
+        // more decimals than the aggregates keep, which has to take the long way
+        primitives.add(12345, 3, 997_000);
+        primitives.add(1, 0, 1_000_000);
+        transactions.add(new Transaction(new BigDecimal("12.34"), 999_000));
+        transactions.add(new Transaction(new BigDecimal("-5"), 998_000));
+        transactions.add(new Transaction(new BigDecimal("12.345"), 997_000));
+        transactions.add(new Transaction(BigDecimal.ONE, 1_000_000));
+
+        TransactionAggregator expected = transactions.aggregate();
+        TransactionAggregator result = primitives.aggregate();
+        assertEquals(expected.getCount(), result.getCount());
+        assertEquals(expected.getSum(), result.getSum());
+        assertEquals(expected.getMaximum(), result.getMaximum());
+        assertEquals(expected.getMinimum(), result.getMinimum());
+        assertEquals(expected.getAverage(), result.getAverage());
+        assertEquals(3, primitives.getMetrics().getAccepted());
+        assertEquals(1, primitives.getMetrics().getRejected(StatsMetrics.Rejection.IN_THE_FUTURE));
+    }
+
+    @Test
+    public void exportedBucketsAddUpToTheWindowAcrossAllLevels() {
+        StatsProperties properties = new StatsProperties();
+        properties.setWindowMillis(600_000);
+        properties.setWheelSize(10);
+        MutableClock clock = new MutableClock(1_000_000_000);
+        StatsService stats = new StatsService(clock, properties);
+        for (int i = 1; i <= 120; i++) {
+            stats.add(new Transaction(BigDecimal.valueOf(i), 1_000_000_000 - i * 4_999));
+        }
+
+        List<BucketState> buckets = stats.exportBuckets();
+        List<TransactionAggregator> aggregates = new ArrayList<>();
+        long widest = 0;
+        for (int i = 0; i < buckets.size(); i++) {
+            aggregates.add(buckets.get(i).toTransactionAggregator());
+            widest = Math.max(widest, buckets.get(i).getWidth());
+            if (i > 0) {
+                assertTrue("no overlaps, oldest first", buckets.get(i).getStart()
+                        >= buckets.get(i - 1).getStart() + buckets.get(i - 1).getWidth());
+            }
+        }
+        TransactionAggregator expected = stats.aggregate();
+        TransactionAggregator merged = TransactionAggregator.flatten(aggregates);
+        assertEquals(expected.getCount(), merged.getCount());
+        assertEquals(expected.getSum(), merged.getSum());
+        assertEquals(expected.getMinimum(), merged.getMinimum());
+        assertEquals(expected.getMaximum(), merged.getMaximum());
+        assertTrue("the older part comes from coarser levels", widest > 1_000);
+    }
+
+    @Test
+    public void largestTransactionsOfTheWindowAcrossAllLevels() {
+        StatsProperties properties = new StatsProperties();
+        properties.setWindowMillis(600_000);
+        properties.setWheelSize(10);
+        properties.setTopK(5);
+        MutableClock clock = new MutableClock(1_000_000_000);
+        StatsService stats = new StatsService(clock, properties);
+        for (int i = 1; i <= 120; i++) {
+            stats.add(new Transaction(BigDecimal.valueOf(i), 1_000_000_000 - i * 4_999));
+        }
+
+        assertLargestOfTheWindow(stats, 3);
+        // the largest ones are the oldest, so they leave first, at the pace of the coarsest buckets of the window
+        clock.advance(200_000);
+        assertLargestOfTheWindow(stats, 5);
+    }
+
+    /**
+     * The amount of every transaction is the number of 4999 millis it's older than 1_000_000_000
+     */
+    private static void assertLargestOfTheWindow(StatsService stats, int k) {
+        List<TopTransaction> top = stats.topTransactions(k);
+        assertEquals(k, top.size());
+        assertEquals(0, stats.aggregate().getMaximum().compareTo(top.get(0).getAmount()));
+        for (int i = 0; i < top.size(); i++) {
+            long amount = stats.aggregate().getMaximum().longValueExact() - i;
+            assertEquals(BigDecimal.valueOf(amount * 100, 2), top.get(i).getAmount());
+            assertEquals(1_000_000_000 - amount * 4_999, top.get(i).getTimestamp());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noMoreLargestTransactionsThanTheBucketsKeep() {
+        StatsProperties properties = new StatsProperties();
+        properties.setTopK(5);
+        new StatsService(properties).topTransactions(6);
+    }
+
+    @Test
+    public void histogramCountsWhatTheWindowCountsAcrossAllLevels() {
+        StatsProperties properties = new StatsProperties();
+        properties.setWindowMillis(600_000);
+        properties.setWheelSize(10);
+        MutableClock clock = new MutableClock(1_000_000_000);
+        StatsService stats = new StatsService(clock, properties);
+        for (int i = 1; i <= 120; i++) {
+            stats.add(new Transaction(BigDecimal.valueOf(i * i * i), 1_000_000_000 - i * 4_999));
+        }
+        clock.advance(100_000);
+
+        long counted = 0;
+        for (HistogramBin bin : stats.histogram(stats.getMainWindow())) {
+            counted += bin.getCount();
+        }
+        assertEquals(stats.aggregate().getCount(), counted);
+
+        properties.getHistogram().setBins(0);
+        assertNull(new StatsService(clock, properties).histogram(stats.getMainWindow()));
+    }
 }
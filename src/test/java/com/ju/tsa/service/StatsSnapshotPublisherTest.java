@@ -0,0 +1,92 @@
+package com.ju.tsa.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.StatsSnapshot;
+import com.ju.tsa.model.Transaction;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatsSnapshotPublisherTest {
+
+    private static final long NOW = 1518186844879L;
+
+    private final MutableClock fakeTimeKeeper = new MutableClock(NOW);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final StatsProperties properties = new StatsProperties();
+    private final StatsService stats = new StatsService(fakeTimeKeeper, properties);
+
+    @Test
+    public void servesThePublishedSnapshotUntilItGetsTooOld() throws Exception {
+        properties.getSnapshot().setEnabled(true);
+        properties.getSnapshot().setMaxStalenessMillis(50);
+        StatsSnapshotPublisher publisher = new StatsSnapshotPublisher(stats, objectMapper, properties, fakeTimeKeeper);
+
+        stats.add(new Transaction(BigDecimal.TEN, NOW - 1_000));
+        StatsSnapshot first = publisher.current();
+        assertArrayEquals(objectMapper.writeValueAsBytes(stats.aggregate()), first.getJson());
+
+        stats.add(new Transaction(BigDecimal.ONE, NOW - 1_000));
+        fakeTimeKeeper.advance(50);
+        assertSame("still fresh enough", first, publisher.current());
+        assertEquals(50, publisher.snapshotAgeMillis());
+
+        fakeTimeKeeper.advance(1);
+        StatsSnapshot second = publisher.current();
+        assertNotSame(first, second);
+        assertEquals(BigDecimal.valueOf(11), second.getAggregate().getSum());
+        assertEquals(0, publisher.snapshotAgeMillis());
+    }
+
+    @Test
+    public void takesAFreshSnapshotOnEveryReadWithTheSnapshotModeOff() {
+        StatsSnapshotPublisher publisher = new StatsSnapshotPublisher(stats, objectMapper, properties, fakeTimeKeeper);
+
+        stats.add(new Transaction(BigDecimal.TEN, NOW - 1_000));
+        assertEquals(1, publisher.current().getAggregate().getCount());
+
+        stats.add(new Transaction(BigDecimal.ONE, NOW - 1_000));
+        assertEquals(2, publisher.current().getAggregate().getCount());
+    }
+
+    @Test
+    public void unchangedStatisticsAreNotSerializedAgain() {
+        StatsSnapshotPublisher publisher = new StatsSnapshotPublisher(stats, objectMapper, properties, fakeTimeKeeper);
+        stats.add(new Transaction(BigDecimal.TEN, NOW - 1_000));
+
+        StatsSnapshot first = publisher.publish();
+        fakeTimeKeeper.advance(10);
+        StatsSnapshot second = publisher.publish();
+
+        assertSame(first.getJson(), second.getJson());
+        assertEquals(NOW + 10, second.getTakenAtMillis());
+    }
+
+    @Test
+    public void backgroundRefreshKeepsPublishing() throws Exception {
+        properties.getSnapshot().setEnabled(true);
+        properties.getSnapshot().setRefreshMillis(5);
+        StatsService liveStats = new StatsService();
+        StatsSnapshotPublisher publisher = new StatsSnapshotPublisher(liveStats, objectMapper, properties);
+        publisher.start();
+        try {
+            liveStats.add(new Transaction(BigDecimal.TEN, System.currentTimeMillis() - 1_000));
+
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (publisher.snapshotAgeMillis() < 0 || publisher.current().getAggregate().getCount() == 0) {
+                assertTrue("the refresher should have picked the transaction up", System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+        } finally {
+            publisher.stop();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.ju.tsa.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ju.tsa.MutableClock;
+import com.ju.tsa.config.StatsProperties;
+import com.ju.tsa.model.Transaction;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatsStreamerTest {
+
+    private static final long NOW = 1518186844879L;
+
+    private final MutableClock fakeTimeKeeper = new MutableClock(NOW);
+    private final StatsProperties properties = new StatsProperties();
+    private final StatsService stats = new StatsService(fakeTimeKeeper, properties);
+    private final StatsSnapshotPublisher publisher =
+            new StatsSnapshotPublisher(stats, new ObjectMapper(), properties, fakeTimeKeeper);
+    private StatsStreamer streamer;
+
+    @After
+    public void tearDown() {
+        streamer.stop();
+    }
+
+    @Test
+    public void everySubscriberGetsTheSameFrameOnlyWhenSomethingChanged() throws Exception {
+        streamer = new StatsStreamer(publisher, properties);
+        stats.add(new Transaction(BigDecimal.TEN, NOW - 1_000));
+        RecordingEmitter first = new RecordingEmitter();
+        RecordingEmitter second = new RecordingEmitter();
+
+        assertTrue(streamer.subscribe(first));
+        assertTrue(streamer.subscribe(second));
+        byte[] initial = first.next();
+        assertSame("serialized once for everybody", initial, second.next());
+        assertTrue(new String(initial, StandardCharsets.UTF_8).matches("data:\\{.*\"sum\":10.*}\n\n"));
+
+        fakeTimeKeeper.advance(1_000);
+        streamer.tick();
+        assertNull(first.nextOrNull());
+        assertEquals(1, streamer.suppressedTicks());
+
+        stats.add(new Transaction(BigDecimal.ONE, NOW));
+        fakeTimeKeeper.advance(1_000);
+        streamer.tick();
+        byte[] changed = first.next();
+        assertSame(changed, second.next());
+        assertTrue(new String(changed, StandardCharsets.UTF_8).contains("\"sum\":11"));
+        assertEquals(2, streamer.events());
+        assertEquals(2, streamer.subscribers());
+    }
+
+    @Test
+    public void sendsAHeartbeatWhileNothingChanges() throws Exception {
+        properties.getStream().setHeartbeatMillis(5_000);
+        streamer = new StatsStreamer(publisher, properties);
+        RecordingEmitter subscriber = new RecordingEmitter();
+        streamer.subscribe(subscriber);
+        subscriber.next();
+
+        for (int i = 0; i < 4; i++) {
+            fakeTimeKeeper.advance(1_000);
+            streamer.tick();
+        }
+        assertNull(subscriber.nextOrNull());
+        assertEquals(4, streamer.suppressedTicks());
+
+        fakeTimeKeeper.advance(1_000);
+        streamer.tick();
+        assertEquals(":\n\n", new String(subscriber.next(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void dropsSubscribersThatStayBusy() throws Exception {
+        properties.getStream().setMaxMissedTicks(2);
+        streamer = new StatsStreamer(publisher, properties);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingEmitter stuck = new RecordingEmitter(release);
+        streamer.subscribe(stuck);
+
+        for (int i = 0; i < 3; i++) {
+            stats.add(new Transaction(BigDecimal.ONE, NOW - 1_000));
+            fakeTimeKeeper.advance(1_000);
+            streamer.tick();
+            assertEquals(i < 2 ? 1 : 0, streamer.subscribers());
+        }
+        assertEquals(1, streamer.dropped());
+
+        release.countDown();
+        assertTrue("completed by the sender once it's done", stuck.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, stuck.sent.size());
+    }
+
+    @Test
+    public void refusesSubscribersBeyondTheLimit() {
+        properties.getStream().setMaxSubscribers(1);
+        streamer = new StatsStreamer(publisher, properties);
+
+        assertTrue(streamer.subscribe(new RecordingEmitter()));
+        assertFalse(streamer.subscribe(new RecordingEmitter()));
+        assertEquals(1, streamer.subscribers());
+    }
+
+    /**
+     * Keeps what's sent instead of writing it out, after waiting for a latch
+     */
+    private static class RecordingEmitter extends ResponseBodyEmitter {
+        private final BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+        private final CountDownLatch release;
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        RecordingEmitter() {
+            this(new CountDownLatch(0));
+        }
+
+        RecordingEmitter(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void send(Object object, MediaType mediaType) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            assertEquals(MediaType.TEXT_EVENT_STREAM, mediaType);
+            sent.add((byte[]) object);
+        }
+
+        @Override
+        public synchronized void complete() {
+            completed.countDown();
+        }
+
+        byte[] next() throws InterruptedException {
+            byte[] next = sent.poll(5, TimeUnit.SECONDS);
+            if (next == null) {
+                throw new AssertionError("nothing was sent");
+            }
+            return next;
+        }
+
+        byte[] nextOrNull() throws InterruptedException {
+            return sent.poll(100, TimeUnit.MILLISECONDS);
+        }
+    }
+}
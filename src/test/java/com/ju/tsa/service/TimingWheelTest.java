@@ -0,0 +1,65 @@
+package com.ju.tsa.service;
+
+import com.ju.tsa.model.Transaction;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static final long NOW = 1518186844879L;
+
+    @Test
+    public void defaultsAreASingleRingOfSeconds() {
+        TimingWheel wheel = new TimingWheel(60_000, 1_000, 60, 4, 2);
+
+        assertEquals(1, wheel.levelCount());
+        assertEquals(1_000, wheel.level(0).bucketMillis());
+        assertEquals(61, wheel.level(0).size());
+    }
+
+    @Test
+    public void longWindowsGetCoarserLevelsInsteadOfMoreSlots() {
+        TimingWheel wheel = new TimingWheel(4 * 3_600_000, 1, 60, 4, 2);
+
+        assertEquals(4, wheel.levelCount());
+        assertEquals(60, wheel.level(0).size());
+        assertEquals(60, wheel.level(1).bucketMillis());
+        assertEquals(3_600, wheel.level(2).bucketMillis());
+        assertEquals(216_000, wheel.level(3).bucketMillis());
+        assertEquals(68, wheel.level(3).size());
+    }
+
+    @Test
+    public void everyLevelGetsTheTransaction() {
+        TimingWheel wheel = new TimingWheel(15 * 60_000, 10, 60, 4, 2);
+
+        assertTrue(wheel.add(new Transaction(BigDecimal.TEN, NOW - 5)));
+
+        for (int level = 0; level < wheel.levelCount(); level++) {
+            assertEquals(1, wheel.level(level).aggregate(NOW - 60_000).getCount());
+        }
+    }
+
+    @Test
+    public void tooOldForTheCoarsestLevelIsReported() {
+        TimingWheel wheel = new TimingWheel(60_000, 1_000, 60, 4, 2);
+        wheel.add(new Transaction(BigDecimal.ONE, NOW));
+
+        assertFalse(wheel.add(new Transaction(BigDecimal.ONE, NOW - 61_000)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bucketsWiderThanTheWindowAreRefused() {
+        new TimingWheel(1_000, 2_000, 60, 4, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aWheelNeedsAtLeastTwoBuckets() {
+        new TimingWheel(60_000, 1_000, 1, 4, 2);
+    }
+}